@@ -1,8 +1,11 @@
 '''Unit tests for the pysim module'''
 
+import os
+import tempfile
 import unittest
 from hybridpy.pysim.hybrid_automaton import HyperRectangle
-from hybridpy.pysim.simulate import init_list_to_q_list
+from hybridpy.pysim.simulate import init_list_to_q_list, ModeSim
+from hybridpy.pysim.trajectory_file import write_trajectories, read_trajectories
 
 class TestPySim(unittest.TestCase):
     'Unit tests for pysim'
@@ -37,5 +40,30 @@ class TestPySim(unittest.TestCase):
 
         self.assertTrue(len(s) == 8, 'unique_corners() did not give unique points')
 
+    def test_trajectory_file(self):
+        'test writing and reading a binary trajectory file'
+        first = [ModeSim('on', [[0.0, 1.0], [0.5, 1.5]], [0.0, 0.5]), ModeSim('off', [[0.5, 1.5]], [0.5])]
+        second = [ModeSim('on', [[2.0, -1.0], [2.5, -0.5], [3.0, 0.0]], [0.0, 0.5, 1.0])]
+
+        fd, filename = tempfile.mkstemp(suffix='.bin')
+        os.close(fd)
+
+        try:
+            write_trajectories(filename, ['x', 'y'], [first, second])
+            variables, trajectories = read_trajectories(filename)
+        finally:
+            os.remove(filename)
+
+        self.assertEqual(variables, ['x', 'y'])
+        self.assertEqual(len(trajectories), 2)
+
+        for expected, actual in zip([first, second], trajectories):
+            self.assertEqual(len(expected), len(actual))
+
+            for e, a in zip(expected, actual):
+                self.assertEqual(e.mode_name, a.mode_name)
+                self.assertEqual(e.times, a.times)
+                self.assertEqual(e.points, a.points)
+
 if __name__ == '__main__':
     unittest.main()
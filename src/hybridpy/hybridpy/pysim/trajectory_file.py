@@ -0,0 +1,143 @@
+'''
+Binary trajectory files, shared with Hyst's Java simulator
+(com.verivital.hyst.simulation.TrajectoryWriter / TrajectoryReader).
+
+All values are little-endian. The file is a header followed by segments until the end of the file:
+
+header:   8 bytes magic 'HYSTTRJ1', int32 number of variables n,
+          n x (int32 length, UTF-8 bytes) variable names,
+          zero padding to a multiple of 8 bytes
+segment:  int32 trajectory index, int32 number of points m,
+          int32 length, UTF-8 bytes of the mode name,
+          zero padding to a multiple of 8 bytes (from the file start),
+          m doubles of times,
+          n columns of m doubles, one per variable, in header order
+
+A segment is the part of one trajectory in a single mode (a ModeSim). The columns are 8-byte aligned,
+so they can be viewed directly from a memory map (for example, with numpy.frombuffer).
+'''
+
+import mmap
+import struct
+
+from hybridpy.pysim.simulate import ModeSim
+
+MAGIC = b'HYSTTRJ1'
+
+def _pad(f, pos):
+    'write zero padding to a multiple of 8 bytes, returns the new position'
+
+    rem = pos % 8
+
+    if rem != 0:
+        f.write(b'\0' * (8 - rem))
+        pos += 8 - rem
+
+    return pos
+
+def _write_string(f, s):
+    'write a length-prefixed utf-8 string, returns the number of bytes written'
+
+    data = s.encode('utf-8')
+    f.write(struct.pack('<i', len(data)))
+    f.write(data)
+
+    return 4 + len(data)
+
+def write_trajectories(filename, variables, trajectories):
+    '''
+    write trajectories to a binary trajectory file
+
+    variables is the list of variable names
+    trajectories is a list, where each trajectory is a list of ModeSim objects (like the 'traces' of a
+    simulate_one result)
+    '''
+
+    num_vars = len(variables)
+
+    with open(filename, 'wb') as f:
+        f.write(MAGIC)
+        f.write(struct.pack('<i', num_vars))
+        pos = len(MAGIC) + 4
+
+        for var in variables:
+            pos += _write_string(f, var)
+
+        pos = _pad(f, pos)
+
+        for index, traces in enumerate(trajectories):
+            for mode_sim in traces:
+                size = len(mode_sim.times)
+                f.write(struct.pack('<ii', index, size))
+                pos += 8 + _write_string(f, mode_sim.mode_name)
+                pos = _pad(f, pos)
+
+                f.write(struct.pack('<{}d'.format(size), *mode_sim.times))
+
+                for dim in range(num_vars):
+                    column = [float(pt[dim]) for pt in mode_sim.points]
+                    f.write(struct.pack('<{}d'.format(size), *column))
+
+                pos += 8 * size * (num_vars + 1)
+
+def read_trajectories(filename):
+    '''
+    read a binary trajectory file
+
+    returns a pair (variables, trajectories), where trajectories is a list with a list of ModeSim objects
+    for each trajectory index
+    '''
+
+    with open(filename, 'rb') as f:
+        data = mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ)
+
+        try:
+            if data[0:len(MAGIC)] != MAGIC:
+                raise RuntimeError('Not a trajectory file (bad header): ' + filename)
+
+            pos = len(MAGIC)
+            num_vars = struct.unpack_from('<i', data, pos)[0]
+            pos += 4
+            variables = []
+
+            for _ in range(num_vars):
+                name, pos = _read_string(data, pos)
+                variables.append(name)
+
+            pos += (8 - pos % 8) % 8
+            trajectories = []
+
+            while pos < len(data):
+                index, size = struct.unpack_from('<ii', data, pos)
+                mode_name, pos = _read_string(data, pos + 8)
+                pos += (8 - pos % 8) % 8
+
+                if pos + 8 * size * (num_vars + 1) > len(data):
+                    raise RuntimeError('Truncated trajectory file: ' + filename)
+
+                times = list(struct.unpack_from('<{}d'.format(size), data, pos))
+                pos += 8 * size
+                columns = []
+
+                for _ in range(num_vars):
+                    columns.append(struct.unpack_from('<{}d'.format(size), data, pos))
+                    pos += 8 * size
+
+                points = [[columns[dim][i] for dim in range(num_vars)] for i in range(size)]
+
+                while len(trajectories) <= index:
+                    trajectories.append([])
+
+                trajectories[index].append(ModeSim(mode_name, points, times))
+        finally:
+            data.close()
+
+    return variables, trajectories
+
+def _read_string(data, pos):
+    'read a length-prefixed utf-8 string, returns (string, new position)'
+
+    length = struct.unpack_from('<i', data, pos)[0]
+    pos += 4
+
+    return data[pos:pos + length].decode('utf-8'), pos + length
@@ -0,0 +1,309 @@
+package com.verivital.hyst.geometry;
+
+import java.util.Random;
+
+/**
+ * Sampling strategies for choosing points inside a HyperRectangle. Besides
+ * uniform random sampling, there are strategies which cover the box more
+ * evenly for the same number of points: the Sobol and Halton quasi-random
+ * (low-discrepancy) sequences, and Latin hypercube sampling, where the
+ * projection onto every dimension has exactly one point in each of the count
+ * equal-width strata.
+ *
+ * Dimensions where the box is flat get the constant value in every sample, and
+ * don't use up a dimension of the sequence.
+ */
+public class BoxSampler
+{
+	// Sobol direction numbers from Joe and Kuo (new-joe-kuo-6), for dimensions
+	// 2 and above: the degree s of the primitive polynomial, its coefficients
+	// a, and the initial direction numbers m_1 ... m_s
+	private static final int[][] SOBOL_PARAMS = { { 1, 0, 1 }, { 2, 1, 1, 3 }, { 3, 1, 1, 3, 1 },
+			{ 3, 2, 1, 1, 1 }, { 4, 1, 1, 1, 3, 3 }, { 4, 4, 1, 3, 5, 13 },
+			{ 5, 2, 1, 1, 5, 5, 17 }, { 5, 4, 1, 1, 5, 5, 5 }, { 5, 7, 1, 1, 7, 11, 19 },
+			{ 5, 11, 1, 1, 5, 1, 1 }, { 5, 13, 1, 1, 1, 3, 11 }, { 5, 14, 1, 3, 5, 5, 31 },
+			{ 6, 1, 1, 3, 3, 9, 7, 49 }, { 6, 13, 1, 1, 1, 15, 21, 21 },
+			{ 6, 16, 1, 3, 1, 13, 27, 49 }, { 6, 19, 1, 1, 1, 15, 7, 5 },
+			{ 6, 22, 1, 3, 1, 15, 13, 25 }, { 6, 25, 1, 1, 5, 5, 19, 61 },
+			{ 7, 1, 1, 3, 7, 11, 23, 15, 103 }, { 7, 4, 1, 3, 7, 13, 13, 15, 69 } };
+
+	public static final int MAX_SOBOL_DIMS = SOBOL_PARAMS.length + 1;
+
+	private static final int SOBOL_BITS = 31;
+
+	/**
+	 * Get points from the Sobol sequence, scaled to the box. The first point
+	 * of the sequence (the minimum corner) is skipped.
+	 *
+	 * @param box
+	 *            the box to sample
+	 * @param count
+	 *            the number of points
+	 * @return the points
+	 */
+	public static PointSet sobol(HyperRectangle box, int count)
+	{
+		int[] free = freeDims(box);
+		int numDims = free.length;
+
+		if (numDims > MAX_SOBOL_DIMS)
+			throw new RuntimeException("Sobol sampling supports at most " + MAX_SOBOL_DIMS
+					+ " (non-flat) dimensions; got " + numDims);
+
+		int[][] directions = new int[numDims][];
+
+		for (int d = 0; d < numDims; ++d)
+			directions[d] = sobolDirections(d);
+
+		PointSet rv = new PointSet(box.dims.length);
+		int[] x = new int[numDims];
+		double[] unit = new double[numDims];
+		double scale = 1.0 / (1L << SOBOL_BITS);
+
+		// Gray-code construction: point i+1 flips the direction number of the
+		// lowest zero bit of i
+		for (int i = 0; i < count; ++i)
+		{
+			int bit = Integer.numberOfTrailingZeros(~i);
+
+			for (int d = 0; d < numDims; ++d)
+			{
+				x[d] ^= directions[d][bit];
+				unit[d] = x[d] * scale;
+			}
+
+			rv.add(scale(box, free, unit));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Compute the direction numbers (scaled to SOBOL_BITS bits) for one
+	 * dimension of the Sobol sequence
+	 */
+	private static int[] sobolDirections(int dim)
+	{
+		int[] rv = new int[SOBOL_BITS];
+
+		if (dim == 0)
+		{
+			// the first dimension is the van der Corput sequence
+			for (int i = 0; i < SOBOL_BITS; ++i)
+				rv[i] = 1 << (SOBOL_BITS - 1 - i);
+		}
+		else
+		{
+			int[] params = SOBOL_PARAMS[dim - 1];
+			int s = params[0];
+			int a = params[1];
+
+			for (int i = 0; i < s && i < SOBOL_BITS; ++i)
+				rv[i] = params[2 + i] << (SOBOL_BITS - 1 - i);
+
+			for (int i = s; i < SOBOL_BITS; ++i)
+			{
+				rv[i] = rv[i - s] ^ (rv[i - s] >>> s);
+
+				for (int k = 1; k < s; ++k)
+				{
+					if (((a >>> (s - 1 - k)) & 1) != 0)
+						rv[i] ^= rv[i - k];
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get points from the Halton sequence, scaled to the box. Dimension d uses
+	 * the radical inverse in the d-th prime base. The first point of the
+	 * sequence (the minimum corner) is skipped.
+	 *
+	 * @param box
+	 *            the box to sample
+	 * @param count
+	 *            the number of points
+	 * @return the points
+	 */
+	public static PointSet halton(HyperRectangle box, int count)
+	{
+		int[] free = freeDims(box);
+		int numDims = free.length;
+		int[] bases = primes(numDims);
+		PointSet rv = new PointSet(box.dims.length);
+		double[] unit = new double[numDims];
+
+		for (int i = 1; i <= count; ++i)
+		{
+			for (int d = 0; d < numDims; ++d)
+				unit[d] = radicalInverse(i, bases[d]);
+
+			rv.add(scale(box, free, unit));
+		}
+
+		return rv;
+	}
+
+	private static double radicalInverse(int i, int base)
+	{
+		double rv = 0;
+		double f = 1.0 / base;
+
+		while (i > 0)
+		{
+			rv += f * (i % base);
+			i /= base;
+			f /= base;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the first n prime numbers
+	 */
+	private static int[] primes(int n)
+	{
+		int[] rv = new int[n];
+		int found = 0;
+
+		for (int candidate = 2; found < n; ++candidate)
+		{
+			boolean isPrime = true;
+
+			for (int i = 0; i < found && rv[i] * rv[i] <= candidate; ++i)
+			{
+				if (candidate % rv[i] == 0)
+				{
+					isPrime = false;
+					break;
+				}
+			}
+
+			if (isPrime)
+				rv[found++] = candidate;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get points sampled uniformly at random from the box
+	 * 
+	 * @param box
+	 *            the box to sample
+	 * @param count
+	 *            the number of points
+	 * @param rand
+	 *            the random number generator (for reproducibility)
+	 * @return the points
+	 */
+	public static PointSet uniform(HyperRectangle box, int count, Random rand)
+	{
+		int[] free = freeDims(box);
+		PointSet rv = new PointSet(box.dims.length);
+		double[] unit = new double[free.length];
+
+		for (int i = 0; i < count; ++i)
+		{
+			for (int d = 0; d < unit.length; ++d)
+				unit[d] = rand.nextDouble();
+
+			rv.add(scale(box, free, unit));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get a Latin hypercube sample of the box: each dimension is divided into
+	 * count equal strata, and every stratum of every dimension contains
+	 * exactly one point, at a random position within it.
+	 *
+	 * @param box
+	 *            the box to sample
+	 * @param count
+	 *            the number of points
+	 * @param rand
+	 *            the random number generator (for reproducibility)
+	 * @return the points
+	 */
+	public static PointSet latinHypercube(HyperRectangle box, int count, Random rand)
+	{
+		int[] free = freeDims(box);
+		int numDims = free.length;
+		double[][] unit = new double[count][numDims];
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			// random permutation of the strata (Fisher-Yates)
+			int[] perm = new int[count];
+
+			for (int i = 0; i < count; ++i)
+				perm[i] = i;
+
+			for (int i = count - 1; i > 0; --i)
+			{
+				int j = rand.nextInt(i + 1);
+				int temp = perm[i];
+				perm[i] = perm[j];
+				perm[j] = temp;
+			}
+
+			for (int i = 0; i < count; ++i)
+				unit[i][d] = (perm[i] + rand.nextDouble()) / count;
+		}
+
+		PointSet rv = new PointSet(box.dims.length);
+
+		for (int i = 0; i < count; ++i)
+			rv.add(scale(box, free, unit[i]));
+
+		return rv;
+	}
+
+	/**
+	 * Get the indices of the dimensions where the box is not flat
+	 */
+	private static int[] freeDims(HyperRectangle box)
+	{
+		int numFree = 0;
+
+		for (Interval i : box.dims)
+		{
+			if (!i.isPoint())
+				++numFree;
+		}
+
+		int[] rv = new int[numFree];
+
+		for (int d = 0, f = 0; d < box.dims.length; ++d)
+		{
+			if (!box.dims[d].isPoint())
+				rv[f++] = d;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Map a point in the unit box (over the free dimensions) to the given box
+	 */
+	private static double[] scale(HyperRectangle box, int[] free, double[] unit)
+	{
+		double[] rv = new double[box.dims.length];
+
+		for (int d = 0; d < rv.length; ++d)
+			rv[d] = box.dims[d].min;
+
+		for (int f = 0; f < free.length; ++f)
+		{
+			Interval i = box.dims[free[f]];
+			rv[free[f]] = i.min + unit[f] * i.width();
+		}
+
+		return rv;
+	}
+}
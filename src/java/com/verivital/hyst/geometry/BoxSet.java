@@ -0,0 +1,371 @@
+package com.verivital.hyst.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of boxes of the same dimension, packed into a single array rather than
+ * one HyperRectangle (with an Interval object per dimension) per box. Box i's
+ * range in dimension d is stored at [2 * (i * numDims + d)] (min) and the next
+ * index (max), so bulk operations like intersection queries and bounding boxes
+ * scan contiguous memory and don't allocate.
+ *
+ * Boxes are converted to and from HyperRectangles with get() / add(), and
+ * toList() gives a view compatible with code using List<HyperRectangle>.
+ */
+public class BoxSet
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int numDims;
+	private double[] bounds;
+	private int size = 0;
+
+	/**
+	 * Create an empty box set
+	 *
+	 * @param numDims
+	 *            the number of dimensions of each box
+	 */
+	public BoxSet(int numDims)
+	{
+		this.numDims = numDims;
+		bounds = new double[2 * numDims * INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Create a box set from a list of HyperRectangles
+	 *
+	 * @param boxes
+	 *            the boxes, which must all have the same dimension
+	 */
+	public BoxSet(List<HyperRectangle> boxes)
+	{
+		this(boxes.isEmpty() ? 0 : boxes.get(0).dims.length);
+
+		for (HyperRectangle box : boxes)
+			add(box);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int getNumDims()
+	{
+		return numDims;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	private void ensureCapacity(int numBoxes)
+	{
+		int needed = 2 * numDims * numBoxes;
+
+		if (needed > bounds.length)
+			bounds = Arrays.copyOf(bounds, Math.max(needed, 2 * bounds.length));
+	}
+
+	/**
+	 * Add a box to the end of the set
+	 *
+	 * @param box
+	 *            the box to add
+	 */
+	public void add(HyperRectangle box)
+	{
+		if (box.dims.length != numDims)
+			throw new RuntimeException("BoxSet expected a box with " + numDims
+					+ " dimensions, got " + box.dims.length);
+
+		ensureCapacity(size + 1);
+		int offset = 2 * numDims * size++;
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			bounds[offset++] = box.dims[d].min;
+			bounds[offset++] = box.dims[d].max;
+		}
+	}
+
+	/**
+	 * Add a box to the end of the set
+	 *
+	 * @param min
+	 *            the lower bound in each dimension
+	 * @param max
+	 *            the upper bound in each dimension
+	 */
+	public void add(double[] min, double[] max)
+	{
+		if (min.length != numDims || max.length != numDims)
+			throw new RuntimeException("BoxSet expected a box with " + numDims + " dimensions");
+
+		ensureCapacity(size + 1);
+		int offset = 2 * numDims * size++;
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			bounds[offset++] = min[d];
+			bounds[offset++] = max[d];
+		}
+	}
+
+	public double getMin(int i, int d)
+	{
+		return bounds[2 * (i * numDims + d)];
+	}
+
+	public double getMax(int i, int d)
+	{
+		return bounds[2 * (i * numDims + d) + 1];
+	}
+
+	/**
+	 * Get a box as a (newly-allocated) HyperRectangle
+	 *
+	 * @param i
+	 *            the index of the box
+	 * @return the box
+	 */
+	public HyperRectangle get(int i)
+	{
+		HyperRectangle rv = new HyperRectangle(numDims);
+		int offset = 2 * numDims * i;
+
+		for (int d = 0; d < numDims; ++d, offset += 2)
+			rv.dims[d] = new Interval(bounds[offset], bounds[offset + 1]);
+
+		return rv;
+	}
+
+	/**
+	 * Convert the set to a list of HyperRectangles
+	 *
+	 * @return the boxes, in order
+	 */
+	public ArrayList<HyperRectangle> toList()
+	{
+		ArrayList<HyperRectangle> rv = new ArrayList<HyperRectangle>(size);
+
+		for (int i = 0; i < size; ++i)
+			rv.add(get(i));
+
+		return rv;
+	}
+
+	/**
+	 * Get the smallest box containing every box in the set
+	 *
+	 * @return the bounding box, or null if the set is empty
+	 */
+	public HyperRectangle getBoundingBox()
+	{
+		HyperRectangle rv = null;
+
+		if (size > 0)
+		{
+			double[] min = new double[numDims];
+			double[] max = new double[numDims];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			int offset = 0;
+
+			for (int i = 0; i < size; ++i)
+			{
+				for (int d = 0; d < numDims; ++d, offset += 2)
+				{
+					min[d] = Math.min(min[d], bounds[offset]);
+					max[d] = Math.max(max[d], bounds[offset + 1]);
+				}
+			}
+
+			rv = new HyperRectangle(numDims);
+
+			for (int d = 0; d < numDims; ++d)
+				rv.dims[d] = new Interval(min[d], max[d]);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Deep copy this box set
+	 *
+	 * @return the copy
+	 */
+	public BoxSet copy()
+	{
+		BoxSet rv = new BoxSet(numDims);
+		rv.bounds = Arrays.copyOf(bounds, 2 * numDims * Math.max(size, 1));
+		rv.size = size;
+
+		return rv;
+	}
+
+	/**
+	 * Bloat every box by an additive amount in every direction, like
+	 * HyperRectangle.bloatAdditive()
+	 *
+	 * @param amount
+	 *            the amount to bloat by
+	 * @return a new box set with the bloated boxes
+	 */
+	public BoxSet bloatAdditive(double amount)
+	{
+		BoxSet rv = new BoxSet(numDims);
+		rv.ensureCapacity(size);
+		rv.size = size;
+		int len = 2 * numDims * size;
+
+		for (int i = 0; i < len; i += 2)
+		{
+			rv.bounds[i] = bounds[i] - amount;
+			rv.bounds[i + 1] = bounds[i + 1] + amount;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if a box intersects a query box. Intersection is closed, like
+	 * HyperRectangle.intersects(), so touching boxes intersect.
+	 *
+	 * @param i
+	 *            the index of the box
+	 * @param min
+	 *            the lower bounds of the query box
+	 * @param max
+	 *            the upper bounds of the query box
+	 * @return true iff they intersect
+	 */
+	public boolean intersects(int i, double[] min, double[] max)
+	{
+		boolean rv = true;
+		int offset = 2 * numDims * i;
+
+		for (int d = 0; d < numDims; ++d, offset += 2)
+		{
+			if (bounds[offset + 1] < min[d] || max[d] < bounds[offset])
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the indices of all the boxes which intersect a query box
+	 *
+	 * @param box
+	 *            the query box
+	 * @return the indices, in increasing order
+	 */
+	public ArrayList<Integer> findIntersecting(HyperRectangle box)
+	{
+		double[] min = new double[numDims];
+		double[] max = new double[numDims];
+		ArrayList<Integer> rv = new ArrayList<Integer>();
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			min[d] = box.dims[d].min;
+			max[d] = box.dims[d].max;
+		}
+
+		for (int i = 0; i < size; ++i)
+		{
+			if (intersects(i, min, max))
+				rv.add(i);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if a box contains a point (including its boundary)
+	 *
+	 * @param i
+	 *            the index of the box
+	 * @param point
+	 *            the point
+	 * @return true iff the point is in the box
+	 */
+	public boolean contains(int i, double[] point)
+	{
+		boolean rv = true;
+		int offset = 2 * numDims * i;
+
+		for (int d = 0; d < numDims; ++d, offset += 2)
+		{
+			if (point[d] < bounds[offset] || point[d] > bounds[offset + 1])
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Find the first box containing a point
+	 *
+	 * @param point
+	 *            the point
+	 * @return the index of the box, or -1 if no box contains the point
+	 */
+	public int findContaining(double[] point)
+	{
+		int rv = -1;
+
+		for (int i = 0; i < size && rv == -1; ++i)
+		{
+			if (contains(i, point))
+				rv = i;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Intersect a box with a query box
+	 *
+	 * @param i
+	 *            the index of the box
+	 * @param box
+	 *            the query box
+	 * @return the intersection, or null if they don't intersect
+	 */
+	public HyperRectangle intersection(int i, HyperRectangle box)
+	{
+		HyperRectangle rv = new HyperRectangle(numDims);
+		int offset = 2 * numDims * i;
+
+		for (int d = 0; d < numDims && rv != null; ++d, offset += 2)
+		{
+			double min = Math.max(bounds[offset], box.dims[d].min);
+			double max = Math.min(bounds[offset + 1], box.dims[d].max);
+
+			if (min > max)
+				rv = null;
+			else
+				rv.dims[d] = new Interval(min, max);
+		}
+
+		return rv;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[BoxSet: " + toList() + "]";
+	}
+}
@@ -0,0 +1,300 @@
+package com.verivital.hyst.geometry;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Iterates over the corners of a HyperRectangle in Gray-code order, so that
+ * consecutive corners differ in exactly one dimension. Each step updates a
+ * single coordinate of a reused point, so iteration doesn't allocate: the
+ * HyperPoint returned by next() (and the array from isMin()) are overwritten
+ * by the following call, and should be copied if they need to be kept.
+ *
+ * Corners are numbered with a long, so at most 62 varying dimensions can be
+ * enumerated exhaustively. If a maximum number of corners is given and the box
+ * has more corners than that, a random (but reproducible, for a given seed)
+ * subset of distinct corners is iterated instead, which also works for boxes
+ * with more dimensions than fit in a long.
+ *
+ * For processing in parallel, trySplit() divides the remaining corners between
+ * this iterator and a new one, in the manner of java.util.Spliterator.
+ */
+public class CornerIterator implements Iterator<HyperPoint>
+{
+	public static final int MAX_EXHAUSTIVE_DIMS = 62;
+
+	private final double[] min;
+	private final double[] max;
+	private final int[] freeDims; // the dimensions which vary between corners
+
+	private final HyperPoint point;
+	private final boolean[] isMin;
+
+	// exhaustive mode: corners [index, end) in Gray-code order
+	private long index;
+	private long end;
+	private boolean started = false; // is point set to the corner before index?
+
+	// sampled mode (null if exhaustive)
+	private ArrayList<BitSet> samples = null;
+	private int sampleIndex = 0;
+
+	/**
+	 * Iterate over all the corners of a box
+	 *
+	 * @param box
+	 *            the box
+	 * @param unique
+	 *            if true, dimensions where the box is flat are not varied (so
+	 *            each corner is only produced once), and are set to the
+	 *            middle of the range
+	 */
+	public CornerIterator(HyperRectangle box, boolean unique)
+	{
+		this(box, unique, 0, 0);
+	}
+
+	/**
+	 * Iterate over the corners of a box, sampling if there are too many
+	 *
+	 * @param box
+	 *            the box
+	 * @param unique
+	 *            if true, dimensions where the box is flat are not varied
+	 * @param maxCorners
+	 *            if positive and the box has more corners than this, iterate
+	 *            over this many randomly-chosen distinct corners instead
+	 * @param seed
+	 *            the random seed used for sampling
+	 */
+	public CornerIterator(HyperRectangle box, boolean unique, long maxCorners, long seed)
+	{
+		int numDims = box.dims.length;
+		min = new double[numDims];
+		max = new double[numDims];
+		int numFree = 0;
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			min[d] = box.dims[d].min;
+			max[d] = box.dims[d].max;
+
+			if (!unique || !box.dims[d].isPoint())
+				++numFree;
+		}
+
+		freeDims = new int[numFree];
+
+		for (int d = 0, f = 0; d < numDims; ++d)
+		{
+			if (!unique || !box.dims[d].isPoint())
+				freeDims[f++] = d;
+		}
+
+		point = unique ? box.center() : new HyperPoint(numDims);
+		isMin = new boolean[numDims];
+
+		boolean tooMany = numFree > MAX_EXHAUSTIVE_DIMS
+				|| (maxCorners > 0 && (1L << numFree) > maxCorners);
+
+		if (tooMany && maxCorners <= 0)
+			throw new RuntimeException("Box has too many corners to enumerate (" + numFree
+					+ " varying dimensions); use a maximum number of corners to sample them.");
+
+		index = 0;
+
+		if (tooMany)
+		{
+			end = 0;
+			samples = sampleCorners(numFree, maxCorners, seed);
+		}
+		else
+			end = 1L << numFree;
+	}
+
+	/**
+	 * Constructor for trySplit(), which iterates over [from, to) of another
+	 * exhaustive iterator
+	 */
+	private CornerIterator(CornerIterator other, long from, long to)
+	{
+		min = other.min;
+		max = other.max;
+		freeDims = other.freeDims;
+		point = other.point.copy();
+		isMin = other.isMin.clone();
+		index = from;
+		end = to;
+	}
+
+	/**
+	 * Choose distinct random corners
+	 *
+	 * @param numFree
+	 *            the number of varying dimensions
+	 * @param count
+	 *            the number of corners to choose (less than the total)
+	 * @param seed
+	 *            the random seed
+	 * @return the corners, as bitsets where a set bit means the max value
+	 */
+	private static ArrayList<BitSet> sampleCorners(int numFree, long count, long seed)
+	{
+		if (count > Integer.MAX_VALUE)
+			throw new RuntimeException("Too many corners to sample: " + count);
+
+		Random rand = new Random(seed);
+		HashSet<BitSet> found = new HashSet<BitSet>();
+		ArrayList<BitSet> rv = new ArrayList<BitSet>((int) count);
+
+		while (rv.size() < count)
+		{
+			BitSet bs = new BitSet(numFree);
+
+			for (int f = 0; f < numFree; ++f)
+			{
+				if (rand.nextBoolean())
+					bs.set(f);
+			}
+
+			if (found.add(bs))
+				rv.add(bs);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the number of corners the box has, for the given uniqueness setting
+	 *
+	 * @param box
+	 *            the box
+	 * @param unique
+	 *            should flat dimensions be ignored?
+	 * @return the number of corners, or -1 if it doesn't fit in a long
+	 */
+	public static long countCorners(HyperRectangle box, boolean unique)
+	{
+		int numFree = 0;
+
+		for (Interval i : box.dims)
+		{
+			if (!unique || !i.isPoint())
+				++numFree;
+		}
+
+		return numFree > MAX_EXHAUSTIVE_DIMS ? -1 : 1L << numFree;
+	}
+
+	/**
+	 * Get the number of corners which have not yet been iterated
+	 */
+	public long getNumRemaining()
+	{
+		return samples != null ? samples.size() - sampleIndex : end - index;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return getNumRemaining() > 0;
+	}
+
+	/**
+	 * Get the next corner. The returned point is reused by subsequent calls.
+	 */
+	@Override
+	public HyperPoint next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		if (samples != null)
+			setCorner(samples.get(sampleIndex++));
+		else
+		{
+			if (!started)
+			{
+				setCorner(index ^ (index >>> 1));
+				started = true;
+			}
+			else // Gray codes of consecutive indices differ in one bit
+				flip(Long.numberOfTrailingZeros(index));
+
+			++index;
+		}
+
+		return point;
+	}
+
+	/**
+	 * For the corner most recently returned by next(), is each dimension at
+	 * its minimum? The array is reused by subsequent calls.
+	 */
+	public boolean[] isMin()
+	{
+		return isMin;
+	}
+
+	private void flip(int f)
+	{
+		int d = freeDims[f];
+		isMin[d] = !isMin[d];
+		point.dims[d] = isMin[d] ? min[d] : max[d];
+	}
+
+	private void setCorner(long gray)
+	{
+		for (int f = 0; f < freeDims.length; ++f)
+		{
+			int d = freeDims[f];
+			isMin[d] = ((gray >>> f) & 1) == 0;
+			point.dims[d] = isMin[d] ? min[d] : max[d];
+		}
+	}
+
+	private void setCorner(BitSet bs)
+	{
+		for (int f = 0; f < freeDims.length; ++f)
+		{
+			int d = freeDims[f];
+			isMin[d] = !bs.get(f);
+			point.dims[d] = isMin[d] ? min[d] : max[d];
+		}
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("corners can't be removed");
+	}
+
+	/**
+	 * Split off the first half of the remaining corners into a new iterator,
+	 * which has its own reused point. This iterator keeps the second half.
+	 * Like Spliterator.trySplit(), this is meant for dividing work between
+	 * threads.
+	 *
+	 * @return the new iterator, or null if there are fewer than two remaining
+	 *         corners or corners are being sampled
+	 */
+	public CornerIterator trySplit()
+	{
+		CornerIterator rv = null;
+		long remaining = end - index;
+
+		if (samples == null && remaining >= 2)
+		{
+			long mid = index + remaining / 2;
+			rv = new CornerIterator(this, index, mid);
+			index = mid;
+			started = false;
+		}
+
+		return rv;
+	}
+}
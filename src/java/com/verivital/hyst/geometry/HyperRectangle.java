@@ -417,102 +417,37 @@ public class HyperRectangle implements Comparable<HyperRectangle>
 	}
 
 	/**
-	 * Enumerate all the corners of the hyperrectangle
+	 * Enumerate all the corners of the hyperrectangle, in Gray-code order (see
+	 * CornerIterator). The point and boolean array passed to the enumerator
+	 * are reused between calls.
 	 * 
 	 * @param e
 	 *            for each corner, e.enumerate gets called
-	 * @param param
-	 *            the param to pass into e.enumerate, can be null
 	 */
 	public void enumerateCorners(HyperRectangleCornerEnumerator e)
 	{
-		/*
-		 * We do this by considering an integer as a bit array of true/false
-		 * values, where 0=false means min, and 1=true means max. The length of
-		 * the bit array is the number of dimensions. If we iterate from 0 to
-		 * 2^dim, we will have iterated all the possibilities.
-		 */
-
-		// first construct the maximum (2^dim)
-		int maxIterator = 1;
-
-		for (int dimIndex = 0; dimIndex < dims.length; ++dimIndex)
-			maxIterator *= 2;
-
-		// next iterate from 0 to maxIterator (try each bit-array combination)
-		HyperPoint point = new HyperPoint(dims.length);
-		boolean isMin[] = new boolean[dims.length];
-
-		for (int iterator = 0; iterator < maxIterator; ++iterator)
-		{
-			// extract each dimension's boolean true/false values from iterator
-			int mask = 0x01;
-			for (int dimIndex = 0; dimIndex < dims.length; ++dimIndex)
-			{
-				isMin[dimIndex] = (iterator & mask) == 0;
-				mask = mask << 1;
-
-				// assign the current dimension of the point point
-				point.dims[dimIndex] = isMin[dimIndex] ? dims[dimIndex].min : dims[dimIndex].max;
-			}
-
-			// enumerate!
-			e.enumerateWithCoord(point, isMin);
-		}
+		enumerate(new CornerIterator(this, false), e);
 	}
 
 	/**
-	 * Enumerate all the corners of the hyperrectangle that are unique
+	 * Enumerate all the corners of the hyperrectangle that are unique (flat
+	 * dimensions are set to their value, and not enumerated twice). The point
+	 * and boolean array passed to the enumerator are reused between calls.
 	 * 
 	 * @param e
 	 *            for each corner, e.enumerate gets called
-	 * @param param
-	 *            the param to pass into e.enumerate, can be null
 	 */
 	public void enumerateCornersUnique(HyperRectangleCornerEnumerator e)
 	{
-		/*
-		 * We do this by considering an integer as a bit array of true/false
-		 * values, where 0=false means min, and 1=true means max. The length of
-		 * the bit array is the number of dimensions. If we iterate from 0 to
-		 * 2^dim, we will have iterated all the possibilities.
-		 */
-
-		// first construct the maximum (2^dim)
-		int maxIterator = 1;
-		ArrayList<Integer> dimensionIndex = new ArrayList<Integer>(dims.length);
-
-		for (int dimIndex = 0; dimIndex < dims.length; ++dimIndex)
-		{
-			if (!dims[dimIndex].isPoint())
-			{
-				maxIterator *= 2;
-				dimensionIndex.add(dimIndex);
-			}
-		}
+		enumerate(new CornerIterator(this, true), e);
+	}
 
-		for (int iterator = 0; iterator < maxIterator; ++iterator)
+	private static void enumerate(CornerIterator it, HyperRectangleCornerEnumerator e)
+	{
+		while (it.hasNext())
 		{
-			// extract each dimension's boolean true/false values from iterator
-			HyperPoint point = center();
-			boolean isMin[] = new boolean[dims.length];
-
-			// assign all the dimensions that are not flat
-			int mask = 0x01;
-			for (int d = 0; d < dimensionIndex.size(); ++d)
-			{
-				int actualDim = dimensionIndex.get(d);
-
-				isMin[actualDim] = (iterator & mask) == 0;
-				mask = mask << 1;
-
-				// assign the current dimension of the point point
-				point.dims[actualDim] = isMin[actualDim] ? dims[actualDim].min
-						: dims[actualDim].max;
-			}
-
-			// enumerate!
-			e.enumerateWithCoord(point, isMin);
+			HyperPoint p = it.next();
+			e.enumerateWithCoord(p, it.isMin());
 		}
 	}
 
@@ -0,0 +1,255 @@
+package com.verivital.hyst.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A static spatial index (a bulk-loaded bounding volume tree, similar to an
+ * R-tree) over a list of HyperRectangles, each with an associated value. The
+ * tree is built once, after which queries for the boxes intersecting a given
+ * box take logarithmic time (plus the size of the output), rather than checking
+ * every box.
+ *
+ * Intersection is closed, matching HyperRectangle.intersection(), so boxes
+ * which only touch on a boundary are included. Query results are returned in
+ * the order the boxes were added, so callers get deterministic output. Boxes
+ * and node bounds are stored in packed arrays (see BoxSet), so queries don't
+ * chase Interval pointers.
+ */
+public class HyperRectangleIndex<T>
+{
+	// maximum number of boxes in a leaf node
+	private static final int LEAF_SIZE = 8;
+
+	private final int numDims;
+	private final BoxSet boxes;
+	private final List<T> values;
+	private final Node root;
+
+	private static class Node
+	{
+		double[] min, max; // bounds of all the boxes in the subtree
+		Node left = null, right = null;
+		int[] entries = null; // indices into boxes, for leaf nodes
+	}
+
+	/**
+	 * Build the index
+	 *
+	 * @param boxes
+	 *            the boxes (all of the same dimension)
+	 * @param values
+	 *            the value associated with each box
+	 */
+	public HyperRectangleIndex(List<HyperRectangle> boxes, List<T> values)
+	{
+		this(toBoxSet(boxes), values);
+	}
+
+	/**
+	 * Build the index
+	 *
+	 * @param boxes
+	 *            the boxes (copied)
+	 * @param values
+	 *            the value associated with each box
+	 */
+	public HyperRectangleIndex(BoxSet boxes, List<T> values)
+	{
+		if (boxes.size() != values.size())
+			throw new RuntimeException("HyperRectangleIndex expects the same number of boxes ("
+					+ boxes.size() + ") and values (" + values.size() + ")");
+
+		this.boxes = boxes.copy();
+		this.values = new ArrayList<T>(values);
+		this.numDims = boxes.getNumDims();
+
+		Integer[] indices = new Integer[boxes.size()];
+
+		for (int i = 0; i < indices.length; ++i)
+			indices[i] = i;
+
+		root = indices.length == 0 ? null : build(indices, 0, indices.length);
+	}
+
+	private static BoxSet toBoxSet(List<HyperRectangle> boxes)
+	{
+		int numDims = boxes.isEmpty() ? 0 : boxes.get(0).dims.length;
+
+		for (HyperRectangle box : boxes)
+		{
+			if (box.dims.length != numDims)
+				throw new RuntimeException("HyperRectangleIndex boxes had different dimensions");
+		}
+
+		return new BoxSet(boxes);
+	}
+
+	/**
+	 * Recursively build the tree over indices[from, to), splitting at the
+	 * median center along the dimension where the centers are most spread out
+	 */
+	private Node build(Integer[] indices, int from, int to)
+	{
+		Node rv = new Node();
+		rv.min = new double[numDims];
+		rv.max = new double[numDims];
+		Arrays.fill(rv.min, Double.POSITIVE_INFINITY);
+		Arrays.fill(rv.max, Double.NEGATIVE_INFINITY);
+
+		for (int i = from; i < to; ++i)
+		{
+			for (int d = 0; d < numDims; ++d)
+			{
+				rv.min[d] = Math.min(rv.min[d], boxes.getMin(indices[i], d));
+				rv.max[d] = Math.max(rv.max[d], boxes.getMax(indices[i], d));
+			}
+		}
+
+		if (to - from <= LEAF_SIZE)
+		{
+			rv.entries = new int[to - from];
+
+			for (int i = from; i < to; ++i)
+				rv.entries[i - from] = indices[i];
+		}
+		else
+		{
+			final int dim = widestCenterDimension(indices, from, to);
+
+			Arrays.sort(indices, from, to, new Comparator<Integer>()
+			{
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					return Double.compare(center(a, dim), center(b, dim));
+				}
+			});
+
+			int mid = (from + to) >>> 1;
+			rv.left = build(indices, from, mid);
+			rv.right = build(indices, mid, to);
+		}
+
+		return rv;
+	}
+
+	private int widestCenterDimension(Integer[] indices, int from, int to)
+	{
+		int rv = 0;
+		double widest = -1;
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+
+			for (int i = from; i < to; ++i)
+			{
+				double c = center(indices[i], d);
+				min = Math.min(min, c);
+				max = Math.max(max, c);
+			}
+
+			if (max - min > widest)
+			{
+				widest = max - min;
+				rv = d;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The center of a box in one dimension. Computed as min/2 + max/2 so
+	 * unbounded (+/- Double.MAX_VALUE) ranges don't overflow.
+	 */
+	private double center(int box, int dim)
+	{
+		return boxes.getMin(box, dim) / 2 + boxes.getMax(box, dim) / 2;
+	}
+
+	private boolean intersects(Node n, double[] min, double[] max)
+	{
+		boolean rv = true;
+
+		for (int d = 0; d < numDims; ++d)
+		{
+			if (n.max[d] < min[d] || max[d] < n.min[d])
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the values of all boxes which intersect the given box
+	 *
+	 * @param box
+	 *            the query box
+	 * @return the values, in the order they were passed to the constructor
+	 */
+	public List<T> query(HyperRectangle box)
+	{
+		if (root != null && box.dims.length != numDims)
+			throw new RuntimeException("HyperRectangleIndex query had " + box.dims.length
+					+ " dimensions, expected " + numDims);
+
+		ArrayList<Integer> found = new ArrayList<Integer>();
+
+		if (root != null)
+		{
+			double[] min = new double[numDims];
+			double[] max = new double[numDims];
+
+			for (int d = 0; d < numDims; ++d)
+			{
+				min[d] = box.dims[d].min;
+				max[d] = box.dims[d].max;
+			}
+
+			queryRec(root, min, max, found);
+		}
+
+		Collections.sort(found);
+
+		ArrayList<T> rv = new ArrayList<T>(found.size());
+
+		for (int i : found)
+			rv.add(values.get(i));
+
+		return rv;
+	}
+
+	private void queryRec(Node n, double[] min, double[] max, List<Integer> found)
+	{
+		if (!intersects(n, min, max))
+			return;
+
+		if (n.entries != null)
+		{
+			for (int i : n.entries)
+			{
+				if (boxes.intersects(i, min, max))
+					found.add(i);
+			}
+		}
+		else
+		{
+			queryRec(n.left, min, max, found);
+			queryRec(n.right, min, max, found);
+		}
+	}
+
+	public int size()
+	{
+		return boxes.size();
+	}
+}
@@ -389,25 +389,24 @@ public class Interval
 					throw new AutomatonExportException(
 							"Interval evaluate of sqrt with min < 0: " + i.min);
 
-				rv = new Interval(Math.sqrt(i.max), Math.sqrt(i.min));
+				rv = new Interval(Math.sqrt(i.min), Math.sqrt(i.max));
 				break;
 			}
 			case POW:
 				rv = intervalPow(left, right);
 				break;
 			case EXP:
-				Interval i = intervalEvaluateRec(o.children.get(0), ranges);
-				rv = intervalPow(new Interval(Math.E), i);
+				rv = exp(intervalEvaluateRec(o.children.get(0), ranges));
 				break;
 			case SIN:
+				rv = sin(intervalEvaluateRec(o.children.get(0), ranges));
+				break;
 			case COS:
+				rv = cos(intervalEvaluateRec(o.children.get(0), ranges));
+				break;
 			case TAN:
-				// these could be done using Algorithm 2 on page 29 of Xin
-				// Chen's dissertation
-				// tan would need division tan(x) = sin(x) / cos(x)
-				throw new AutomatonExportException(
-						"Operator is not yet supported (submit a feature request if you need it): "
-								+ o.op.name());
+				rv = tan(intervalEvaluateRec(o.children.get(0), ranges));
+				break;
 
 			case AND:
 			case EQUAL:
@@ -451,8 +450,20 @@ public class Interval
 			throw new AutomatonExportException(
 					"Only nonnegative integer exponents are supproted: " + val);
 
-		long n = (long) Math.floor(val);
+		return pow(left, (long) Math.floor(val));
+	}
 
+	/**
+	 * Compute an interval raised to a nonnegative integer power
+	 * 
+	 * @param left
+	 *            the base
+	 * @param n
+	 *            the exponent (nonnegative)
+	 * @return the range of left^n
+	 */
+	public static Interval pow(Interval left, long n)
+	{
 		double a = left.min;
 		double b = left.max;
 		double c, d;
@@ -484,6 +495,75 @@ public class Interval
 		return new Interval(c, d);
 	}
 
+	/**
+	 * Compute the range of e^x over an interval (exp is monotonic)
+	 */
+	public static Interval exp(Interval i)
+	{
+		return new Interval(Math.exp(i.min), Math.exp(i.max));
+	}
+
+	/**
+	 * Compute the range of cos(x) over an interval. The range is bounded by the
+	 * endpoint values, unless the interval includes a minimum (an odd multiple
+	 * of pi) or a maximum (an even multiple of pi).
+	 */
+	public static Interval cos(Interval i)
+	{
+		Interval rv;
+
+		if (i.max - i.min >= 2 * Math.PI)
+			rv = new Interval(-1, 1);
+		else
+		{
+			// shift so the start is in [0, 2*pi); the end is then below 4*pi
+			double shift = 2 * Math.PI * Math.floor(i.min / (2 * Math.PI));
+			double a = i.min - shift;
+			double b = i.max - shift;
+			double ca = Math.cos(i.min);
+			double cb = Math.cos(i.max);
+
+			rv = new Interval(Math.min(ca, cb), Math.max(ca, cb));
+
+			if ((a <= Math.PI && b >= Math.PI) || b >= 3 * Math.PI)
+				rv.min = -1;
+
+			if (b >= 2 * Math.PI)
+				rv.max = 1;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Compute the range of sin(x) over an interval, using sin(x) = cos(x -
+	 * pi/2)
+	 */
+	public static Interval sin(Interval i)
+	{
+		return cos(new Interval(i.min - Math.PI / 2, i.max - Math.PI / 2));
+	}
+
+	/**
+	 * Compute the range of tan(x) over an interval, which must not contain an
+	 * asymptote (tan is monotonic between asymptotes)
+	 * 
+	 * @throws AutomatonExportException
+	 *             if the interval contains an odd multiple of pi/2
+	 */
+	public static Interval tan(Interval i)
+	{
+		// the first asymptote after i.min
+		double asymptote = Math.PI / 2
+				+ Math.PI * Math.floor((i.min + Math.PI / 2) / Math.PI);
+
+		if (i.max >= asymptote)
+			throw new AutomatonExportException(
+					"Interval evaluate of tan contains an asymptote: " + i);
+
+		return new Interval(Math.tan(i.min), Math.tan(i.max));
+	}
+
 	public static Interval mult(Interval i, Interval j)
 	{
 		double a = i.min;
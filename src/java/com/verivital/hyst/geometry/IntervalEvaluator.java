@@ -0,0 +1,637 @@
+package com.verivital.hyst.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.util.AutomatonUtil;
+
+/**
+ * Interval evaluation of a list of expressions, for when the same expressions
+ * are evaluated over many boxes. Unlike Interval.intervalEvaluate(), the
+ * expressions are compiled once into a graph where common subexpressions
+ * (within and across the expressions) are shared, and evaluation writes into
+ * preallocated min / max arrays without creating any Interval objects for the
+ * arithmetic operations.
+ *
+ * Multiplying a subexpression by itself is evaluated as a square, which is
+ * tighter than interval multiplication. Optionally, the partial derivatives of
+ * each expression are also compiled, and used to tighten the result in two
+ * ways. First, the mean-value form (a first-order Taylor model) f(c) + sum_i
+ * df/dx_i(box) * (x_i - c_i), where c is the center of the box, bounds the
+ * expression with an error that shrinks quadratically with the box size,
+ * rather than linearly like naive interval arithmetic. This is much tighter
+ * for differences between nearby functions, where the linear terms cancel.
+ * Second, if an expression is monotonic in a variable over the box, its lower
+ * and upper bounds are computed with that variable fixed to the appropriate
+ * endpoint, which avoids much of the overapproximation caused by a variable
+ * occurring multiple times.
+ *
+ * Evaluation reuses internal arrays, so a single instance should not be used
+ * from multiple threads at once.
+ */
+public class IntervalEvaluator
+{
+	private static final EnumSet<Operator> UNARY_OPS = EnumSet.of(Operator.NEGATIVE, Operator.SIN,
+			Operator.COS, Operator.TAN, Operator.EXP, Operator.SQRT, Operator.LN);
+
+	private static final EnumSet<Operator> BINARY_OPS = EnumSet.of(Operator.ADD,
+			Operator.SUBTRACT, Operator.MULTIPLY, Operator.DIVIDE, Operator.POW);
+
+	// the compiled graph; children always come before their parents
+	private final Operator[] ops; // null for constants and variables
+	private final int[] left; // child node, or the variable index
+	private final int[] right; // child node, or -1
+	private final double[] constants;
+
+	private final int numVars;
+	private final int numRootNodes; // nodes needed by the roots come first
+	private final int[] roots;
+	private final int[][] derivatives; // [root][var] -> node, or null if none
+
+	// evaluation workspace
+	private final double[] lo;
+	private final double[] hi;
+	private final double[][] derLo, derHi;
+	private final double[] centerVal;
+	private final double[] boxMin, boxMax;
+
+	/**
+	 * Compile the expressions for interval evaluation
+	 *
+	 * @param expressions
+	 *            the expressions to evaluate
+	 * @param variables
+	 *            the variable names, which determines the order of the range
+	 *            arrays
+	 * @param useDerivatives
+	 *            should partial derivatives be compiled and used to tighten
+	 *            the result (mean-value form and monotonicity)?
+	 * @throws AutomatonExportException
+	 *             if the expressions contain unknown variables or unsupported
+	 *             operations
+	 */
+	public IntervalEvaluator(List<Expression> expressions, List<String> variables,
+			boolean useDerivatives)
+	{
+		Builder b = new Builder(variables);
+		numVars = variables.size();
+		roots = new int[expressions.size()];
+		derivatives = new int[expressions.size()][];
+
+		for (int r = 0; r < roots.length; ++r)
+			roots[r] = b.add(expressions.get(r));
+
+		numRootNodes = b.ops.size();
+
+		if (useDerivatives)
+		{
+			for (int r = 0; r < roots.length; ++r)
+				derivatives[r] = compileDerivatives(b, expressions.get(r), variables);
+		}
+
+		int size = b.ops.size();
+		ops = b.ops.toArray(new Operator[size]);
+		left = toIntArray(b.left);
+		right = toIntArray(b.right);
+		constants = new double[size];
+
+		for (int i = 0; i < size; ++i)
+			constants[i] = b.constants.get(i);
+
+		lo = new double[size];
+		hi = new double[size];
+		derLo = new double[roots.length][numVars];
+		derHi = new double[roots.length][numVars];
+		centerVal = new double[roots.length];
+		boxMin = new double[numVars];
+		boxMax = new double[numVars];
+	}
+
+	/**
+	 * Compile the partial derivatives of an expression with respect to every
+	 * variable
+	 *
+	 * @return the derivative nodes, or null if some derivative couldn't be
+	 *         compiled (then tightening is skipped for the expression)
+	 */
+	private static int[] compileDerivatives(Builder b, Expression e, List<String> variables)
+	{
+		int[] rv = new int[variables.size()];
+
+		try
+		{
+			for (int v = 0; v < rv.length; ++v)
+				rv[v] = b.add(AutomatonUtil.partialDerivativeOf(e, variables.get(v)));
+		}
+		catch (AutomatonExportException ex)
+		{
+			rv = null;
+		}
+
+		return rv;
+	}
+
+	private static int[] toIntArray(List<Integer> list)
+	{
+		int[] rv = new int[list.size()];
+
+		for (int i = 0; i < rv.length; ++i)
+			rv[i] = list.get(i);
+
+		return rv;
+	}
+
+	/**
+	 * Get the number of nodes in the compiled graph (after common
+	 * subexpressions are merged)
+	 */
+	public int getNumNodes()
+	{
+		return ops.length;
+	}
+
+	/**
+	 * Evaluate the expressions over a box
+	 *
+	 * @param varMin
+	 *            the lower bound of each variable
+	 * @param varMax
+	 *            the upper bound of each variable
+	 * @param outMin
+	 *            [out] the lower bound of each expression
+	 * @param outMax
+	 *            [out] the upper bound of each expression
+	 * @throws AutomatonExportException
+	 *             if the range of an operation is undefined on the box (like
+	 *             division by an interval containing zero)
+	 */
+	public void evaluate(double[] varMin, double[] varMax, double[] outMin, double[] outMax)
+	{
+		if (varMin.length != numVars || varMax.length != numVars)
+			throw new AutomatonExportException(
+					"Interval evaluation expected " + numVars + " variable ranges");
+
+		evaluateNodes(varMin, varMax, numRootNodes);
+		evaluateDerivativeNodes();
+
+		for (int r = 0; r < roots.length; ++r)
+		{
+			outMin[r] = lo[roots[r]];
+			outMax[r] = hi[roots[r]];
+
+			if (derivatives[r] != null)
+			{
+				for (int v = 0; v < numVars; ++v)
+				{
+					derLo[r][v] = lo[derivatives[r][v]];
+					derHi[r][v] = hi[derivatives[r][v]];
+				}
+			}
+		}
+
+		if (hasDerivatives())
+		{
+			meanValueTighten(varMin, varMax, outMin, outMax);
+
+			for (int r = 0; r < roots.length; ++r)
+			{
+				if (derivatives[r] != null)
+					tighten(r, varMin, varMax, outMin, outMax);
+			}
+		}
+	}
+
+	private boolean hasDerivatives()
+	{
+		boolean rv = false;
+
+		for (int r = 0; r < roots.length && !rv; ++r)
+			rv = derivatives[r] != null;
+
+		return rv;
+	}
+
+	/**
+	 * Intersect the range of each expression with its mean-value form, f(c) +
+	 * sum_v df/dv(box) * [-rad_v, rad_v], where c is the center of the box and
+	 * rad_v is the radius of the box in dimension v. Expressions with an
+	 * unbounded derivative are left unchanged.
+	 */
+	private void meanValueTighten(double[] varMin, double[] varMax, double[] outMin,
+			double[] outMax)
+	{
+		for (int v = 0; v < numVars; ++v)
+			boxMin[v] = boxMax[v] = (varMin[v] + varMax[v]) / 2;
+
+		evaluateNodes(boxMin, boxMax, numRootNodes);
+
+		for (int r = 0; r < roots.length; ++r)
+			centerVal[r] = lo[roots[r]];
+
+		for (int r = 0; r < roots.length; ++r)
+		{
+			if (derivatives[r] == null)
+				continue;
+
+			double rad = 0;
+
+			for (int v = 0; v < numVars; ++v)
+			{
+				double boxRad = (varMax[v] - varMin[v]) / 2;
+
+				if (boxRad > 0)
+					rad += boxRad * Math.max(Math.abs(derLo[r][v]), Math.abs(derHi[r][v]));
+			}
+
+			if (!Double.isInfinite(rad) && !Double.isNaN(rad))
+			{
+				outMin[r] = Math.max(outMin[r], centerVal[r] - rad);
+				outMax[r] = Math.min(outMax[r], centerVal[r] + rad);
+			}
+		}
+	}
+
+	/**
+	 * Evaluate the expressions over a box
+	 *
+	 * @param ranges
+	 *            the range of every variable
+	 * @return the range of each expression
+	 */
+	public Interval[] evaluate(Interval[] ranges)
+	{
+		double[] varMin = new double[numVars];
+		double[] varMax = new double[numVars];
+
+		for (int v = 0; v < numVars; ++v)
+		{
+			varMin[v] = ranges[v].min;
+			varMax[v] = ranges[v].max;
+		}
+
+		double[] outMin = new double[roots.length];
+		double[] outMax = new double[roots.length];
+		evaluate(varMin, varMax, outMin, outMax);
+
+		Interval[] rv = new Interval[roots.length];
+
+		for (int r = 0; r < roots.length; ++r)
+			rv[r] = new Interval(outMin[r], outMax[r]);
+
+		return rv;
+	}
+
+	/**
+	 * Use the sign of the partial derivatives to tighten the range of one
+	 * expression. For each variable where the expression is monotonic, the
+	 * lower bound is reached with the variable at one endpoint and the upper
+	 * bound at the other, so the bounds are recomputed over those smaller
+	 * boxes.
+	 */
+	private void tighten(int r, double[] varMin, double[] varMax, double[] outMin,
+			double[] outMax)
+	{
+		boolean monotonic = false;
+
+		for (int v = 0; v < numVars && !monotonic; ++v)
+			monotonic = derLo[r][v] >= 0 || derHi[r][v] <= 0;
+
+		if (monotonic)
+		{
+			// lower bound
+			for (int v = 0; v < numVars; ++v)
+			{
+				if (derLo[r][v] >= 0) // nondecreasing
+					boxMin[v] = boxMax[v] = varMin[v];
+				else if (derHi[r][v] <= 0) // nonincreasing
+					boxMin[v] = boxMax[v] = varMax[v];
+				else
+				{
+					boxMin[v] = varMin[v];
+					boxMax[v] = varMax[v];
+				}
+			}
+
+			evaluateNodes(boxMin, boxMax, numRootNodes);
+			outMin[r] = Math.max(outMin[r], lo[roots[r]]);
+
+			// upper bound
+			for (int v = 0; v < numVars; ++v)
+			{
+				if (derLo[r][v] >= 0)
+					boxMin[v] = boxMax[v] = varMax[v];
+				else if (derHi[r][v] <= 0)
+					boxMin[v] = boxMax[v] = varMin[v];
+				else
+				{
+					boxMin[v] = varMin[v];
+					boxMax[v] = varMax[v];
+				}
+			}
+
+			evaluateNodes(boxMin, boxMax, numRootNodes);
+			outMax[r] = Math.min(outMax[r], hi[roots[r]]);
+		}
+	}
+
+	/**
+	 * Evaluate the first count nodes
+	 */
+	private void evaluateNodes(double[] varMin, double[] varMax, int count)
+	{
+		for (int n = 0; n < count; ++n)
+		{
+			Operator op = ops[n];
+
+			if (op == null)
+			{
+				if (right[n] == -1 && left[n] >= 0)
+				{
+					lo[n] = varMin[left[n]];
+					hi[n] = varMax[left[n]];
+				}
+				else
+					lo[n] = hi[n] = constants[n];
+			}
+			else if (right[n] == -1)
+				evaluateUnary(n, op, lo[left[n]], hi[left[n]]);
+			else
+				evaluateBinary(n, op, lo[left[n]], hi[left[n]], lo[right[n]], hi[right[n]]);
+		}
+	}
+
+	/**
+	 * Evaluate the nodes only used by derivatives (after evaluateNodes() on
+	 * the root nodes). Derivatives may be undefined where the expressions
+	 * themselves are fine (like sqrt(x) at 0), in which case their range is
+	 * unbounded and they won't be used for tightening.
+	 */
+	private void evaluateDerivativeNodes()
+	{
+		for (int n = numRootNodes; n < ops.length; ++n)
+		{
+			try
+			{
+				if (ops[n] == null)
+					lo[n] = hi[n] = constants[n]; // variables are all root nodes
+				else if (right[n] == -1)
+					evaluateUnary(n, ops[n], lo[left[n]], hi[left[n]]);
+				else
+					evaluateBinary(n, ops[n], lo[left[n]], hi[left[n]], lo[right[n]],
+							hi[right[n]]);
+			}
+			catch (AutomatonExportException e)
+			{
+				lo[n] = Double.NEGATIVE_INFINITY;
+				hi[n] = Double.POSITIVE_INFINITY;
+			}
+		}
+	}
+
+	private void evaluateUnary(int n, Operator op, double a, double b)
+	{
+		Interval i = null;
+
+		switch (op)
+		{
+		case NEGATIVE:
+			lo[n] = -b;
+			hi[n] = -a;
+			break;
+		case SQRT:
+			if (a < 0)
+				throw new AutomatonExportException("Interval evaluate of sqrt with min < 0: " + a);
+
+			lo[n] = Math.sqrt(a);
+			hi[n] = Math.sqrt(b);
+			break;
+		case LN:
+			if (a <= 0)
+				throw new AutomatonExportException("Interval evaluate of ln with min <= 0: " + a);
+
+			lo[n] = Math.log(a);
+			hi[n] = Math.log(b);
+			break;
+		case EXP:
+			lo[n] = Math.exp(a);
+			hi[n] = Math.exp(b);
+			break;
+		case SIN:
+			i = Interval.sin(new Interval(a, b));
+			break;
+		case COS:
+			i = Interval.cos(new Interval(a, b));
+			break;
+		case TAN:
+			i = Interval.tan(new Interval(a, b));
+			break;
+		default:
+			throw new AutomatonExportException("Unsupported unary operator: " + op);
+		}
+
+		if (i != null)
+		{
+			lo[n] = i.min;
+			hi[n] = i.max;
+		}
+	}
+
+	private void evaluateBinary(int n, Operator op, double a, double b, double c, double d)
+	{
+		switch (op)
+		{
+		case ADD:
+			lo[n] = a + c;
+			hi[n] = b + d;
+			break;
+		case SUBTRACT:
+			lo[n] = a - d;
+			hi[n] = b - c;
+			break;
+		case MULTIPLY:
+			if (left[n] == right[n])
+				square(n, a, b);
+			else
+			{
+				double ac = a * c, ad = a * d, bc = b * c, bd = b * d;
+
+				lo[n] = Math.min(Math.min(ac, ad), Math.min(bc, bd));
+				hi[n] = Math.max(Math.max(ac, ad), Math.max(bc, bd));
+			}
+			break;
+		case DIVIDE:
+		{
+			if (c <= 0 && d >= 0)
+				throw new AutomatonExportException(
+						"Interval division contains zero in denominator.");
+
+			double ac = a / c, ad = a / d, bc = b / c, bd = b / d;
+
+			lo[n] = Math.min(Math.min(ac, ad), Math.min(bc, bd));
+			hi[n] = Math.max(Math.max(ac, ad), Math.max(bc, bd));
+			break;
+		}
+		case POW:
+		{
+			// the exponent is a nonnegative integer constant (checked when
+			// compiling)
+			long exp = (long) constants[n];
+
+			if (exp == 2)
+				square(n, a, b);
+			else
+			{
+				Interval i = Interval.pow(new Interval(a, b), exp);
+				lo[n] = i.min;
+				hi[n] = i.max;
+			}
+			break;
+		}
+		default:
+			throw new AutomatonExportException("Unsupported binary operator: " + op);
+		}
+	}
+
+	private void square(int n, double a, double b)
+	{
+		if (a >= 0)
+		{
+			lo[n] = a * a;
+			hi[n] = b * b;
+		}
+		else if (b <= 0)
+		{
+			lo[n] = b * b;
+			hi[n] = a * a;
+		}
+		else
+		{
+			lo[n] = 0;
+			hi[n] = Math.max(a * a, b * b);
+		}
+	}
+
+	/**
+	 * Builds the graph, merging identical subexpressions
+	 */
+	private static class Builder
+	{
+		final List<String> variables;
+		final ArrayList<Operator> ops = new ArrayList<Operator>();
+		final ArrayList<Integer> left = new ArrayList<Integer>();
+		final ArrayList<Integer> right = new ArrayList<Integer>();
+		final ArrayList<Double> constants = new ArrayList<Double>();
+		final Map<String, Integer> nodeIds = new HashMap<String, Integer>();
+
+		Builder(List<String> variables)
+		{
+			this.variables = variables;
+		}
+
+		/**
+		 * Add an expression to the graph
+		 *
+		 * @return the node index of the expression
+		 */
+		int add(Expression e)
+		{
+			int rv;
+
+			if (e instanceof Constant)
+			{
+				double val = ((Constant) e).getVal();
+
+				rv = getNode("c" + Double.doubleToLongBits(val), null, -1, -1, val);
+			}
+			else if (e instanceof Variable)
+			{
+				String name = ((Variable) e).name;
+				int index = variables.indexOf(name);
+
+				if (index == -1)
+					throw new AutomatonExportException("Range of variable " + name
+							+ " is needed for interval evaluation, but wasn't provided.");
+
+				rv = getNode("v" + index, null, index, -1, 0);
+			}
+			else if (e instanceof Operation && ((Operation) e).children.size() == 1
+					&& UNARY_OPS.contains(((Operation) e).op))
+			{
+				Operation o = (Operation) e;
+				int child = add(o.children.get(0));
+
+				rv = getNode(o.op.name() + " " + child, o.op, child, -1, 0);
+			}
+			else if (e instanceof Operation && ((Operation) e).children.size() == 2
+					&& BINARY_OPS.contains(((Operation) e).op))
+			{
+				Operation o = (Operation) e;
+				int l = add(o.getLeft());
+				int r = add(o.getRight());
+				double exp = 0;
+
+				if (o.op == Operator.POW)
+				{
+					if (ops.get(r) != null || left.get(r) != -1)
+						throw new AutomatonExportException(
+								"Interval value in exponent not supported: " + e.toDefaultString());
+
+					exp = constants.get(r);
+
+					if (exp != Math.floor(exp) || Double.isInfinite(exp) || exp < 0)
+						throw new AutomatonExportException(
+								"Only nonnegative integer exponents are supported: " + exp);
+				}
+				else if ((o.op == Operator.ADD || o.op == Operator.MULTIPLY) && l > r)
+				{
+					// commutative, use a canonical order
+					int temp = l;
+					l = r;
+					r = temp;
+				}
+
+				rv = getNode(o.op.name() + " " + l + " " + r, o.op, l, r, exp);
+			}
+			else
+				throw new AutomatonExportException(
+						"Unsupported expression for interval evaluation: " + e.toDefaultString());
+
+			return rv;
+		}
+
+		private int getNode(String key, Operator op, int l, int r, double constant)
+		{
+			Integer rv = nodeIds.get(key);
+
+			if (rv == null)
+			{
+				rv = ops.size();
+				nodeIds.put(key, rv);
+
+				ops.add(op);
+				left.add(l);
+				right.add(r);
+				constants.add(constant);
+			}
+
+			return rv;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[IntervalEvaluator: " + roots.length + " expressions, " + ops.length + " nodes, "
+				+ "roots " + Arrays.toString(roots) + "]";
+	}
+}
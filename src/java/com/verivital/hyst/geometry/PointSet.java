@@ -0,0 +1,196 @@
+package com.verivital.hyst.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of points of the same dimension, packed into a single array with
+ * stride numDims, rather than one HyperPoint (and double[]) per point. This is
+ * used for simulated point sets, where bounding boxes and containment tests
+ * are computed at every step.
+ */
+public class PointSet
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int numDims;
+	private double[] coords;
+	private int size = 0;
+
+	/**
+	 * Create an empty point set
+	 *
+	 * @param numDims
+	 *            the number of dimensions of each point
+	 */
+	public PointSet(int numDims)
+	{
+		this.numDims = numDims;
+		coords = new double[numDims * INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Create a point set from a list of HyperPoints
+	 *
+	 * @param points
+	 *            the points, which must all have the same dimension
+	 */
+	public PointSet(List<HyperPoint> points)
+	{
+		this(points.isEmpty() ? 0 : points.get(0).dims.length);
+
+		ensureCapacity(points.size());
+
+		for (HyperPoint hp : points)
+			add(hp.dims);
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int getNumDims()
+	{
+		return numDims;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	private void ensureCapacity(int numPoints)
+	{
+		int needed = numDims * numPoints;
+
+		if (needed > coords.length)
+			coords = Arrays.copyOf(coords, Math.max(needed, 2 * coords.length));
+	}
+
+	/**
+	 * Add a point to the end of the set
+	 *
+	 * @param point
+	 *            the coordinates of the point (copied)
+	 */
+	public void add(double[] point)
+	{
+		if (point.length != numDims)
+			throw new RuntimeException("PointSet expected a point with " + numDims
+					+ " dimensions, got " + point.length);
+
+		ensureCapacity(size + 1);
+		System.arraycopy(point, 0, coords, numDims * size++, numDims);
+	}
+
+	public void add(HyperPoint hp)
+	{
+		add(hp.dims);
+	}
+
+	public double get(int i, int d)
+	{
+		return coords[i * numDims + d];
+	}
+
+	/**
+	 * Get a point as a (newly-allocated) HyperPoint
+	 *
+	 * @param i
+	 *            the index of the point
+	 * @return the point
+	 */
+	public HyperPoint getPoint(int i)
+	{
+		return new HyperPoint(Arrays.copyOfRange(coords, i * numDims, (i + 1) * numDims));
+	}
+
+	/**
+	 * Convert the set to a list of HyperPoints
+	 *
+	 * @return the points, in order
+	 */
+	public ArrayList<HyperPoint> toList()
+	{
+		ArrayList<HyperPoint> rv = new ArrayList<HyperPoint>(size);
+
+		for (int i = 0; i < size; ++i)
+			rv.add(getPoint(i));
+
+		return rv;
+	}
+
+	/**
+	 * Get the smallest box containing every point in the set
+	 *
+	 * @return the bounding box, or null if the set is empty
+	 */
+	public HyperRectangle getBoundingBox()
+	{
+		HyperRectangle rv = null;
+
+		if (size > 0)
+		{
+			double[] min = Arrays.copyOf(coords, numDims);
+			double[] max = Arrays.copyOf(coords, numDims);
+			int offset = numDims;
+
+			for (int i = 1; i < size; ++i)
+			{
+				for (int d = 0; d < numDims; ++d, ++offset)
+				{
+					double val = coords[offset];
+
+					if (val < min[d])
+						min[d] = val;
+					else if (val > max[d])
+						max[d] = val;
+				}
+			}
+
+			rv = new HyperRectangle(numDims);
+
+			for (int d = 0; d < numDims; ++d)
+				rv.dims[d] = new Interval(min[d], max[d]);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check if every point is inside a box (including its boundary)
+	 *
+	 * @param box
+	 *            the box
+	 * @return true iff all the points are in the box
+	 */
+	public boolean isContainedIn(HyperRectangle box)
+	{
+		boolean rv = true;
+
+		for (int d = 0; d < numDims && rv; ++d)
+		{
+			double min = box.dims[d].min;
+			double max = box.dims[d].max;
+
+			for (int offset = d; offset < numDims * size; offset += numDims)
+			{
+				if (coords[offset] < min || coords[offset] > max)
+				{
+					rv = false;
+					break;
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[PointSet: " + toList() + "]";
+	}
+}
@@ -0,0 +1,493 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.util.SparseMatrix;
+
+/**
+ * A numeric representation of the affine flow dynamics of a mode: x' = A*x + b
+ * + u, where u is the (optional) interval input of each derivative.
+ *
+ * The rows are the variables with defined flows (in flowDynamics order). The
+ * columns are the automaton's variables followed by its named constants, so a
+ * constant appearing linearly in a flow (like 'x' = 2 * x + k') gets its own
+ * column, like an input in the B matrix.
+ *
+ * A is stored in sparse (CSR) form, so memory and extraction time scale with
+ * the number of nonzero coefficients rather than variables squared. Instances
+ * are immutable snapshots (the arrays from getA() and getB() are shared, and
+ * must not be modified); use AutomatonMode.getAffineDynamics() to get a cached
+ * copy rather than extracting them here directly.
+ */
+public class AffineDynamics
+{
+	private final List<String> rows;
+	private final List<String> columns;
+	private final LinkedHashMap<String, Integer> columnIndex;
+	private final SparseMatrix a;
+	private final double[] b;
+	private double[][] denseA = null; // created on demand by getA()
+	private final Interval[] inputs;
+	private final int numVariables;
+
+	private AffineDynamics(List<String> rows, List<String> columns, int numVariables,
+			SparseMatrix a, double[] b, Interval[] inputs)
+	{
+		this.numVariables = numVariables;
+		this.rows = Collections.unmodifiableList(rows);
+		this.columns = Collections.unmodifiableList(columns);
+		this.a = a;
+		this.b = b;
+		this.inputs = inputs;
+
+		columnIndex = new LinkedHashMap<String, Integer>();
+
+		for (int i = 0; i < columns.size(); ++i)
+			columnIndex.put(columns.get(i), i);
+	}
+
+	/**
+	 * Extract the affine dynamics of a mode. This walks every flow expression,
+	 * so it should only be called when the mode's cache is stale.
+	 *
+	 * @param am
+	 *            the mode
+	 * @return the affine dynamics, or null if the mode is urgent or any flow is
+	 *         not affine in the variables and constants
+	 */
+	static AffineDynamics extract(AutomatonMode am)
+	{
+		if (am.urgent || am.flowDynamics == null)
+			return null;
+
+		BaseComponent ha = am.automaton;
+		ArrayList<String> columns = new ArrayList<String>(ha.variables.size()
+				+ ha.constants.size());
+		columns.addAll(ha.variables);
+		columns.addAll(ha.constants.keySet());
+
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+		for (int i = 0; i < columns.size(); ++i)
+			index.put(columns.get(i), i);
+
+		int numRows = am.flowDynamics.size();
+		ArrayList<String> rows = new ArrayList<String>(numRows);
+		ArrayList<Terms> rowTerms = new ArrayList<Terms>(numRows);
+		double[] b = new double[numRows];
+		Interval[] inputs = new Interval[numRows];
+		int nnz = 0;
+
+		for (Entry<String, ExpressionInterval> e : am.flowDynamics.entrySet())
+		{
+			ExpressionInterval ei = e.getValue();
+
+			if (ei == null)
+				return null;
+
+			Terms terms = extractTerms(ei.getExpression(), index);
+
+			if (terms == null)
+				return null;
+
+			int row = rows.size();
+			rows.add(e.getKey());
+			rowTerms.add(terms);
+			b[row] = terms.constant;
+			nnz += terms.coefficients.size();
+
+			if (ei.getInterval() != null)
+				inputs[row] = new Interval(ei.getInterval());
+		}
+
+		// assemble the CSR matrix
+		int[] rowStart = new int[numRows + 1];
+		int[] cols = new int[nnz];
+		double[] vals = new double[nnz];
+		int k = 0;
+
+		for (int row = 0; row < numRows; ++row)
+		{
+			rowStart[row] = k;
+
+			for (Entry<Integer, Double> e : rowTerms.get(row).coefficients.entrySet())
+			{
+				cols[k] = e.getKey();
+				vals[k++] = e.getValue();
+			}
+		}
+
+		rowStart[numRows] = k;
+		SparseMatrix a = new SparseMatrix(numRows, columns.size(), rowStart, cols, vals);
+
+		return new AffineDynamics(rows, columns, ha.variables.size(), a, b, inputs);
+	}
+
+	/**
+	 * Check if an expression is affine in the given columns. This is the same
+	 * check that extract() uses, for expressions that are not part of a mode.
+	 *
+	 * @param e
+	 *            the expression
+	 * @param columns
+	 *            the names which can appear linearly
+	 * @return true iff the expression is affine
+	 */
+	public static boolean isAffine(Expression e, List<String> columns)
+	{
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+		for (int i = 0; i < columns.size(); ++i)
+			index.put(columns.get(i), i);
+
+		return extractTerms(e, index) != null;
+	}
+
+	/**
+	 * The coefficients of an affine expression, with only the nonzero columns
+	 * stored (sorted by column)
+	 */
+	private static class Terms
+	{
+		TreeMap<Integer, Double> coefficients = new TreeMap<Integer, Double>();
+		double constant = 0;
+
+		Terms(double constant)
+		{
+			this.constant = constant;
+		}
+
+		boolean isConstantOnly()
+		{
+			return coefficients.isEmpty();
+		}
+
+		Terms scale(double factor)
+		{
+			Terms rv = new Terms(constant * factor);
+
+			if (factor != 0)
+			{
+				for (Entry<Integer, Double> e : coefficients.entrySet())
+					rv.coefficients.put(e.getKey(), e.getValue() * factor);
+			}
+
+			return rv;
+		}
+
+		Terms add(Terms other, double otherFactor)
+		{
+			Terms rv = new Terms(constant + otherFactor * other.constant);
+			rv.coefficients.putAll(coefficients);
+
+			for (Entry<Integer, Double> e : other.coefficients.entrySet())
+			{
+				Double prev = rv.coefficients.get(e.getKey());
+				double val = (prev == null ? 0 : prev) + otherFactor * e.getValue();
+
+				if (val == 0)
+					rv.coefficients.remove(e.getKey());
+				else
+					rv.coefficients.put(e.getKey(), val);
+			}
+
+			return rv;
+		}
+	}
+
+	/**
+	 * Recursively get the coefficients of an affine expression.
+	 *
+	 * @return the coefficients, or null if the expression is not affine
+	 */
+	private static Terms extractTerms(Expression e, Map<String, Integer> index)
+	{
+		Terms rv = null;
+
+		if (e instanceof Constant)
+			rv = new Terms(((Constant) e).getVal());
+		else if (e instanceof Variable)
+		{
+			Integer i = index.get(((Variable) e).name);
+
+			if (i != null)
+			{
+				rv = new Terms(0);
+				rv.coefficients.put(i, 1.0);
+			}
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+			ArrayList<Terms> children = new ArrayList<Terms>(o.children.size());
+
+			for (Expression c : o.children)
+			{
+				Terms terms = extractTerms(c, index);
+
+				if (terms == null)
+					return null;
+
+				children.add(terms);
+			}
+
+			if (children.size() == 1)
+			{
+				Terms child = children.get(0);
+
+				if (o.op == Operator.NEGATIVE)
+					rv = child.scale(-1);
+				else if (child.isConstantOnly())
+				{
+					Double val = evaluateUnary(o.op, child.constant);
+
+					if (val != null)
+						rv = new Terms(val);
+				}
+			}
+			else if (children.size() == 2)
+			{
+				Terms left = children.get(0);
+				Terms right = children.get(1);
+
+				switch (o.op)
+				{
+				case ADD:
+					rv = left.add(right, 1);
+					break;
+				case SUBTRACT:
+					rv = left.add(right, -1);
+					break;
+				case MULTIPLY:
+					if (left.isConstantOnly())
+						rv = right.scale(left.constant);
+					else if (right.isConstantOnly())
+						rv = left.scale(right.constant);
+					break;
+				case DIVIDE:
+					if (right.isConstantOnly() && right.constant != 0)
+						rv = left.scale(1.0 / right.constant);
+					break;
+				case POW:
+					if (right.isConstantOnly())
+					{
+						double exp = right.constant;
+
+						if (left.isConstantOnly())
+							rv = new Terms(Math.pow(left.constant, exp));
+						else if (exp == 1)
+							rv = left;
+						else if (exp == 0)
+							rv = new Terms(1);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	private static Double evaluateUnary(Operator op, double val)
+	{
+		Double rv = null;
+
+		switch (op)
+		{
+		case SIN:
+			rv = Math.sin(val);
+			break;
+		case COS:
+			rv = Math.cos(val);
+			break;
+		case TAN:
+			rv = Math.tan(val);
+			break;
+		case EXP:
+			rv = Math.exp(val);
+			break;
+		case SQRT:
+			rv = Math.sqrt(val);
+			break;
+		case LN:
+			rv = Math.log(val);
+			break;
+		default:
+			break;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the variables with defined flows, in the row order of A
+	 *
+	 * @return an unmodifiable list of the row names
+	 */
+	public List<String> getRowNames()
+	{
+		return rows;
+	}
+
+	/**
+	 * Get the column names of A, which are the automaton's variables followed
+	 * by its constants
+	 *
+	 * @return an unmodifiable list of the column names
+	 */
+	public List<String> getColumnNames()
+	{
+		return columns;
+	}
+
+	/**
+	 * Get the number of columns which are automaton variables (the remaining
+	 * columns are named constants)
+	 *
+	 * @return the number of variable columns
+	 */
+	public int getNumVariableColumns()
+	{
+		return numVariables;
+	}
+
+	/**
+	 * Get the index of a column, or -1 if it doesn't exist
+	 *
+	 * @param name
+	 *            the variable or constant name
+	 * @return the index into the columns of A
+	 */
+	public int getColumnIndex(String name)
+	{
+		Integer rv = columnIndex.get(name);
+
+		return rv == null ? -1 : rv;
+	}
+
+	/**
+	 * Get the coefficient of a variable or constant in a derivative
+	 *
+	 * @param row
+	 *            the row (derivative) index
+	 * @param columnName
+	 *            the name of the variable or constant
+	 * @return the coefficient, which is zero for unknown names
+	 */
+	public double getCoefficient(int row, String columnName)
+	{
+		int col = getColumnIndex(columnName);
+
+		return col == -1 ? 0 : a.get(row, col);
+	}
+
+	/**
+	 * Get the A matrix in sparse (CSR) form
+	 *
+	 * @return the A matrix
+	 */
+	public SparseMatrix getSparseA()
+	{
+		return a;
+	}
+
+	/**
+	 * Get the dense A matrix. This is created on the first call and cached, so
+	 * it must not be modified. Prefer getSparseA() for large models, as this
+	 * allocates rows * columns entries.
+	 *
+	 * @return the A matrix, indexed [row][column]
+	 */
+	public double[][] getA()
+	{
+		if (denseA == null)
+			denseA = a.toDense();
+
+		return denseA;
+	}
+
+	/**
+	 * Get the constant term of each derivative. This is the cached array, so it
+	 * must not be modified.
+	 *
+	 * @return the b vector
+	 */
+	public double[] getB()
+	{
+		return b;
+	}
+
+	/**
+	 * Get the interval input of a derivative (the interval part of the
+	 * ExpressionInterval)
+	 *
+	 * @param row
+	 *            the row index
+	 * @return a copy of the interval, or null if the derivative is
+	 *         deterministic
+	 */
+	public Interval getInput(int row)
+	{
+		Interval i = inputs[row];
+
+		return i == null ? null : new Interval(i);
+	}
+
+	/**
+	 * Does any derivative have an interval input?
+	 *
+	 * @return true iff some input is nonnull
+	 */
+	public boolean hasInputs()
+	{
+		boolean rv = false;
+
+		for (Interval i : inputs)
+		{
+			if (i != null)
+			{
+				rv = true;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Evaluate the derivative A*x + b at a point, using the middle of each
+	 * interval input. This is intended for simulation, and does no allocation.
+	 *
+	 * @param point
+	 *            the value of every column (variables, then constants)
+	 * @param out
+	 *            where to store the derivative of each row
+	 */
+	public void evaluate(double[] point, double[] out)
+	{
+		a.multiply(point, out);
+
+		for (int r = 0; r < b.length; ++r)
+		{
+			out[r] += b[r];
+
+			if (inputs[r] != null)
+				out[r] += inputs[r].middle();
+		}
+	}
+}
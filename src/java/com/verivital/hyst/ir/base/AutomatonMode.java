@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
+import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -37,6 +38,17 @@ public class AutomatonMode
 	public boolean urgent = false;
 	public LinkedHashMap<String, ExpressionInterval> flowDynamics;
 
+	// cached numeric form of flowDynamics, see getAffineDynamics(). The other
+	// fields record what the cache was extracted from.
+	private AffineDynamics affineCache = null;
+	private boolean affineCacheValid = false;
+	private boolean cachedUrgent;
+	private LinkedHashMap<String, ExpressionInterval> cachedFlowDynamics;
+	private String[] cachedNames; // variables followed by constants
+	private ExpressionInterval[] cachedFlows;
+	private Expression[] cachedExpressions;
+	private double[] cachedBounds; // min and max of each flow; NaN if none
+
 	/**
 	 * The correct way to create a new automaton mode is using
 	 * HybridAutomaton.createMode(name), which will manage the internal state of
@@ -124,6 +136,139 @@ public class AutomatonMode
 		}
 	}
 
+	/**
+	 * Get the affine representation of this mode's flowDynamics (x' = Ax + b +
+	 * u). The result is computed once and cached; the cache is recomputed if
+	 * flowDynamics, any of its ExpressionIntervals, their Expression objects or
+	 * interval bounds are replaced, or if the automaton's variables or
+	 * constants change. Code that modifies a flow Expression in place (without
+	 * assigning a new object) should call invalidateAffineDynamics().
+	 * 
+	 * @return the affine dynamics, or null if the mode is urgent or nonlinear
+	 */
+	public AffineDynamics getAffineDynamics()
+	{
+		if (!isAffineCacheCurrent())
+		{
+			affineCache = AffineDynamics.extract(this);
+			saveAffineCacheSource();
+			affineCacheValid = true;
+		}
+
+		return affineCache;
+	}
+
+	/**
+	 * Force the cached affine dynamics to be recomputed on the next call to
+	 * getAffineDynamics()
+	 */
+	public void invalidateAffineDynamics()
+	{
+		affineCacheValid = false;
+		affineCache = null;
+		cachedFlowDynamics = null;
+		cachedNames = null;
+		cachedFlows = null;
+		cachedExpressions = null;
+		cachedBounds = null;
+	}
+
+	/**
+	 * Record the state the affine cache is extracted from. The flow objects
+	 * are compared by identity, the interval bounds and the variable /
+	 * constant names by value.
+	 */
+	private void saveAffineCacheSource()
+	{
+		int numVars = automaton.variables.size();
+		int numFlows = flowDynamics == null ? 0 : flowDynamics.size();
+
+		cachedUrgent = urgent;
+		cachedFlowDynamics = flowDynamics;
+		cachedNames = new String[numVars + automaton.constants.size()];
+		cachedFlows = new ExpressionInterval[numFlows];
+		cachedExpressions = new Expression[numFlows];
+		cachedBounds = new double[2 * numFlows];
+
+		for (int v = 0; v < numVars; ++v)
+			cachedNames[v] = automaton.variables.get(v);
+
+		int index = numVars;
+
+		for (String c : automaton.constants.keySet())
+			cachedNames[index++] = c;
+
+		if (flowDynamics != null)
+		{
+			index = 0;
+
+			for (ExpressionInterval ei : flowDynamics.values())
+			{
+				Interval i = ei == null ? null : ei.getInterval();
+
+				cachedFlows[index] = ei;
+				cachedExpressions[index] = ei == null ? null : ei.getExpression();
+				cachedBounds[2 * index] = i == null ? Double.NaN : i.min;
+				cachedBounds[2 * index + 1] = i == null ? Double.NaN : i.max;
+				++index;
+			}
+		}
+	}
+
+	/**
+	 * Check if the state the affine cache was extracted from is unchanged,
+	 * without allocating a key
+	 */
+	private boolean isAffineCacheCurrent()
+	{
+		if (!affineCacheValid || urgent != cachedUrgent || flowDynamics != cachedFlowDynamics)
+			return false;
+
+		int numVars = automaton.variables.size();
+
+		if (numVars + automaton.constants.size() != cachedNames.length)
+			return false;
+
+		for (int v = 0; v < numVars; ++v)
+		{
+			if (!automaton.variables.get(v).equals(cachedNames[v]))
+				return false;
+		}
+
+		int index = numVars;
+
+		for (String c : automaton.constants.keySet())
+		{
+			if (!c.equals(cachedNames[index++]))
+				return false;
+		}
+
+		if (flowDynamics != null)
+		{
+			if (flowDynamics.size() != cachedFlows.length)
+				return false;
+
+			index = 0;
+
+			for (ExpressionInterval ei : flowDynamics.values())
+			{
+				Interval i = ei == null ? null : ei.getInterval();
+				double min = i == null ? Double.NaN : i.min;
+				double max = i == null ? Double.NaN : i.max;
+
+				if (ei != cachedFlows[index]
+						|| (ei != null && ei.getExpression() != cachedExpressions[index])
+						|| Double.compare(min, cachedBounds[2 * index]) != 0
+						|| Double.compare(max, cachedBounds[2 * index + 1]) != 0)
+					return false;
+
+				++index;
+			}
+		}
+
+		return true;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -89,7 +89,23 @@ public class AutomatonTransition
 			throw new AutomatonExportException("Destination mode ('" + to.name
 					+ "') not found in parent automaton: " + parent.getPrintableInstanceName());
 
-		AutomatonTransition rv = parent.createTransition(parentFrom, parentTo);
+		return copy(parentFrom, parentTo);
+	}
+
+	/**
+	 * Deep copy between the given modes, which must be in the same automaton.
+	 * The copy is added to that automaton's transitions. Unlike copy(parent),
+	 * this doesn't need to look up modes by name.
+	 * 
+	 * @param newFrom
+	 *            the source mode of the copy
+	 * @param newTo
+	 *            the destination mode of the copy
+	 * @return the new transition
+	 */
+	public AutomatonTransition copy(AutomatonMode newFrom, AutomatonMode newTo)
+	{
+		AutomatonTransition rv = newFrom.automaton.createTransition(newFrom, newTo);
 
 		rv.guard = guard.copy();
 
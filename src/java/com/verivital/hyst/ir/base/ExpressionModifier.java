@@ -10,6 +10,19 @@ public abstract class ExpressionModifier
 {
 	abstract protected Expression modifyExpression(Expression ei);
 
+	/**
+	 * Can modifyExpression() be called concurrently from multiple threads? If
+	 * so, modifyBaseComponent() processes the modes and transitions in
+	 * parallel. Thread-safe modifiers must not mutate the passed-in expression
+	 * (which may be shared between modes) or any other shared state.
+	 * 
+	 * @return true iff this modifier is thread-safe
+	 */
+	protected boolean isThreadSafe()
+	{
+		return false;
+	}
+
 	private static LinkedHashMap<String, ExpressionInterval> modifyMap(
 			LinkedHashMap<String, ExpressionInterval> m, ExpressionModifier em)
 	{
@@ -63,22 +76,49 @@ public abstract class ExpressionModifier
 	 * @param em
 	 *            the function that gets called to modify each expression
 	 */
-	public static void modifyBaseComponent(BaseComponent bc, ExpressionModifier em)
+	public static void modifyBaseComponent(BaseComponent bc, final ExpressionModifier em)
 	{
-		for (Entry<String, AutomatonMode> e : bc.modes.entrySet())
+		if (em.isThreadSafe())
 		{
-			AutomatonMode m = e.getValue();
-
-			if (m.flowDynamics != null)
-				m.flowDynamics = modifyMap(m.flowDynamics, em);
-
-			m.invariant = em.modifyExpression(m.invariant);
+			ModeTraversal.forEachMode(bc, new ModeTraversal.ModeVisitor()
+			{
+				@Override
+				public void visit(AutomatonMode am)
+				{
+					modifyMode(am, em);
+				}
+			});
+
+			ModeTraversal.forEachTransition(bc, new ModeTraversal.TransitionVisitor()
+			{
+				@Override
+				public void visit(AutomatonTransition at)
+				{
+					modifyTransition(at, em);
+				}
+			});
 		}
-
-		for (AutomatonTransition t : bc.transitions)
+		else
 		{
-			t.guard = em.modifyExpression(t.guard);
-			t.reset = modifyMap(t.reset, em);
+			for (AutomatonMode m : bc.modes.values())
+				modifyMode(m, em);
+
+			for (AutomatonTransition t : bc.transitions)
+				modifyTransition(t, em);
 		}
 	}
-}
\ No newline at end of file
+
+	private static void modifyMode(AutomatonMode m, ExpressionModifier em)
+	{
+		if (m.flowDynamics != null)
+			m.flowDynamics = modifyMap(m.flowDynamics, em);
+
+		m.invariant = em.modifyExpression(m.invariant);
+	}
+
+	private static void modifyTransition(AutomatonTransition t, ExpressionModifier em)
+	{
+		t.guard = em.modifyExpression(t.guard);
+		t.reset = modifyMap(t.reset, em);
+	}
+}
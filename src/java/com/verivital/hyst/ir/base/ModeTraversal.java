@@ -0,0 +1,206 @@
+package com.verivital.hyst.ir.base;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join traversal of the modes and transitions of a BaseComponent. Each
+ * mode (or transition) is processed independently, so passes whose work is
+ * local to a single mode can use every core on automata with thousands of
+ * modes.
+ *
+ * Visitors run concurrently and must only modify the mode or transition they
+ * are given. Results from mapModes() are returned in the same order as
+ * BaseComponent.modes, so output doesn't depend on scheduling. Small automata
+ * (fewer than PARALLEL_THRESHOLD elements) are processed sequentially in the
+ * calling thread.
+ */
+public class ModeTraversal
+{
+	// automata with fewer modes / transitions than this are traversed
+	// sequentially
+	public static final int PARALLEL_THRESHOLD = 256;
+
+	// number of elements processed by a single fork-join task without further
+	// splitting
+	private static final int SPLIT_SIZE = 16;
+
+	private static ForkJoinPool pool = null;
+
+	public interface ModeVisitor
+	{
+		void visit(AutomatonMode am);
+	}
+
+	public interface TransitionVisitor
+	{
+		void visit(AutomatonTransition at);
+	}
+
+	public interface ModeFunction<T>
+	{
+		T apply(AutomatonMode am);
+	}
+
+	/**
+	 * Run a visitor on every mode of an automaton, possibly in parallel
+	 *
+	 * @param ha
+	 *            the automaton
+	 * @param v
+	 *            the visitor, which should only modify the mode it's passed
+	 */
+	public static void forEachMode(BaseComponent ha, final ModeVisitor v)
+	{
+		List<AutomatonMode> modes = new ArrayList<AutomatonMode>(ha.modes.values());
+
+		run(modes, new ElementProcessor<AutomatonMode>()
+		{
+			@Override
+			public void process(int index, AutomatonMode am)
+			{
+				v.visit(am);
+			}
+		});
+	}
+
+	/**
+	 * Run a visitor on every transition of an automaton, possibly in parallel
+	 *
+	 * @param ha
+	 *            the automaton
+	 * @param v
+	 *            the visitor, which should only modify the transition it's
+	 *            passed
+	 */
+	public static void forEachTransition(BaseComponent ha, final TransitionVisitor v)
+	{
+		List<AutomatonTransition> transitions = new ArrayList<AutomatonTransition>(
+				ha.transitions);
+
+		run(transitions, new ElementProcessor<AutomatonTransition>()
+		{
+			@Override
+			public void process(int index, AutomatonTransition at)
+			{
+				v.visit(at);
+			}
+		});
+	}
+
+	/**
+	 * Compute a value for every mode of an automaton, possibly in parallel
+	 *
+	 * @param ha
+	 *            the automaton
+	 * @param f
+	 *            the function to compute, which should not modify the automaton
+	 * @return a map of mode name -> result, in the same order as ha.modes
+	 */
+	public static <T> LinkedHashMap<String, T> mapModes(BaseComponent ha, final ModeFunction<T> f)
+	{
+		List<AutomatonMode> modes = new ArrayList<AutomatonMode>(ha.modes.values());
+		final ArrayList<T> results = new ArrayList<T>(modes.size());
+
+		for (int i = 0; i < modes.size(); ++i)
+			results.add(null);
+
+		run(modes, new ElementProcessor<AutomatonMode>()
+		{
+			@Override
+			public void process(int index, AutomatonMode am)
+			{
+				// each task writes to distinct indices, and the join provides
+				// the happens-before edge for the reads below
+				results.set(index, f.apply(am));
+			}
+		});
+
+		LinkedHashMap<String, T> rv = new LinkedHashMap<String, T>();
+
+		for (int i = 0; i < modes.size(); ++i)
+			rv.put(modes.get(i).name, results.get(i));
+
+		return rv;
+	}
+
+	private interface ElementProcessor<E>
+	{
+		void process(int index, E element);
+	}
+
+	private static <E> void run(List<E> elements, ElementProcessor<E> p)
+	{
+		if (elements.size() < PARALLEL_THRESHOLD)
+		{
+			for (int i = 0; i < elements.size(); ++i)
+				p.process(i, elements.get(i));
+		}
+		else
+		{
+			RangeTask<E> task = new RangeTask<E>(elements, p, 0, elements.size());
+
+			// nested traversals run in the current pool, rather than blocking a
+			// worker on a new external submission
+			if (ForkJoinTask.inForkJoinPool())
+				task.invoke();
+			else
+				getPool().invoke(task);
+		}
+	}
+
+	/**
+	 * Get the fork-join pool shared by Hyst's parallel work (mode traversals and simulations), so
+	 * that nested parallel calls do not compete for threads in separate pools
+	 * 
+	 * @return the shared pool, created on first use
+	 */
+	public static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+
+		return pool;
+	}
+
+	/**
+	 * Processes the elements in [from, to), splitting in half until the range
+	 * is at most SPLIT_SIZE
+	 */
+	private static class RangeTask<E> extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final List<E> elements;
+		private final ElementProcessor<E> processor;
+		private final int from, to;
+
+		RangeTask(List<E> elements, ElementProcessor<E> processor, int from, int to)
+		{
+			this.elements = elements;
+			this.processor = processor;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= SPLIT_SIZE)
+			{
+				for (int i = from; i < to; ++i)
+					processor.process(i, elements.get(i));
+			}
+			else
+			{
+				int mid = (from + to) >>> 1;
+
+				invokeAll(new RangeTask<E>(elements, processor, from, mid),
+						new RangeTask<E>(elements, processor, mid, to));
+			}
+		}
+	}
+}
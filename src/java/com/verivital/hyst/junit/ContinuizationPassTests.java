@@ -81,6 +81,49 @@ public class ContinuizationPassTests
 		Assert.assertEquals(new Interval(-1, 1), i2);
 	}
 
+	/**
+	 * Test for the java ensemble range detection, with and without interval
+	 * enclosures of each step
+	 */
+	@Test
+	public void testJavaRangeTestSim()
+	{
+		String[][] dynamics = { { "t", "1" }, { "y", "sin(t)" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+
+		ArrayList<Interval> timeIntervals = new ArrayList<Interval>();
+		timeIntervals.add(new Interval(0, Math.PI / 4.0));
+		timeIntervals.add(new Interval(0, 2 * Math.PI));
+
+		ArrayList<SymbolicStatePoint> starts = new ArrayList<SymbolicStatePoint>();
+		starts.add(new SymbolicStatePoint("on", new HyperPoint(0, 0)));
+		starts.add(new SymbolicStatePoint("on", new HyperPoint(0, 5)));
+
+		List<Interval> result = ContinuizationPass.javaSimulateDerivativeRange(c, "y", starts,
+				timeIntervals, 0.05, false);
+
+		Assert.assertEquals(2, result.size());
+
+		// the derivative of y is sin(t); the end of the first interval falls
+		// between steps, so it's interpolated
+		Assert.assertEquals(0, result.get(0).min, 1e-9);
+		Assert.assertEquals(Math.sqrt(2) / 2.0, result.get(0).max, 1e-3);
+		Assert.assertEquals(-1, result.get(1).min, 1e-3);
+		Assert.assertEquals(1, result.get(1).max, 1e-3);
+
+		// enclosures contain the exact ranges, and are only a bit larger
+		result = ContinuizationPass.javaSimulateDerivativeRange(c, "y", starts, timeIntervals,
+				0.05, true);
+
+		Interval i1 = result.get(0);
+		Interval i2 = result.get(1);
+
+		Assert.assertTrue(i1.min <= 0 && i1.max >= Math.sqrt(2) / 2.0);
+		Assert.assertTrue(i2.min <= -1 && i2.max >= 1);
+		Assert.assertEquals(Math.sqrt(2) / 2.0, i1.max, 0.1);
+		Assert.assertEquals(-1, i2.min, 0.1);
+	}
+
 	@Test
 	public void testContinuizationPassSineWave()
 	{
@@ -170,6 +213,49 @@ public class ContinuizationPassTests
 				running2.flowDynamics.get("a").getInterval().min, 1e-3);
 	}
 
+	/**
+	 * The double integrator with ranges from the java simulation engine. The
+	 * initial state is a point, so this should match the python engine.
+	 */
+	@Test
+	public void testJavaDoubleIntegrator()
+	{
+		String[][] dynamics = { { "x", "v", "0.05" }, { "v", "a", "0" },
+				{ "a", "-10 * v - 3 * a", "9.5" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+
+		String continuizationParam = ContinuizationPass.makeParamString("a", "t", 0.005, false,
+				Arrays.asList(new Double[] { 1.5, 5.0 }), Arrays.asList(new Double[] { 4.0, 4.0 }))
+				+ " -simengine java";
+
+		new ContinuizationPass().runTransformationPass(c, continuizationParam);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		AutomatonMode running1 = ha.modes.get("on");
+		AutomatonMode running2 = ha.modes.get("on_2");
+		int numErrorModes = 0;
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			if (am.name.contains("error"))
+				++numErrorModes;
+		}
+
+		Assert.assertNotNull("on found", running1);
+		Assert.assertNotNull("on_2 found", running2);
+		Assert.assertEquals("four error modes", 4, numErrorModes);
+
+		Assert.assertEquals("mode1 v_der.max is 0.163", 0.163,
+				running1.flowDynamics.get("v").getInterval().max, 1e-3);
+		Assert.assertEquals("mode1 v_der.min is -0.046", -0.046,
+				running1.flowDynamics.get("v").getInterval().min, 1e-3);
+
+		Assert.assertEquals("mode2 a_der.max is 0.109", 0.109,
+				running2.flowDynamics.get("a").getInterval().max, 1e-3);
+		Assert.assertEquals("mode2 a_der.min is -0.075", -0.075,
+				running2.flowDynamics.get("a").getInterval().min, 1e-3);
+	}
+
 	@Test
 	public void testUrgentDoubleIntegrator()
 	{
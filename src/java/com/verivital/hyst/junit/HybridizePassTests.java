@@ -1,5 +1,8 @@
 package com.verivital.hyst.junit;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -31,6 +34,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SpaceSplittingElement;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SplittingElement;
@@ -38,6 +42,9 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.TimeSplitt
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.TrajectoryReader;
+import com.verivital.hyst.simulation.TrajectoryWriter;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.RangeExtractor;
 
@@ -159,6 +166,67 @@ public class HybridizePassTests
 				"x <= 10 & _tt >= 0 & x >= 0.2357 & x <= 0.3833", m1.invariant.toString());
 	}
 
+	/**
+	 * Test that the mixed-triggered pass reuses cached simulation results when
+	 * only downstream parameters (like epsilon) change
+	 */
+	@Test
+	public void testHybridizeCache() throws IOException
+	{
+		File cache = File.createTempFile("hyst_hybridize", ".cache");
+		cache.delete();
+
+		try
+		{
+			String[] params = {
+					HybridizeMixedTriggeredPass.makeParamString(1.0, "star", 0.25, 0, 0, 0.05,
+							"affine", false),
+					HybridizeMixedTriggeredPass.makeParamString(1.0, "star", 0.25, 0, 0, 0.1,
+							"affine", false),
+					HybridizeMixedTriggeredPass.makeParamString(1.0, "star", 0.5, 0, 0, 0.1,
+							"affine", false) };
+			int[] expectedModes = { 5, 5, 3 };
+			String[] firstInvariant = new String[params.length];
+			String[] cacheContents = new String[params.length];
+
+			for (int i = 0; i < params.length; ++i)
+			{
+				Configuration c = makeSampleBaseConfiguration();
+				BaseComponent ha = (BaseComponent) c.root;
+				AutomatonMode am = ha.modes.values().iterator().next();
+
+				ha.variables.remove("y");
+				am.flowDynamics.remove("y");
+				am.flowDynamics.put("x", new ExpressionInterval("x^2"));
+				am.invariant = FormulaParser.parseInvariant("x <= 10");
+				c.settings.plotVariableNames[1] = "x";
+				c.init.put("on", FormulaParser.parseGuard("x >= 0.24 & x <= 0.26"));
+				c.validate();
+
+				new HybridizeMixedTriggeredPass().runTransformationPass(c, params[i]
+						+ " -simengine java -cache " + cache.getAbsolutePath());
+
+				Assert.assertTrue("cache file was created", cache.exists());
+				Assert.assertEquals("number of modes in run " + i, expectedModes[i],
+						ha.modes.size());
+
+				firstInvariant[i] = ha.modes.get("_1_time_trig").invariant.toDefaultString();
+				cacheContents[i] = new String(Files.readAllBytes(cache.toPath()), "UTF-8");
+			}
+
+			Assert.assertNotEquals("epsilon changes the bloating", firstInvariant[0],
+					firstInvariant[1]);
+			Assert.assertEquals("cache reused (not rewritten) when only epsilon changed",
+					cacheContents[0], cacheContents[1]);
+			Assert.assertNotEquals("cache rewritten when delta_tt changed", cacheContents[1],
+					cacheContents[2]);
+		}
+		finally
+		{
+			cache.delete();
+		}
+	}
+
 	@Test
 	public void testHybridizeMixedTriggeredPassVanderpol()
 	{
@@ -532,6 +600,61 @@ public class HybridizePassTests
 		}
 	}
 
+	@Test
+	public void testAffineOptimization()
+	{
+		// x^2 minus its linearization at x = 0.5 is (x - 0.5)^2, in [0, 0.25] over
+		// [0, 1]. Interval arithmetic gives [-0.75, 1]; the mean-value form gives
+		// [-0.5, 0.5], and splitting gets within the requested error.
+		List<Expression> exps = new ArrayList<Expression>();
+		exps.add(FormulaParser.parseValue("x^2 - (x - 0.25)"));
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(0, 1));
+		List<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
+		boundsList.add(bounds);
+
+		double TOL = 1e-9;
+		Interval i = AffineOptimize.taylorOptimize(exps, boundsList, 0).get(0);
+		Assert.assertEquals(-0.5, i.min, TOL);
+		Assert.assertEquals(0.5, i.max, TOL);
+
+		i = AffineOptimize.taylorOptimize(exps, boundsList, 0.01).get(0);
+		Assert.assertTrue("lower bound was unsound or loose: " + i, i.min <= 0 && i.min >= -0.01);
+		Assert.assertTrue("upper bound was unsound or loose: " + i,
+				i.max >= 0.25 && i.max <= 0.26);
+
+		// the linear dynamics in a chain mode are found exactly (no python needed)
+		Configuration c = makeSampleBaseConfiguration();
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode mode1 = ha.modes.values().iterator().next();
+		mode1.invariant = FormulaParser.parseInvariant("0 <= x <= 1 & 0 <= y <= 2");
+		mode1.flowDynamics.put("x", new ExpressionInterval("x"));
+		mode1.flowDynamics.put("y", new ExpressionInterval("1"));
+
+		ArrayList<AutomatonMode> allModes = new ArrayList<AutomatonMode>();
+		allModes.add(mode1);
+
+		for (String opt : new String[] { "affine", "affine0.01" })
+		{
+			AutomatonMode chain1 = ha.createMode("chain_" + opt);
+			chain1.invariant = Constant.TRUE;
+			ArrayList<AutomatonMode> modeChain = new ArrayList<AutomatonMode>();
+			modeChain.add(chain1);
+
+			ArrayList<HyperRectangle> modeChainInvariants = new ArrayList<HyperRectangle>();
+			modeChainInvariants
+					.add(new HyperRectangle(new double[][] { { 0, 0.5 }, { 0.1, 0.2 } }));
+
+			HybridizeMTRawPass.runOptimization(opt, allModes, modeChain, modeChainInvariants);
+
+			Assert.assertNull(opt + ": chain 'x' flow was incorrect", AutomatonUtil
+					.areExpressionIntervalsEqual("x", 0, 0, chain1.flowDynamics.get("x")));
+			Assert.assertNull(opt + ": chain 'y' flow was incorrect", AutomatonUtil
+					.areExpressionIntervalsEqual("1", 0, 0, chain1.flowDynamics.get("y")));
+		}
+	}
+
 	@Test
 	public void sciPyOptimize()
 	{
@@ -660,6 +783,57 @@ public class HybridizePassTests
 		Assert.assertEquals("x >= 0.236 & x <= 0.383", inv2.toDefaultString());
 	}
 
+	/**
+	 * Test that the raw hybridization pass merges consecutive time-triggered
+	 * modes with the same dynamics. With x' == 1, every domain has the same
+	 * (exact) affine dynamics, so the three time-triggered modes become one.
+	 */
+	@Test
+	public void testHybridMixedTriggeredRawPassMerge()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		Configuration c = makeSampleBaseConfiguration(); // x' == 1, y' == 1
+		c.settings.plotVariableNames[0] = c.settings.plotVariableNames[1] = "x";
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode am = ha.modes.values().iterator().next();
+
+		ha.variables.remove("y");
+		am.flowDynamics.remove("y");
+		c.init.put("on", FormulaParser.parseInitialForbidden(".24 <= x <= .26"));
+		c.validate();
+
+		List<SplittingElement> splitElements = new ArrayList<SplittingElement>();
+		List<HyperRectangle> domains = new ArrayList<HyperRectangle>();
+
+		for (int i = 0; i < 3; ++i)
+			splitElements.add(new TimeSplittingElement(0.25));
+
+		domains.add(new HyperRectangle(new Interval(0.2, 0.55)));
+		domains.add(new HyperRectangle(new Interval(0.45, 0.8)));
+		domains.add(new HyperRectangle(new Interval(0.7, 1.05)));
+		domains.add(new HyperRectangle(new Interval(0.95, 1.3)));
+
+		String params = HybridizeMTRawPass.makeParamString(splitElements, domains, null, null,
+				false) + " -merge 1e-6";
+
+		new HybridizeMTRawPass().runTransformationPass(c, params);
+
+		Assert.assertEquals("one merged mode, the final mode, and the error mode", 3,
+				ha.modes.size());
+
+		AutomatonMode merged = ha.modes.get("_1_time_trig");
+		Assert.assertNotNull(merged);
+		Assert.assertNotNull(ha.modes.get("_2_final"));
+
+		Assert.assertEquals("_tt >= 0 & x >= 0.2 & x <= 1.05", merged.invariant.toDefaultString());
+		Assert.assertNull(
+				AutomatonUtil.areExpressionIntervalsEqual("1", 0, 0, merged.flowDynamics.get("x")));
+		Assert.assertTrue("initial state has the merged dwell time _tt := 0.75",
+				c.init.get(merged.name).toDefaultString().contains("_tt = 0.75"));
+	}
+
 	/**
 	 * Test the raw hybridization (space-triggered) pass. This uses the
 	 * quadradic example from the soundness argument ppt. x' == x^2, x(0) =
@@ -767,6 +941,295 @@ public class HybridizePassTests
 		Assert.assertEquals(9.5, res.get(1).hp.dims[1], 1e-4);
 	}
 
+	/**
+	 * The affine approximation error used for adaptive time-triggered steps
+	 * should shrink with the domain
+	 */
+	@Test
+	public void testMeasureApproximationError()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "x * x" }, { "y", "1" } });
+		BaseComponent ha = (BaseComponent) c.root;
+
+		HyperRectangle big = new HyperRectangle(new Interval(0, 1), new Interval(0, 1));
+		HyperRectangle small = new HyperRectangle(new Interval(0, 0.5), new Interval(0, 1));
+
+		double bigErr = HybridizeMTRawPass.measureApproximationError("basinhopping",
+				ha.modes.values(), big);
+		double smallErr = HybridizeMTRawPass.measureApproximationError("basinhopping",
+				ha.modes.values(), small);
+
+		// the approximation is x - 1/4, and x^2 - (x - 1/4) = (x - 1/2)^2
+		// ranges over [0, 1/4]
+		Assert.assertEquals(0.25, bigErr, 1e-3);
+		Assert.assertTrue("smaller domain has smaller error", smallErr < bigErr / 2);
+	}
+
+	/**
+	 * The java simulation engine should match the python one on testSimAllPoints
+	 */
+	@Test
+	public void testJavaSimAllPoints()
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "2*x" } });
+		HybridSimulator sim = new HybridSimulator((BaseComponent) c.root);
+
+		ArrayList<SymbolicStatePoint> simPoints = new ArrayList<SymbolicStatePoint>();
+
+		simPoints.add(new SymbolicStatePoint("on", new HyperPoint(0, 0)));
+		simPoints.add(new SymbolicStatePoint("on", new HyperPoint(1, 1.5)));
+
+		ArrayList<SymbolicStatePoint> res = sim.simulateAll(simPoints, 2.0, 0.02);
+
+		Assert.assertEquals("on", res.get(0).modeName);
+		Assert.assertEquals(2, res.get(0).hp.dims[0], 1e-9);
+		Assert.assertEquals(4, res.get(0).hp.dims[1], 1e-9);
+
+		Assert.assertEquals("on", res.get(1).modeName);
+		Assert.assertEquals(3, res.get(1).hp.dims[0], 1e-9);
+		Assert.assertEquals(9.5, res.get(1).hp.dims[1], 1e-9);
+
+		// trajectories are returned in order, with every step
+		ArrayList<ArrayList<SymbolicStatePoint>> trajs = sim.simulateTrajectories(simPoints, 2.0,
+				0.02);
+
+		Assert.assertEquals(2, trajs.size());
+		Assert.assertEquals(101, trajs.get(1).size());
+		Assert.assertEquals(1, trajs.get(1).get(0).hp.dims[0], 1e-9);
+		Assert.assertEquals(3, trajs.get(1).get(100).hp.dims[0], 1e-9);
+
+		for (SymbolicStatePoint ssp : trajs.get(0))
+			Assert.assertEquals(ssp.hp.dims[0] * ssp.hp.dims[0], ssp.hp.dims[1], 1e-9);
+	}
+
+	/**
+	 * Test the java simulation engine with discrete transitions, resets and
+	 * many concurrent start points
+	 */
+	@Test
+	public void testJavaSimTransitions()
+	{
+		String[][] dynamics = { { "x", "1" }, { "c", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics, "x <= 1", "x >= 1",
+				new String[][] { { "x", "-1" }, { "c", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonTransition at = ha.transitions.get(0);
+		at.reset.put("c", new ExpressionInterval("c + 1"));
+
+		HybridSimulator sim = new HybridSimulator(ha);
+		ArrayList<SymbolicStatePoint> starts = new ArrayList<SymbolicStatePoint>();
+
+		for (int i = 0; i < 500; ++i)
+			starts.add(new SymbolicStatePoint("mode1", new HyperPoint(0.001 * i, i)));
+
+		// step of 0.25 lands exactly on the guard for start point 0
+		ArrayList<SymbolicStatePoint> res = sim.simulateAll(starts, 2.0, 0.25);
+
+		Assert.assertEquals(500, res.size());
+
+		for (int i = 0; i < res.size(); ++i)
+		{
+			SymbolicStatePoint ssp = res.get(i);
+			Assert.assertEquals("mode2", ssp.modeName);
+			Assert.assertEquals("reset applied", i + 1, ssp.hp.dims[1], 1e-9);
+		}
+
+		// from x = 0, reaches x = 1 after 1 time unit, then decreases for 1 time
+		// unit
+		Assert.assertEquals(0, res.get(0).hp.dims[0], 1e-9);
+	}
+
+	/**
+	 * The java simulation engine should localize guard and invariant events
+	 * within a step, and stop at caller-provided conditions
+	 */
+	@Test
+	public void testJavaSimEventLocalization()
+	{
+		String[][] dynamics = { { "x", "1" }, { "c", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics, "x <= 1", "x >= 0.55",
+				new String[][] { { "x", "-1" }, { "c", "0" } });
+		HybridSimulator sim = new HybridSimulator((BaseComponent) c.root);
+		SymbolicStatePoint start = new SymbolicStatePoint("mode1", new HyperPoint(0, 0));
+
+		// the guard becomes true in the middle of the third step of 0.25
+		ArrayList<SymbolicStatePoint> traj = sim.simulateTrajectory(start, 1.0, 0.25);
+		SymbolicStatePoint jumpFrom = null;
+
+		for (int i = 1; i < traj.size() && jumpFrom == null; ++i)
+		{
+			if (traj.get(i).modeName.equals("mode2"))
+				jumpFrom = traj.get(i - 1);
+		}
+
+		Assert.assertNotNull("transition was taken", jumpFrom);
+		Assert.assertEquals(0.55, jumpFrom.hp.dims[0], 1e-8);
+
+		SymbolicStatePoint end = traj.get(traj.size() - 1);
+		Assert.assertEquals("mode2", end.modeName);
+		Assert.assertEquals(0.1, end.hp.dims[0], 1e-8);
+
+		// without an enabled guard, the simulation stops where the invariant
+		// becomes false
+		((BaseComponent) c.root).transitions.get(0).guard = FormulaParser
+				.parseGuard("x >= 2");
+		sim = new HybridSimulator((BaseComponent) c.root);
+		end = sim.simulateFor(start, 2.0, 0.3);
+
+		Assert.assertEquals("mode1", end.modeName);
+		Assert.assertEquals(1.0, end.hp.dims[0], 1e-8);
+
+		// stop conditions: y = t^2 / 2 reaches 0.3 at t = sqrt(0.6)
+		c = AutomatonUtil.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "x" } });
+		sim = new HybridSimulator((BaseComponent) c.root);
+		HybridSimulator.StopCondition cond = new HybridSimulator.StopCondition()
+		{
+			@Override
+			public double value(String modeName, double[] state)
+			{
+				return state[1] - 0.3;
+			}
+		};
+
+		ArrayList<SymbolicStatePoint> starts = new ArrayList<SymbolicStatePoint>();
+		starts.add(new SymbolicStatePoint("on", new HyperPoint(0, 0)));
+		starts.add(new SymbolicStatePoint("on", new HyperPoint(0, -100)));
+
+		ArrayList<SymbolicStatePoint> res = sim.simulateAllUntil(starts, 2.0, 0.5, cond);
+
+		Assert.assertEquals(Math.sqrt(0.6), res.get(0).hp.dims[0], 1e-8);
+		Assert.assertEquals(0.3, res.get(0).hp.dims[1], 1e-8);
+		Assert.assertNull("condition not reached within the time bound", res.get(1));
+	}
+
+	/**
+	 * Trajectories written to a binary trajectory file should read back
+	 * exactly, with a separate segment for each mode
+	 */
+	@Test
+	public void testTrajectoryFileRoundTrip() throws IOException
+	{
+		String[][] dynamics = { { "x", "1" }, { "c", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics, "x <= 1", "x >= 0.55",
+				new String[][] { { "x", "-1" }, { "c", "0" } });
+		BaseComponent ha = (BaseComponent) c.root;
+		HybridSimulator sim = new HybridSimulator(ha);
+
+		ArrayList<SymbolicStatePoint> starts = new ArrayList<SymbolicStatePoint>();
+		starts.add(new SymbolicStatePoint("mode1", new HyperPoint(0, 0)));
+		starts.add(new SymbolicStatePoint("mode2", new HyperPoint(0.5, 3)));
+
+		File f = File.createTempFile("hyst_traj_test", ".bin");
+		TrajectoryReader reader = null;
+
+		try
+		{
+			TrajectoryWriter out = new TrajectoryWriter(f, ha.variables);
+			sim.writeTrajectories(starts, 1.0, 0.25, out);
+			out.close();
+
+			reader = new TrajectoryReader(f);
+			Assert.assertEquals(ha.variables, reader.getVariables());
+			Assert.assertEquals(2, reader.getNumTrajectories());
+
+			// the first trajectory jumps once, the second stays in mode2
+			List<TrajectoryReader.Segment> segs = reader.getSegments();
+			Assert.assertEquals(3, segs.size());
+			Assert.assertEquals("mode1", segs.get(0).mode);
+			Assert.assertEquals("mode2", segs.get(1).mode);
+			Assert.assertEquals(1, segs.get(2).trajectory);
+
+			TrajectoryReader.Segment last = segs.get(2);
+			Assert.assertEquals(0.0, last.getTime(0), 1e-12);
+			Assert.assertEquals(1.0, last.getTime(last.size() - 1), 1e-12);
+			Assert.assertEquals(3.0, last.getColumn(1).get(last.size() - 1), 1e-12);
+
+			ArrayList<ArrayList<SymbolicStatePoint>> expected = sim.simulateTrajectories(starts,
+					1.0, 0.25);
+			ArrayList<ArrayList<SymbolicStatePoint>> read = reader.readAll();
+
+			for (int t = 0; t < expected.size(); ++t)
+			{
+				ArrayList<SymbolicStatePoint> lazy = new ArrayList<SymbolicStatePoint>();
+
+				for (SymbolicStatePoint p : reader.getTrajectory(t))
+					lazy.add(p);
+
+				Assert.assertEquals(expected.get(t).size(), read.get(t).size());
+				Assert.assertEquals(expected.get(t).size(), lazy.size());
+
+				for (int i = 0; i < expected.get(t).size(); ++i)
+				{
+					SymbolicStatePoint e = expected.get(t).get(i);
+
+					Assert.assertEquals(e.modeName, read.get(t).get(i).modeName);
+					Assert.assertArrayEquals(e.hp.dims, read.get(t).get(i).hp.dims, 0);
+					Assert.assertArrayEquals(e.hp.dims, lazy.get(i).hp.dims, 0);
+				}
+			}
+		}
+		finally
+		{
+			if (reader != null)
+				reader.close();
+
+			f.delete();
+		}
+	}
+
+	/**
+	 * States written with TrajectoryWriter.writeStates (how start states are
+	 * passed to python) should read back exactly, one single-point trajectory
+	 * per state
+	 */
+	@Test
+	public void testWriteStatesRoundTrip() throws IOException
+	{
+		List<String> variables = Arrays.asList("x", "y", "z");
+		ArrayList<SymbolicStatePoint> states = new ArrayList<SymbolicStatePoint>();
+		states.add(new SymbolicStatePoint("on", new HyperPoint(0, -1.5, 1e-300)));
+		states.add(new SymbolicStatePoint("off", new HyperPoint(Math.PI, 2, -0.0)));
+		states.add(new SymbolicStatePoint("on", new HyperPoint(1e12, -7, 0.1)));
+
+		File f = File.createTempFile("hyst_states_test", ".bin");
+		TrajectoryReader reader = null;
+
+		try
+		{
+			TrajectoryWriter.writeStates(f, variables, states);
+
+			reader = new TrajectoryReader(f);
+			Assert.assertEquals(variables, reader.getVariables());
+			Assert.assertEquals(states.size(), reader.getNumTrajectories());
+
+			ArrayList<ArrayList<SymbolicStatePoint>> read = reader.readAll();
+			Assert.assertEquals(states.size(), read.size());
+
+			for (int i = 0; i < states.size(); ++i)
+			{
+				Assert.assertEquals("state " + i + " is a single point", 1, read.get(i).size());
+
+				SymbolicStatePoint e = states.get(i);
+				SymbolicStatePoint r = read.get(i).get(0);
+
+				Assert.assertEquals(e.modeName, r.modeName);
+				Assert.assertArrayEquals(e.hp.dims, r.hp.dims, 0);
+			}
+		}
+		finally
+		{
+			if (reader != null)
+				reader.close();
+
+			f.delete();
+		}
+	}
+
 	@Test
 	public void testMultiSimTrajectoryTime()
 	{
@@ -30,6 +30,7 @@ import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.Polynomial;
 
 @RunWith(Parameterized.class)
 public class LutMatrixTest
@@ -472,6 +473,125 @@ public class LutMatrixTest
 			Assert.fail("2-d lut interpolation was wrong: " + msg);
 	}
 
+	/**
+	 * Interpolation expanded and chopped in Java should be a simplified
+	 * polynomial
+	 */
+	@Test
+	public void testLinearInterpolationPolynomial()
+	{
+		ConvertLutFlowsPass.simplifyMode = ConvertLutFlowsPass.SIMPLIFY_POLYNOMIAL;
+
+		String lutStr = "lut([a, b], [1, 2, 4 ; 2, 3, 5 ; 3, 5, 10], [0, 1, 3], [0, 10, 30])";
+		LutExpression lut = (LutExpression) FormulaParser.parseValue(lutStr);
+		int[] indexList = new int[] { 1, 1 };
+		Interval[] rangeList = new Interval[] { new Interval(1, 3), new Interval(10, 30) };
+
+		Expression expected = FormulaParser
+				.parseValue("3+(a-1)*1 + (b-10)/20 * (5+(a-1)*2.5 - (3+(a-1)*1))");
+		Expression got = ConvertLutFlowsPass.nLinearInterpolation(lut, indexList, rangeList);
+
+		String msg = AutomatonUtil.areExpressionsEqual(expected, got);
+
+		if (msg != null)
+			Assert.fail("2-d lut polynomial interpolation was wrong: " + msg);
+
+		// 1.75 + 0.25 * a + 0.025 * b + 0.075 * a * b, up to round-off
+		Assert.assertEquals("got: " + got.toDefaultString(), 4,
+				Polynomial.fromExpression(got).getNumTerms());
+	}
+
+	/**
+	 * Test only creating modes for lut cells the inputs can reach
+	 */
+	@Test
+	public void testLutReachableCells()
+	{
+		String lutStr = "lut([t, p], [1, 2, 3, 4 ; 2, 3, 4, 5 ; 3, 4, 5, 6 ; 4, 5, 6, 7], "
+				+ "[0, 10, 30, 40], [0, 10, 20, 30])";
+		String[][] dynamics = { { "t", "1", "0" }, { "p", "0", "15" }, { "y", lutStr, "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		ha.modes.get("on").invariant = FormulaParser.parseInvariant("t <= 25");
+
+		new ConvertLutFlowsPass().runTransformationPass(c, "-reachable");
+
+		// t is bounded by the invariant, and p is constant at its initial
+		// value, so only cells [0, 1] and [1, 1] are reachable
+		Assert.assertEquals("3 modes after conversion", 3, ha.modes.size());
+		Assert.assertEquals("4 transitions after conversion", 4, ha.transitions.size());
+
+		Assert.assertEquals("t <= 25 & t <= 10", ha.modes.get("on_0_1").invariant.toDefaultString());
+		Assert.assertEquals("t <= 25 & t >= 10", ha.modes.get("on_1_1").invariant.toDefaultString());
+		Assert.assertNotNull(ha.findTransition("on_0_1", "on_1_1"));
+		Assert.assertNotNull(ha.findTransition("on_1_1", "on_0_1"));
+	}
+
+	/**
+	 * Test merging adjacent lut cells with the same dynamics
+	 */
+	@Test
+	public void testLutMergeCells1d()
+	{
+		String lutStr = "lut([t], [1, 2, 3, 2, 1], [0, 10, 20, 30, 40])";
+		String[][] dynamics = { { "t", "1", "0" }, { "y", lutStr, "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		new ConvertLutFlowsPass().runTransformationPass(c, "-merge 1e-9");
+
+		// two merged modes + init, with two transitions between them and two
+		// from init
+		Assert.assertEquals("3 modes after conversion", 3, ha.modes.size());
+		Assert.assertEquals("4 transitions after conversion", 4, ha.transitions.size());
+
+		AutomatonMode up = ha.modes.get("on_0_to_1");
+		AutomatonMode down = ha.modes.get("on_2_to_3");
+		Assert.assertNotNull(up);
+		Assert.assertNotNull(down);
+		Assert.assertEquals("t <= 20", up.invariant.toDefaultString());
+		Assert.assertEquals("t >= 20", down.invariant.toDefaultString());
+
+		String msg = AutomatonUtil.areExpressionsEqual(FormulaParser.parseValue("5 - 0.1 * t"),
+				down.flowDynamics.get("y").asExpression());
+
+		if (msg != null)
+			Assert.fail(msg);
+	}
+
+	/**
+	 * Test merging 2-d lut cells, where a merged mode has several neighbors
+	 */
+	@Test
+	public void testLutMergeCells2d()
+	{
+		// the rows for a = 0 and a = 1 are constant in b, so the cells with a in
+		// [0, 1] merge, but the row for a = 2 isn't linear in b
+		String lutStr = "lut([a, b], [0, 0, 0 ; 1, 1, 1 ; 0, 1, 5], [0, 1, 2], [0, 1, 2])";
+		String[][] dynamics = { { "a", "1", "0" }, { "b", "1", "0" }, { "y", lutStr, "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		new ConvertLutFlowsPass().runTransformationPass(c, "-merge 1e-9");
+
+		String merged = "on_0_0_to_0_1";
+		Assert.assertEquals("4 modes after conversion", 4, ha.modes.size());
+		Assert.assertEquals("a <= 1", ha.modes.get(merged).invariant.toDefaultString());
+		Assert.assertEquals("a >= 1 & b <= 1", ha.modes.get("on_1_0").invariant.toDefaultString());
+		Assert.assertEquals("a >= 1 & b >= 1", ha.modes.get("on_1_1").invariant.toDefaultString());
+
+		// 3 from init, merged <-> both others, and between the two others
+		Assert.assertEquals("9 transitions after conversion", 9, ha.transitions.size());
+
+		for (String other : new String[] { "on_1_0", "on_1_1" })
+		{
+			Assert.assertNotNull(ha.findTransition(merged, other));
+			Assert.assertNotNull(ha.findTransition(other, merged));
+		}
+
+		Assert.assertNotNull(ha.findTransition("on_1_0", "on_1_1"));
+	}
+
 	@Test
 	public void testClassifyLut()
 	{
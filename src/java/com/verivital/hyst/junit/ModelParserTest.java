@@ -1239,7 +1239,39 @@ public class ModelParserTest
 		cls.setVarID(ha);
 		cls.setLinearMatrix(mode);
 		double TOL = 1e-9;
-		Assert.assertEquals(-1, Classification.linearMatrix[0][0], TOL);
+		Assert.assertEquals(-1, Classification.linearMatrix.get(0, 0), TOL);
+	}
+
+	@Test
+	public void testClassifyLinearMatrixOrder()
+	{
+		String[][] dy = { { "x", "-x - 2 * y -0.2 * u" }, { "y", "4 * x - 3 * y + 2 * u" },
+				{ "u", "1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dy);
+		BaseComponent ha = ((BaseComponent) c.root);
+		AutomatonMode mode = ha.modes.values().iterator().next();
+
+		Classification cls = new Classification();
+		Classification.ha = ha;
+		cls.setVarID(ha);
+		cls.setLinearMatrix(mode);
+		Assert.assertSame("matrix should be shared with the cached dynamics",
+				mode.getAffineDynamics().getSparseA(), Classification.linearMatrix);
+
+		// ids in a different order than the automaton's variables
+		Classification.varID.clear();
+		Classification.varID.put("u", 0);
+		Classification.varID.put("y", 1);
+		Classification.varID.put("x", 2);
+		cls.setLinearMatrix(mode);
+
+		double TOL = 1e-9;
+		Assert.assertEquals(-0.2, Classification.linearMatrix.get(0, 0), TOL);
+		Assert.assertEquals(-2, Classification.linearMatrix.get(0, 1), TOL);
+		Assert.assertEquals(-1, Classification.linearMatrix.get(0, 2), TOL);
+		Assert.assertEquals(2, Classification.linearMatrix.get(1, 0), TOL);
+		Assert.assertEquals(4, Classification.linearMatrix.get(1, 2), TOL);
+		Assert.assertEquals(0, Classification.linearMatrix.get(2, 2), TOL);
 	}
 
 	@Test
@@ -1274,6 +1306,13 @@ public class ModelParserTest
 		String B = sp.convertInputToBMatrix(mode);
 		String resultB = "[0.5 -2.0 ;-0.2 3.0 ;]";
 		Assert.assertEquals(B, resultB);
+		// sparse A and B' should have the same entries as the strings
+		double[][] sparseA = sp.getSparseAMatrix(mode).toDense();
+		Assert.assertArrayEquals(new double[] { 1.0, 4.0 }, sparseA[0], 1e-9);
+		Assert.assertArrayEquals(new double[] { 0.5, -3.0 }, sparseA[1], 1e-9);
+		double[][] sparseBt = sp.getSparseBTransposeMatrix(mode).toDense();
+		Assert.assertArrayEquals(new double[] { 0.5, -2.0 }, sparseBt[0], 1e-9);
+		Assert.assertArrayEquals(new double[] { -0.2, 3.0 }, sparseBt[1], 1e-9);
 		// test A matrix
 		String C = sp.convertInvToMatrix(mode);
 		String resultC = "[1 2.0 ;0 1 ;]";
@@ -3,6 +3,7 @@ package com.verivital.hyst.junit;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -11,6 +12,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
@@ -28,7 +30,10 @@ import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
+import com.verivital.hyst.passes.complex.OrderReductionPass;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.RangeExtractor;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -140,4 +145,76 @@ public class PassTests
 		new SubstituteConstantsPass().runTransformationPass(config, null);
 		new SimplifyExpressionsPass().runTransformationPass(config, null);
 	}
+
+	/**
+	 * Krylov order reduction of a model where w is never excited, so the Krylov
+	 * subspace is exactly {x, y}
+	 */
+	@Test
+	public void testOrderReductionKrylovExact()
+	{
+		String[][] dynamics = { { "x", "-x + 1", "0" }, { "y", "x - y", "0" }, { "w", "-2 * w", "0" },
+				{ "t", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode am = ha.modes.get("on");
+		am.invariant = FormulaParser.parseInvariant("y <= 10 & t <= 5");
+
+		new OrderReductionPass().runTransformationPass(c, "-reducedOrder 2 -method krylov");
+
+		Assert.assertEquals("[z1, z2, t]", ha.variables.toString());
+		Assert.assertEquals("-1 * z1 + 1", am.flowDynamics.get("z1").toDefaultString());
+		Assert.assertEquals("1 * z1 + -1 * z2", am.flowDynamics.get("z2").toDefaultString());
+		Assert.assertEquals("1", am.flowDynamics.get("t").toDefaultString());
+		Assert.assertEquals("1 * z2 <= 10 & t <= 5", am.invariant.toDefaultString());
+	}
+
+	/**
+	 * The initial box of a Krylov-reduced model should contain the projection
+	 * of the whole original box, not just its center
+	 */
+	@Test
+	public void testOrderReductionKrylovInitBox()
+	{
+		String[][] dynamics = { { "x", "-x + 1" }, { "y", "x - y - 1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		c.init.put("on", FormulaParser.parseInitialForbidden("0 <= x <= 1 & 0 <= y <= 2"));
+
+		new OrderReductionPass().runTransformationPass(c, "-reducedOrder 1 -method krylov");
+
+		// the basis is the affine term (1, -1) / sqrt(2), so z1 = (x - y) / sqrt(2)
+		TreeMap<String, Interval> ranges = RangeExtractor
+				.getVariableRanges(c.init.values().iterator().next(), "initial states");
+		Interval z1 = ranges.get("z1");
+		double TOL = 1e-9;
+
+		Assert.assertEquals(-2 / Math.sqrt(2), z1.min, TOL);
+		Assert.assertEquals(1 / Math.sqrt(2), z1.max, TOL);
+	}
+
+	/**
+	 * Krylov order reduction of the 48-dimensional building model
+	 */
+	@Test
+	public void testOrderReductionKrylovBuilding()
+	{
+		String path = UNIT_BASEDIR + "order_reduction/";
+		SpaceExDocument doc = SpaceExImporter.importModels(path + "building_full_order.cfg",
+				path + "building_full_order.xml");
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+		Configuration c = ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+
+		new OrderReductionPass().runTransformationPass(c, "-reducedOrder 5 -method krylov");
+
+		BaseComponent ha = (BaseComponent) c.root;
+		AutomatonMode am = ha.modes.values().iterator().next();
+
+		Assert.assertEquals(5 + 2, ha.variables.size());
+		Assert.assertTrue(ha.variables.containsAll(Arrays.asList("z1", "z5", "y", "t")));
+		Assert.assertNotNull("reduced dynamics should be affine", am.getAffineDynamics());
+		Assert.assertFalse("states should be removed from the invariant",
+				am.invariant.toDefaultString().contains("x25"));
+
+		c.validate();
+	}
 }
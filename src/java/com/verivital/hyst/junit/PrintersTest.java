@@ -1,9 +1,14 @@
 package com.verivital.hyst.junit;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,6 +36,7 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
 import com.verivital.hyst.printers.DReachPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.printers.SimulationPrinter;
 import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.printers.hycreate2.HyCreate2Printer;
@@ -410,6 +416,37 @@ public class PrintersTest
 				out.contains("Math.pow($t, 2)"));
 	}
 
+	/**
+	 * Output through a small buffer to a file should match string output
+	 */
+	@Test
+	public void testBufferedFileOutput() throws IOException
+	{
+		String[][] dynamics = { { "x", "-x + t" }, { "t", "1" } };
+
+		ToolPrinter printer = new PySimPrinter();
+		printer.setOutputString();
+		printer.print(AutomatonUtil.makeDebugConfiguration(dynamics), "", "fakeinput.xml");
+		String expected = printer.outputString.toString();
+
+		File f = File.createTempFile("hyst_output", ".py");
+		f.deleteOnExit();
+
+		printer = new PySimPrinter();
+		printer.setOutputFile(f.getAbsolutePath());
+		printer.setOutputBufferSize(16);
+		printer.print(AutomatonUtil.makeDebugConfiguration(dynamics), "", "fakeinput.xml");
+
+		String out = new String(Files.readAllBytes(f.toPath()))
+				.replace(System.getProperty("line.separator"), "\n");
+
+		// stream output has an extra newline after the comment header
+		String body = expected.substring(expected.indexOf("import hybridpy"));
+
+		Assert.assertTrue("some output exists", body.length() > 10);
+		Assert.assertEquals(body, out.substring(out.indexOf("import hybridpy")));
+	}
+
 	@Test
 	public void testDisjunctionSpaceExPrint()
 	{
@@ -484,6 +521,44 @@ public class PrintersTest
 		Assert.assertTrue("some output exists", out.length() > 10);
 	}
 
+	/**
+	 * Test monte carlo falsification with the simulation printer
+	 */
+	@Test
+	public void testSimulationPrinter()
+	{
+		Configuration c = AutomatonUtil
+				.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "0" } });
+		c.init.put("on", FormulaParser.parseInitialForbidden("x >= 0 & x <= 1 & y == 0"));
+		c.forbidden.put("on", FormulaParser.parseInitialForbidden("x >= 1.5"));
+
+		ToolPrinter printer = new SimulationPrinter();
+		printer.setOutputString();
+		printer.print(c, "-time 1 -samples 100 -all", "model.xml");
+		String out = printer.outputString.toString();
+
+		// samples with x >= 0.5 reach x = 1.5 within the time bound
+		Assert.assertTrue("falsified", out.contains("\"falsified\": true"));
+		Assert.assertTrue("all samples simulated", out.contains("\"simulated\": 100"));
+
+		Matcher m = Pattern.compile("\"violations\": (\\d+)").matcher(out);
+		Assert.assertTrue(m.find());
+		int violations = Integer.parseInt(m.group(1));
+		Assert.assertTrue("about half are violations", violations > 30 && violations < 70);
+
+		// the violation is localized to the forbidden boundary
+		m = Pattern.compile("\"state\": \\[([^,]+),").matcher(out);
+		Assert.assertTrue(m.find());
+		Assert.assertEquals(1.5, Double.parseDouble(m.group(1)), 1e-8);
+
+		c.forbidden.put("on", FormulaParser.parseInitialForbidden("x >= 5"));
+		printer.print(c, "-time 1 -samples 100 -sampling sobol", "model.xml");
+		out = printer.outputString.toString();
+
+		Assert.assertTrue("not falsified", out.contains("\"falsified\": false"));
+		Assert.assertTrue("modes visited", out.contains("\"modes_visited\": [\"on\"]"));
+	}
+
 	@Test
 	public void testPrintHybridized()
 	{
@@ -23,11 +23,13 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.pi.PseudoInvariantAutoPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantInitPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantSimulatePass;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.CompiledExpression;
 import com.verivital.hyst.util.AutomatonUtil;
 
 @RunWith(Parameterized.class)
@@ -160,6 +162,51 @@ public class PseudoInvariantTest
 		Assert.assertTrue("init(on) contains x >= 5", e.toDefaultString().contains("1 * x >= 5"));
 	}
 
+	/**
+	 * Test pseudo-invariant pass with several hyperplanes in one mode, given
+	 * out of order. They should be sorted along the trajectory and split into
+	 * a chain of modes.
+	 */
+	@Test
+	public void testPseudoInvariantChain()
+	{
+		String[][] dynamics = { { "x", "1", "0" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		ArrayList<String> modes = new ArrayList<String>();
+		ArrayList<HyperPoint> points = new ArrayList<HyperPoint>();
+		ArrayList<HyperPoint> dirs = new ArrayList<HyperPoint>();
+
+		for (double x : new double[] { 5, 2, 7 })
+		{
+			modes.add("on");
+			points.add(new HyperPoint(x));
+			dirs.add(new HyperPoint(1.0));
+		}
+
+		String params = PseudoInvariantPass.makeParamString(modes, points, dirs, false);
+		new PseudoInvariantPass().runTransformationPass(c, params);
+
+		Assert.assertEquals("four modes after pass", 4, ha.modes.size());
+		Assert.assertEquals("1 * x <= 2", ha.modes.get("on_2").invariant.toDefaultString());
+		Assert.assertEquals("1 * x <= 5", ha.modes.get("on_3").invariant.toDefaultString());
+		Assert.assertEquals("1 * x <= 7", ha.modes.get("on_4").invariant.toDefaultString());
+		Assert.assertEquals(Constant.TRUE, ha.modes.get("on").invariant);
+
+		// each mode can jump to every later one in the chain
+		Assert.assertEquals("six transitions after pass", 6, ha.transitions.size());
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			if (at.from.name.equals("on_2") && at.to.name.equals("on_4"))
+				Assert.assertEquals("1 * x >= 2 & 1 * x >= 5", at.guard.toDefaultString());
+		}
+
+		Assert.assertEquals("x = 0", c.init.get("on_2").toDefaultString());
+		Assert.assertTrue(c.init.get("on").toDefaultString().contains("1 * x >= 7"));
+	}
+
 	/**
 	 * Test pseudo-invariant simulate pass (which in turn uses pseudo-invariant
 	 * pass), with a single time
@@ -308,4 +355,43 @@ public class PseudoInvariantTest
 
 		// System.out.println(fp.outputString);
 	}
+
+	/**
+	 * Test automatic pseudo-invariant placement. The width of y grows at rate 1
+	 * - (x - 1)^2, where x is a clock, so the growth peaks at time 1.
+	 */
+	@Test
+	public void testPseudoInvariantAutoPass()
+	{
+		String[][] dynamics = { { "x", "1" }, { "y", "y * (1 - (x - 1) * (x - 1))" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		c.init.put("on", FormulaParser.parseInitialForbidden("x = 0 & 1 <= y & y <= 2"));
+		BaseComponent ha = (BaseComponent) c.root;
+
+		String params = PseudoInvariantAutoPass.makeParamString(2.0, 40, 2);
+		new PseudoInvariantAutoPass().runTransformationPass(c, params);
+
+		// there is a single peak, so a single mode is inserted
+		Assert.assertEquals("two modes after pass", 2, ha.modes.size());
+
+		AutomatonMode pi = ha.modes.get("on_2");
+		Assert.assertNotNull(pi);
+
+		// the center trajectory is y = 1.5 * exp(t - (t - 1)^3 / 3 - 1 / 3)
+		CompiledExpression inv = CompiledExpression.compile(pi.invariant, ha.variables);
+		double t = 0.9;
+		double[] before = { t, 1.5 * Math.exp(t - Math.pow(t - 1, 3) / 3 - 1.0 / 3) };
+		t = 1.1;
+		double[] after = { t, 1.5 * Math.exp(t - Math.pow(t - 1, 3) / 3 - 1.0 / 3) };
+
+		Assert.assertTrue("pseudo-invariant holds before the peak", inv.isTrue(before));
+		Assert.assertFalse("pseudo-invariant is false after the peak", inv.isTrue(after));
+
+		// translation doesn't grow the box, so nothing is placed
+		c = AutomatonUtil.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "2" } });
+		c.init.put("on", FormulaParser.parseInitialForbidden("0 <= x & x <= 1 & y = 0"));
+		new PseudoInvariantAutoPass().runTransformationPass(c, params);
+
+		Assert.assertEquals("one mode after pass", 1, ((BaseComponent) c.root).modes.size());
+	}
 }
@@ -272,6 +272,25 @@ public class PythonTests
 		Assert.assertEquals("python simplification incorrect", str, result.toDefaultString());
 	}
 
+	@Test
+	public void testSimplifyChopSkipsUnsupported()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		Expression lut = FormulaParser.parseValue("lut([t], [1, 2, 3], [0, 1, 2])");
+		List<Expression> exps = Arrays.asList(FormulaParser.parseValue("x + x + 1e-10 * y"),
+				lut, FormulaParser.parseValue("1e-10"));
+
+		List<Expression> result = PythonUtil.pythonSimplifyExpressionsChop(exps, 1e-8);
+
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals(null, AutomatonUtil.areExpressionsEqual("2 * x", result.get(0)));
+		Assert.assertEquals("lut should not be sent to python", lut.toDefaultString(),
+				result.get(1).toDefaultString());
+		Assert.assertEquals("0", result.get(2).toDefaultString());
+	}
+
 	@Test
 	public void testBoundedIntervalVersusKodiak()
 	{
@@ -309,4 +328,31 @@ public class PythonTests
 			Assert.assertEquals("Result for optimiziation " + i + " wasn't equal", kod, bb);
 		}
 	}
+
+	@Test
+	public void testDefineModelOnce()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridge pb = PythonBridge.getInstance();
+		pb.send("_define_count = 0");
+
+		// the comment makes the source unique, so it isn't defined by an earlier run
+		String source = "# model " + System.nanoTime() + "\n"
+				+ "def make_model():\n    global _define_count\n    _define_count += 1\n"
+				+ "    return [1, 2, 3]\n";
+
+		String handle = pb.defineModel(source, "make_model()");
+		Assert.assertEquals("same model gets the same handle", handle,
+				pb.defineModel(source, "make_model()"));
+
+		Assert.assertEquals("model was defined once", "1", pb.send("print _define_count"));
+		Assert.assertEquals("handle refers to the model", "3", pb.send("print len(" + handle + ")"));
+
+		String other = pb.defineModel(source.replace("3]", "3, 4]"), "make_model()");
+		Assert.assertNotEquals("changed model gets a new handle", handle, other);
+		Assert.assertEquals("changed model was defined", "2", pb.send("print _define_count"));
+		Assert.assertEquals("4", pb.send("print len(" + other + ")"));
+	}
 }
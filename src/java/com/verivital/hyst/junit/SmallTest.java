@@ -1,16 +1,28 @@
 package com.verivital.hyst.junit;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.verivital.hyst.geometry.BoxSampler;
+import com.verivital.hyst.geometry.BoxSet;
+import com.verivital.hyst.geometry.CornerIterator;
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
+import com.verivital.hyst.geometry.HyperRectangleIndex;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.IntervalEvaluator;
+import com.verivital.hyst.geometry.PointSet;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -19,22 +31,32 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AffineDynamics;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.ModeTraversal;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass.IntervalTerm;
+import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
 import com.verivital.hyst.printers.DReachPrinter.DReachExpressionPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.simulation.CompiledExpression;
+import com.verivital.hyst.simulation.CompiledJacobian;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.Polynomial;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
 import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.SparseMatrix;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Bind;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.ParamMap;
@@ -576,6 +598,80 @@ public class SmallTest
 		}
 	}
 
+	/**
+	 * Test interval evaluation of trigonometric functions
+	 */
+	@Test
+	public void testIntervalTrig()
+	{
+		double TOL = 1e-12;
+
+		Assert.assertEquals(new Interval(-1, 1), Interval.cos(new Interval(-1, 7)));
+		Assert.assertEquals(new Interval(Math.cos(2), 1), Interval.cos(new Interval(-1, 2)));
+		Assert.assertEquals(new Interval(-1, Math.cos(2)), Interval.cos(new Interval(2, 4)));
+		Assert.assertEquals(new Interval(Math.sin(0.1), 1), Interval.sin(new Interval(0.1, 2)));
+		Assert.assertEquals(new Interval(Math.tan(-1), Math.tan(1)),
+				Interval.tan(new Interval(-1, 1)));
+
+		try
+		{
+			Interval.tan(new Interval(1, 2));
+			Assert.fail("tan over an asymptote should fail");
+		}
+		catch (AutomatonExportException e)
+		{
+		}
+
+		HashMap<String, Interval> ranges = new HashMap<String, Interval>();
+		ranges.put("x", new Interval(0, 0.5));
+
+		Interval i = Interval.intervalEvaluate(FormulaParser.parseValue("sin(x) + sqrt(x)"),
+				ranges);
+		Assert.assertEquals(0, i.min, TOL);
+		Assert.assertEquals(Math.sin(0.5) + Math.sqrt(0.5), i.max, TOL);
+	}
+
+	/**
+	 * Test the compiled interval evaluator, including common subexpression
+	 * sharing and monotonicity-based tightening
+	 */
+	@Test
+	public void testIntervalEvaluator()
+	{
+		double TOL = 1e-12;
+		List<String> vars = Arrays.asList("x", "y");
+		List<Expression> exps = new ArrayList<Expression>();
+		exps.add(FormulaParser.parseValue("x * y + sin(x * y)"));
+		exps.add(FormulaParser.parseValue("y * x"));
+
+		IntervalEvaluator ie = new IntervalEvaluator(exps, vars, false);
+
+		// x, y, x * y, sin(x * y), and the sum
+		Assert.assertEquals(5, ie.getNumNodes());
+
+		Interval[] rv = ie.evaluate(new Interval[] { new Interval(1, 2), new Interval(-1, 0.5) });
+		Assert.assertEquals(new Interval(-2, 1), rv[1]);
+		Assert.assertEquals(-2 - 1, rv[0].min, TOL); // sin(-pi/2) == -1
+		Assert.assertEquals(1 + Math.sin(1), rv[0].max, TOL);
+
+		// x - x^2 is increasing on [0, 0.4], so tightening gives the exact range
+		exps.clear();
+		exps.add(FormulaParser.parseValue("x - x^2"));
+		Interval[] box = { new Interval(0, 0.4), new Interval(0) };
+
+		Interval naive = new IntervalEvaluator(exps, vars, false).evaluate(box)[0];
+		Interval tight = new IntervalEvaluator(exps, vars, true).evaluate(box)[0];
+
+		Assert.assertEquals(new Interval(-0.16, 0.4), naive);
+		Assert.assertEquals(new Interval(0, 0.24), tight);
+
+		// sqrt's derivative is undefined at 0, so no tightening (but no error)
+		exps.clear();
+		exps.add(FormulaParser.parseValue("sqrt(x) - x"));
+		rv = new IntervalEvaluator(exps, vars, true).evaluate(box);
+		Assert.assertEquals(new Interval(-0.4, Math.sqrt(0.4)), rv[0]);
+	}
+
 	@Test
 	public void testEqualsInterval()
 	{
@@ -772,6 +868,456 @@ public class SmallTest
 			Assert.fail("expression was not detected as linear: " + exp2);
 	}
 
+	/**
+	 * Test the cached affine representation of a mode's dynamics
+	 */
+	@Test
+	public void testAffineDynamicsCache()
+	{
+		String[][] dynamics = { { "x", "2 * x - y / 4 + 1" }, { "y", "-(x - 3 * y)" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+		AutomatonMode am = ((BaseComponent) c.root).modes.get("on");
+
+		AffineDynamics ad = am.getAffineDynamics();
+		double TOL = 1e-9;
+
+		Assert.assertNotNull("dynamics should be affine", ad);
+		Assert.assertEquals(2.0, ad.getCoefficient(0, "x"), TOL);
+		Assert.assertEquals(-0.25, ad.getCoefficient(0, "y"), TOL);
+		Assert.assertEquals(1.0, ad.getB()[0], TOL);
+		Assert.assertEquals(-1.0, ad.getCoefficient(1, "x"), TOL);
+		Assert.assertEquals(3.0, ad.getCoefficient(1, "y"), TOL);
+		Assert.assertSame("result should be cached", ad, am.getAffineDynamics());
+
+		// replacing a flow invalidates the cache
+		am.flowDynamics.put("y", new ExpressionInterval("x * y"));
+		Assert.assertNull("dynamics should be nonlinear", am.getAffineDynamics());
+
+		// changing an interval input invalidates the cache
+		am.flowDynamics.put("y", new ExpressionInterval("x", new Interval(1, 2)));
+		ad = am.getAffineDynamics();
+		am.flowDynamics.get("y").getInterval().max = 3;
+		Assert.assertNotSame(ad, am.getAffineDynamics());
+		Assert.assertEquals(3, am.getAffineDynamics().getInput(1).max, TOL);
+
+		// inputs are returned as copies, so the snapshot can't be modified
+		ad = am.getAffineDynamics();
+		ad.getInput(1).max = 10;
+		Assert.assertEquals(3, ad.getInput(1).max, TOL);
+		Assert.assertSame(ad, am.getAffineDynamics());
+
+		// changing the automaton's variables invalidates the cache
+		((BaseComponent) c.root).variables.add("z");
+		Assert.assertNotSame(ad, am.getAffineDynamics());
+	}
+
+	/**
+	 * Test parallel mode traversal, which should give the same result (and
+	 * ordering) as sequential processing
+	 */
+	@Test
+	public void testModeTraversal()
+	{
+		final int NUM_MODES = 2 * ModeTraversal.PARALLEL_THRESHOLD;
+		BaseComponent ha = new BaseComponent();
+		ha.variables.add("x");
+
+		for (int i = 0; i < NUM_MODES; ++i)
+		{
+			AutomatonMode am = ha.createMode("mode" + i);
+			am.flowDynamics.put("x", new ExpressionInterval(i + " * 2"));
+			am.invariant = FormulaParser.parseInvariant("x <= 1 + " + i);
+		}
+
+		for (int i = 1; i < NUM_MODES; ++i)
+		{
+			AutomatonTransition at = ha.createTransition(ha.modes.get("mode" + (i - 1)),
+					ha.modes.get("mode" + i));
+			at.guard = FormulaParser.parseGuard("x >= 1 + 1");
+		}
+
+		Configuration c = new Configuration(ha);
+		c.init.put("mode0", FormulaParser.parseInitialForbidden("x == 0"));
+		c.settings.plotVariableNames[0] = c.settings.plotVariableNames[1] = "x";
+		c.validate();
+
+		new SimplifyExpressionsPass().runTransformationPass(c, null);
+
+		for (int i = 0; i < NUM_MODES; ++i)
+		{
+			AutomatonMode am = ha.modes.get("mode" + i);
+			Assert.assertEquals(i * 2, ((Constant) am.flowDynamics.get("x").getExpression()).getVal(),
+					1e-9);
+			Assert.assertEquals("x <= " + (i + 1), am.invariant.toDefaultString());
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+			Assert.assertEquals("x >= 2", at.guard.toDefaultString());
+
+		LinkedHashMap<String, Integer> lengths = ModeTraversal.mapModes(ha,
+				new ModeTraversal.ModeFunction<Integer>()
+				{
+					@Override
+					public Integer apply(AutomatonMode am)
+					{
+						return am.name.length();
+					}
+				});
+
+		Assert.assertEquals(new ArrayList<String>(ha.modes.keySet()),
+				new ArrayList<String>(lengths.keySet()));
+		Assert.assertEquals(5, (int) lengths.get("mode0"));
+		Assert.assertEquals(7, (int) lengths.get("mode100"));
+	}
+
+	/**
+	 * The spatial index should return the same boxes, in the same order, as a
+	 * linear search
+	 */
+	@Test
+	public void testHyperRectangleIndex()
+	{
+		Random r = new Random(0);
+		ArrayList<HyperRectangle> boxes = new ArrayList<HyperRectangle>();
+		ArrayList<Integer> values = new ArrayList<Integer>();
+
+		for (int i = 0; i < 500; ++i)
+		{
+			double x = r.nextInt(50), y = r.nextInt(50);
+			boxes.add(new HyperRectangle(new Interval(x, x + 1 + r.nextInt(3)),
+					new Interval(y, y + 1)));
+			values.add(i);
+		}
+
+		// an unbounded box, like an invariant with no constraint on y
+		boxes.add(new HyperRectangle(new Interval(10, 11),
+				new Interval(-Double.MAX_VALUE, Double.MAX_VALUE)));
+		values.add(500);
+
+		HyperRectangleIndex<Integer> index = new HyperRectangleIndex<Integer>(boxes, values);
+
+		for (int q = 0; q < 100; ++q)
+		{
+			double x = r.nextInt(55), y = r.nextInt(55);
+			HyperRectangle query = new HyperRectangle(new Interval(x, x + 2),
+					new Interval(y, y + 0.5));
+			ArrayList<Integer> expected = new ArrayList<Integer>();
+
+			for (int i = 0; i < boxes.size(); ++i)
+			{
+				if (HyperRectangle.intersection(boxes.get(i), query) != null)
+					expected.add(i);
+			}
+
+			Assert.assertEquals(expected, index.query(query));
+		}
+
+		Assert.assertTrue(new HyperRectangleIndex<Integer>(new ArrayList<HyperRectangle>(),
+				new ArrayList<Integer>()).query(new HyperRectangle(new Interval(0, 1))).isEmpty());
+	}
+
+	/**
+	 * Packed box and point sets should match the HyperRectangle / HyperPoint
+	 * operations they replace
+	 */
+	@Test
+	public void testBoxSetPointSet()
+	{
+		ArrayList<HyperRectangle> boxes = new ArrayList<HyperRectangle>();
+
+		// more boxes than the initial capacity, so the array grows
+		for (int i = 0; i < 20; ++i)
+			boxes.add(new HyperRectangle(new Interval(i, i + 1), new Interval(-i, 0)));
+
+		BoxSet bs = new BoxSet(boxes);
+		Assert.assertEquals(20, bs.size());
+		Assert.assertEquals(boxes, bs.toList());
+		Assert.assertEquals(new HyperRectangle(new Interval(0, 20), new Interval(-19, 0)),
+				bs.getBoundingBox());
+
+		BoxSet bloated = bs.bloatAdditive(0.5);
+		Assert.assertEquals(HyperRectangle.bloatAdditive(boxes.get(7), 0.5), bloated.get(7));
+		Assert.assertEquals(boxes.get(7), bs.get(7)); // original is unchanged
+
+		HyperRectangle query = new HyperRectangle(new Interval(3, 4.5), new Interval(-3.5, -3));
+		Assert.assertEquals(Arrays.asList(3, 4), bs.findIntersecting(query));
+		Assert.assertEquals(HyperRectangle.intersection(boxes.get(4), query),
+				bs.intersection(4, query));
+		Assert.assertNull(bs.intersection(2, query));
+
+		Assert.assertEquals(5, bs.findContaining(new double[] { 5.5, -1 }));
+		Assert.assertEquals(-1, bs.findContaining(new double[] { 5.5, 1 }));
+
+		ArrayList<HyperPoint> points = new ArrayList<HyperPoint>();
+		points.add(new HyperPoint(1, 2));
+		points.add(new HyperPoint(-1, 5));
+		points.add(new HyperPoint(0, 3));
+
+		PointSet ps = new PointSet(points);
+		Assert.assertEquals(points, ps.toList());
+		Assert.assertEquals(new HyperRectangle(new Interval(-1, 1), new Interval(2, 5)),
+				ps.getBoundingBox());
+		Assert.assertTrue(ps.isContainedIn(ps.getBoundingBox()));
+		Assert.assertFalse(ps.isContainedIn(new HyperRectangle(new Interval(-1, 1),
+				new Interval(2, 4))));
+	}
+
+	/**
+	 * Corners should be produced once each, in Gray-code order, and splitting
+	 * or sampling should cover distinct corners
+	 */
+	@Test
+	public void testCornerIterator()
+	{
+		HyperRectangle box = new HyperRectangle(new Interval(0, 1), new Interval(2, 3),
+				new Interval(4, 5));
+		HashSet<HyperPoint> seen = new HashSet<HyperPoint>();
+		HyperPoint prev = null;
+
+		for (CornerIterator it = new CornerIterator(box, false); it.hasNext();)
+		{
+			HyperPoint p = it.next();
+			boolean[] isMin = it.isMin();
+
+			for (int d = 0; d < 3; ++d)
+				Assert.assertEquals(isMin[d] ? box.dims[d].min : box.dims[d].max, p.dims[d], 0);
+
+			if (prev != null)
+			{
+				int numDiffer = 0;
+
+				for (int d = 0; d < 3; ++d)
+				{
+					if (prev.dims[d] != p.dims[d])
+						++numDiffer;
+				}
+
+				Assert.assertEquals("consecutive corners differ in one dimension", 1, numDiffer);
+			}
+
+			prev = p.copy();
+			Assert.assertTrue("corner was repeated: " + p, seen.add(prev));
+		}
+
+		Assert.assertEquals(8, seen.size());
+
+		// unique corners skip flat dimensions
+		box.dims[1] = new Interval(2.5);
+		seen.clear();
+
+		for (CornerIterator it = new CornerIterator(box, true); it.hasNext();)
+		{
+			HyperPoint p = it.next();
+			Assert.assertEquals(2.5, p.dims[1], 0);
+			seen.add(p.copy());
+		}
+
+		Assert.assertEquals(4, seen.size());
+
+		// split iterators cover every corner once (also after iteration starts)
+		HyperRectangle big = new HyperRectangle(10);
+
+		for (int d = 0; d < 10; ++d)
+			big.dims[d] = new Interval(-d - 1, d + 1);
+
+		CornerIterator second = new CornerIterator(big, false);
+		second.next();
+		CornerIterator first = second.trySplit();
+		CornerIterator third = second.trySplit();
+		seen.clear();
+		seen.add(new CornerIterator(big, false).next().copy());
+
+		for (CornerIterator it : new CornerIterator[] { first, second, third })
+		{
+			while (it.hasNext())
+				Assert.assertTrue(seen.add(it.next().copy()));
+		}
+
+		Assert.assertEquals(1024, seen.size());
+
+		// too many dimensions to enumerate, but sampling works
+		HyperRectangle huge = new HyperRectangle(70);
+
+		for (int d = 0; d < 70; ++d)
+			huge.dims[d] = new Interval(0, 1);
+
+		Assert.assertEquals(-1, CornerIterator.countCorners(huge, false));
+
+		try
+		{
+			new CornerIterator(huge, false);
+			Assert.fail("expected exception for too many corners");
+		}
+		catch (RuntimeException e)
+		{
+		}
+
+		seen.clear();
+
+		for (CornerIterator it = new CornerIterator(huge, false, 100, 0); it.hasNext();)
+			seen.add(it.next().copy());
+
+		Assert.assertEquals(100, seen.size());
+	}
+
+	/**
+	 * Sobol, Halton and latin hypercube samples should be stratified
+	 */
+	@Test
+	public void testBoxSampler()
+	{
+		double TOL = 1e-12;
+		HyperRectangle box = new HyperRectangle(6);
+
+		for (int d = 0; d < 6; ++d)
+			box.dims[d] = new Interval(0, 1);
+
+		box.dims[2] = new Interval(7); // flat dimension
+
+		PointSet sobol = BoxSampler.sobol(box, 15);
+		Assert.assertEquals(0.5, sobol.get(0, 0), TOL);
+		Assert.assertEquals(0.5, sobol.get(0, 1), TOL);
+		Assert.assertEquals(0.75, sobol.get(1, 0), TOL);
+		Assert.assertEquals(0.25, sobol.get(1, 1), TOL);
+
+		// the first 16 points (including the skipped origin) have one point in
+		// each 1/16 interval of every dimension, and in each 1/4 x 1/4 square of
+		// the first two dimensions
+		for (int d = 0; d < 6; ++d)
+		{
+			boolean[] found = new boolean[16];
+			found[0] = true; // origin
+
+			for (int i = 0; i < sobol.size(); ++i)
+			{
+				if (d == 2)
+					Assert.assertEquals(7, sobol.get(i, d), TOL);
+				else
+				{
+					int stratum = (int) (sobol.get(i, d) * 16);
+					Assert.assertFalse("dim " + d + " stratum repeated", found[stratum]);
+					found[stratum] = true;
+				}
+			}
+		}
+
+		boolean[][] squares = new boolean[4][4];
+		squares[0][0] = true;
+
+		for (int i = 0; i < sobol.size(); ++i)
+		{
+			int x = (int) (sobol.get(i, 0) * 4), y = (int) (sobol.get(i, 1) * 4);
+			Assert.assertFalse(squares[x][y]);
+			squares[x][y] = true;
+		}
+
+		PointSet halton = BoxSampler.halton(box, 5);
+		Assert.assertEquals(0.5, halton.get(0, 0), TOL);
+		Assert.assertEquals(1.0 / 3, halton.get(0, 1), TOL);
+		Assert.assertEquals(0.2, halton.get(0, 3), TOL); // base 5, flat dim skipped
+		Assert.assertEquals(0.25, halton.get(1, 0), TOL);
+
+		int count = 10;
+		PointSet lhs = BoxSampler.latinHypercube(box, count, new Random(0));
+		Assert.assertEquals(count, lhs.size());
+
+		for (int d = 0; d < 6; ++d)
+		{
+			if (d == 2)
+				continue;
+
+			boolean[] found = new boolean[count];
+
+			for (int i = 0; i < count; ++i)
+				found[(int) (lhs.get(i, d) * count)] = true;
+
+			for (int i = 0; i < count; ++i)
+				Assert.assertTrue("lhs stratum " + i + " of dim " + d + " was empty", found[i]);
+		}
+	}
+
+	/**
+	 * Test compiled expression evaluation
+	 */
+	@Test
+	public void testCompiledExpression()
+	{
+		List<String> vars = Arrays.asList("x", "y");
+		double[] state = { 2, -3 };
+
+		CompiledExpression e = CompiledExpression
+				.compile(FormulaParser.parseValue("x^2 * y - sin(0) + 4 / x"), vars);
+		Assert.assertEquals(-10, e.evaluate(state), 1e-12);
+
+		CompiledExpression cond = CompiledExpression
+				.compile(FormulaParser.parseGuard("x >= 2 & (y > 0 | x != 3)"), vars);
+		Assert.assertTrue(cond.isTrue(state));
+
+		state[0] = 3;
+		Assert.assertFalse(cond.isTrue(state));
+
+		try
+		{
+			CompiledExpression.compile(FormulaParser.parseValue("x + z"), vars);
+			Assert.fail("compiling an unknown variable should fail");
+		}
+		catch (AutomatonExportException ex)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test polynomial expansion and chopping
+	 */
+	@Test
+	public void testPolynomial()
+	{
+		Polynomial p = Polynomial.fromExpression(FormulaParser.parseValue("(x + 1)^2 - x * x"));
+		Assert.assertEquals("1 + 2 * x", p.toString());
+
+		p = Polynomial.fromExpression(FormulaParser.parseValue("(x - y) * (x + y) / 2"));
+		Assert.assertEquals("0.5 * x ^ 2 - 0.5 * y ^ 2", p.toString());
+
+		p = Polynomial.fromExpression(FormulaParser.parseValue("1e-10 * x + 3 * -y"));
+		Assert.assertEquals("-3 * y", p.chop(1e-8).toString());
+		Assert.assertEquals("0", p.chop(10).toString());
+
+		Assert.assertNull(Polynomial.fromExpression(FormulaParser.parseValue("x / y")));
+		Assert.assertNull(Polynomial.fromExpression(FormulaParser.parseValue("sin(x)")));
+		Assert.assertNull(Polynomial.fromExpression(FormulaParser.parseValue("x ^ 0.5")));
+	}
+
+	/**
+	 * Test the compressed sparse row matrix operations
+	 */
+	@Test
+	public void testSparseMatrix()
+	{
+		double[][] dense = { { 1, 0, 2 }, { 0, 0, 0 }, { 0, 3, 0 } };
+		SparseMatrix m = SparseMatrix.fromDense(dense, 3);
+		double TOL = 1e-9;
+
+		Assert.assertEquals(3, m.getNumNonzeros());
+		Assert.assertEquals(2, m.get(0, 2), TOL);
+		Assert.assertEquals(0, m.get(1, 1), TOL);
+
+		double[] out = new double[3];
+		m.multiply(new double[] { 1, 2, 3 }, out);
+		Assert.assertArrayEquals(new double[] { 7, 0, 6 }, out, TOL);
+
+		m.multiplyTranspose(new double[] { 1, 2, 3 }, out);
+		Assert.assertArrayEquals(new double[] { 1, 9, 2 }, out, TOL);
+
+		SparseMatrix t = m.transpose();
+		Assert.assertEquals(2, t.get(2, 0), TOL);
+		Assert.assertEquals(3, t.get(1, 2), TOL);
+
+		SparseMatrix b = m.block(2, 1, 2);
+		Assert.assertEquals(1, b.getNumNonzeros());
+		Assert.assertEquals(2, b.get(0, 1), TOL);
+	}
+
 	/*
 	 * @Test public void testFlowstarLinearDetection() { String exp =
 	 * "(1.0 - x * x) * y - x";
@@ -905,6 +1451,145 @@ public class SmallTest
 		Assert.assertEquals("Entry 1, 1 is correct", 5.5, rv[1][1], TOL);
 	}
 
+	/**
+	 * Tests symbolic partial derivatives
+	 */
+	@Test
+	public void testPartialDerivative()
+	{
+		String[][] tests = { { "3 * y * x + y", "x", "3 * y" }, { "3 * y * x + y", "y", "3 * x + 1" },
+				{ "x^3 - 2 * y", "x", "3 * x^2" }, { "x^3 - 2 * y", "y", "-2" },
+				{ "sin(2 * x)", "x", "cos(2 * x) * 2" }, { "x / y", "y", "-(x / y^2)" },
+				{ "5 + z", "x", "0" } };
+
+		for (String[] test : tests)
+		{
+			Expression e = FormulaParser.parseValue(test[0]);
+			Expression der = AutomatonUtil.partialDerivativeOf(e, test[1]);
+
+			Assert.assertNull("partial derivative of " + test[0] + " wrt " + test[1],
+					AutomatonUtil.areExpressionsEqual(test[2], der));
+		}
+	}
+
+	/**
+	 * Tests the symbolic jacobian is exact at a point, even for nonlinear
+	 * dynamics where sampling has error
+	 */
+	@Test
+	public void testCompiledJacobian()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("2 * x + y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("x^3 + sin(y)")));
+
+		CompiledJacobian jac = new CompiledJacobian(dy, Arrays.asList("x", "y"));
+		double[] pt = { 1.5, 2.5 };
+		double[][] rv = jac.evaluate(pt);
+		double[] flow = jac.evaluateFlow(pt);
+
+		double TOL = 1e-12;
+		Assert.assertEquals(2.0, rv[0][0], TOL);
+		Assert.assertEquals(1.0, rv[0][1], TOL);
+		Assert.assertEquals(3 * 1.5 * 1.5, rv[1][0], TOL);
+		Assert.assertEquals(Math.cos(2.5), rv[1][1], TOL);
+		Assert.assertEquals(5.5, flow[0], TOL);
+		Assert.assertEquals(1.5 * 1.5 * 1.5 + Math.sin(2.5), flow[1], TOL);
+	}
+
+	/**
+	 * Tests the compiled secant estimate matches the sampling-based jacobian
+	 * estimation, so affineApprox keeps the same slopes as before
+	 */
+	@Test
+	public void testCompiledJacobianSecants()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("2 * x + y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("x^3 + sin(y)")));
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(1, 2));
+		bounds.put("y", new Interval(2, 3));
+
+		double[][] expected = AutomatonUtil.estimateJacobian(dy, bounds);
+		CompiledJacobian jac = new CompiledJacobian(dy, Arrays.asList("x", "y"));
+		double[][] rv = jac.estimate(new double[] { 1.5, 2.5 }, new double[] { 0.5, 0.5 });
+
+		double TOL = 1e-12;
+
+		for (int y = 0; y < 2; ++y)
+			for (int x = 0; x < 2; ++x)
+				Assert.assertEquals("entry " + y + ", " + x, expected[y][x], rv[y][x], TOL);
+
+		// the secant for x^3 differs from the derivative at the center (6.75)
+		Assert.assertEquals(7.0, rv[1][0], TOL);
+
+		// a zero-width box uses the exact derivative
+		rv = jac.estimate(new double[] { 1.5, 2.5 }, new double[] { 0, 0 });
+		Assert.assertEquals(3 * 1.5 * 1.5, rv[1][0], TOL);
+
+		List<String> vars = Arrays.asList("x", "y");
+		LinkedHashMap<String, ExpressionInterval> approx = AffineOptimize
+				.affineApprox(Arrays.asList(jac), vars, bounds, false);
+		Assert.assertNull(AutomatonUtil.areExpressionsEqual("2 * x + y",
+				approx.get("x").asExpression()));
+
+		// y' ~ 7 * (x - 1.5) + (sin(3) - sin(2)) * (y - 2.5) + 1.5^3 + sin(2.5)
+		double[] pt = { 1.2, 2.9 };
+		double slopeY = Math.sin(3) - Math.sin(2);
+		double expectedVal = 7 * (pt[0] - 1.5) + slopeY * (pt[1] - 2.5) + 1.5 * 1.5 * 1.5
+				+ Math.sin(2.5);
+		double val = AutomatonUtil.evaluateExpression(approx.get("y").asExpression(),
+				new HyperPoint(pt), vars);
+		Assert.assertEquals(expectedVal, val, 1e-9);
+
+		// the default linearization is exact at the center:
+		// y' ~ 6.75 * (x - 1.5) + cos(2.5) * (y - 2.5) + 1.5^3 + sin(2.5)
+		approx = AffineOptimize.affineApprox(dy, bounds);
+		expectedVal = 6.75 * (pt[0] - 1.5) + Math.cos(2.5) * (pt[1] - 2.5) + 1.5 * 1.5 * 1.5
+				+ Math.sin(2.5);
+		val = AutomatonUtil.evaluateExpression(approx.get("y").asExpression(),
+				new HyperPoint(pt), vars);
+		Assert.assertEquals(expectedVal, val, 1e-9);
+	}
+
+	/**
+	 * Tests flows which can't be differentiated symbolically (a variable
+	 * exponent) still linearize, using central differences
+	 */
+	@Test
+	public void testCompiledJacobianNotDifferentiable()
+	{
+		LinkedHashMap<String, ExpressionInterval> dy = new LinkedHashMap<String, ExpressionInterval>();
+		dy.put("x", new ExpressionInterval(FormulaParser.parseValue("x ^ y")));
+		dy.put("y", new ExpressionInterval(FormulaParser.parseValue("2 * x")));
+
+		CompiledJacobian jac = new CompiledJacobian(dy, Arrays.asList("x", "y"));
+		double[][] rv = jac.evaluate(new double[] { 2, 3 });
+
+		// d/dx x^y = y * x^(y-1) = 12, d/dy x^y = ln(x) * x^y = 8 ln(2)
+		Assert.assertEquals(12, rv[0][0], 1e-6);
+		Assert.assertEquals(8 * Math.log(2), rv[0][1], 1e-6);
+		Assert.assertEquals(2, rv[1][0], 0);
+		Assert.assertEquals(0, rv[1][1], 0);
+
+		// secants across x in [1, 3], y in [2, 4]
+		rv = jac.estimate(new double[] { 2, 3 }, new double[] { 1, 1 });
+		Assert.assertEquals((27 - 1) / 2.0, rv[0][0], 1e-12);
+		Assert.assertEquals((16 - 4) / 2.0, rv[0][1], 1e-12);
+
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(1, 3));
+		bounds.put("y", new Interval(2, 4));
+
+		LinkedHashMap<String, ExpressionInterval> approx = AffineOptimize.affineApprox(dy,
+				bounds);
+		double val = AutomatonUtil.evaluateExpression(approx.get("x").asExpression(),
+				new HyperPoint(2, 3), Arrays.asList("x", "y"));
+		Assert.assertEquals(8, val, 1e-9);
+	}
+
 	@Test
 	/**
 	 * Ensure a bind cannot have multiple parameters added with the same names
@@ -43,6 +43,7 @@ import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.passes.complex.OrderReductionPass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
+import com.verivital.hyst.passes.complex.pi.PseudoInvariantAutoPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantInitPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantSimulatePass;
@@ -51,6 +52,7 @@ import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.HyCompPrinter;
 import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.printers.PythonQBMCPrinter;
+import com.verivital.hyst.printers.SimulationPrinter;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.SpaceExPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -74,14 +76,16 @@ public class Hyst
 	// list of supported tool printers (add new ones here)
 	private final ToolPrinter[] printers = { new FlowstarPrinter(), new DReachPrinter(),
 			new HyCreate2Printer(), new HyCompPrinter(), new PythonQBMCPrinter(),
-			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(), };
+			new SpaceExPrinter(), new SimulinkStateflowPrinter(), new PySimPrinter(),
+			new SimulationPrinter(), };
 
 	// list of supported model transformation passes (add new ones here)
 	private final TransformationPass[] passes = { new AddIdentityResetPass(),
 			new PseudoInvariantPass(), new PseudoInvariantSimulatePass(),
-			new PseudoInvariantInitPass(), new TimeScalePass(), new SubstituteConstantsPass(),
-			new SimplifyExpressionsPass(), new SplitDisjunctionGuardsPass(),
-			new RemoveSimpleUnsatInvariantsPass(), new ShortenModeNamesPass(),
+			new PseudoInvariantInitPass(), new PseudoInvariantAutoPass(), new TimeScalePass(),
+			new SubstituteConstantsPass(), new SimplifyExpressionsPass(),
+			new SplitDisjunctionGuardsPass(), new RemoveSimpleUnsatInvariantsPass(),
+			new ShortenModeNamesPass(),
 			new ContinuizationPass(), new HybridizeMixedTriggeredPass(), new HybridizeMTRawPass(),
 			new FlattenAutomatonPass(), new OrderReductionPass(), new ConvertLutFlowsPass(), };
 
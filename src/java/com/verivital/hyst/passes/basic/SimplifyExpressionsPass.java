@@ -27,7 +27,15 @@ public class SimplifyExpressionsPass extends TransformationPass
 		@Override
 		public Expression modifyExpression(Expression e)
 		{
-			return simplifyExpression(e);
+			// simplification is done in place, so copy first in case the
+			// expression is shared between modes being simplified in parallel
+			return e == null ? null : simplifyExpression(e.copy());
+		}
+
+		@Override
+		protected boolean isThreadSafe()
+		{
+			return true;
 		}
 	};
 
@@ -81,6 +81,12 @@ public class SubstituteConstantsPass extends TransformationPass
 				{
 					return substituteConstantsIntoExpression(mapping, e);
 				}
+
+				@Override
+				protected boolean isThreadSafe()
+				{
+					return true; // the substitution copies the expression
+				}
 			});
 
 			ha.constants.clear();
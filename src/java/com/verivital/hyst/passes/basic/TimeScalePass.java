@@ -12,6 +12,7 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.ModeTraversal;
 import com.verivital.hyst.passes.TransformationPass;
 
 /**
@@ -50,8 +51,14 @@ public class TimeScalePass extends TransformationPass
 		if (scale <= 0)
 			throw new AutomatonExportException("Rescale factor must be positive: " + scale);
 
-		for (AutomatonMode am : ha.modes.values())
-			am.flowDynamics = rescaleFlow(am.flowDynamics);
+		ModeTraversal.forEachMode(ha, new ModeTraversal.ModeVisitor()
+		{
+			@Override
+			public void visit(AutomatonMode am)
+			{
+				am.flowDynamics = rescaleFlow(am.flowDynamics);
+			}
+		});
 
 		config.settings.spaceExConfig.timeHorizon /= scale;
 		config.settings.spaceExConfig.samplingTime /= scale;
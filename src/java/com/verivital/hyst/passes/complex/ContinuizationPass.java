@@ -1,14 +1,21 @@
 package com.verivital.hyst.passes.complex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
 import org.kohsuke.args4j.Option;
 
+import com.verivital.hyst.geometry.BoxSampler;
+import com.verivital.hyst.geometry.CornerIterator;
 import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.IntervalEvaluator;
+import com.verivital.hyst.geometry.PointSet;
 import com.verivital.hyst.geometry.SymbolicStatePoint;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -28,6 +35,7 @@ import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.DoubleArrayOptionHandler;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
@@ -78,6 +86,40 @@ public class ContinuizationPass extends TransformationPass
 	@Option(name = "-bloats", required = true, handler = DoubleArrayOptionHandler.class, usage = "bloating terms for each time domain", metaVar = "VAL1 VAL2 ...")
 	List<Double> bloats;
 
+	@Option(name = "-simengine", usage = "the simulation engine used to estimate the derivative ranges, "
+			+ "one of {python|java}; python simulates the center of the initial states, java "
+			+ "simulates an ensemble of initial states concurrently in the JVM", metaVar = "ENGINE")
+	String simEngine = SIM_ENGINE_PYTHON;
+
+	@Option(name = "-samples", usage = "with -simengine java, the number of sobol samples from the "
+			+ "initial box, in addition to the center, star points and corners", metaVar = "NUM")
+	int samples = 16;
+
+	@Option(name = "-step", usage = "with -simengine java, the maximum simulation step (default: "
+			+ "the shortest time domain / 100)", metaVar = "VAL")
+	double step = -1;
+
+	@Option(name = "-enclose", usage = "with -simengine java, bound the derivative over each "
+			+ "simulation step with an interval enclosure of the trajectory, rather than only at "
+			+ "the simulated points")
+	boolean enclose = false;
+
+	public static final String SIM_ENGINE_PYTHON = "python";
+	public static final String SIM_ENGINE_JAVA = "java";
+
+	// with -simengine java, at most this many corners of the initial box are
+	// simulated (a random subset, if there are more)
+	private static final int MAX_CORNERS = 64;
+
+	// enclosures start from the hull of a step's endpoints, bloated by this
+	// fraction of its width, and grow at most this many times
+	private static final double ENCLOSURE_BLOAT = 0.1;
+	private static final int MAX_ENCLOSURE_ITERATIONS = 20;
+
+	// the smallest width of a dimension of an enclosure, relative to its
+	// magnitude, so that constant dimensions can be strictly contained
+	private static final double ENCLOSURE_MIN_WIDTH = 1e-9;
+
 	public static String makeParamString(String var, String timeVar, double period,
 			boolean skipError, List<Double> times, List<Double> bloats)
 	{
@@ -638,7 +680,25 @@ public class ContinuizationPass extends TransformationPass
 			simTimes.add(new Interval(d.startTime, d.endTime));
 
 		SymbolicStatePoint start = new SymbolicStatePoint(initMode, initPt);
-		List<Interval> ranges = pythonSimulateDerivativeRange(config, varName, start, simTimes);
+		List<Interval> ranges;
+
+		if (simEngine.equals(SIM_ENGINE_JAVA))
+		{
+			double maxStep = step;
+
+			if (maxStep <= 0)
+			{
+				maxStep = Double.MAX_VALUE;
+
+				for (Interval i : simTimes)
+					maxStep = Math.min(maxStep, i.width() / 100);
+			}
+
+			ranges = javaSimulateDerivativeRange(config, varName, getEnsemble(start), simTimes,
+					maxStep, enclose);
+		}
+		else
+			ranges = pythonSimulateDerivativeRange(config, varName, start, simTimes);
 
 		if (ranges.size() != domains.size())
 			throw new AutomatonExportException(
@@ -666,6 +726,64 @@ public class ContinuizationPass extends TransformationPass
 		ConvertToStandardForm.run(config);
 	}
 
+	/**
+	 * Get the initial states simulated by the java engine: the given center,
+	 * and if the initial states are a box, its star points, corners and sobol
+	 * samples
+	 * 
+	 * @param center
+	 *            the center of the initial states
+	 * @return the initial states to simulate
+	 */
+	private ArrayList<SymbolicStatePoint> getEnsemble(SymbolicStatePoint center)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+		rv.add(center);
+		HyperRectangle box = null;
+
+		try
+		{
+			box = AutomatonUtil.getInitialBox(config);
+		}
+		catch (AutomatonExportException e)
+		{
+			Hyst.log("Initial states are not a box (" + e.getMessage()
+					+ "); only simulating from " + center.hp);
+		}
+
+		if (box != null)
+		{
+			String mode = center.modeName;
+			int freeDims = 0;
+
+			for (Interval i : box.dims)
+			{
+				if (i.width() > 0)
+					++freeDims;
+			}
+
+			for (HyperPoint p : box.getStarPoints())
+				rv.add(new SymbolicStatePoint(mode, p));
+
+			CornerIterator corners = new CornerIterator(box, true, MAX_CORNERS, 0);
+
+			while (corners.hasNext())
+				rv.add(new SymbolicStatePoint(mode, new HyperPoint(corners.next())));
+
+			if (samples > 0 && freeDims > 0 && freeDims <= BoxSampler.MAX_SOBOL_DIMS)
+			{
+				PointSet ps = BoxSampler.sobol(box, samples);
+
+				for (int i = 0; i < ps.size(); ++i)
+					rv.add(new SymbolicStatePoint(mode, ps.getPoint(i)));
+			}
+		}
+
+		Hyst.log("Simulating an ensemble of " + rv.size() + " initial states");
+
+		return rv;
+	}
+
 	private void logAllRanges()
 	{
 		for (DomainValues dv : domains)
@@ -685,6 +803,9 @@ public class ContinuizationPass extends TransformationPass
 			throw new AutomatonExportException("Varname '" + varName + "' not found in automaton.");
 
 		// for every time domain, you should have a corresponding bloat defined
+		if (!simEngine.equals(SIM_ENGINE_PYTHON) && !simEngine.equals(SIM_ENGINE_JAVA))
+			throw new AutomatonExportException("Unknown -simengine: " + simEngine);
+
 		if (times.size() != bloats.size())
 			throw new AutomatonExportException("Number of bloat values (" + bloats.size()
 					+ ") must match number of time domains (" + times.size() + ").");
@@ -790,8 +911,7 @@ public class ContinuizationPass extends TransformationPass
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_der_range");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
+		String ha = PySimPrinter.defineAutomaton(pb, automaton);
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		ArrayList<String> intervalStrs = new ArrayList<String>();
@@ -802,10 +922,10 @@ public class ContinuizationPass extends TransformationPass
 		String timesStr = "[" + StringOperations.join(",", intervalStrs.toArray(new String[0]))
 				+ "]";
 
-		s.append("print simulate_der_range(define_ha(), " + derVarIndex + ", '" + start.modeName
-				+ "', " + point + ", " + timesStr + ")");
+		String cmd = "print simulate_der_range(" + ha + ", " + derVarIndex + ", '" + start.modeName
+				+ "', " + point + ", " + timesStr + ")";
 
-		String result = pb.send(s.toString());
+		String result = pb.send(cmd);
 
 		// result is semi-colon separated hyperrectangles
 		// each hyperrectangle is a comma-separated list of size 2*N (N = number
@@ -832,6 +952,272 @@ public class ContinuizationPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * Simulate the automaton from an ensemble of start states concurrently in
+	 * the JVM, getting the range of the derivative of a variable over each time
+	 * interval. The ranges are computed in a single streaming pass over the
+	 * trajectories, which aren't stored.
+	 * 
+	 * Without enclose, the derivative is evaluated at each simulated point (and
+	 * interpolated at time interval boundaries between points). With enclose,
+	 * each step between simulated points is also bounded using an interval
+	 * enclosure of the trajectory over the step, so the ranges contain the
+	 * derivative along the simulated trajectories at all times, not only at
+	 * the points (up to floating-point rounding).
+	 * 
+	 * @param automaton
+	 * @param derVarName
+	 *            the variable name whose derative we want the range of
+	 * @param starts
+	 *            the start states
+	 * @param timeIntervals
+	 *            the times where to return the ranges
+	 * @param maxStep
+	 *            the maximum simulation step
+	 * @param enclose
+	 *            should steps be bounded with interval enclosures?
+	 * @return the range of the derivative of derVarName in each time interval,
+	 *         over all the simulations
+	 */
+	public static ArrayList<Interval> javaSimulateDerivativeRange(Configuration automaton,
+			String derVarName, List<SymbolicStatePoint> starts, List<Interval> timeIntervals,
+			double maxStep, boolean enclose)
+	{
+		BaseComponent ha = (BaseComponent) automaton.root;
+		int derVarIndex = ha.variables.indexOf(derVarName);
+
+		if (derVarIndex == -1)
+			throw new AutomatonExportException(
+					"Derivative variable '" + derVarName + "' not found in automaton.");
+
+		double simTime = 0;
+
+		for (Interval i : timeIntervals)
+			simTime = Math.max(simTime, i.max);
+
+		HybridSimulator sim = new HybridSimulator(ha);
+		ArrayList<DerivativeRangeSink> sinks = new ArrayList<DerivativeRangeSink>();
+
+		for (int i = 0; i < starts.size(); ++i)
+			sinks.add(new DerivativeRangeSink(sim, ha, derVarIndex, timeIntervals, enclose));
+
+		sim.streamTrajectories(starts, simTime, maxStep, sinks);
+
+		ArrayList<Interval> rv = new ArrayList<Interval>();
+
+		for (int index = 0; index < timeIntervals.size(); ++index)
+		{
+			Interval i = new Interval();
+			i.min = Double.POSITIVE_INFINITY;
+			i.max = Double.NEGATIVE_INFINITY;
+
+			for (DerivativeRangeSink sink : sinks)
+			{
+				i.min = Math.min(i.min, sink.min[index]);
+				i.max = Math.max(i.max, sink.max[index]);
+			}
+
+			rv.add(i);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Accumulates the range of a derivative in each time interval, over a
+	 * single trajectory
+	 */
+	private static class DerivativeRangeSink implements HybridSimulator.TrajectorySink
+	{
+		private final HybridSimulator sim;
+		private final BaseComponent ha;
+		private final int derVarIndex;
+		private final List<Interval> times;
+		final double[] min;
+		final double[] max;
+
+		// interval evaluators for each mode's flows, or null if enclosures
+		// aren't used
+		private final HashMap<String, IntervalEvaluator> evaluators;
+
+		// the previous state, if the trajectory flowed continuously from it
+		private String prevMode = null;
+		private double prevTime;
+		private double[] prevState;
+		private double prevDer;
+
+		DerivativeRangeSink(HybridSimulator sim, BaseComponent ha, int derVarIndex,
+				List<Interval> times, boolean enclose)
+		{
+			this.sim = sim;
+			this.ha = ha;
+			this.derVarIndex = derVarIndex;
+			this.times = times;
+			evaluators = enclose ? new HashMap<String, IntervalEvaluator>() : null;
+
+			min = new double[times.size()];
+			max = new double[times.size()];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		@Override
+		public void add(String mode, double t, double[] state, boolean newSegment)
+		{
+			double[] der = sim.getDerivative(mode, state);
+
+			if (der == null)
+			{
+				// skip urgent modes as derivatives are in transit
+				prevMode = null;
+				return;
+			}
+
+			double d = der[derVarIndex];
+			boolean flowed = !newSegment && mode.equals(prevMode) && t > prevTime;
+
+			for (int i = 0; i < times.size(); ++i)
+			{
+				Interval ti = times.get(i);
+
+				if (ti.contains(t))
+					include(i, d, d);
+
+				// time interval boundaries inside the step get an interpolated
+				// value, so short intervals aren't missed
+				if (flowed)
+				{
+					for (double b : new double[] { ti.min, ti.max })
+					{
+						if (b > prevTime && b < t)
+						{
+							double val = prevDer + (d - prevDer) * (b - prevTime) / (t - prevTime);
+							include(i, val, val);
+						}
+					}
+				}
+			}
+
+			if (flowed && evaluators != null)
+				encloseStep(mode, t, state);
+
+			prevMode = mode;
+			prevTime = t;
+			prevState = state;
+			prevDer = d;
+		}
+
+		private void include(int index, double lo, double hi)
+		{
+			min[index] = Math.min(min[index], lo);
+			max[index] = Math.max(max[index], hi);
+		}
+
+		/**
+		 * Bound the derivative over the step from the previous state. An a
+		 * priori enclosure B is found such that prevState + [0, h] * f(B) is
+		 * inside B, which means the trajectory stays inside B over the step
+		 * (Picard-Lindelof).
+		 */
+		private void encloseStep(String mode, double t, double[] state)
+		{
+			int n = state.length;
+			double h = t - prevTime;
+			double[] bMin = new double[n], bMax = new double[n];
+			double[] fMin = new double[n], fMax = new double[n];
+			double[] cMin = new double[n], cMax = new double[n];
+
+			for (int d = 0; d < n; ++d)
+			{
+				double lo = Math.min(prevState[d], state[d]);
+				double hi = Math.max(prevState[d], state[d]);
+				double w = Math.max(hi - lo,
+						ENCLOSURE_MIN_WIDTH * (1 + Math.max(Math.abs(lo), Math.abs(hi))));
+
+				bMin[d] = lo - w * ENCLOSURE_BLOAT;
+				bMax[d] = hi + w * ENCLOSURE_BLOAT;
+			}
+
+			boolean found = false;
+
+			for (int iter = 0; iter < MAX_ENCLOSURE_ITERATIONS && !found; ++iter)
+			{
+				evaluateFlows(mode, bMin, bMax, fMin, fMax);
+				found = true;
+
+				for (int d = 0; d < n; ++d)
+				{
+					cMin[d] = prevState[d] + h * Math.min(0, fMin[d]);
+					cMax[d] = prevState[d] + h * Math.max(0, fMax[d]);
+
+					if (!(cMin[d] >= bMin[d] && cMax[d] <= bMax[d]))
+						found = false;
+				}
+
+				if (!found)
+				{
+					for (int d = 0; d < n; ++d)
+					{
+						double w = Math.max(cMax[d] - cMin[d], bMax[d] - bMin[d]);
+
+						bMin[d] = Math.min(bMin[d], cMin[d] - w * ENCLOSURE_BLOAT);
+						bMax[d] = Math.max(bMax[d], cMax[d] + w * ENCLOSURE_BLOAT);
+					}
+				}
+			}
+
+			if (!found)
+				throw new AutomatonExportException("Could not enclose the trajectory in mode "
+						+ mode + " over times [" + prevTime + ", " + t
+						+ "]; try a smaller -step");
+
+			// the trajectory is also inside the (smaller) candidate box
+			evaluateFlows(mode, cMin, cMax, fMin, fMax);
+
+			for (int i = 0; i < times.size(); ++i)
+			{
+				Interval ti = times.get(i);
+
+				if (ti.min <= t && ti.max >= prevTime)
+					include(i, fMin[derVarIndex], fMax[derVarIndex]);
+			}
+		}
+
+		/**
+		 * Interval-evaluate a mode's flows (including nondeterministic parts)
+		 */
+		private void evaluateFlows(String mode, double[] varMin, double[] varMax,
+				double[] outMin, double[] outMax)
+		{
+			AutomatonMode am = ha.modes.get(mode);
+			IntervalEvaluator ev = evaluators.get(mode);
+
+			if (ev == null)
+			{
+				ArrayList<Expression> flows = new ArrayList<Expression>();
+
+				for (String v : ha.variables)
+					flows.add(am.flowDynamics.get(v).getExpression());
+
+				ev = new IntervalEvaluator(flows, ha.variables, true);
+				evaluators.put(mode, ev);
+			}
+
+			ev.evaluate(varMin, varMax, outMin, outMax);
+
+			for (int d = 0; d < outMin.length; ++d)
+			{
+				Interval i = am.flowDynamics.get(ha.variables.get(d)).getInterval();
+
+				if (i != null)
+				{
+					outMin[d] += i.min;
+					outMax[d] += i.max;
+				}
+			}
+		}
+	}
+
 	/**
 	 * An interval as part of the expression. This can be temporarily part of an
 	 * expression when, for example, we substitute 'c' to 'c + [-1, 1]' in an
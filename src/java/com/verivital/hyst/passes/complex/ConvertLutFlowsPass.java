@@ -3,13 +3,21 @@ package com.verivital.hyst.passes.complex;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.kohsuke.args4j.Option;
+
 import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.HyperRectangle;
 import com.verivital.hyst.geometry.HyperRectangleCornerEnumerator;
+import com.verivital.hyst.geometry.HyperRectangleIndex;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -31,7 +39,9 @@ import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.Polynomial;
 import com.verivital.hyst.util.PreconditionsFlag;
+import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.StringOperations;
 
 /**
@@ -44,6 +54,12 @@ public class ConvertLutFlowsPass extends TransformationPass
 {
 	public static int MAX_CONVERSIONS = 1000;
 
+	@Option(name = "-reachable", usage = "only create modes for lut cells the inputs can reach, based on the invariant and initial ranges")
+	private boolean restrictToReachable = false;
+
+	@Option(name = "-merge", usage = "merge adjacent lut cells whose interpolated dynamics are equal within this tolerance (negative = no merging)", metaVar = "TOL")
+	private double mergeTol = -1;
+
 	@Override
 	public String getCommandLineFlag()
 	{
@@ -70,6 +86,10 @@ public class ConvertLutFlowsPass extends TransformationPass
 	public static int SIMPLIFY_PYTHON = 0;
 	public static int SIMPLIFY_INTERNAL = 1;
 	public static int SIMPLIFY_NONE = 2;
+	public static int SIMPLIFY_POLYNOMIAL = 3; // in java, with python for non-polynomials
+
+	// coefficients smaller than this are chopped to zero when simplifying
+	private static final double CHOP_TOL = 1e-8;
 
 	public static int simplifyMode = SIMPLIFY_PYTHON;
 
@@ -85,7 +105,7 @@ public class ConvertLutFlowsPass extends TransformationPass
 		// urgent modes are supported
 		preconditions.skip(PreconditionsFlag.NO_URGENT);
 
-		simplifyMode = PythonBridge.hasPython() ? SIMPLIFY_PYTHON : SIMPLIFY_INTERNAL;
+		simplifyMode = SIMPLIFY_POLYNOMIAL;
 	}
 
 	private void convertLuts(Component c)
@@ -201,40 +221,20 @@ public class ConvertLutFlowsPass extends TransformationPass
 	 */
 	public void convertFlowInMode(AutomatonMode am, String variable, LutExpression lut)
 	{
-		ArrayList<AutomatonMode> newModes = createLutModes(am, lut);
+		int[][] cellBounds = restrictToReachable ? getReachableCells(am, lut) : getAllCells(lut);
 
-		createDynamicsAndTransitions(am, variable, lut);
+		ArrayList<LutRegion> regions = createLutRegions(lut, cellBounds);
 
-		fixOutgoingTransitions(am, newModes);
+		if (mergeTol >= 0)
+			regions = mergeRegions(regions, lut.table.getNumDims());
 
-		makeOriginalModeUrgent(am, newModes);
-	}
+		ArrayList<AutomatonMode> newModes = createLutModes(am, regions);
 
-	/**
-	 * Should this value be skipped? We create modes between two table values, i
-	 * and i + 1, so if the current value is the last one in any dimension, we
-	 * skip it
-	 * 
-	 * @param indexList
-	 *            the index
-	 * @param m
-	 *            the table data
-	 * @return true iff we're at the last entry in any dimension
-	 */
-	private boolean shouldSkip(int[] indexList, MatrixExpression m)
-	{
-		boolean skip = false;
+		createDynamicsAndTransitions(am, variable, lut, regions, cellBounds);
 
-		for (int d = 0; d < indexList.length; ++d)
-		{
-			if (indexList[d] == m.getDimWidth(d) - 1)
-			{
-				skip = true;
-				break;
-			}
-		}
+		fixOutgoingTransitions(am, newModes);
 
-		return skip;
+		makeOriginalModeUrgent(am, newModes);
 	}
 
 	/**
@@ -292,34 +292,398 @@ public class ConvertLutFlowsPass extends TransformationPass
 	}
 
 	/**
-	 * Create the AutomatonModes corresponding to this lut. This does not create
-	 * dynamics/invariants or transitions.
+	 * A box of lut cells which is converted to a single mode. Without merging,
+	 * each region is a single cell (lo == hi).
+	 */
+	private static class LutRegion
+	{
+		int[] lo; // inclusive cell indices in each dimension
+		int[] hi;
+		Expression interpolation;
+		Polynomial poly; // the interpolation as a polynomial, or null
+		AutomatonMode mode = null;
+
+		LutRegion(int[] index, Expression interpolation)
+		{
+			this.lo = Arrays.copyOf(index, index.length);
+			this.hi = Arrays.copyOf(index, index.length);
+			this.interpolation = interpolation;
+		}
+
+		String getName(AutomatonMode original)
+		{
+			String rv = original.name + "_" + StringOperations.join("_", lo);
+
+			if (!Arrays.equals(lo, hi))
+				rv += "_to_" + StringOperations.join("_", hi);
+
+			return rv;
+		}
+
+		/**
+		 * Does this region overlap another one in every dimension except skipDim
+		 */
+		boolean overlapsExcept(LutRegion other, int skipDim)
+		{
+			boolean rv = true;
+
+			for (int d = 0; d < lo.length; ++d)
+			{
+				if (d != skipDim && (other.hi[d] < lo[d] || hi[d] < other.lo[d]))
+				{
+					rv = false;
+					break;
+				}
+			}
+
+			return rv;
+		}
+	}
+
+	/**
+	 * Get the cell index bounds for the whole table. We create modes between
+	 * two table values, i and i + 1, so there is one fewer cell than
+	 * breakpoints in each dimension.
 	 * 
-	 * @param original
-	 *            the original location
-	 * @param variableWithLut
-	 *            the variable with dynamics that contains a look up table
 	 * @param lut
-	 *            the subexpression we're splitting
-	 * @return the created modes
+	 *            the lut
+	 * @return for each dimension, the first and last cell index (inclusive)
 	 */
-	private ArrayList<AutomatonMode> createLutModes(AutomatonMode original, LutExpression lut)
+	private static int[][] getAllCells(LutExpression lut)
 	{
-		ArrayList<AutomatonMode> rv = new ArrayList<AutomatonMode>();
-		BaseComponent ha = original.automaton;
+		int dims = lut.table.getNumDims();
+		int[][] rv = new int[dims][];
+
+		for (int d = 0; d < dims; ++d)
+			rv[d] = new int[] { 0, lut.breakpoints[d].length - 2 };
+
+		return rv;
+	}
+
+	/**
+	 * Get the cell index bounds for the cells the lut inputs can reach while in
+	 * the given mode. Variable ranges come from the mode's invariant and, for
+	 * variables which never change (zero flow everywhere and never reset), from
+	 * the initial states. The first and last cells in each dimension extend to
+	 * infinity, so the result is never empty.
+	 * 
+	 * @param am
+	 *            the mode containing the lut
+	 * @param lut
+	 *            the lut
+	 * @return for each dimension, the first and last cell index (inclusive)
+	 */
+	private int[][] getReachableCells(AutomatonMode am, LutExpression lut)
+	{
+		int[][] rv = getAllCells(lut);
+		Map<String, Interval> ranges = getReachableRanges(am);
+
+		for (int d = 0; d < rv.length; ++d)
+		{
+			Expression input = lut.inputs[d];
+			double[] breakpoints = lut.breakpoints[d];
+			Interval inputRange = null;
+
+			if (ranges.keySet().containsAll(AutomatonUtil.getVariablesInExpression(input)))
+			{
+				try
+				{
+					inputRange = Interval.intervalEvaluate(input, ranges);
+				}
+				catch (AutomatonExportException e)
+				{
+					Hyst.logDebug("Could not bound lut input " + input.toDefaultString() + ": "
+							+ e.getMessage());
+				}
+			}
+
+			if (inputRange == null)
+				continue;
+
+			// cell i covers [breakpoints[i], breakpoints[i + 1]]
+			while (rv[d][0] < rv[d][1] && breakpoints[rv[d][0] + 1] < inputRange.min)
+				++rv[d][0];
+
+			while (rv[d][1] > rv[d][0] && breakpoints[rv[d][1]] > inputRange.max)
+				--rv[d][1];
+
+			Hyst.logDebug("Lut input " + input.toDefaultString() + " has range " + inputRange
+					+ ", using cells " + rv[d][0] + " to " + rv[d][1]);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get over-approximations of the ranges of the variables while in a mode
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return a map of variable name -> range, for the bounded variables
+	 */
+	private Map<String, Interval> getReachableRanges(AutomatonMode am)
+	{
+		BaseComponent ha = am.automaton;
+		Map<String, Interval> rv = new HashMap<String, Interval>();
+
+		RangeExtractor.getWeakVariableRanges(am.invariant, rv);
+
+		// variables which never change stay within their initial range
+		if (config != null && config.root == ha && !config.init.isEmpty())
+		{
+			ArrayList<Map<String, Interval>> initRanges = new ArrayList<Map<String, Interval>>();
+
+			for (Expression e : config.init.values())
+			{
+				Map<String, Interval> r = new HashMap<String, Interval>();
+				RangeExtractor.getWeakVariableRanges(e, r);
+				initRanges.add(r);
+			}
+
+			for (String v : ha.variables)
+			{
+				if (!isConstantVariable(ha, v))
+					continue;
+
+				Interval initRange = null;
+
+				for (Map<String, Interval> r : initRanges)
+				{
+					Interval i = r.get(v);
+
+					if (i == null)
+					{
+						initRange = null;
+						break;
+					}
+
+					initRange = initRange == null ? i : Interval.union(initRange, i);
+				}
+
+				if (initRange != null)
+				{
+					Interval invRange = rv.get(v);
+					Interval both = invRange == null ? null
+							: Interval.intersection(invRange, initRange);
+
+					rv.put(v, both == null ? initRange : both);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Is a variable constant in an automaton (zero flow in every mode, and
+	 * never reset)?
+	 */
+	private static boolean isConstantVariable(BaseComponent ha, String v)
+	{
+		boolean rv = true;
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			if (am.flowDynamics == null) // urgent
+				continue;
+
+			ExpressionInterval ei = am.flowDynamics.get(v);
+
+			if (ei == null || !(ei.getExpression() instanceof Constant)
+					|| ((Constant) ei.getExpression()).getVal() != 0
+					|| (ei.getInterval() != null && !ei.getInterval().isExactly(0)))
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			if (at.reset.containsKey(v))
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Create a single-cell region for each cell within the given bounds, and
+	 * compute the interpolated dynamics
+	 * 
+	 * @param lut
+	 *            the lut
+	 * @param cellBounds
+	 *            for each dimension, the first and last cell index (inclusive)
+	 * @return the regions, in table order
+	 */
+	private static ArrayList<LutRegion> createLutRegions(LutExpression lut, int[][] cellBounds)
+	{
+		int tableDims = lut.table.getNumDims();
+		ArrayList<int[]> cells = new ArrayList<int[]>();
+		ArrayList<Interval[]> cellRanges = new ArrayList<Interval[]>();
 
 		for (Entry<int[], Expression> e : lut.table)
 		{
 			int[] indexList = e.getKey();
 
-			if (shouldSkip(indexList, lut.table))
+			if (!isCellInBounds(indexList, cellBounds))
 				continue;
 
-			// shouldn't skip, construct mode
-			AutomatonMode am = ha
-					.createMode(original.name + "_" + StringOperations.join("_", indexList));
+			Interval[] rangeList = new Interval[tableDims];
+
+			// this loop populates range list, which is used to create the
+			// dynamics (in bounds because cellBounds excludes the last value)
+			for (int varIndex = 0; varIndex < tableDims; ++varIndex)
+			{
+				int indexInTable = indexList[varIndex];
+				double[] breakpoints = lut.breakpoints[varIndex];
 
-			rv.add(am);
+				rangeList[varIndex] = new Interval(breakpoints[indexInTable],
+						breakpoints[indexInTable + 1]);
+			}
+
+			cells.add(Arrays.copyOf(indexList, indexList.length));
+			cellRanges.add(rangeList);
+		}
+
+		// interpolate all the cells at once, so any python simplification is
+		// done in a single call
+		List<Expression> interpolations = nLinearInterpolations(lut, cells, cellRanges);
+		ArrayList<LutRegion> rv = new ArrayList<LutRegion>(cells.size());
+
+		for (int cell = 0; cell < cells.size(); ++cell)
+			rv.add(new LutRegion(cells.get(cell), interpolations.get(cell)));
+
+		return rv;
+	}
+
+	/**
+	 * Is the given table index a cell within the bounds? Indices at the last
+	 * value in any dimension are never cells.
+	 */
+	private static boolean isCellInBounds(int[] indexList, int[][] cellBounds)
+	{
+		boolean rv = true;
+
+		for (int d = 0; d < indexList.length; ++d)
+		{
+			if (indexList[d] < cellBounds[d][0] || indexList[d] > cellBounds[d][1])
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Merge adjacent regions whose interpolated dynamics are equal (up to
+	 * mergeTol in each polynomial coefficient). Merging is done one dimension
+	 * at a time, and two regions are only merged if they have the same extent
+	 * in every other dimension, so every region remains a box. Regions whose
+	 * dynamics aren't polynomial are never merged.
+	 * 
+	 * @param regions
+	 *            the regions to merge
+	 * @param dims
+	 *            the number of table dimensions
+	 * @return the merged regions, ordered by their first cell
+	 */
+	private ArrayList<LutRegion> mergeRegions(ArrayList<LutRegion> regions, int dims)
+	{
+		for (LutRegion r : regions)
+			r.poly = Polynomial.fromExpression(r.interpolation);
+
+		for (int d = 0; d < dims; ++d)
+		{
+			final int dim = d;
+
+			// group the regions into lines along dimension d
+			LinkedHashMap<String, ArrayList<LutRegion>> lines = new LinkedHashMap<String, ArrayList<LutRegion>>();
+
+			for (LutRegion r : regions)
+			{
+				int[] lo = Arrays.copyOf(r.lo, dims);
+				int[] hi = Arrays.copyOf(r.hi, dims);
+				lo[d] = hi[d] = -1;
+				String key = Arrays.toString(lo) + Arrays.toString(hi);
+
+				ArrayList<LutRegion> line = lines.get(key);
+
+				if (line == null)
+				{
+					line = new ArrayList<LutRegion>();
+					lines.put(key, line);
+				}
+
+				line.add(r);
+			}
+
+			HashSet<LutRegion> absorbed = new HashSet<LutRegion>();
+
+			for (ArrayList<LutRegion> line : lines.values())
+			{
+				Collections.sort(line, new Comparator<LutRegion>()
+				{
+					@Override
+					public int compare(LutRegion a, LutRegion b)
+					{
+						return Integer.compare(a.lo[dim], b.lo[dim]);
+					}
+				});
+
+				LutRegion prev = null;
+
+				for (LutRegion cur : line)
+				{
+					if (prev != null && prev.hi[d] + 1 == cur.lo[d] && haveEqualDynamics(prev, cur))
+					{
+						prev.hi[d] = cur.hi[d];
+						absorbed.add(cur);
+					}
+					else
+						prev = cur;
+				}
+			}
+
+			regions.removeAll(absorbed);
+		}
+
+		return regions;
+	}
+
+	private boolean haveEqualDynamics(LutRegion a, LutRegion b)
+	{
+		return a.poly != null && b.poly != null
+				&& a.poly.add(b.poly, -1).chop(mergeTol).getNumTerms() == 0;
+	}
+
+	/**
+	 * Create the AutomatonModes corresponding to the lut regions. This does
+	 * not create dynamics/invariants or transitions.
+	 * 
+	 * @param original
+	 *            the original location
+	 * @param regions
+	 *            the regions of the lut, one mode is created for each
+	 * @return the created modes
+	 */
+	private ArrayList<AutomatonMode> createLutModes(AutomatonMode original,
+			List<LutRegion> regions)
+	{
+		ArrayList<AutomatonMode> rv = new ArrayList<AutomatonMode>();
+		BaseComponent ha = original.automaton;
+
+		for (LutRegion r : regions)
+		{
+			r.mode = ha.createMode(r.getName(original));
+
+			rv.add(r.mode);
 		}
 
 		return rv;
@@ -335,26 +699,24 @@ public class ConvertLutFlowsPass extends TransformationPass
 	 *            the variable who's flow contains a LUT subexpression
 	 * @param lut
 	 *            the LUT subexpression to replace
+	 * @param regions
+	 *            the regions of the lut, with modes already created
+	 * @param cellBounds
+	 *            for each dimension, the first and last cell index (inclusive)
+	 *            that has a mode
 	 */
 	private void createDynamicsAndTransitions(AutomatonMode original, String variableWithLut,
-			LutExpression lut)
+			LutExpression lut, List<LutRegion> regions, int[][] cellBounds)
 	{
 		BaseComponent ha = original.automaton;
 		int tableDims = lut.table.getNumDims();
+		HyperRectangleIndex<LutRegion> index = makeRegionIndex(regions, tableDims);
 
-		for (Entry<int[], Expression> e : lut.table)
+		for (LutRegion r : regions)
 		{
-			int[] indexList = e.getKey();
-
-			if (shouldSkip(indexList, lut.table))
-				continue;
-
-			String name = original.name + "_" + StringOperations.join("_", indexList);
-			AutomatonMode am = ha.modes.get(name);
+			AutomatonMode am = r.mode;
 			am.invariant = original.invariant.copy();
 
-			Interval[] rangeList = new Interval[tableDims];
-
 			// create dynamics for all other variables
 			for (String var : ha.variables)
 			{
@@ -365,32 +727,13 @@ public class ConvertLutFlowsPass extends TransformationPass
 				}
 			}
 
-			// this loop populates range list, which is used to create the
-			// dynamics
-			for (int varIndex = 0; varIndex < tableDims; ++varIndex)
-			{
-				int indexInTable = indexList[varIndex];
-				double[] breakpoints = lut.breakpoints[varIndex];
-				Constant leftBreakpoint = new Constant(breakpoints[indexInTable]);
-				Constant rightBreakpoint = new Constant(breakpoints[indexInTable + 1]); // in
-																						// bounds
-																						// because
-																						// shouldSkip
-																						// was
-																						// false
-
-				rangeList[varIndex] = new Interval(leftBreakpoint.getVal(),
-						rightBreakpoint.getVal());
-			}
-
 			// create dynamics for variableWithLut
 			// must be done before creating transitions, since inputs may use
 			// variableWithLut
-			Expression replaceLutExpression = nLinearInterpolation(lut, indexList, rangeList);
 			ExpressionInterval originalExpInt = original.flowDynamics.get(variableWithLut);
 
 			Expression newFlow = replaceLutSubexpression(originalExpInt.getExpression(), lut,
-					replaceLutExpression);
+					r.interpolation);
 
 			Interval newI = originalExpInt.getInterval() == null ? null
 					: originalExpInt.getInterval().copy();
@@ -401,79 +744,136 @@ public class ConvertLutFlowsPass extends TransformationPass
 			for (int varIndex = 0; varIndex < tableDims; ++varIndex)
 			{
 				Expression inputExpr = lut.inputs[varIndex];
-				int indexInTable = indexList[varIndex];
 				double[] breakpoints = lut.breakpoints[varIndex];
-				Constant leftBreakpoint = new Constant(breakpoints[indexInTable]);
-				Constant rightBreakpoint = new Constant(breakpoints[indexInTable + 1]); // in
-																						// bounds
-																						// because
-																						// shouldSkip
-																						// was
-																						// false
 
 				// if there's a left neighbor
-				if (indexInTable > 0)
+				if (r.lo[varIndex] > cellBounds[varIndex][0])
 				{
+					Constant leftBreakpoint = new Constant(breakpoints[r.lo[varIndex]]);
 					Expression inRange = new Operation(inputExpr, Operator.GREATEREQUAL,
 							leftBreakpoint);
 
 					// accumulate inRange into invariant
 					am.invariant = Expression.and(am.invariant, inRange);
 
-					// add transition to left neighbor
-					Expression guard = new Operation(inputExpr, Operator.LESSEQUAL, leftBreakpoint);
-					int[] leftIndexList = Arrays.copyOf(indexList, indexList.length);
-					--leftIndexList[varIndex];
-					String leftName = original.name + "_"
-							+ StringOperations.join("_", leftIndexList);
-					AutomatonMode leftMode = ha.modes.get(leftName);
-
-					if (leftMode == null)
-						throw new AutomatonExportException(
-								"Left mode named '" + leftName + "' not found in automaton");
-
+					// add transitions to left neighbors
 					Expression goingLeft = new Operation(Operator.LESSEQUAL,
 							AutomatonUtil.derivativeOf(inputExpr, asExpressionMap(am)),
 							new Constant(0));
 
-					ha.createTransition(am, leftMode).guard = Expression.and(guard, goingLeft);
+					for (LutRegion neighbor : getNeighbors(r, index, varIndex, false, original))
+					{
+						Expression guard = new Operation(inputExpr, Operator.LESSEQUAL,
+								leftBreakpoint);
+
+						ha.createTransition(am, neighbor.mode).guard = Expression.and(guard,
+								goingLeft.copy());
+					}
 				}
 
-				// if there's a right neighbor (3 breakpoints = 2 modes which
+				// if there's a right neighbor (3 breakpoints = 2 cells which
 				// means only index 0 has a right neighbor)
-				int numModes = breakpoints.length - 1;
-
-				if (indexInTable < numModes - 1)
+				if (r.hi[varIndex] < cellBounds[varIndex][1])
 				{
+					Constant rightBreakpoint = new Constant(breakpoints[r.hi[varIndex] + 1]);
 					Expression inRange = new Operation(inputExpr, Operator.LESSEQUAL,
 							rightBreakpoint);
 
 					// accumulate inRange into invariant
 					am.invariant = Expression.and(am.invariant, inRange);
 
-					// add transition to right neighbor
-					Expression guard = new Operation(inputExpr, Operator.GREATEREQUAL,
-							rightBreakpoint);
-					int[] rightIndexList = Arrays.copyOf(indexList, indexList.length);
-					++rightIndexList[varIndex];
-					String rightName = original.name + "_"
-							+ StringOperations.join("_", rightIndexList);
-					AutomatonMode rightMode = ha.modes.get(rightName);
-
-					if (rightMode == null)
-						throw new AutomatonExportException(
-								"Right mode named '" + rightName + "' not found in automaton");
-
+					// add transitions to right neighbors
 					Expression goingRight = new Operation(Operator.GREATEREQUAL,
 							AutomatonUtil.derivativeOf(inputExpr, asExpressionMap(am)),
 							new Constant(0));
 
-					ha.createTransition(am, rightMode).guard = Expression.and(guard, goingRight);
+					for (LutRegion neighbor : getNeighbors(r, index, varIndex, true, original))
+					{
+						Expression guard = new Operation(inputExpr, Operator.GREATEREQUAL,
+								rightBreakpoint);
+
+						ha.createTransition(am, neighbor.mode).guard = Expression.and(guard,
+								goingRight.copy());
+					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Index the regions by their cell ranges, so neighbors can be found
+	 * without checking every region
+	 * 
+	 * @param regions
+	 *            all the regions
+	 * @param dims
+	 *            the number of table dimensions
+	 * @return the index, with boxes in cell index coordinates
+	 */
+	private static HyperRectangleIndex<LutRegion> makeRegionIndex(List<LutRegion> regions,
+			int dims)
+	{
+		ArrayList<HyperRectangle> boxes = new ArrayList<HyperRectangle>(regions.size());
+
+		for (LutRegion r : regions)
+		{
+			Interval[] cellRange = new Interval[dims];
+
+			for (int d = 0; d < dims; ++d)
+				cellRange[d] = new Interval(r.lo[d], r.hi[d]);
+
+			boxes.add(new HyperRectangle(cellRange));
+		}
+
+		return new HyperRectangleIndex<LutRegion>(boxes, regions);
+	}
+
+	/**
+	 * Get the regions adjacent to a region on one side in a given dimension.
+	 * These are the regions which intersect the one-cell-thick slab next to the
+	 * region (since regions don't overlap, they must start right after it).
+	 * 
+	 * @param r
+	 *            the region
+	 * @param index
+	 *            the index of all the regions, from makeRegionIndex()
+	 * @param dim
+	 *            the dimension
+	 * @param right
+	 *            true for the neighbors on the right (higher indices), false
+	 *            for the left
+	 * @param original
+	 *            the original mode, for error messages
+	 * @return the neighbors, in region order (nonempty)
+	 */
+	private static ArrayList<LutRegion> getNeighbors(LutRegion r,
+			HyperRectangleIndex<LutRegion> index, int dim, boolean right, AutomatonMode original)
+	{
+		ArrayList<LutRegion> rv = new ArrayList<LutRegion>();
+		Interval[] slab = new Interval[r.lo.length];
+
+		for (int d = 0; d < slab.length; ++d)
+			slab[d] = new Interval(r.lo[d], r.hi[d]);
+
+		int cell = right ? r.hi[dim] + 1 : r.lo[dim] - 1;
+		slab[dim] = new Interval(cell);
+
+		for (LutRegion other : index.query(new HyperRectangle(slab)))
+		{
+			boolean adjacent = right ? other.lo[dim] == cell : other.hi[dim] == cell;
+
+			if (adjacent && r.overlapsExcept(other, dim))
+				rv.add(other);
+		}
+
+		if (rv.isEmpty())
+			throw new AutomatonExportException((right ? "Right" : "Left")
+					+ " neighbor of mode '" + r.getName(original) + "' in dimension " + dim
+					+ " not found in automaton");
+
+		return rv;
+	}
+
 	/**
 	 * Return a mode's expression map from the dynamics
 	 * 
@@ -543,6 +943,88 @@ public class ConvertLutFlowsPass extends TransformationPass
 	 */
 	public static Expression nLinearInterpolation(LutExpression lut, int[] indexList,
 			Interval[] rangeList)
+	{
+		return nLinearInterpolations(lut, Collections.singletonList(indexList),
+				Collections.singletonList(rangeList)).get(0);
+	}
+
+	/**
+	 * Perform n-linear interpolation for several cells of the same table, and
+	 * simplify the results according to simplifyMode. With SIMPLIFY_POLYNOMIAL,
+	 * each interpolation is expanded and chopped in Java, and only cells which
+	 * aren't polynomial (for example, the lut inputs contain a sin) are sent
+	 * to python. Any python simplification is done in one batched call.
+	 * 
+	 * @param lut
+	 *            the lookup table expression
+	 * @param indexLists
+	 *            the index values of each cell (see nLinearInterpolation())
+	 * @param rangeLists
+	 *            the ranges of each cell (see nLinearInterpolation())
+	 * @return the interpolation expressions, one for each cell
+	 */
+	public static List<Expression> nLinearInterpolations(LutExpression lut,
+			List<int[]> indexLists, List<Interval[]> rangeLists)
+	{
+		if (indexLists.size() != rangeLists.size())
+			throw new AutomatonExportException(
+					"number of index lists must match the number of range lists");
+
+		List<Expression> rv = new ArrayList<Expression>(indexLists.size());
+		List<Integer> pythonCells = new ArrayList<Integer>();
+		List<Expression> pythonExps = new ArrayList<Expression>();
+
+		for (int cell = 0; cell < indexLists.size(); ++cell)
+		{
+			Expression e = interpolationExpression(lut, indexLists.get(cell),
+					rangeLists.get(cell));
+
+			Hyst.logDebug("nLinearInterpolation result expression for "
+					+ Arrays.toString(indexLists.get(cell)) + ": " + e.toDefaultString());
+
+			boolean usePython = simplifyMode == SIMPLIFY_PYTHON;
+
+			if (simplifyMode == SIMPLIFY_POLYNOMIAL)
+			{
+				Polynomial p = Polynomial.fromExpression(e);
+
+				if (p != null)
+					e = p.chop(CHOP_TOL).toExpression();
+				else if (PythonBridge.hasPython())
+					usePython = true;
+				else
+					e = SimplifyExpressionsPass.simplifyExpression(e);
+			}
+			else if (simplifyMode == SIMPLIFY_INTERNAL)
+				e = SimplifyExpressionsPass.simplifyExpression(e);
+
+			if (usePython)
+			{
+				pythonCells.add(cell);
+				pythonExps.add(e);
+			}
+
+			rv.add(e);
+		}
+
+		if (pythonExps.size() > 0)
+		{
+			List<Expression> simplified = PythonUtil.pythonSimplifyExpressionsChop(pythonExps,
+					CHOP_TOL);
+
+			for (int i = 0; i < pythonCells.size(); ++i)
+				rv.set(pythonCells.get(i), simplified.get(i));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Construct the (unsimplified) n-linear interpolation expression of a
+	 * single cell
+	 */
+	private static Expression interpolationExpression(LutExpression lut, int[] indexList,
+			Interval[] rangeList)
 	{
 		Expression[] inputList = lut.inputs;
 		MatrixExpression table = lut.table;
@@ -582,21 +1064,8 @@ public class ConvertLutFlowsPass extends TransformationPass
 			hr.dims[d] = new Interval(0, 1);
 
 		hr.enumerateCorners(interpolateEnumerator);
-		Expression e = interpolateEnumerator.accumulator;
-
-		Hyst.logDebug("nLinearInterpolation result expression for " + Arrays.toString(indexList)
-				+ ": " + e.toDefaultString());
-
-		double CHOP_TOL = 1e-8;
-
-		if (simplifyMode == SIMPLIFY_PYTHON)
-			e = PythonUtil.pythonSimplifyExpressionChop(e, CHOP_TOL);
-		else if (simplifyMode == SIMPLIFY_INTERNAL)
-			e = SimplifyExpressionsPass.simplifyExpression(e);
-
-		Hyst.logDebug("after pythonSimplifyExpressionChop: " + e.toDefaultString());
 
-		return e;
+		return interpolateEnumerator.accumulator;
 	}
 
 	// used to accumulate the expression when performing the interpolation
@@ -1,23 +1,48 @@
 package com.verivital.hyst.passes.complex;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import org.kohsuke.args4j.Option;
 
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AffineDynamics;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.matlab.MatlabBridge;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
+import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.KrylovProjection;
+import com.verivital.hyst.util.RangeExtractor;
+import com.verivital.hyst.util.SparseMatrix;
+import com.verivital.hyst.util.ValueSubstituter;
 
 import matlabcontrol.MatlabProxy;
 
 /**
- * Perform order reduction
+ * Perform order reduction. By default this uses the matlab-based balanced
+ * truncation. With '-method krylov', a Krylov-subspace projection is computed
+ * in Java instead (see KrylovProjection), which only needs sparse
+ * matrix-vector products so it scales to large linear models.
  * 
  * @author Taylor Johnson (October 2015)
  *
@@ -27,6 +52,16 @@ public class OrderReductionPass extends TransformationPass
 	@Option(name = "-reducedOrder", required = true, usage = "reduced order dimensionality", metaVar = "NUM")
 	private int reducedOrder;
 
+	@Option(name = "-method", required = false, usage = "reduction method: 'matlab' (balanced truncation using the matlab scripts) or 'krylov' (Arnoldi projection, done in Java)", metaVar = "NAME")
+	private String method = METHOD_MATLAB;
+
+	public static final String METHOD_KRYLOV = "krylov";
+	public static final String METHOD_MATLAB = "matlab";
+
+	// relative size (to the largest coefficient in an expression) below which
+	// projected coefficients are treated as round-off and dropped
+	private static final double COEFFICIENT_TOL = 1e-12;
+
 	@Override
 	public String getName()
 	{
@@ -42,8 +77,26 @@ public class OrderReductionPass extends TransformationPass
 	@Override
 	protected void runPass()
 	{
-		Hyst.log("Using order reduction params reducedOrder = " + reducedOrder);
+		Hyst.log("Using order reduction params reducedOrder = " + reducedOrder + ", method = "
+				+ method);
+
+		if (reducedOrder < 1)
+			throw new AutomatonExportException("reducedOrder must be positive: " + reducedOrder);
+
+		if (method.equals(METHOD_KRYLOV))
+			reduceKrylov((BaseComponent) config.root);
+		else if (method.equals(METHOD_MATLAB))
+			reduceMatlab();
+		else
+			throw new AutomatonExportException("Unknown order reduction method '" + method
+					+ "'. Expected '" + METHOD_KRYLOV + "' or '" + METHOD_MATLAB + "'.");
+	}
 
+	/**
+	 * Reduce the model using the matlab scripts in matlab/pass_order_reduction
+	 */
+	private void reduceMatlab()
+	{
 		BaseComponent ha = (BaseComponent) config.root;
 
 		Classification cf = new Classification();
@@ -85,12 +138,21 @@ public class OrderReductionPass extends TransformationPass
 				proxy.eval("X = [" + variableString + "]");
 				cf.setLinearMatrix(e.getValue());
 				// sp.setLinearMatrix(e.getValue());
-				String matlabAMatrix = sp.convertFlowToAMatrix(e.getValue());
+				// send the matrices in sparse triplet form, so the size of the
+				// transfer is proportional to the number of nonzeros, and keep
+				// them sparse in matlab
+				String matlabAMatrix = sp.getSparseAMatrix(e.getValue()).toMatlabString();
 				proxy.eval("A_" + e.getKey() + " = " + matlabAMatrix + ";");
 				proxy.eval("A_" + e.getKey() + " * X.'");
 
-				String matlabBMatrix = sp.convertInputToBMatrix(e.getValue());
-				proxy.eval("B_" + e.getKey() + " = " + matlabBMatrix + "';");
+				String matlabBMatrix = sp.getSparseBTransposeMatrix(e.getValue()).toMatlabString();
+				proxy.eval("B_" + e.getKey() + " = (" + matlabBMatrix + ")';");
+
+				// balanced truncation needs a stable system; check the
+				// rightmost eigenvalue of the sparse matrix with eigs
+				proxy.eval("if max(real(eigs(A_" + e.getKey() + ", 1, 'lr'))) >= 0, "
+						+ "warning('A matrix of mode " + e.getKey() + " is not stable; "
+						+ "balanced truncation may fail'); end");
 
 				String matlabCMatrix = sp.convertInvToMatrix(e.getValue());
 				proxy.eval("C_" + e.getKey() + " = " + matlabCMatrix + ";");
@@ -104,8 +166,10 @@ public class OrderReductionPass extends TransformationPass
 				String inputBound = sp.parseInitialInputBound(e.getValue());
 				proxy.eval("ib_" + e.getKey() + " = " + inputBound + ";");
 
-				proxy.eval("sys_" + e.getKey() + " = ss(" + "A_" + e.getKey() + ", " + "B_"
-						+ e.getKey() + ", " + "C_" + e.getKey() + ", " + "0)");
+				// ss() and the balanced truncation (balreal, lyap) only accept
+				// full matrices, so they're only densified here
+				proxy.eval("sys_" + e.getKey() + " = ss(full(A_" + e.getKey() + "), full(B_"
+						+ e.getKey() + "), " + "C_" + e.getKey() + ", " + "0)");
 				String cmd_string = "[sys_r,lb_r,ub_r,e] = find_specified_reduced_model(sys_"
 						+ e.getKey() + ",lb_" + e.getKey() + ",ub_" + e.getKey() + ",ib_"
 						+ e.getKey() + "," + reducedOrder + ")";
@@ -179,6 +243,333 @@ public class OrderReductionPass extends TransformationPass
 
 	}
 
+	/**
+	 * Reduce the model with a Krylov-subspace projection x ~= V z, computed from
+	 * the sparse affine dynamics of the (single) mode. Variables whose
+	 * derivatives don't depend on any variable (like time, t' = 1) are kept as
+	 * is, and act as inputs to the reduced system along with the constants. The
+	 * remaining (state) variables are replaced by the new variables z1...zr,
+	 * and are substituted by their projection in the invariant and forbidden
+	 * states, so outputs defined there (like 'y == x25') are preserved.
+	 *
+	 * @param ha
+	 *            the automaton to reduce, modified in place
+	 */
+	private void reduceKrylov(BaseComponent ha)
+	{
+		if (ha.modes.size() != 1 || ha.transitions.size() != 0)
+			throw new AutomatonExportException(
+					"Krylov order reduction requires a single mode without transitions");
+
+		AutomatonMode am = ha.modes.values().iterator().next();
+		AffineDynamics ad = am.getAffineDynamics();
+
+		if (ad == null)
+			throw new AutomatonExportException(
+					"Order reduction requires affine dynamics in mode '" + am.name + "'");
+
+		// partition the variables into states and passive variables
+		SparseMatrix a = ad.getSparseA();
+		List<String> rows = ad.getRowNames();
+		List<String> columns = ad.getColumnNames();
+		int numVars = ad.getNumVariableColumns();
+		ArrayList<String> states = new ArrayList<String>();
+		ArrayList<Integer> stateRows = new ArrayList<Integer>();
+		int[] colToState = new int[columns.size()];
+		Arrays.fill(colToState, -1);
+
+		for (int row = 0; row < rows.size(); ++row)
+		{
+			for (int k = a.getRowStart(row); k < a.getRowEnd(row); ++k)
+			{
+				if (a.getColumnAt(k) < numVars)
+				{
+					colToState[ad.getColumnIndex(rows.get(row))] = states.size();
+					states.add(rows.get(row));
+					stateRows.add(row);
+					break;
+				}
+			}
+		}
+
+		int n = states.size();
+		HashSet<String> stateSet = new HashSet<String>(states);
+
+		if (n == 0)
+			throw new AutomatonExportException("Order reduction found no state variables");
+
+		if (reducedOrder >= n)
+		{
+			Hyst.log("reducedOrder (" + reducedOrder + ") is not less than the number of states ("
+					+ n + "); skipping order reduction");
+			return;
+		}
+
+		// A restricted to the states, and the input columns (passive variables
+		// and constants) which states depend on
+		LinkedHashMap<String, double[]> inputColumns = new LinkedHashMap<String, double[]>();
+		int[] rowStart = new int[n + 1];
+		ArrayList<Integer> cols = new ArrayList<Integer>();
+		ArrayList<Double> vals = new ArrayList<Double>();
+		double[] b = new double[n];
+		Interval[] noise = new Interval[n];
+
+		for (int s = 0; s < n; ++s)
+		{
+			int row = stateRows.get(s);
+			rowStart[s] = cols.size();
+			b[s] = ad.getB()[row];
+			noise[s] = ad.getInput(row);
+
+			for (int k = a.getRowStart(row); k < a.getRowEnd(row); ++k)
+			{
+				int col = a.getColumnAt(k);
+
+				if (colToState[col] != -1)
+				{
+					cols.add(colToState[col]);
+					vals.add(a.getValueAt(k));
+				}
+				else
+				{
+					String name = columns.get(col);
+					double[] column = inputColumns.get(name);
+
+					if (column == null)
+					{
+						column = new double[n];
+						inputColumns.put(name, column);
+					}
+
+					column[s] = a.getValueAt(k);
+				}
+			}
+		}
+
+		rowStart[n] = cols.size();
+		int[] colArray = new int[cols.size()];
+		double[] valArray = new double[vals.size()];
+
+		for (int k = 0; k < colArray.length; ++k)
+		{
+			colArray[k] = cols.get(k);
+			valArray[k] = vals.get(k);
+		}
+
+		SparseMatrix stateA = new SparseMatrix(n, n, rowStart, colArray, valArray);
+
+		// the initial box of the states
+		Expression initExp = config.init.get(am.name);
+
+		if (initExp == null)
+			throw new AutomatonExportException("Order reduction requires an initial state");
+
+		TreeMap<String, Interval> initRanges = RangeExtractor.getVariableRanges(initExp,
+				"initial states");
+		Interval[] initBox = new Interval[n];
+		double[] initCenter = new double[n];
+
+		for (int s = 0; s < n; ++s)
+		{
+			initBox[s] = initRanges.get(states.get(s));
+
+			if (initBox[s] == null)
+				throw new AutomatonExportException(
+						"Initial range not found for variable '" + states.get(s) + "'");
+
+			initCenter[s] = initBox[s].middle();
+		}
+
+		// the Krylov subspace is started from the inputs, the affine term and
+		// the center of the initial set, which are what drive the states
+		ArrayList<double[]> start = new ArrayList<double[]>();
+		start.addAll(inputColumns.values());
+		start.add(b);
+		start.add(initCenter);
+
+		double[][] basis = KrylovProjection.arnoldi(stateA, start, reducedOrder);
+		int r = basis.length;
+		Hyst.log("Krylov subspace dimension: " + r + " (from " + n + " states)");
+
+		if (r == 0)
+			throw new AutomatonExportException(
+					"Order reduction failed: Krylov subspace was empty (all states are always zero)");
+
+		double[][] reducedA = KrylovProjection.projectMatrix(stateA, basis);
+		double[] reducedB = KrylovProjection.projectVector(basis, b);
+		LinkedHashMap<String, double[]> reducedInputs = new LinkedHashMap<String, double[]>();
+
+		for (Entry<String, double[]> e : inputColumns.entrySet())
+			reducedInputs.put(e.getKey(), KrylovProjection.projectVector(basis, e.getValue()));
+
+		// names of the new variables
+		Collection<String> allNames = ha.getAllNames();
+		String[] zNames = new String[r];
+
+		for (int i = 0; i < r; ++i)
+		{
+			zNames[i] = AutomatonUtil.freshName("z" + (i + 1), allNames);
+			allNames.add(zNames[i]);
+		}
+
+		// new flows: z' = Ar z + Br u + br, plus the unchanged passive flows
+		LinkedHashMap<String, ExpressionInterval> newFlows = new LinkedHashMap<String, ExpressionInterval>();
+
+		for (int i = 0; i < r; ++i)
+		{
+			LinkedHashMap<String, Double> terms = new LinkedHashMap<String, Double>();
+
+			for (int j = 0; j < r; ++j)
+				terms.put(zNames[j], reducedA[i][j]);
+
+			for (Entry<String, double[]> e : reducedInputs.entrySet())
+				terms.put(e.getKey(), e.getValue()[i]);
+
+			Interval projectedNoise = null;
+
+			for (int s = 0; s < n; ++s)
+			{
+				if (noise[s] == null || basis[i][s] == 0)
+					continue;
+
+				Interval scaled = Interval.mult(noise[s], basis[i][s]);
+				projectedNoise = projectedNoise == null ? scaled
+						: Interval.add(projectedNoise, scaled);
+			}
+
+			newFlows.put(zNames[i], new ExpressionInterval(
+					makeLinearExpression(terms, reducedB[i]), projectedNoise));
+		}
+
+		for (Entry<String, ExpressionInterval> e : am.flowDynamics.entrySet())
+		{
+			if (!stateSet.contains(e.getKey()))
+				newFlows.put(e.getKey(), e.getValue());
+		}
+
+		// substitute x = V z everywhere else the states are used
+		HashMap<String, Expression> subMap = new HashMap<String, Expression>();
+
+		for (int s = 0; s < n; ++s)
+		{
+			LinkedHashMap<String, Double> terms = new LinkedHashMap<String, Double>();
+
+			for (int i = 0; i < r; ++i)
+				terms.put(zNames[i], basis[i][s]);
+
+			subMap.put(states.get(s), makeLinearExpression(terms, 0));
+		}
+
+		ValueSubstituter vs = new ValueSubstituter(subMap);
+		am.flowDynamics = newFlows;
+		am.invariant = vs.substitute(am.invariant);
+
+		for (Entry<String, Expression> e : config.forbidden.entrySet())
+			e.setValue(vs.substitute(e.getValue()));
+
+		// initial states: the projection of the whole initial box, and the
+		// original ranges of everything else
+		Expression newInit = Constant.TRUE;
+		Interval[] reducedInit = KrylovProjection.projectBox(basis, initBox);
+
+		for (int i = 0; i < r; ++i)
+			newInit = Expression.and(newInit, makeRangeExpression(zNames[i], reducedInit[i]));
+
+		for (Entry<String, Interval> e : initRanges.entrySet())
+		{
+			if (!stateSet.contains(e.getKey()))
+				newInit = Expression.and(newInit,
+						makeRangeExpression(e.getKey(), e.getValue()));
+		}
+
+		config.init.put(am.name, newInit);
+
+		// variables: z first, then the passive variables in their original
+		// order
+		ArrayList<String> newVariables = new ArrayList<String>();
+		newVariables.addAll(Arrays.asList(zNames));
+
+		for (String v : ha.variables)
+		{
+			if (!stateSet.contains(v))
+				newVariables.add(v);
+		}
+
+		ha.variables.clear();
+		ha.variables.addAll(newVariables);
+
+		String[] plotVars = config.settings.plotVariableNames;
+
+		for (int i = 0; i < plotVars.length; ++i)
+		{
+			if (plotVars[i] == null || stateSet.contains(plotVars[i]))
+				plotVars[i] = zNames[Math.min(i, r - 1)];
+		}
+
+		am.invalidateAffineDynamics();
+	}
+
+	/**
+	 * Make the expression sum(coefficient * name) + constant, dropping
+	 * coefficients which are zero up to round-off
+	 *
+	 * @param terms
+	 *            map of variable name -> coefficient, in the order to print
+	 * @param constant
+	 *            the constant term
+	 * @return the expression
+	 */
+	private static Expression makeLinearExpression(Map<String, Double> terms, double constant)
+	{
+		double largest = Math.abs(constant);
+
+		for (double d : terms.values())
+			largest = Math.max(largest, Math.abs(d));
+
+		double tol = largest * COEFFICIENT_TOL;
+		Expression rv = null;
+
+		for (Entry<String, Double> e : terms.entrySet())
+		{
+			double coefficient = e.getValue();
+
+			if (Math.abs(coefficient) <= tol)
+				continue;
+
+			Expression term = new Operation(Operator.MULTIPLY, new Constant(coefficient),
+					new Variable(e.getKey()));
+
+			rv = rv == null ? term : new Operation(Operator.ADD, rv, term);
+		}
+
+		if (rv == null)
+			rv = new Constant(constant);
+		else if (Math.abs(constant) > tol)
+			rv = new Operation(Operator.ADD, rv, new Constant(constant));
+
+		return rv;
+	}
+
+	/**
+	 * Make the expression 'name == val' for point intervals, or 'min <= name &
+	 * name <= max' otherwise
+	 */
+	private static Expression makeRangeExpression(String name, Interval range)
+	{
+		Expression rv;
+
+		if (range.isPoint())
+			rv = new Operation(Operator.EQUAL, new Variable(name), new Constant(range.min));
+		else
+			rv = new Operation(Operator.AND,
+					new Operation(Operator.GREATEREQUAL, new Variable(name),
+							new Constant(range.min)),
+					new Operation(Operator.LESSEQUAL, new Variable(name),
+							new Constant(range.max)));
+
+		return rv;
+	}
+
 	private void removeVariable(BaseComponent ha, String varName)
 	{
 		if (!ha.variables.contains(varName))
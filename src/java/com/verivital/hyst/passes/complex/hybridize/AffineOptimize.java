@@ -1,13 +1,15 @@
 package com.verivital.hyst.passes.complex.hybridize;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
-import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.IntervalEvaluator;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.Operation;
@@ -18,12 +20,17 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
+import com.verivital.hyst.simulation.CompiledJacobian;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.KodiakUtil;
 import com.verivital.hyst.util.StringOperations;
 
 public class AffineOptimize
 {
+	// the maximum number of box splits when bounding one side of one expression
+	// with the "affine#" optimization method
+	public static final int MAX_AFFINE_SPLITS = 10000;
+
 	public static class OptimizationParams
 	{
 		// set these two as input (newdynamics, descriptions of modes)
@@ -69,9 +76,9 @@ public class AffineOptimize
 	 * for example, between a nonlinear derivative and its linear approximation.
 	 * 
 	 * @param optimizationType
-	 *            one of {"basinhopping", "kodiak", "interval", "intervalXXX"
-	 *            where XXX is a real number describing the maximum
-	 *            overapproximation error
+	 *            one of {"basinhopping", "kodiak", "interval", "intervalXXX",
+	 *            "affine", "affineXXX"} where XXX is a real number describing
+	 *            the maximum overapproximation error
 	 * @param params
 	 *            [in/out] the list of OptimizationParams to optimize. Result is
 	 *            stored here
@@ -82,8 +89,6 @@ public class AffineOptimize
 			throw new AutomatonExportException(
 					"createAffineDynamics was called with params list of length 0");
 
-		PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
-
 		ArrayList<Expression> expList = new ArrayList<Expression>();
 		ArrayList<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
 
@@ -95,40 +100,240 @@ public class AffineOptimize
 
 		List<Interval> optimizationResult;
 
-		if (optimizationType.equals("basinhopping"))
-			optimizationResult = PythonUtil.scipyOptimize(expList, boundsList);
-		else if (optimizationType.equals("kodiak"))
-			optimizationResult = KodiakUtil.kodiakOptimize(expList, boundsList);
-		else if (optimizationType.equals("interval"))
-			optimizationResult = PythonUtil.intervalOptimize(expList, boundsList);
-		else if (optimizationType.startsWith("interval"))
+		if (optimizationType.equals("affine"))
+			optimizationResult = taylorOptimize(expList, boundsList, 0);
+		else if (optimizationType.startsWith("affine"))
 		{
-			String num = optimizationType.substring("interval".length());
+			double accuracy = parseAccuracy(optimizationType.substring("affine".length()));
 
-			try
+			optimizationResult = taylorOptimize(expList, boundsList, accuracy);
+		}
+		else
+		{
+			PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
+
+			if (optimizationType.equals("basinhopping"))
+				optimizationResult = PythonUtil.scipyOptimize(expList, boundsList);
+			else if (optimizationType.equals("kodiak"))
+				optimizationResult = KodiakUtil.kodiakOptimize(expList, boundsList);
+			else if (optimizationType.equals("interval"))
+				optimizationResult = PythonUtil.intervalOptimize(expList, boundsList);
+			else if (optimizationType.startsWith("interval"))
 			{
-				double accuracy = Double.parseDouble(num);
-
-				if (accuracy <= 0)
-					throw new AutomatonExportException(
-							"malformed interval optimization param: " + accuracy);
+				double accuracy = parseAccuracy(
+						optimizationType.substring("interval".length()));
 
 				optimizationResult = PythonUtil.intervalOptimizeBounded(expList, boundsList,
 						accuracy);
 			}
-			catch (NumberFormatException e)
-			{
-				throw new AutomatonExportException("invalid interval optimization param", e);
-			}
+			else
+				throw new AutomatonExportException(
+						"Unsupported Optimization Method: " + optimizationType);
 		}
-		else
-			throw new AutomatonExportException(
-					"Unsupported Optimization Method: " + optimizationType);
 
 		// output stored in params.result
 		createOptimizationResult(params, optimizationResult);
 	}
 
+	/**
+	 * Parse the maximum error part of an optimization method like "interval0.1"
+	 * 
+	 * @param num
+	 *            the part after the method name, like "0.1"
+	 * @return the parsed (positive) value
+	 */
+	private static double parseAccuracy(String num)
+	{
+		double rv;
+
+		try
+		{
+			rv = Double.parseDouble(num);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new AutomatonExportException("invalid optimization accuracy param: " + num, e);
+		}
+
+		if (rv <= 0)
+			throw new AutomatonExportException("malformed optimization accuracy param: " + rv);
+
+		return rv;
+	}
+
+	/**
+	 * A box (during optimization) along with an upper bound of the objective in
+	 * the box
+	 */
+	private static class BoundedBox implements Comparable<BoundedBox>
+	{
+		double[] min;
+		double[] max;
+		double bound;
+
+		@Override
+		public int compareTo(BoundedBox o)
+		{
+			return Double.compare(o.bound, bound); // largest bound first
+		}
+	}
+
+	/**
+	 * Bound expressions over boxes in Java, using interval arithmetic tightened
+	 * with a first-order Taylor model (the mean-value form) and monotonicity,
+	 * see IntervalEvaluator. For the differences between a function and its
+	 * linearization, this is usually much tighter than interval arithmetic,
+	 * and doesn't require any external tools.
+	 * 
+	 * If maxError is positive, boxes are split (branch and bound, separately
+	 * for the lower and upper bound) until the distance between each bound and
+	 * the best value sampled at a box center is at most maxError, or
+	 * MAX_AFFINE_SPLITS is reached. The result is sound in either case.
+	 * 
+	 * @param expList
+	 *            the expressions to bound
+	 * @param boundsList
+	 *            the variable bounds for each expression
+	 * @param maxError
+	 *            the maximum overapproximation error, or zero for no splitting
+	 * @return the bounds of each expression
+	 */
+	public static List<Interval> taylorOptimize(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList, double maxError)
+	{
+		if (expList.size() != boundsList.size())
+			throw new AutomatonExportException("number of expression(" + expList.size()
+					+ ") and number of bounds (" + boundsList.size() + ") must match.");
+
+		ArrayList<Interval> rv = new ArrayList<Interval>(expList.size());
+
+		for (int i = 0; i < expList.size(); ++i)
+		{
+			HashMap<String, Interval> bounds = boundsList.get(i);
+			ArrayList<String> vars = new ArrayList<String>(bounds.keySet());
+			IntervalEvaluator ie = new IntervalEvaluator(Arrays.asList(expList.get(i)), vars,
+					true);
+
+			double[] min = new double[vars.size()];
+			double[] max = new double[vars.size()];
+
+			for (int v = 0; v < vars.size(); ++v)
+			{
+				Interval range = bounds.get(vars.get(v));
+				min[v] = range.min;
+				max[v] = range.max;
+			}
+
+			if (maxError <= 0)
+			{
+				double[] outMin = new double[1];
+				double[] outMax = new double[1];
+				ie.evaluate(min, max, outMin, outMax);
+
+				rv.add(new Interval(outMin[0], outMax[0]));
+			}
+			else
+			{
+				double lower = -branchAndBound(ie, min, max, false, maxError);
+				double upper = branchAndBound(ie, min, max, true, maxError);
+
+				rv.add(new Interval(lower, upper));
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Find an upper bound of the maximum of an expression (or of its negation)
+	 * by splitting boxes
+	 * 
+	 * @param ie
+	 *            the evaluator for a single expression
+	 * @param min
+	 *            the lower bounds of the box
+	 * @param max
+	 *            the upper bounds of the box
+	 * @param upper
+	 *            true to bound the expression, false to bound its negation
+	 * @param maxError
+	 *            the distance to the best sampled value where splitting can
+	 *            stop
+	 * @return the upper bound
+	 */
+	private static double branchAndBound(IntervalEvaluator ie, double[] min, double[] max,
+			boolean upper, double maxError)
+	{
+		double[] outMin = new double[1];
+		double[] outMax = new double[1];
+		PriorityQueue<BoundedBox> queue = new PriorityQueue<BoundedBox>();
+		double bestSample = Double.NEGATIVE_INFINITY;
+		int splits = 0;
+
+		BoundedBox start = new BoundedBox();
+		start.min = min;
+		start.max = max;
+		ie.evaluate(min, max, outMin, outMax);
+		start.bound = upper ? outMax[0] : -outMin[0];
+		queue.add(start);
+
+		while (!queue.isEmpty())
+		{
+			BoundedBox top = queue.peek();
+
+			if (top.bound - bestSample <= maxError)
+				break;
+
+			if (splits++ >= MAX_AFFINE_SPLITS)
+			{
+				Hyst.log("Warning: affine optimization reached the maximum number of splits ("
+						+ MAX_AFFINE_SPLITS + "); the bound may exceed the requested accuracy");
+				break;
+			}
+
+			queue.poll();
+
+			// split in the widest dimension
+			int dim = 0;
+
+			for (int d = 1; d < min.length; ++d)
+			{
+				if (top.max[d] - top.min[d] > top.max[dim] - top.min[dim])
+					dim = d;
+			}
+
+			double mid = (top.min[dim] + top.max[dim]) / 2;
+
+			for (int side = 0; side < 2; ++side)
+			{
+				BoundedBox child = new BoundedBox();
+				child.min = top.min.clone();
+				child.max = top.max.clone();
+
+				if (side == 0)
+					child.max[dim] = mid;
+				else
+					child.min[dim] = mid;
+
+				double[] center = new double[min.length];
+
+				for (int d = 0; d < min.length; ++d)
+					center[d] = (child.min[d] + child.max[d]) / 2;
+
+				ie.evaluate(center, center, outMin, outMax);
+				bestSample = Math.max(bestSample, upper ? outMax[0] : -outMin[0]);
+
+				ie.evaluate(child.min, child.max, outMin, outMax);
+				child.bound = upper ? outMax[0] : -outMin[0];
+
+				if (child.bound > bestSample)
+					queue.add(child);
+			}
+		}
+
+		return queue.isEmpty() ? bestSample : queue.peek().bound;
+	}
+
 	/**
 	 * Populate the result data structures after the optimization was performed
 	 * 
@@ -254,7 +459,8 @@ public class AffineOptimize
 	}
 
 	/**
-	 * Create an affine approximation based on sampling the given dynamics
+	 * Create an affine approximation of the given dynamics, by linearizing
+	 * exactly at the center of the bounds
 	 * 
 	 * @param nonlinear
 	 *            the input dynamics
@@ -264,18 +470,70 @@ public class AffineOptimize
 	 */
 	public static LinkedHashMap<String, ExpressionInterval> affineApprox(
 			LinkedHashMap<String, ExpressionInterval> nonlinear, HashMap<String, Interval> bounds)
+	{
+		ArrayList<String> orderedVariables = new ArrayList<String>(nonlinear.keySet());
+		CompiledJacobian jac = new CompiledJacobian(nonlinear, orderedVariables);
+
+		return affineApprox(Arrays.asList(jac), orderedVariables, bounds, true);
+	}
+
+	/**
+	 * Create an affine approximation of the average of several dynamics, which
+	 * matches the average flow at the center of the bounds. The slopes are
+	 * either the exact Jacobian at the center, or secants across half the
+	 * width of the bounds in each direction (as in
+	 * AutomatonUtil.estimateJacobian). Both are linear in the flow, so this is
+	 * the same as linearizing the average dynamics, but lets callers compile
+	 * each mode's flow only once.
+	 * 
+	 * @param jacobians
+	 *            the compiled dynamics to average (at least one)
+	 * @param orderedVariables
+	 *            the variables, in the order used by the jacobians
+	 * @param bounds
+	 *            the bounds where to take the approximation
+	 * @param exact
+	 *            use the exact Jacobian at the center (true), or secants
+	 *            across the bounds (false)
+	 * @return output (linear) dynamics which are close to the average of the
+	 *         nonlinear ones
+	 */
+	public static LinkedHashMap<String, ExpressionInterval> affineApprox(
+			List<CompiledJacobian> jacobians, List<String> orderedVariables,
+			HashMap<String, Interval> bounds, boolean exact)
 	{
 		double TOL = 1e-9;
 		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
-		int numVars = nonlinear.size();
-		double[][] jac = AutomatonUtil.estimateJacobian(nonlinear, bounds);
-		ArrayList<String> orderedVariables = new ArrayList<String>(); // same
-																		// ordering
-																		// as
-																		// the
-																		// flow
-																		// hashmap
-		orderedVariables.addAll(nonlinear.keySet());
+		int numVars = orderedVariables.size();
+
+		if (jacobians.isEmpty())
+			throw new AutomatonExportException("affineApprox called with no dynamics");
+
+		double[] center = AutomatonUtil
+				.boundsCenter(bounds, new ArrayList<String>(orderedVariables)).dims;
+		double[] sampleOffsets = new double[numVars];
+
+		for (int i = 0; i < numVars; ++i)
+			sampleOffsets[i] = bounds.get(orderedVariables.get(i)).width() / 2;
+
+		// average the jacobians and flows at the center
+		double[][] jac = new double[numVars][numVars];
+		double[] centerVal = new double[numVars];
+		double scale = 1.0 / jacobians.size();
+
+		for (CompiledJacobian cj : jacobians)
+		{
+			double[][] j = exact ? cj.evaluate(center) : cj.estimate(center, sampleOffsets);
+			double[] val = cj.evaluateFlow(center);
+
+			for (int y = 0; y < numVars; ++y)
+			{
+				centerVal[y] += scale * val[y];
+
+				for (int x = 0; x < numVars; ++x)
+					jac[y][x] += scale * j[y][x];
+			}
+		}
 
 		for (int derVar = 0; derVar < numVars; ++derVar)
 		{
@@ -283,8 +541,8 @@ public class AffineOptimize
 
 			// linear estimate is: JAC[derVar][0] * var0 + JAC[derVar][1] * var1
 			// + ...
-			Expression nonlinearE = nonlinear.get(var).asExpression();
 			Expression linearized = null;
+			double linVal = 0;
 
 			for (int partialVar = 0; partialVar < numVars; ++partialVar)
 			{
@@ -299,6 +557,8 @@ public class AffineOptimize
 					linearized = term;
 				else
 					linearized = new Operation(Operator.ADD, linearized, term);
+
+				linVal += jac[derVar][partialVar] * center[partialVar];
 			}
 
 			// if jacobian was zero for all directions
@@ -307,12 +567,7 @@ public class AffineOptimize
 
 			// the offset constant is computed by computing f_lin(center)
 			// and adding a constant to make it equal to f_nonlin(center)
-			HyperPoint center = AutomatonUtil.boundsCenter(bounds, orderedVariables);
-			double linVal = AutomatonUtil.evaluateExpression(linearized, center, orderedVariables);
-			double nonlinVal = AutomatonUtil.evaluateExpression(nonlinearE, center,
-					orderedVariables);
-
-			double offset = nonlinVal - linVal;
+			double offset = centerVal[derVar] - linVal;
 
 			if (offset < -TOL)
 				linearized = new Operation(Operator.SUBTRACT, linearized, new Constant(-offset));
@@ -1,15 +1,20 @@
 package com.verivital.hyst.passes.complex.hybridize;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.kohsuke.args4j.Option;
 
+import com.verivital.hyst.geometry.BoxSet;
 import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.HyperRectangle;
+import com.verivital.hyst.geometry.HyperRectangleIndex;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
@@ -30,7 +35,9 @@ import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationParams;
 import com.verivital.hyst.passes.complex.pi.PseudoInvariantPass;
+import com.verivital.hyst.simulation.CompiledJacobian;
 import com.verivital.hyst.util.HyperRectangleArrayOptionHandler;
+import com.verivital.hyst.util.Polynomial;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
@@ -74,9 +81,15 @@ import com.verivital.hyst.util.StringOperations;
  * In addition to these parameters from the paper, the optimization method can
  * be chosen:
  * 
- * opt the optimization method, one of {basinhopping, interval, intervalXYZ}
- * where XYZ is the maximum overapproximation error (low values in high
- * dimensions may take longer)
+ * opt the optimization method, one of {basinhopping, interval, intervalXYZ,
+ * affine, affineXYZ} where XYZ is the maximum overapproximation error (low
+ * values in high dimensions may take longer). The affine methods run in Java,
+ * using a first-order Taylor model rather than plain interval arithmetic.
+ * 
+ * linearization how the affine dynamics are chosen before their error is
+ * bounded, either exact (the Jacobian at the center of each domain, the
+ * default) or secant (slopes between samples half a domain width from the
+ * center). Flows that can't be differentiated symbolically use sampled slopes.
  * 
  * Additionally, the user can (optionally) specify a trigger mode which
  * indicates the transformation should begin; otherwise it begins at time 0.
@@ -116,7 +129,7 @@ public class HybridizeMTRawPass extends TransformationPass
 	// O or optimization
 	@Option(name = "-O", aliases = {
 			"-opt" }, usage = "the optimization method, one of {basinhopping, kodiak, interval, interval#, "
-					+ "where # is the max error, like 0.1}", metaVar = "METHOD")
+					+ "affine, affine#, where # is the max error, like 0.1}", metaVar = "METHOD")
 	String opt = "basinhopping";
 
 	@Option(name = "-T", aliases = {
@@ -127,6 +140,20 @@ public class HybridizeMTRawPass extends TransformationPass
 	@Option(name = "-noerror", usage = "do not insert the forbidden DCEM mode (useful for plotting)")
 	boolean noError = false;
 
+	@Option(name = "-merge", usage = "after optimization, merge runs of consecutive time-triggered "
+			+ "modes whose affine dynamics (coefficients and error intervals) are within TOL of the "
+			+ "first mode in the run; merged modes are re-optimized over the union of their domains",
+			metaVar = "TOL")
+	double mergeTol = -1;
+
+	@Option(name = "-linearization", usage = "how the affine dynamics are chosen before the error "
+			+ "is bounded, one of {exact, secant}: the exact jacobian at the center of each domain, "
+			+ "or secants across half of its width in each direction", metaVar = "METHOD")
+	String linearization = LINEARIZE_EXACT;
+
+	public static final String LINEARIZE_EXACT = "exact";
+	public static final String LINEARIZE_SECANT = "secant";
+
 	private BaseComponent ha;
 	private static final String TT_VARIABLE = "_tt";
 	private int ttVarIndex = -1;
@@ -242,7 +269,11 @@ public class HybridizeMTRawPass extends TransformationPass
 
 		// this populates modeChain
 		constructChain();
-		runOptimization(opt, getNonChainModes(), modeChain, modeChainInvariants);
+		runOptimization(opt, isExact(linearization), getNonChainModes(), modeChain,
+				modeChainInvariants, null);
+
+		if (mergeTol >= 0)
+			mergeChainModes();
 
 		redirectStart();
 
@@ -383,7 +414,7 @@ public class HybridizeMTRawPass extends TransformationPass
 	 * 
 	 * @param optimizationType
 	 *            the optimization engine to use, one of "basinhopping",
-	 *            "kodiak", "interval", "intervalXX"
+	 *            "kodiak", "interval", "intervalXX", "affine", "affineXX"
 	 * @param oldModes
 	 *            The list of all modes in the original automaton
 	 * @param modeChain
@@ -393,15 +424,57 @@ public class HybridizeMTRawPass extends TransformationPass
 	 */
 	public static void runOptimization(String optimizationType, Collection<AutomatonMode> oldModes,
 			List<AutomatonMode> modeChain, List<HyperRectangle> rects)
+	{
+		runOptimization(optimizationType, true, oldModes, modeChain, rects, null);
+	}
+
+	/**
+	 * Check a linearization parameter
+	 * 
+	 * @param linearization
+	 *            LINEARIZE_EXACT or LINEARIZE_SECANT
+	 * @return true if the linearization is exact
+	 */
+	public static boolean isExact(String linearization)
+	{
+		if (!linearization.equals(LINEARIZE_EXACT) && !linearization.equals(LINEARIZE_SECANT))
+			throw new AutomatonExportException("unknown linearization: " + linearization);
+
+		return linearization.equals(LINEARIZE_EXACT);
+	}
+
+	/**
+	 * Do linear approximation over the modes in the chain, reusing previously
+	 * optimized dynamics where they're known
+	 * 
+	 * @param optimizationType
+	 *            the optimization engine to use
+	 * @param exact
+	 *            linearize with the exact jacobian (true) or secants (false)
+	 * @param oldModes
+	 *            The list of all modes in the original automaton
+	 * @param modeChain
+	 *            the list of modes in the chain
+	 * @param rects
+	 *            the box invariant sets corresponding to each mode in the chain
+	 * @param knownDynamics
+	 *            if nonnull, the already-optimized dynamics of each chain mode
+	 *            (over the same domain), or null entries for modes which should
+	 *            be optimized
+	 */
+	private static void runOptimization(String optimizationType, boolean exact,
+			Collection<AutomatonMode> oldModes, List<AutomatonMode> modeChain,
+			List<HyperRectangle> rects, List<Map<String, ExpressionInterval>> knownDynamics)
 	{
 		if (modeChain.size() == 0)
 			throw new AutomatonExportException("runOptimization was called an empty modeChain");
 
 		Hyst.logDebug("runOptimization called with oldModes = " + oldModes);
 
-		List<String> vars = getNonTTVaraibles(modeChain.get(0).automaton);
+		OriginalModes original = new OriginalModes(oldModes);
 
 		List<OptimizationParams> params = new ArrayList<OptimizationParams>();
+		List<OptimizationParams> toOptimize = new ArrayList<OptimizationParams>();
 
 		// parallel lists for every mode in the mode chain
 		int chainLen = modeChain.size();
@@ -411,18 +484,26 @@ public class HybridizeMTRawPass extends TransformationPass
 		{
 			HyperRectangle box = rects.get(i);
 
-			List<AutomatonMode> boxIntersects = getIntersectingModes(oldModes, box);
+			List<AutomatonMode> boxIntersects = original.query(box);
 			boxIntersectsCount.add(boxIntersects.size());
 
-			LinkedHashMap<String, ExpressionInterval> avgFlow = getAverageFlow(boxIntersects);
-			OptimizationParams op = new OptimizationParams();
+			Hyst.logDebug("Processing " + modeChain.get(i).name);
+			OptimizationParams op;
 
-			HashMap<String, Interval> bounds = toVariableBounds(box, vars);
-			op.newDynamics = AffineOptimize.affineApprox(avgFlow, bounds);
-			params.add(op);
+			if (knownDynamics != null && knownDynamics.get(i) != null)
+			{
+				op = new OptimizationParams();
 
-			Hyst.logDebug("Processing " + modeChain.get(i).name + ", avgDynamics = "
-					+ StringOperations.makeDefaultEiMapString(avgFlow));
+				for (Entry<String, ExpressionInterval> e : knownDynamics.get(i).entrySet())
+					op.result.put(e.getKey(), e.getValue().copy());
+			}
+			else
+			{
+				op = makeOptimizationParams(box, boxIntersects, original, exact);
+				toOptimize.add(op);
+			}
+
+			params.add(op);
 
 			// update the invariant if they're all equal
 			Expression invariant = boxIntersects.get(0).invariant;
@@ -441,19 +522,10 @@ public class HybridizeMTRawPass extends TransformationPass
 
 			if (invariant != Constant.TRUE)
 				modeChain.get(i).invariant = Expression.and(invariant, modeChain.get(i).invariant);
-
-			for (int imIndex = 0; imIndex < boxIntersects.size(); ++imIndex)
-			{
-				AutomatonMode mode = boxIntersects.get(imIndex);
-				OptimizationModeParams modeParams = new OptimizationModeParams();
-				op.origModes.add(modeParams);
-
-				modeParams.bounds = invIntersection(mode, box);
-				modeParams.origDynamics = removeTTFlow(mode.flowDynamics);
-			}
 		}
 
-		AffineOptimize.optimizeDynamics(optimizationType, params);
+		if (!toOptimize.isEmpty())
+			AffineOptimize.optimizeDynamics(optimizationType, toOptimize);
 
 		for (int i = 0; i < chainLen; ++i)
 		{
@@ -467,6 +539,262 @@ public class HybridizeMTRawPass extends TransformationPass
 		}
 	}
 
+	/**
+	 * Compact the optimized chain by merging runs of consecutive time-triggered
+	 * modes with equivalent dynamics (within mergeTol of the first mode in the
+	 * run). If anything is merged, the chain is rebuilt with the merged
+	 * domains (the bounding box of the run, with the dwell times added), and
+	 * the merged modes are re-optimized over their new domain so the
+	 * abstraction remains sound. Modes which aren't merged keep their dynamics.
+	 */
+	private void mergeChainModes()
+	{
+		List<String> vars = getNonTTVaraibles(ha);
+		List<SplittingElement> newSplitElements = new ArrayList<SplittingElement>();
+		List<HyperRectangle> newDomains = new ArrayList<HyperRectangle>();
+		List<Map<String, ExpressionInterval>> knownDynamics = new ArrayList<Map<String, ExpressionInterval>>();
+		int chainLen = modeChain.size();
+
+		for (int start = 0; start < chainLen;)
+		{
+			int end = start + 1;
+
+			if (isTimeTriggered(start))
+			{
+				while (end < chainLen && isTimeTriggered(end) && equivalentDynamics(
+						modeChain.get(start), modeChain.get(end), vars, mergeTol))
+					++end;
+			}
+
+			if (end - start == 1)
+			{
+				if (start < splitElements.size())
+					newSplitElements.add(splitElements.get(start));
+
+				newDomains.add(domains.get(start));
+				knownDynamics.add(removeTTFlow(modeChain.get(start).flowDynamics));
+			}
+			else
+			{
+				double time = 0;
+				HyperRectangle domain = domains.get(start);
+
+				for (int i = start; i < end; ++i)
+				{
+					time += ((TimeSplittingElement) splitElements.get(i)).time;
+					domain = HyperRectangle.union(domain, domains.get(i));
+				}
+
+				Hyst.logDebug("Merging chain modes " + modeChain.get(start).name + " to "
+						+ modeChain.get(end - 1).name + " into domain " + domain);
+
+				newSplitElements.add(new TimeSplittingElement(time));
+				newDomains.add(domain);
+				knownDynamics.add(null);
+			}
+
+			start = end;
+		}
+
+		if (newDomains.size() < chainLen)
+		{
+			Hyst.log("Merged " + chainLen + " hybridization chain modes into " + newDomains.size());
+
+			List<AutomatonMode> oldModes = getNonChainModes();
+			removeChain();
+
+			splitElements = newSplitElements;
+			domains = newDomains;
+
+			constructChain();
+			runOptimization(opt, isExact(linearization), oldModes, modeChain,
+					modeChainInvariants, knownDynamics);
+		}
+	}
+
+	/**
+	 * Is the chain mode at the given index followed by a time-triggered
+	 * transition?
+	 */
+	private boolean isTimeTriggered(int chainIndex)
+	{
+		return chainIndex < splitElements.size()
+				&& splitElements.get(chainIndex) instanceof TimeSplittingElement;
+	}
+
+	/**
+	 * Check if two modes have the same affine dynamics, up to a tolerance
+	 * 
+	 * @param a
+	 *            one mode
+	 * @param b
+	 *            the other mode
+	 * @param vars
+	 *            the variables to compare
+	 * @param tol
+	 *            the maximum difference in each coefficient, constant term,
+	 *            and error interval bound
+	 * @return true if the dynamics are equivalent (false if either are not
+	 *         affine)
+	 */
+	private static boolean equivalentDynamics(AutomatonMode a, AutomatonMode b,
+			List<String> vars, double tol)
+	{
+		boolean rv = true;
+
+		for (String var : vars)
+		{
+			ExpressionInterval eiA = a.flowDynamics.get(var);
+			ExpressionInterval eiB = b.flowDynamics.get(var);
+			Polynomial polyA = Polynomial.fromExpression(eiA.getExpression());
+			Polynomial polyB = Polynomial.fromExpression(eiB.getExpression());
+
+			if (polyA == null || polyB == null
+					|| polyA.add(polyB, -1).chop(tol).getNumTerms() != 0)
+			{
+				rv = false;
+				break;
+			}
+
+			Interval iA = eiA.getInterval() == null ? new Interval(0) : eiA.getInterval();
+			Interval iB = eiB.getInterval() == null ? new Interval(0) : eiB.getInterval();
+
+			if (Math.abs(iA.min - iB.min) > tol || Math.abs(iA.max - iB.max) > tol)
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Remove the constructed chain modes, and all transitions to or from them
+	 */
+	private void removeChain()
+	{
+		ArrayList<AutomatonTransition> toRemove = new ArrayList<AutomatonTransition>();
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			if (modeChain.contains(at.from) || modeChain.contains(at.to))
+				toRemove.add(at);
+		}
+
+		ha.transitions.removeAll(toRemove);
+
+		for (AutomatonMode am : modeChain)
+			ha.modes.remove(am.name);
+
+		modeChain.clear();
+		modeChainInvariants.clear();
+		chainModeCount = 0;
+	}
+
+	/**
+	 * Create the optimization parameters for a single domain: the affine
+	 * approximation of the average dynamics of the modes intersecting the
+	 * domain, compared against each of those modes
+	 * 
+	 * @param box
+	 *            the domain
+	 * @param boxIntersects
+	 *            the original modes whose invariants intersect box
+	 * @param original
+	 *            the original modes, with their invariant boxes and jacobians
+	 * @param exact
+	 *            linearize with the exact jacobian (true) or secants (false)
+	 * @return the parameters, ready to be passed to
+	 *         AffineOptimize.optimizeDynamics()
+	 */
+	private static OptimizationParams makeOptimizationParams(HyperRectangle box,
+			List<AutomatonMode> boxIntersects, OriginalModes original, boolean exact)
+	{
+		OptimizationParams rv = new OptimizationParams();
+		List<String> vars = original.vars;
+		List<CompiledJacobian> jacobians = new ArrayList<CompiledJacobian>(boxIntersects.size());
+
+		for (AutomatonMode mode : boxIntersects)
+			jacobians.add(original.getJacobian(mode));
+
+		Hyst.logDebug("linearizing average dynamics of modes: " + boxIntersects);
+
+		HashMap<String, Interval> bounds = toVariableBounds(box, vars);
+		rv.newDynamics = AffineOptimize.affineApprox(jacobians, vars, bounds, exact);
+
+		for (AutomatonMode mode : boxIntersects)
+		{
+			OptimizationModeParams modeParams = new OptimizationModeParams();
+			rv.origModes.add(modeParams);
+
+			modeParams.bounds = invIntersection(original.modeBoxes.get(mode), box, vars);
+			modeParams.origDynamics = removeTTFlow(mode.flowDynamics);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Measure how well the affine approximation constructed by
+	 * runOptimization() would fit the original dynamics over a domain, without
+	 * constructing any modes. This is used to choose adaptive time-triggered
+	 * steps.
+	 * 
+	 * @param optimizationType
+	 *            the optimization engine to use, one of "basinhopping",
+	 *            "kodiak", "interval", "intervalXX", "affine", "affineXX"
+	 * @param oldModes
+	 *            The list of all modes in the original automaton
+	 * @param box
+	 *            the domain (over the original variables)
+	 * @return the largest width of the approximation error interval among all
+	 *         the variables
+	 */
+	public static double measureApproximationError(String optimizationType,
+			Collection<AutomatonMode> oldModes, HyperRectangle box)
+	{
+		return measureApproximationError(optimizationType, true, new OriginalModes(oldModes),
+				box);
+	}
+
+	/**
+	 * Measure how well the affine approximation constructed by
+	 * runOptimization() would fit the original dynamics over a domain. Callers
+	 * which measure many domains should reuse the same OriginalModes, so the
+	 * modes are only indexed and differentiated once.
+	 * 
+	 * @param optimizationType
+	 *            the optimization engine to use
+	 * @param exact
+	 *            linearize with the exact jacobian (true) or secants (false)
+	 * @param original
+	 *            the modes of the original automaton
+	 * @param box
+	 *            the domain (over the original variables)
+	 * @return the largest width of the approximation error interval among all
+	 *         the variables
+	 */
+	public static double measureApproximationError(String optimizationType, boolean exact,
+			OriginalModes original, HyperRectangle box)
+	{
+		OptimizationParams op = makeOptimizationParams(box, original.query(box), original,
+				exact);
+		AffineOptimize.optimizeDynamics(optimizationType, Arrays.asList(op));
+
+		double rv = 0;
+
+		for (ExpressionInterval ei : op.result.values())
+		{
+			Interval i = ei.getInterval();
+
+			if (i != null)
+				rv = Math.max(rv, i.width());
+		}
+
+		return rv;
+	}
+
 	private static LinkedHashMap<String, ExpressionInterval> removeTTFlow(
 			LinkedHashMap<String, ExpressionInterval> flowDynamics)
 	{
@@ -500,19 +828,21 @@ public class HybridizeMTRawPass extends TransformationPass
 
 	/**
 	 * Get the intersection (as a hashmap of var->intervals) of a mode's
-	 * invariant and a box
+	 * invariant box and a box
 	 * 
-	 * @param am
-	 *            the mode
+	 * @param invBox
+	 *            the mode's invariant box
 	 * @param box
-	 * @return
+	 *            the other box
+	 * @param vars
+	 *            the variable names for each dimension of the boxes
+	 * @return the intersection
 	 */
-	private static HashMap<String, Interval> invIntersection(AutomatonMode am, HyperRectangle box)
+	private static HashMap<String, Interval> invIntersection(HyperRectangle invBox,
+			HyperRectangle box, List<String> vars)
 	{
 		HashMap<String, Interval> rv = new HashMap<String, Interval>();
-		List<String> vars = getNonTTVaraibles(am.automaton);
 
-		HyperRectangle invBox = expressionToBox(am.invariant, vars);
 		HyperRectangle inter = HyperRectangle.intersection(invBox, box);
 		int i = 0;
 
@@ -522,49 +852,6 @@ public class HybridizeMTRawPass extends TransformationPass
 		return rv;
 	}
 
-	private static LinkedHashMap<String, ExpressionInterval> getAverageFlow(
-			List<AutomatonMode> modeList)
-	{
-		LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
-		List<String> vars = getNonTTVaraibles(modeList.get(0).automaton);
-
-		Hyst.logDebug("getting avg dynamics of modes: " + modeList);
-
-		for (AutomatonMode am : modeList)
-		{
-			for (String var : vars)
-			{
-				Expression e = am.flowDynamics.get(var).asExpression(); // intervals
-																		// not
-																		// allowed
-																		// so
-																		// far
-				ExpressionInterval cur = rv.get(var);
-
-				if (cur != null)
-					rv.put(var, new ExpressionInterval(
-							new Operation(Operator.ADD, e, cur.asExpression())));
-				else
-					rv.put(var, new ExpressionInterval(e));
-			}
-		}
-
-		// divide by num expression
-		int numExpressions = modeList.size();
-
-		for (String var : vars)
-		{
-			Expression cur = rv.get(var).asExpression();
-
-			rv.put(var, new ExpressionInterval(
-					new Operation(Operator.DIVIDE, cur, new Constant(numExpressions))));
-		}
-
-		Hyst.logDebug("computed avg dynamics: " + StringOperations.makeDefaultEiMapString(rv));
-
-		return rv;
-	}
-
 	/**
 	 * Convert an invariant expression to a hyper rectangle
 	 * 
@@ -614,25 +901,34 @@ public class HybridizeMTRawPass extends TransformationPass
 		return rv;
 	}
 
-	private static List<AutomatonMode> getIntersectingModes(Collection<AutomatonMode> oldModes,
-			HyperRectangle box)
+	/**
+	 * Build a spatial index over the invariant boxes of the given modes
+	 * 
+	 * @param modes
+	 *            the modes to index
+	 * @param vars
+	 *            the variables, in order (excluding the time-triggered
+	 *            variable)
+	 * @param modeBoxes
+	 *            output: the invariant box of each mode is stored here
+	 * @return the index
+	 */
+	private static HyperRectangleIndex<AutomatonMode> makeModeIndex(
+			Collection<AutomatonMode> modes, List<String> vars,
+			Map<AutomatonMode, HyperRectangle> modeBoxes)
 	{
-		assert oldModes.size() > 0;
-
-		ArrayList<AutomatonMode> rv = new ArrayList<AutomatonMode>();
-
-		// remove time-triggered variable
-		List<String> vars = getNonTTVaraibles(oldModes.iterator().next().automaton);
+		List<AutomatonMode> modeList = new ArrayList<AutomatonMode>(modes);
+		BoxSet boxes = new BoxSet(vars.size());
 
-		for (AutomatonMode am : oldModes)
+		for (AutomatonMode am : modeList)
 		{
 			HyperRectangle modeBox = expressionToBox(am.invariant, vars);
 
-			if (HyperRectangle.intersection(modeBox, box) != null)
-				rv.add(am);
+			modeBoxes.put(am, modeBox);
+			boxes.add(modeBox);
 		}
 
-		return rv;
+		return new HyperRectangleIndex<AutomatonMode>(boxes, modeList);
 	}
 
 	private void redirectStart()
@@ -983,9 +1279,12 @@ public class HybridizeMTRawPass extends TransformationPass
 		if (domains.size() == 0)
 			throw new AutomatonExportException("expected at least one domain");
 
-		if (!opt.equals("basinhopping") && !opt.equals("kodiak") && !opt.startsWith("interval"))
+		if (!opt.equals("basinhopping") && !opt.equals("kodiak") && !opt.startsWith("interval")
+				&& !opt.startsWith("affine"))
 			throw new AutomatonExportException("unknown optimization method: " + opt);
 
+		isExact(linearization);
+
 		int numDims = config.root.variables.size();
 
 		for (SplittingElement se : splitElements)
@@ -1030,6 +1329,68 @@ public class HybridizeMTRawPass extends TransformationPass
 		}
 	}
 
+	/**
+	 * The modes of the original automaton, indexed by their invariant boxes,
+	 * with a cache of each mode's compiled flow and jacobian, so that looking
+	 * up and linearizing many domains indexes and differentiates each mode
+	 * only once. The modes must not be changed while this is in use.
+	 */
+	public static class OriginalModes
+	{
+		private final List<String> vars;
+		private final HashMap<AutomatonMode, HyperRectangle> modeBoxes = new HashMap<AutomatonMode, HyperRectangle>();
+		private final HyperRectangleIndex<AutomatonMode> index;
+		private final HashMap<AutomatonMode, CompiledJacobian> jacobians = new HashMap<AutomatonMode, CompiledJacobian>();
+
+		/**
+		 * Index the given modes
+		 * 
+		 * @param modes
+		 *            the (nonempty) modes of the original automaton
+		 */
+		public OriginalModes(Collection<AutomatonMode> modes)
+		{
+			if (modes.isEmpty())
+				throw new AutomatonExportException("hybridization called with no original modes");
+
+			vars = getNonTTVaraibles(modes.iterator().next().automaton);
+			index = makeModeIndex(modes, vars, modeBoxes);
+		}
+
+		/**
+		 * Get the modes whose invariants intersect a domain
+		 * 
+		 * @param box
+		 *            the domain
+		 * @return the (nonempty) list of modes
+		 * @throws AutomatonExportException
+		 *             if no invariant intersects the domain
+		 */
+		private List<AutomatonMode> query(HyperRectangle box)
+		{
+			List<AutomatonMode> rv = index.query(box);
+
+			if (rv.isEmpty())
+				throw new AutomatonExportException(
+						"Hybridization domain did not intersect any mode invariant: " + box);
+
+			return rv;
+		}
+
+		private CompiledJacobian getJacobian(AutomatonMode mode)
+		{
+			CompiledJacobian rv = jacobians.get(mode);
+
+			if (rv == null)
+			{
+				rv = new CompiledJacobian(removeTTFlow(mode.flowDynamics), vars);
+				jacobians.put(mode, rv);
+			}
+
+			return rv;
+		}
+	}
+
 	public static class SplittingElement
 	{
 
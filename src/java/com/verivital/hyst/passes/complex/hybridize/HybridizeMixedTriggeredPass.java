@@ -1,18 +1,28 @@
 package com.verivital.hyst.passes.complex.hybridize;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Random;
 import java.util.TreeMap;
 
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import com.verivital.hyst.geometry.BoxSampler;
+import com.verivital.hyst.geometry.CornerIterator;
 import com.verivital.hyst.geometry.HyperPoint;
 import com.verivital.hyst.geometry.HyperRectangle;
-import com.verivital.hyst.geometry.HyperRectangleCornerEnumerator;
 import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.PointSet;
 import com.verivital.hyst.geometry.SymbolicStatePoint;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
@@ -26,12 +36,12 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SplittingE
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.TimeSplittingElement;
 import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.TrajectoryReader;
+import com.verivital.hyst.simulation.TrajectoryWriter;
 import com.verivital.hyst.util.AutomatonUtil;
-import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.RangeExtractor;
-import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
-import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
-import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.StringOperations;
 
 /**
  * This is the simulation-based mixed-triggered hybridization pass. Its
@@ -44,9 +54,15 @@ import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
  * The maximum time, T
  * 
  * The simulation strategy, S, one of
- * {center|star|corners|starcorners|rand10|rand#}
+ * {center|star|corners|starcorners|rand10|rand#|sobol#|halton#|lhs#}, where
+ * rand# picks random points on the boundary of the initial box, and sobol#,
+ * halton# and lhs# spread # points evenly over the box (quasi-random sequences
+ * or a Latin hypercube sample). The center is always simulated.
  * 
- * The time-triggered timestep, delta_tt
+ * The time-triggered timestep, delta_tt (the initial step, if the step is
+ * adaptive)
+ * 
+ * The target approximation error for adaptive time-triggered steps (optional)
  * 
  * The number of space-triggered transitions, n_pi
  * 
@@ -55,6 +71,14 @@ import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
  * 
  * The bloating term, epsilon
  * 
+ * The simulation engine, python (pysim, all points advanced in lock-step by a
+ * single process) or java (each point advanced independently and concurrently)
+ * 
+ * Optionally, a cache file can store the simulation results (the splitting
+ * elements and the domains before bloating), so that re-running with only
+ * different downstream parameters (epsilon, the optimization method, noerror)
+ * skips simulation and only redoes the construction and optimization.
+ * 
  * @author Stanley Bak
  *
  */
@@ -65,11 +89,16 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	double timeMax;
 
 	// The simulation strategy, S, one of
-	// {center|star|corners|starcorners|rand10|rand#}
+	// {center|star|corners|starcorners|rand10|rand#|sobol#|halton#|lhs#}
 	@Option(name = "-S", aliases = {
-			"-simstrat" }, usage = "The simulation strategy, S, one of {center|star|corners|starcorners|rand10|rand#}", metaVar = "SIMTYPE")
+			"-simstrat" }, usage = "The simulation strategy, S, one of {center|star|corners|starcorners|rand10|rand#|sobol#|halton#|lhs#}", metaVar = "SIMTYPE")
 	String simTypeString = "center";
 
+	@Option(name = "-max_corners", usage = "for the corners and starcorners simulation strategies, "
+			+ "the maximum number of corners to simulate; if the initial box has more, a fixed "
+			+ "random subset of corners is used (default: all corners)", metaVar = "NUM")
+	int maxCorners = 0;
+
 	// The time-triggered time step, delta_tt
 	@Option(name = "-delta_tt", required = true, usage = "The time-triggered time step", metaVar = "TIME")
 	double timeStep;
@@ -90,16 +119,56 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	// O or optimization
 	@Option(name = "-O", aliases = {
 			"-opt" }, usage = "the optimization method, one of {basinhopping, kodiak, interval, interval#, "
-					+ "where # is the max error, like 0.1}", metaVar = "METHOD")
+					+ "affine, affine#, where # is the max error, like 0.1}", metaVar = "METHOD")
 	String opt = "basinhopping";
 
+	@Option(name = "-simengine", usage = "the simulation engine, one of {python|java}; java simulates "
+			+ "every point independently and concurrently in the JVM, and stops pseudo-invariant "
+			+ "simulations exactly at the hyperplane", metaVar = "ENGINE")
+	String simEngine = SIM_ENGINE_PYTHON;
+
+	@Option(name = "-tt_target_err", usage = "use adaptive time-triggered steps, growing or shrinking "
+			+ "each step so the affine approximation error is at most this value", metaVar = "VAL")
+	double ttTargetError = -1;
+
 	// no error
 	@Option(name = "-noerror", usage = "do not insert the forbidden DCEM mode (useful for plotting)")
 	boolean noError = false;
 
+	@Option(name = "-merge", usage = "merge consecutive time-triggered modes whose optimized "
+			+ "affine dynamics are within TOL (passed on to the raw hybridization pass)", metaVar = "TOL")
+	double mergeTol = -1;
+
+	@Option(name = "-linearization", usage = "how the affine dynamics are chosen, one of {exact, "
+			+ "secant} (passed on to the raw hybridization pass)", metaVar = "METHOD")
+	String linearization = HybridizeMTRawPass.LINEARIZE_EXACT;
+
+	@Option(name = "-cache", usage = "file where the simulation results are saved, and reused if the "
+			+ "model and simulation parameters are unchanged (for example, if only -epsilon, -opt, "
+			+ "or -noerror differ)", metaVar = "FILE")
+	String cacheFile = null;
+
+	public static final String SIM_ENGINE_PYTHON = "python";
+	public static final String SIM_ENGINE_JAVA = "java";
+
+	// the java engine's step is at most the simulation time divided by this
+	// (matches pysim_utils' min_steps)
+	private static final int JAVA_SIM_MIN_STEPS = 100;
+
+	// adaptive time-triggered steps stay within this factor of delta_tt
+	private static final double ADAPTIVE_STEP_RANGE = 16;
+
+	// property names in the cache file
+	private static final String CACHE_KEY = "key";
+	private static final String CACHE_RESULT = "result";
+
 	// derived params
 	SimulationType simType = SimulationType.CENTER;
-	int randCount = -1; // for SimulationType.RAND
+	int sampleCount = -1; // for SimulationType.RAND, SOBOL, HALTON and LHS
+	HybridSimulator simulator = null; // for SIM_ENGINE_JAVA
+	String pySimSource = null; // for SIM_ENGINE_PYTHON, see getPySimSource()
+	HybridizeMTRawPass.OriginalModes originalModes = null; // for adaptive steps
+	double nextTimeStep; // the next attempted adaptive time-triggered step
 
 	enum SimulationType
 	{
@@ -110,12 +179,18 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 					// corners),
 		STARCORNERS, // both STAR and CORNERS
 		RAND, // random points on boundary
+		SOBOL, // points from the Sobol sequence
+		HALTON, // points from the Halton sequence
+		LHS, // latin hypercube sample
 	}
 
 	// This is the output of the pass, used to run the raw hybridization pass
 	List<SplittingElement> splitElements = new ArrayList<SplittingElement>();
 	List<HyperRectangle> domains = new ArrayList<HyperRectangle>();
 
+	// the domains before bloating by epsilon (this is what gets cached)
+	List<HyperRectangle> simDomains = new ArrayList<HyperRectangle>();
+
 	// other global-like values
 	BaseComponent ha = null;
 
@@ -143,16 +218,6 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		return "hybridizemt";
 	}
 
-	@Override
-	protected void checkPreconditons(Configuration c, String name)
-	{
-		super.checkPreconditons(c, name);
-
-		if (!PythonBridge.hasPython())
-			throw new PreconditionsFailedException(
-					"Python (and required libraries) needed to run Hybridize Mixed Triggered pass.");
-	}
-
 	public static String makeParamString(double T, String simType, double delta_tt, int n_pi,
 			double delta_pi, double epsilon, String optType, boolean noError)
 	{
@@ -185,19 +250,54 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		else if (simTypeString.startsWith("rand") && simTypeString.length() > 4)
 		{
 			simType = SimulationType.RAND;
-			randCount = Integer.parseInt(simTypeString.substring(4));
+			sampleCount = parseSampleCount(simTypeString.substring(4));
 
-			Hyst.log("Using " + randCount + " random simulations on boundary");
+			Hyst.log("Using " + sampleCount + " random simulations on boundary");
+		}
+		else if (simTypeString.startsWith("sobol") && simTypeString.length() > 5)
+		{
+			simType = SimulationType.SOBOL;
+			sampleCount = parseSampleCount(simTypeString.substring(5));
+		}
+		else if (simTypeString.startsWith("halton") && simTypeString.length() > 6)
+		{
+			simType = SimulationType.HALTON;
+			sampleCount = parseSampleCount(simTypeString.substring(6));
+		}
+		else if (simTypeString.startsWith("lhs") && simTypeString.length() > 3)
+		{
+			simType = SimulationType.LHS;
+			sampleCount = parseSampleCount(simTypeString.substring(3));
 		}
 		else
 			throw new AutomatonExportException(
 					"Unknown simulation type parameter: " + simTypeString);
 
+		if (maxCorners < 0)
+			throw new AutomatonExportException("max_corners should be nonnegative: " + maxCorners);
+
+		HybridizeMTRawPass.isExact(linearization);
+
 		if (piMaxTime <= 0)
 		{
 			piMaxTime = 4 * timeStep;
 			Hyst.log("Using delta_pi = " + piMaxTime);
 		}
+
+		nextTimeStep = timeStep;
+
+		if (simEngine.equals(SIM_ENGINE_JAVA))
+			simulator = new HybridSimulator(ha);
+		else if (!simEngine.equals(SIM_ENGINE_PYTHON))
+			throw new AutomatonExportException("Unknown simulation engine parameter: " + simEngine);
+
+		// the java engine with the affine optimization runs entirely in the JVM
+		boolean needsPython = simulator == null || !opt.startsWith("affine");
+
+		if (needsPython && !PythonBridge.hasPython())
+			throw new AutomatonExportException("Python (and required libraries) needed to run "
+					+ "Hybridize Mixed Triggered pass with -simengine " + simEngine + " and -opt "
+					+ opt + ".");
 	}
 
 	@Override
@@ -207,7 +307,23 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		makeParams();
 
 		long start = System.currentTimeMillis();
-		simulateAndConstruct();
+		String cacheKey = cacheFile == null ? null : makeCacheKey();
+
+		if (cacheKey != null && loadCache(cacheKey))
+		{
+			Hyst.log("Using cached simulation results from " + cacheFile);
+			checkValidStartPoints(getSimulationStart());
+		}
+		else
+		{
+			simulateAndConstruct();
+
+			if (cacheKey != null)
+				saveCache(cacheKey);
+		}
+
+		for (HyperRectangle box : simDomains)
+			domains.add(HyperRectangle.bloatAdditive(box, epsilon));
 
 		long middle = System.currentTimeMillis();
 		long simMills = middle - start;
@@ -216,6 +332,11 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		String params = HybridizeMTRawPass.makeParamString(splitElements, domains, opt, null,
 				noError);
 
+		if (mergeTol >= 0)
+			params += " -merge " + mergeTol;
+
+		params += " -linearization " + linearization;
+
 		long end = System.currentTimeMillis();
 		long optimizeMills = end - middle;
 		Hyst.log("Optimize and Construct Runtime: " + optimizeMills + "ms");
@@ -224,77 +345,154 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Get the initial set of states as a HyperRectangle.
+	 * Make the key identifying which simulation results can be reused: a hash
+	 * of the model, along with every parameter which affects the simulation.
+	 * Epsilon and the optimization method only matter if they influence the
+	 * splitting elements (pseudo-invariant placement or adaptive steps),
+	 * since cached domains are stored before bloating.
 	 * 
-	 * @return the initial set of states
-	 * @throws AutomatonExportException
-	 *             if the initial set of states is not a box
+	 * @return the cache key
 	 */
-	public static HyperRectangle getInitialBox(Configuration config)
+	private String makeCacheKey()
 	{
-		ArrayList<String> variables = config.root.variables;
+		StringBuilder rv = new StringBuilder();
 
-		int numDims = variables.size();
-		HyperRectangle rv = new HyperRectangle(numDims);
+		rv.append("model=" + StringOperations.sha256(config.toString()));
+		rv.append(" T=" + timeMax);
+		rv.append(" S=" + simTypeString);
+		rv.append(" delta_tt=" + timeStep);
+		rv.append(" n_pi=" + piCount);
+		rv.append(" delta_pi=" + piMaxTime);
+		rv.append(" simengine=" + simEngine);
 
-		// start in the middle of the initial state set
-		TreeMap<String, Interval> ranges = new TreeMap<String, Interval>();
+		if (maxCorners > 0)
+			rv.append(" max_corners=" + maxCorners);
 
-		if (config.init.size() != 1)
-			throw new AutomatonExportException("Expected single initial mode");
+		if (piCount > 0 || ttTargetError > 0)
+			rv.append(" epsilon=" + epsilon);
 
-		try
+		if (ttTargetError > 0)
+			rv.append(" tt_target_err=" + ttTargetError + " opt=" + opt + " linearization="
+					+ linearization);
+
+		return rv.toString();
+	}
+
+	/**
+	 * Load the splitting elements and (unbloated) domains from the cache file
+	 * 
+	 * @param key
+	 *            the expected cache key
+	 * @return true if the results were loaded, false if the file didn't exist,
+	 *         couldn't be read, or was made with a different key
+	 */
+	private boolean loadCache(String key)
+	{
+		boolean rv = false;
+		File f = new File(cacheFile);
+
+		if (f.exists())
 		{
-			RangeExtractor.getVariableRanges(config.init.values().iterator().next(), ranges);
+			Properties p = new Properties();
+			FileInputStream in = null;
+
+			try
+			{
+				in = new FileInputStream(f);
+				p.load(in);
+
+				if (key.equals(p.getProperty(CACHE_KEY)))
+				{
+					// parse the results with the raw pass's own option handlers
+					HybridizeMTRawPass raw = new HybridizeMTRawPass();
+					String result = p.getProperty(CACHE_RESULT, "");
+					new CmdLineParser(raw).parseArgument(AutomatonUtil.extractArgs(result));
+
+					splitElements.addAll(raw.splitElements);
+					simDomains.addAll(raw.domains);
+					rv = true;
+				}
+				else
+					Hyst.log("Cache file " + cacheFile + " was made for a different model or "
+							+ "simulation parameters; simulating again");
+			}
+			catch (IOException e)
+			{
+				Hyst.log("Warning: could not read cache file " + cacheFile + ": " + e);
+			}
+			catch (CmdLineException e)
+			{
+				Hyst.log("Warning: could not parse cache file " + cacheFile + ": " + e);
+			}
+			finally
+			{
+				close(in);
+			}
 		}
-		catch (EmptyRangeException e)
+
+		return rv;
+	}
+
+	/**
+	 * Save the splitting elements and (unbloated) domains to the cache file
+	 * 
+	 * @param key
+	 *            the cache key
+	 */
+	private void saveCache(String key)
+	{
+		Properties p = new Properties();
+		p.setProperty(CACHE_KEY, key);
+		p.setProperty(CACHE_RESULT,
+				HybridizeMTRawPass.makeParamString(splitElements, simDomains, null, null, false));
+
+		FileOutputStream out = null;
+
+		try
 		{
-			throw new AutomatonExportException(
-					"Could not determine ranges for inital values (not rectangluar initial states).",
-					e);
+			out = new FileOutputStream(cacheFile);
+			p.store(out, "hybridizemt simulation cache");
 		}
-		catch (ConstantMismatchException e)
+		catch (IOException e)
 		{
-			throw new AutomatonExportException("Constant mismatch in initial values.", e);
+			throw new AutomatonExportException("Error writing cache file: " + cacheFile, e);
 		}
-		catch (UnsupportedConditionException e)
+		finally
 		{
-			throw new AutomatonExportException("Initial values were not a box", e);
+			close(out);
 		}
+	}
 
-		int numVars = variables.size();
-
-		for (int i = 0; i < numVars; ++i)
+	private static void close(Closeable c)
+	{
+		if (c != null)
 		{
-			String var = variables.get(i);
-
-			Interval dimRange = ranges.get(var);
-
-			if (dimRange == null)
-				throw new AutomatonExportException(
-						"Range for '" + var + "' was not set (not rectangluar initial states).");
-			else
-				rv.dims[i] = dimRange;
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+				Hyst.log("Warning: error closing file: " + e);
+			}
 		}
-
-		return rv;
 	}
 
 	/**
 	 * Gets the start of the simulation, depending on the simType parameter
 	 * 
 	 * @param initBox
-	 *            the initial box of states (from getInitialBox())
+	 *            the initial box of states (from AutomatonUtil.getInitialBox())
 	 * @return a set of points
 	 */
 	private ArrayList<SymbolicStatePoint> getSimulationStart()
 	{
-		HyperRectangle initBox = getInitialBox(config);
-		final String initialMode = config.init.keySet().iterator().next();
+		HyperRectangle initBox = AutomatonUtil.getInitialBox(config);
+		String initialMode = config.init.keySet().iterator().next();
 
 		HyperPoint center = initBox.center();
 
-		final ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
 		rv.add(new SymbolicStatePoint(initialMode, center)); // all sim types
 																// include
 																// center
@@ -310,14 +508,16 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 		if (simType == SimulationType.CORNERS || simType == SimulationType.STARCORNERS)
 		{
-			initBox.enumerateCornersUnique(new HyperRectangleCornerEnumerator()
-			{
-				@Override
-				protected void enumerate(HyperPoint p)
-				{
-					rv.add(new SymbolicStatePoint(initialMode, p));
-				}
-			});
+			// use a constant seed (if sampling) for reproducibility
+			CornerIterator it = new CornerIterator(initBox, true, maxCorners, 0);
+			long numCorners = CornerIterator.countCorners(initBox, true);
+
+			if (numCorners == -1 || it.getNumRemaining() < numCorners)
+				Hyst.log("Simulating from " + it.getNumRemaining()
+						+ " sampled corners of the initial box");
+
+			while (it.hasNext())
+				rv.add(new SymbolicStatePoint(initialMode, it.next().copy()));
 		}
 
 		if (simType == SimulationType.RAND)
@@ -326,7 +526,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 											// reproducibility
 			int numDims = ha.variables.size();
 
-			for (int i = 0; i < randCount; ++i)
+			for (int i = 0; i < sampleCount; ++i)
 			{
 				HyperPoint hp = new HyperPoint(numDims);
 
@@ -359,6 +559,47 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			}
 		}
 
+		if (simType == SimulationType.SOBOL || simType == SimulationType.HALTON
+				|| simType == SimulationType.LHS)
+		{
+			PointSet samples;
+
+			if (simType == SimulationType.SOBOL)
+				samples = BoxSampler.sobol(initBox, sampleCount);
+			else if (simType == SimulationType.HALTON)
+				samples = BoxSampler.halton(initBox, sampleCount);
+			else
+				samples = BoxSampler.latinHypercube(initBox, sampleCount, new Random(0));
+
+			for (int i = 0; i < samples.size(); ++i)
+				rv.add(new SymbolicStatePoint(initialMode, samples.getPoint(i)));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Parse the number of points in a sampling simulation strategy, like the
+	 * 10 in rand10
+	 */
+	private int parseSampleCount(String num)
+	{
+		int rv;
+
+		try
+		{
+			rv = Integer.parseInt(num);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new AutomatonExportException(
+					"Malformed simulation type parameter: " + simTypeString, e);
+		}
+
+		if (rv <= 0)
+			throw new AutomatonExportException(
+					"Number of simulations should be positive: " + simTypeString);
+
 		return rv;
 	}
 
@@ -373,7 +614,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 		Hyst.log("Initial simulation points (" + simPoints.size() + "): " + simPoints);
 
-		PythonBridge.getInstance().setTimeout(-1);
+		if (simulator == null)
+			PythonBridge.getInstance().setTimeout(-1);
 
 		// run simulation with the given params
 		runSimulation(simPoints);
@@ -404,7 +646,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		{
 			++step;
 
-			HyperRectangle simBox = boundingBox(points(simPoints));
+			HyperRectangle simBox = boundingBox(simPoints);
 			Hyst.logDebug("simulation bounding box at step " + step + " was " + simBox
 					+ "; points were: " + simPoints);
 
@@ -417,7 +659,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 				if (advanceSimulationToPseudoInvariant(startBox, simPoints))
 				{
 					Hyst.log("Doing pseudo-invariant step at sim-time: " + elapsed);
-					stepSpaceTrigger(startBox, simPoints);
+					stepSpaceTrigger(simBox, simPoints);
 					continue;
 				}
 				else
@@ -425,8 +667,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			}
 
 			// didn't do a pi-step, instead do a time-triggered step
-			stepTimeTrigger(simPoints);
-			elapsed += timeStep;
+			elapsed += stepTimeTrigger(simPoints, timeMax - elapsed);
 		}
 	}
 
@@ -438,7 +679,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 * the hyperplane.
 	 * 
 	 * @param startBox
-	 *            the bloated box surrounding the simPoints before they were
+	 *            the (unbloated) box surrounding the simPoints before they were
 	 *            advanced (the incoming set)
 	 * @param simPoints
 	 *            the (already-advanced) simulation points. First is center
@@ -446,14 +687,12 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 */
 	private void stepSpaceTrigger(HyperRectangle startBox, ArrayList<SymbolicStatePoint> simPoints)
 	{
-		HyperRectangle endBox = HyperRectangle.bloatAdditive(boundingBox(points(simPoints)),
-				epsilon);
-		HyperRectangle invariantBox = HyperRectangle.union(startBox, endBox);
+		HyperRectangle endBox = boundingBox(simPoints);
 
 		Hyst.logDebug("making space-triggered mode, startBox was " + startBox + "; " + "endbox was "
 				+ endBox);
 
-		domains.add(invariantBox);
+		simDomains.add(HyperRectangle.union(startBox, endBox));
 
 		SymbolicStatePoint piPoint = simPoints.get(0);
 		double[] piGradient = gradient(piPoint);
@@ -513,10 +752,132 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 */
 	private boolean advanceSimulationToPseudoInvariant(HyperRectangle startBox,
 			ArrayList<SymbolicStatePoint> simPoints)
+	{
+		boolean rv;
+
+		if (simulator != null)
+			rv = advanceWithEventDetection(startBox, simPoints);
+		else
+			rv = advanceWithTrajectories(startBox, simPoints);
+
+		if (testFuncs != null)
+		{
+			testFuncs.piSimPointsReached(simPoints);
+			testFuncs.piSucceeded(rv);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Advance the simulated points for a pseudo-invariant step with the java
+	 * engine, which stops each simulation exactly where the condition holds
+	 * (the pi point for the center simulation, and the hyperplane crossing for
+	 * the others) rather than interpolating between the points of
+	 * trajectories simulated for the full piMaxTime.
+	 * 
+	 * @param startBox
+	 *            the incoming set of states
+	 * @param simPoints
+	 *            the simulation points, advanced in place on success
+	 * @return true if succeeded
+	 */
+	private boolean advanceWithEventDetection(final HyperRectangle startBox,
+			ArrayList<SymbolicStatePoint> simPoints)
+	{
+		boolean rv = false;
+		double maxStep = piMaxTime / JAVA_SIM_MIN_STEPS;
+
+		HybridSimulator.StopCondition isPiPoint = new HybridSimulator.StopCondition()
+		{
+			@Override
+			public double value(String modeName, double[] state)
+			{
+				double[] gradient = simulator.getDerivative(modeName, state);
+
+				return gradient == null ? -1 : hyperPlaneMargin(gradient, state, startBox);
+			}
+		};
+
+		SymbolicStatePoint piPoint = simulator.simulateUntil(simPoints.get(0), piMaxTime, maxStep,
+				isPiPoint);
+
+		if (piPoint != null)
+		{
+			final double[] piGradient = gradient(piPoint);
+			final double piVal = dotProduct(piGradient, piPoint.hp);
+			Hyst.log("Found pi point: " + piPoint + " with gradient " + Arrays.toString(piGradient));
+
+			for (int i = 1; i < simPoints.size(); ++i)
+			{
+				if (dotProduct(piGradient, simPoints.get(i).hp) > piVal)
+					throw new AutomatonExportException(
+							"While constructing PI, initial sim-point was on incorrect side of pi hyperplane (shouldn't occur)");
+			}
+
+			HybridSimulator.StopCondition crossed = new HybridSimulator.StopCondition()
+			{
+				@Override
+				public double value(String modeName, double[] state)
+				{
+					double rv = -piVal;
+
+					for (int d = 0; d < state.length; ++d)
+						rv += piGradient[d] * state[d];
+
+					return rv;
+				}
+			};
+
+			ArrayList<SymbolicStatePoint> crossings = simulator.simulateAllUntil(
+					simPoints.subList(1, simPoints.size()), piMaxTime, maxStep, crossed);
+
+			if (!crossings.contains(null))
+			{
+				for (int i = 0; i < crossings.size(); ++i)
+				{
+					// a reset before the crossing is a BAD case for
+					// space-triggered construction
+					if (!crossings.get(i).modeName.equals(simPoints.get(i + 1).modeName))
+						throw new AutomatonExportException("When detecting crossing of "
+								+ "space-triggered boundary, different modes detected (was a "
+								+ "reset used? This would be a BAD case for space-triggered"
+								+ "contruction.");
+				}
+
+				simPoints.clear();
+				simPoints.add(piPoint);
+				simPoints.addAll(crossings);
+				rv = true;
+			}
+			else
+				Hyst.log(
+						"Pseudo-invariant construction failed because some simpoints didn't cross the hyperplane within piMaxTime");
+		}
+		else
+			Hyst.log(
+					"Pseudo-invariant construction failed because simulating center point didn't created valid PI within piMaxTime");
+
+		return rv;
+	}
+
+	/**
+	 * Advance the simulated points for a pseudo-invariant step by simulating
+	 * trajectories for piMaxTime, and interpolating between the trajectory
+	 * points which straddle the hyperplane
+	 * 
+	 * @param startBox
+	 *            the incoming set of states
+	 * @param simPoints
+	 *            the simulation points, advanced in place on success
+	 * @return true if succeeded
+	 */
+	private boolean advanceWithTrajectories(HyperRectangle startBox,
+			ArrayList<SymbolicStatePoint> simPoints)
 	{
 		// first, get the trajectories for all the simPoints up piMaxtime
-		ArrayList<ArrayList<SymbolicStatePoint>> trajectories = simMultiGetTrajectory(config,
-				simPoints, piMaxTime);
+		ArrayList<ArrayList<SymbolicStatePoint>> trajectories = simulateTrajectories(simPoints,
+				piMaxTime);
 
 		boolean rv = false;
 		SymbolicStatePoint piPoint = getPiPoint(ha, startBox, trajectories.get(0));
@@ -543,7 +904,6 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 				// simulation points
 				SymbolicStatePoint prevPoint = simPoints.get(i);
 
-				// simulate up to 2*piMaxTime
 				for (SymbolicStatePoint p : trajectories.get(i))
 				{
 					// check if p crossed the hyperplane
@@ -607,44 +967,86 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			Hyst.log(
 					"Pseudo-invariant construction failed because simulating center point didn't created valid PI within piMaxTime");
 
-		if (testFuncs != null)
-		{
-			testFuncs.piSimPointsReached(simPoints);
-			testFuncs.piSucceeded(rv);
-		}
-
 		return rv;
 	}
 
 	/**
 	 * create one time-triggered mode. This advances the simulation points in
 	 * the passed-in array, as well as updating the global splitelements and
-	 * domains
+	 * domains.
+	 * 
+	 * With an adaptive step (-tt_target_err), the step is halved until the
+	 * error of the affine approximation over the domain is at most the target,
+	 * and the next step is doubled if the error was well below it. Steps stay
+	 * within a factor of ADAPTIVE_STEP_RANGE of delta_tt.
 	 * 
 	 * @param simPoints
-	 * @return
+	 *            the simulation points, advanced in place
+	 * @param remainingTime
+	 *            the remaining simulation time (adaptive steps don't exceed
+	 *            this)
+	 * @return the duration of the step
 	 */
-	private void stepTimeTrigger(ArrayList<SymbolicStatePoint> simPoints)
+	private double stepTimeTrigger(ArrayList<SymbolicStatePoint> simPoints, double remainingTime)
 	{
-		HyperRectangle simBox = boundingBox(points(simPoints));
-		HyperRectangle startBox = HyperRectangle.bloatAdditive(simBox, epsilon);
+		HyperRectangle startBox = boundingBox(simPoints);
+		boolean adaptive = ttTargetError > 0;
+		double minStep = timeStep / ADAPTIVE_STEP_RANGE;
+		double step = adaptive ? Math.min(nextTimeStep, remainingTime) : timeStep;
+		ArrayList<SymbolicStatePoint> newSimPoints;
+		HyperRectangle domain;
+
+		while (true)
+		{
+			newSimPoints = simulatePoints(simPoints, step);
+
+			// a time-triggered transition should occur here
+			HyperRectangle endBox = boundingBox(newSimPoints);
+			domain = HyperRectangle.union(startBox, endBox);
+
+			if (!adaptive)
+				break;
+
+			// the original modes don't change while simulating, so they're
+			// indexed and differentiated once per pass
+			if (originalModes == null)
+				originalModes = new HybridizeMTRawPass.OriginalModes(ha.modes.values());
+
+			double err = HybridizeMTRawPass.measureApproximationError(opt,
+					HybridizeMTRawPass.isExact(linearization), originalModes,
+					HyperRectangle.bloatAdditive(domain, epsilon));
+
+			Hyst.logDebug("Adaptive time-triggered step of " + step + " had error " + err);
+
+			if (err > ttTargetError && step > minStep)
+				step = Math.max(step / 2, minStep);
+			else
+			{
+				if (err > ttTargetError)
+					Hyst.log("Warning: adaptive time-triggered step reached the minimum (" + minStep
+							+ ") with error " + err + " above the target " + ttTargetError);
+
+				if (err < ttTargetError / 2 && step == nextTimeStep)
+					nextTimeStep = Math.min(2 * step, timeStep * ADAPTIVE_STEP_RANGE);
+				else if (step < nextTimeStep && step < remainingTime)
+					nextTimeStep = step;
+
+				break;
+			}
+		}
 
-		ArrayList<SymbolicStatePoint> newSimPoints = simAllPoints(config, simPoints, timeStep);
 		simPoints.clear();
 		simPoints.addAll(newSimPoints);
 
-		// a time-triggered transition should occur here
-		HyperRectangle endBox = HyperRectangle.bloatAdditive(boundingBox(points(simPoints)),
-				epsilon);
-		HyperRectangle invariantBox = HyperRectangle.union(startBox, endBox);
+		simDomains.add(domain);
+		splitElements.add(new TimeSplittingElement(step));
 
-		domains.add(invariantBox);
-		splitElements.add(new TimeSplittingElement(timeStep));
+		return step;
 	}
 
 	private void checkValidStartPoints(ArrayList<SymbolicStatePoint> simPoints)
 	{
-		HyperRectangle startBox = HyperRectangle.bloatAdditive(boundingBox(points(simPoints)),
+		HyperRectangle startBox = HyperRectangle.bloatAdditive(boundingBox(simPoints),
 				epsilon);
 		TreeMap<String, Interval> bounds = RangeExtractor
 				.getVariableRanges(config.init.values().iterator().next(), "initial states");
@@ -678,28 +1080,21 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Get the bounding box of two sets of points
+	 * Get the bounding box of the states of a set of simulation points
 	 * 
-	 * @param setA
-	 *            one of the sets
-	 * @param setB
-	 *            the other set
-	 * @return a hyperrectngle which tightly includes all the points
+	 * @param simPoints
+	 *            the (nonempty) simulation points
+	 * @return a hyperrectangle which tightly includes all the points
 	 */
-	@SafeVarargs
-	private static HyperRectangle boundingBox(ArrayList<HyperPoint>... sets)
+	private static HyperRectangle boundingBox(List<SymbolicStatePoint> simPoints)
 	{
-		HyperPoint firstPoint = sets[0].get(0);
-		int numDims = firstPoint.dims.length;
-		HyperRectangle rv = firstPoint.toHyperRectangle();
+		HyperRectangle rv = simPoints.get(0).hp.toHyperRectangle();
+		int numDims = rv.dims.length;
 
-		for (int d = 0; d < numDims; ++d)
+		for (SymbolicStatePoint ssp : simPoints)
 		{
-			for (int list = 0; list < sets.length; ++list)
-			{
-				for (HyperPoint hp : sets[list])
-					rv.dims[d].expand(hp.dims[d]);
-			}
+			for (int d = 0; d < numDims; ++d)
+				rv.dims[d].expand(ssp.hp.dims[d]);
 		}
 
 		return rv;
@@ -749,6 +1144,54 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * Simulate every point for a fixed time with the selected engine. The
+	 * results are in the same order as simPoints, so the bounding boxes built
+	 * from them don't depend on scheduling.
+	 * 
+	 * @param simPoints
+	 *            the start points
+	 * @param time
+	 *            the simulation time
+	 * @return the resultant points
+	 */
+	private ArrayList<SymbolicStatePoint> simulatePoints(ArrayList<SymbolicStatePoint> simPoints,
+			double time)
+	{
+		ArrayList<SymbolicStatePoint> rv;
+
+		if (simulator != null)
+			rv = simulator.simulateAll(simPoints, time, time / JAVA_SIM_MIN_STEPS);
+		else
+			rv = simAllPoints(config, getPySimSource(), simPoints, time);
+
+		return rv;
+	}
+
+	/**
+	 * Simulate every point with the selected engine, returning the
+	 * trajectories (in the same order as startPoints)
+	 * 
+	 * @param startPoints
+	 *            the start points
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectories
+	 */
+	private ArrayList<ArrayList<SymbolicStatePoint>> simulateTrajectories(
+			ArrayList<SymbolicStatePoint> startPoints, double time)
+	{
+		ArrayList<ArrayList<SymbolicStatePoint>> rv;
+
+		if (simulator != null)
+			rv = simulator.simulateTrajectories(startPoints, time, time / JAVA_SIM_MIN_STEPS);
+		else
+			rv = simPython(config, getPySimSource(), startPoints,
+					"simulate_multi_trajectory_files", time);
+
+		return rv;
+	}
+
 	/**
 	 * Do a simulation of the passed-in point list
 	 * 
@@ -762,6 +1205,26 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 */
 	public static ArrayList<SymbolicStatePoint> simAllPoints(Configuration config,
 			ArrayList<SymbolicStatePoint> simPoints, double time)
+	{
+		return simAllPoints(config, PySimPrinter.automatonToString(config), simPoints, time);
+	}
+
+	/**
+	 * Get the automaton printed for pysim. It's printed once per pass, since
+	 * the automaton doesn't change while it's being simulated.
+	 * 
+	 * @return the automaton source, from PySimPrinter.automatonToString()
+	 */
+	private String getPySimSource()
+	{
+		if (pySimSource == null)
+			pySimSource = PySimPrinter.automatonToString(config);
+
+		return pySimSource;
+	}
+
+	private static ArrayList<SymbolicStatePoint> simAllPoints(Configuration config,
+			String source, ArrayList<SymbolicStatePoint> simPoints, double time)
 	{
 		for (SymbolicStatePoint ssp : simPoints)
 		{
@@ -770,80 +1233,112 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 						+ " dimensions; expected " + config.root.variables.size());
 		}
 
-		PythonBridge pb = PythonBridge.getInstance();
-		pb.send("from pythonbridge.pysim_utils import simulate_set_time");
-
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
-
-		String points = makePointsString(simPoints);
-		String modes = makeModeString(simPoints);
-
-		s.append("print simulate_set_time(define_ha(), " + modes + ", " + points + ", " + time
-				+ ")");
-
-		String result = pb.send(s.toString());
-
-		// parse result into SymbolicState objects
-		// result is semi-colon separated lists, first is the mode name, rest is
-		// the point
-		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+		// each result trajectory is the single final state
+		ArrayList<ArrayList<SymbolicStatePoint>> trajectories = simPython(config, source,
+				simPoints, "simulate_set_time_file", time);
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(simPoints.size());
 
-		for (String part : result.split(";"))
+		for (int i = 0; i < trajectories.size(); ++i)
 		{
-			String[] comma_parts = part.split(",");
+			ArrayList<SymbolicStatePoint> traj = trajectories.get(i);
 
-			String mode = comma_parts[0]; // first one is the mode
-			HyperPoint pt = new HyperPoint(comma_parts.length - 1);
-
-			for (int i = 1; i < comma_parts.length; ++i)
-				pt.dims[i - 1] = Double.parseDouble(comma_parts[i]);
+			if (traj.isEmpty())
+				throw new AutomatonExportException(
+						"simulation from " + simPoints.get(i) + " produced no states");
+			else if (traj.size() != 1)
+				throw new AutomatonExportException(
+						"expected a single final state from simulate_set_time_file, got "
+								+ traj.size());
 
-			rv.add(new SymbolicStatePoint(mode, pt));
+			rv.add(traj.get(0));
 		}
 
 		return rv;
 	}
 
-	private static String makeModeString(ArrayList<SymbolicStatePoint> simPoints)
+	/**
+	 * Call a pysim_utils simulation function which takes its start states and
+	 * writes its results as binary trajectory files, as function(ha, in_path,
+	 * time, out_path). The automaton is only sent to python if it's not
+	 * already defined there, and the states aren't printed as text in either
+	 * direction.
+	 * 
+	 * @param config
+	 *            the automaton
+	 * @param source
+	 *            the automaton printed by PySimPrinter.automatonToString()
+	 * @param startPoints
+	 *            the start states
+	 * @param function
+	 *            the name of the function in pysim_utils
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectories written by the function, one per start state
+	 */
+	private static ArrayList<ArrayList<SymbolicStatePoint>> simPython(Configuration config,
+			String source, List<SymbolicStatePoint> startPoints, String function, double time)
 	{
-		StringBuilder rv = new StringBuilder();
-		rv.append("[");
-		boolean first = true;
+		PythonBridge pb = PythonBridge.getInstance();
+		pb.send("from pythonbridge.pysim_utils import " + function);
+		String ha = PySimPrinter.defineAutomaton(pb, source);
+
+		ArrayList<ArrayList<SymbolicStatePoint>> rv;
+		File in = null;
+		File out = null;
+		TrajectoryReader reader = null;
 
-		for (SymbolicStatePoint s : simPoints)
+		try
 		{
-			if (first)
-				first = false;
-			else
-				rv.append(",");
+			in = File.createTempFile("hyst_start", ".bin");
+			out = File.createTempFile("hyst_traj", ".bin");
+
+			TrajectoryWriter.writeStates(in, config.root.variables, startPoints);
 
-			rv.append("'" + s.modeName + "'");
+			pb.send("print " + function + "(" + ha + ", '" + pythonPath(in) + "', " + time
+					+ ", '" + pythonPath(out) + "')");
+
+			reader = new TrajectoryReader(out);
+			rv = reader.readAll();
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error passing simulation states to python", e);
+		}
+		finally
+		{
+			close(reader);
+			deleteTempFile(in);
+			deleteTempFile(out);
 		}
 
-		rv.append("]");
+		// simulations which produced no points still get an (empty) entry
+		while (rv.size() < startPoints.size())
+			rv.add(new ArrayList<SymbolicStatePoint>());
 
-		return rv.toString();
+		return rv;
 	}
 
-	private static String makePointsString(ArrayList<SymbolicStatePoint> simPoints)
+	/**
+	 * Delete a temporary file, falling back to deleting it when the JVM exits.
+	 * This happens if the file is still memory-mapped (the mapping of a
+	 * TrajectoryReader is only released once it is garbage collected), which
+	 * blocks deletion on some platforms.
+	 * 
+	 * @param f
+	 *            the file, may be null
+	 */
+	private static void deleteTempFile(File f)
 	{
-		StringBuilder rv = new StringBuilder();
-		rv.append("[");
-		boolean first = true;
-
-		for (SymbolicStatePoint s : simPoints)
+		if (f != null && f.exists() && !f.delete())
 		{
-			if (first)
-				first = false;
-			else
-				rv.append(",");
-
-			rv.append(makeHpString(s.hp));
+			Hyst.logDebug("Could not delete temporary file " + f + "; deleting it on exit.");
+			f.deleteOnExit();
 		}
+	}
 
-		rv.append("]");
-		return rv.toString();
+	private static String pythonPath(File f)
+	{
+		return f.getAbsolutePath().replace("\\", "/");
 	}
 
 	/**
@@ -870,13 +1365,33 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 			throw new RuntimeException("simpoint numdims must be same varNames size");
 
 		double[] gradient = gradient(simPoint, am);
-		double val = dotProduct(gradient, simPoint);
 
+		return hyperPlaneMargin(gradient, simPoint.dims, box) > 0;
+	}
+
+	/**
+	 * Get how far a box is behind the hyperplane through a point with a given
+	 * normal: the value of the hyperplane at the point minus its maximum over
+	 * the box
+	 * 
+	 * @param gradient
+	 *            the hyperplane's normal
+	 * @param point
+	 *            the point on the hyperplane
+	 * @param box
+	 *            the box
+	 * @return the margin, which is positive iff the box is entirely behind the
+	 *         hyperplane
+	 */
+	private static double hyperPlaneMargin(double[] gradient, double[] point, HyperRectangle box)
+	{
+		double val = 0;
 		double maxVal = 0;
 
 		for (int d = 0; d < gradient.length; ++d)
 		{
 			double factor = gradient[d];
+			val += factor * point[d];
 
 			if (factor < 0)
 				maxVal += box.dims[d].min * factor;
@@ -884,32 +1399,13 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 				maxVal += box.dims[d].max * factor;
 		}
 
-		return val > maxVal;
-	}
-
-	private static String makeHpString(HyperPoint hp)
-	{
-		StringBuilder rv = new StringBuilder();
-		rv.append("[");
-		boolean first = true;
-
-		for (double d : hp.dims)
-		{
-			if (first)
-				first = false;
-			else
-				rv.append(",");
-
-			rv.append(d);
-		}
-
-		rv.append("]");
-
-		return rv.toString();
+		return val - maxVal;
 	}
 
 	/**
-	 * Simulate from multiple points, returning the trajectories
+	 * Simulate from multiple points, returning the trajectories. The start
+	 * points and trajectories are passed to and from python in binary
+	 * trajectory files, rather than as printed text.
 	 * 
 	 * @param config
 	 *            the automaton
@@ -922,45 +1418,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	public static ArrayList<ArrayList<SymbolicStatePoint>> simMultiGetTrajectory(
 			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
 	{
-		PythonBridge pb = PythonBridge.getInstance();
-		pb.send("from pythonbridge.pysim_utils import simulate_multi_trajectory_time");
-
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
-
-		String modes = makeModeString(startPoints);
-		String points = makePointsString(startPoints);
-
-		s.append("print simulate_multi_trajectory_time(define_ha(), " + modes + ", " + points + ", "
-				+ time + ")");
-
-		String result = pb.send(s.toString());
-
-		// parse result into SymbolicState objects
-		// result is semi-colon separated lists, first is the mode name, rest is
-		// the point
-		ArrayList<ArrayList<SymbolicStatePoint>> rv = new ArrayList<ArrayList<SymbolicStatePoint>>();
-
-		for (String traj : result.split("\\|"))
-		{
-			ArrayList<SymbolicStatePoint> trajStates = new ArrayList<SymbolicStatePoint>();
-
-			for (String part : traj.split(";"))
-			{
-				String[] comma_parts = part.split(",");
-
-				String mode = comma_parts[0]; // first one is the mode
-				HyperPoint pt = new HyperPoint(comma_parts.length - 1);
-
-				for (int i = 1; i < comma_parts.length; ++i)
-					pt.dims[i - 1] = Double.parseDouble(comma_parts[i]);
-
-				trajStates.add(new SymbolicStatePoint(mode, pt));
-			}
-
-			rv.add(trajStates);
-		}
-
-		return rv;
+		return simPython(config, PySimPrinter.automatonToString(config), startPoints,
+				"simulate_multi_trajectory_files", time);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,347 @@
+package com.verivital.hyst.passes.complex.pi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.kohsuke.args4j.Option;
+
+import com.verivital.hyst.geometry.BoxSampler;
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
+import com.verivital.hyst.geometry.PointSet;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.util.AutomatonUtil;
+
+/**
+ * This pass splits the initial mode into several using the technique of
+ * pseudo-invariants:
+ * "Reducing the Wrapping Effect in Flowpipe Construction Using Pseudo-invariants"
+ * , CyPhy 2014, Bak 2014
+ *
+ * Unlike pi_sim, the placement is automatic. Sample points from the initial box
+ * (the center, star points, and a Sobol sequence) are simulated in lockstep
+ * with the java simulator, and the growth rate of the log-volume of their
+ * bounding box is measured at each step, as a proxy for the wrapping effect
+ * of a flowpipe tool. Pseudo-invariant hyperplanes are placed orthogonal to the
+ * center trajectory at the steps where the growth rate has its largest local
+ * peaks, up to a budget on the number of inserted modes.
+ *
+ * Like pi_sim, only the initial mode is split; the measurement stops once any
+ * sample leaves it. Dimensions where the initial box is flat are not included
+ * in the volume.
+ */
+public class PseudoInvariantAutoPass extends TransformationPass
+{
+	@Option(name = "-time", usage = "simulation time", metaVar = "VAL")
+	private String time = "auto";
+
+	@Option(name = "-steps", usage = "number of steps where the bounding box is measured", metaVar = "NUM")
+	private int steps = 100;
+
+	@Option(name = "-step", usage = "maximum simulation time step (default: the measurement step "
+			+ "divided by " + DEFAULT_SUBSTEPS + ")", metaVar = "VAL")
+	private double step = -1;
+
+	@Option(name = "-max_modes", usage = "maximum number of pseudo-invariant modes to insert", metaVar = "NUM")
+	private int maxModes = 3;
+
+	@Option(name = "-samples", usage = "number of sobol samples from the initial box (in addition "
+			+ "to the center and star points)", metaVar = "NUM")
+	private int samples = 32;
+
+	// default number of integration steps between two measurements
+	private static final int DEFAULT_SUBSTEPS = 10;
+
+	// growth rates within this fraction of the largest rate are considered
+	// equal, so numerical noise doesn't create peaks
+	private static final double PLATEAU_TOL = 1e-6;
+
+	// peaks where the log-volume grows by less than this in a step are ignored
+	private static final double MIN_STEP_GROWTH = 1e-9;
+
+	private BaseComponent ha = null;
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "pi_auto";
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Pseudo-Invariant Automatic Placement Pass";
+	}
+
+	@Override
+	protected void runPass()
+	{
+		ha = (BaseComponent) config.root;
+
+		if (maxModes <= 0)
+			throw new AutomatonExportException("-max_modes must be positive: " + maxModes);
+
+		if (steps <= 1)
+			throw new AutomatonExportException("-steps must be at least 2: " + steps);
+
+		HyperRectangle initBox = AutomatonUtil.getInitialBox(config);
+		String initialMode = config.init.keySet().iterator().next();
+		int[] measured = nonFlatDims(initBox);
+
+		if (measured.length == 0)
+		{
+			Hyst.log("Initial box is a point; no pseudo-invariants were placed.");
+			return;
+		}
+
+		double simTime = AutomatonUtil.parseSimulationTime(time, config);
+		double dt = simTime / steps;
+		double maxStep = step > 0 ? Math.min(step, dt) : dt / DEFAULT_SUBSTEPS;
+		ArrayList<SymbolicStatePoint> states = getStartPoints(initialMode, initBox);
+		HybridSimulator sim = new HybridSimulator(ha);
+
+		// centers.get(k) and logVolumes[k] are at time k * dt
+		ArrayList<HyperPoint> centers = new ArrayList<HyperPoint>();
+		double[] logVolumes = new double[steps + 1];
+		int lastStep = 0;
+
+		centers.add(states.get(0).hp);
+		logVolumes[0] = logVolume(states, measured);
+
+		for (int k = 1; k <= steps; ++k)
+		{
+			states = sim.simulateAll(states, dt, maxStep);
+
+			if (!allInMode(states, initialMode))
+				break;
+
+			centers.add(states.get(0).hp);
+			logVolumes[k] = logVolume(states, measured);
+			lastStep = k;
+		}
+
+		Hyst.log("Measured bounding box growth for " + lastStep + " of " + steps + " steps");
+
+		List<Integer> peaks = choosePeaks(logVolumes, lastStep, dt, initBox, centers);
+
+		if (peaks.isEmpty())
+		{
+			Hyst.log("No bounding box growth peaks found; no pseudo-invariants were placed.");
+			return;
+		}
+
+		List<String> modes = new ArrayList<String>(peaks.size());
+		List<HyperPoint> points = new ArrayList<HyperPoint>(peaks.size());
+		List<HyperPoint> dirs = new ArrayList<HyperPoint>(peaks.size());
+		AutomatonMode am = ha.modes.get(initialMode);
+
+		for (int k : peaks)
+		{
+			HyperPoint p = centers.get(k);
+
+			Hyst.log("Placing pseudo-invariant at time " + (k * dt) + ", point " + p);
+			modes.add(initialMode);
+			points.add(new HyperPoint(p));
+			dirs.add(new HyperPoint(AutomatonUtil.getGradientAtPoint(am, p)));
+		}
+
+		String paramString = PseudoInvariantPass.makeParamString(modes, points, dirs, false);
+		Hyst.log("Calling hyperplane pseudo-invariant pass with params: " + paramString);
+
+		// run the traditional pseudo-invariants pass
+		new PseudoInvariantPass().runTransformationPass(config, paramString);
+	}
+
+	/**
+	 * Choose the steps where pseudo-invariants are placed: the local maxima of
+	 * the (positive) log-volume growth rate, largest first, up to the budget.
+	 * A rate that's constant over the whole simulation has no peak.
+	 * Steps where the hyperplane would cut through the initial box, or where
+	 * the gradient is zero, are skipped.
+	 *
+	 * @return the chosen steps, in time order
+	 */
+	private List<Integer> choosePeaks(double[] logVolumes, int lastStep, double dt,
+			HyperRectangle initBox, ArrayList<HyperPoint> centers)
+	{
+		final double[] rates = new double[lastStep + 1];
+
+		for (int k = 1; k <= lastStep; ++k)
+			rates[k] = (logVolumes[k] - logVolumes[k - 1]) / dt;
+
+		double maxRate = 0;
+
+		for (int k = 1; k <= lastStep; ++k)
+			maxRate = Math.max(maxRate, Math.abs(rates[k]));
+
+		double tol = PLATEAU_TOL * maxRate;
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+
+		// a peak is a run of (nearly) equal rates, with lower rates on both
+		// sides; it's placed in the middle of the run
+		for (int k = 1, end; k <= lastStep; k = end + 1)
+		{
+			end = k;
+
+			while (end < lastStep && Math.abs(rates[end + 1] - rates[k]) <= tol)
+				++end;
+
+			boolean rising = k == 1 || rates[k - 1] < rates[k] - tol;
+			boolean falling = end == lastStep || rates[end + 1] < rates[k] - tol;
+			boolean constant = k == 1 && end == lastStep;
+
+			if (rising && falling && !constant && rates[k] * dt > MIN_STEP_GROWTH)
+				candidates.add((k + end) / 2);
+		}
+
+		Collections.sort(candidates, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(rates[b], rates[a]);
+			}
+		});
+
+		AutomatonMode am = ha.modes.get(config.init.keySet().iterator().next());
+		ArrayList<Integer> rv = new ArrayList<Integer>();
+
+		for (int k : candidates)
+		{
+			if (rv.size() >= maxModes)
+				break;
+
+			HyperPoint p = centers.get(k);
+			double[] gradient = AutomatonUtil.getGradientAtPoint(am, p);
+
+			if (!isPastBox(gradient, p, initBox))
+				Hyst.log("Skipping growth peak at time " + (k * dt)
+						+ " since its hyperplane intersects the initial box");
+			else
+				rv.add(k);
+		}
+
+		Collections.sort(rv);
+
+		return rv;
+	}
+
+	/**
+	 * Check if the whole box is strictly on the negative side of the
+	 * hyperplane through a point, with the given normal
+	 */
+	private static boolean isPastBox(double[] normal, HyperPoint p, HyperRectangle box)
+	{
+		double max = 0;
+		boolean nonZero = false;
+
+		for (int d = 0; d < normal.length; ++d)
+		{
+			double farthest = normal[d] > 0 ? box.dims[d].max : box.dims[d].min;
+
+			max += normal[d] * (farthest - p.dims[d]);
+			nonZero = nonZero || normal[d] != 0;
+		}
+
+		return nonZero && max < 0;
+	}
+
+	/**
+	 * Get the log of the bounding box volume of a set of states, in the given
+	 * dimensions
+	 */
+	private static double logVolume(List<SymbolicStatePoint> states, int[] measured)
+	{
+		double rv = 0;
+
+		for (int d : measured)
+		{
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+
+			for (SymbolicStatePoint s : states)
+			{
+				min = Math.min(min, s.hp.dims[d]);
+				max = Math.max(max, s.hp.dims[d]);
+			}
+
+			rv += Math.log(Math.max(max - min, Double.MIN_NORMAL));
+		}
+
+		return rv;
+	}
+
+	private static boolean allInMode(List<SymbolicStatePoint> states, String modeName)
+	{
+		boolean rv = true;
+
+		for (SymbolicStatePoint s : states)
+		{
+			if (!s.modeName.equals(modeName))
+			{
+				rv = false;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	private static int[] nonFlatDims(HyperRectangle box)
+	{
+		int count = 0;
+
+		for (int d = 0; d < box.dims.length; ++d)
+		{
+			if (box.dims[d].width() > 0)
+				++count;
+		}
+
+		int[] rv = new int[count];
+		count = 0;
+
+		for (int d = 0; d < box.dims.length; ++d)
+		{
+			if (box.dims[d].width() > 0)
+				rv[count++] = d;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the simulation start points. The center is always the first one.
+	 */
+	private ArrayList<SymbolicStatePoint> getStartPoints(String modeName, HyperRectangle box)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+
+		rv.add(new SymbolicStatePoint(modeName, box.center()));
+
+		for (HyperPoint p : box.getStarPoints())
+			rv.add(new SymbolicStatePoint(modeName, p));
+
+		if (samples > 0 && nonFlatDims(box).length <= BoxSampler.MAX_SOBOL_DIMS)
+		{
+			PointSet ps = BoxSampler.sobol(box, samples);
+
+			for (int i = 0; i < ps.size(); ++i)
+				rv.add(new SymbolicStatePoint(modeName, ps.getPoint(i)));
+		}
+
+		return rv;
+	}
+
+	public static String makeParamString(double time, int steps, int maxModes)
+	{
+		return "-time " + time + " -steps " + steps + " -max_modes " + maxModes;
+	}
+}
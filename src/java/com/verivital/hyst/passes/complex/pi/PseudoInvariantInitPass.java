@@ -55,7 +55,7 @@ public class PseudoInvariantInitPass extends TransformationPass
 	{
 		ha = (BaseComponent) config.root;
 
-		HyperRectangle initBox = HybridizeMixedTriggeredPass.getInitialBox(config);
+		HyperRectangle initBox = AutomatonUtil.getInitialBox(config);
 		final String initialMode = config.init.keySet().iterator().next();
 		HyperPoint center = initBox.center();
 
@@ -112,16 +112,15 @@ public class PseudoInvariantInitPass extends TransformationPass
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_times");
 
-		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
+		String ha = PySimPrinter.defineAutomaton(pb, automaton);
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		String timesStr = "[" + StringOperations.join(",", times.toArray(new Double[0])) + "]";
 
-		s.append("print simulate_times(define_ha(), '" + start.modeName + "', " + point + ", "
-				+ timesStr + ")");
+		String cmd = "print simulate_times(" + ha + ", '" + start.modeName + "', " + point + ", "
+				+ timesStr + ")";
 
-		String result = pb.send(s.toString());
+		String result = pb.send(cmd);
 
 		// parse result into SymbolicState objects
 		// result is semi-colon separated lists, first is the mode name, rest is
@@ -1,7 +1,12 @@
 package com.verivital.hyst.passes.complex.pi;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
@@ -176,14 +181,31 @@ public class PseudoInvariantPass extends TransformationPass
 
 		ConvertToStandardForm.run(config);
 
-		// since we split modes, some of them become synonyms
+		// group the hyperplanes by mode, so each mode is split in a single
+		// rewrite
+		LinkedHashMap<String, ArrayList<Integer>> byMode = new LinkedHashMap<String, ArrayList<Integer>>();
+
 		for (int i = 0; i < modes.size(); ++i)
 		{
-			AutomatonMode am = ha.modes.get(modes.get(i));
-			HyperPoint point = points.get(i);
-			HyperPoint dir = dirs.get(i);
+			ArrayList<Integer> indices = byMode.get(modes.get(i));
+
+			if (indices == null)
+			{
+				indices = new ArrayList<Integer>();
+				byMode.put(modes.get(i), indices);
+			}
 
-			createPseudoInvariant(am, point, dir);
+			indices.add(i);
+		}
+
+		for (Entry<String, ArrayList<Integer>> e : byMode.entrySet())
+		{
+			AutomatonMode am = ha.modes.get(e.getKey());
+
+			if (am == null)
+				throw new AutomatonExportException("Mode not found in automaton: " + e.getKey());
+
+			createPseudoInvariants(am, sortAlongTrajectory(e.getValue()));
 		}
 
 		ConvertFromStandardForm.run(config);
@@ -214,34 +236,141 @@ public class PseudoInvariantPass extends TransformationPass
 		}
 	}
 
-	private void createPseudoInvariant(AutomatonMode afterMode, HyperPoint point, HyperPoint dir)
+	/**
+	 * Sort the hyperplanes of one mode in the order a trajectory would cross
+	 * them. A point that's before many of the other hyperplanes comes early;
+	 * ties keep the order of the params.
+	 * 
+	 * @param indices
+	 *            the indices of the hyperplanes in the params
+	 * @return the sorted indices
+	 */
+	private ArrayList<Integer> sortAlongTrajectory(List<Integer> indices)
 	{
-		String beforeName = makeModeName(afterMode);
-		this.lastModeName = beforeName;
-		Hyst.log("Creating PI mode " + beforeName + " from point " + point + " and direction "
-				+ dir);
+		final HashMap<Integer, Integer> numAfter = new HashMap<Integer, Integer>();
+
+		for (int i : indices)
+		{
+			int count = 0;
+
+			for (int j : indices)
+			{
+				double[] dir = dirs.get(j).dims;
+
+				if (i != j && dot(points.get(i).dims, dir) < dot(points.get(j).dims, dir))
+					++count;
+			}
+
+			numAfter.put(i, count);
+		}
 
-		AutomatonMode beforeMode = afterMode.copyWithTransitions(beforeName);
+		ArrayList<Integer> rv = new ArrayList<Integer>(indices);
 
-		Expression piInv = createInvariantExpression(ha.variables, point, dir);
-		Expression piGuard = createGuardExpression(ha.variables, point, dir);
+		Collections.sort(rv, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return numAfter.get(b) - numAfter.get(a);
+			}
+		});
+
+		return rv;
+	}
+
+	/**
+	 * Split a mode using a sequence of hyperplanes, building the whole chain
+	 * of modes in one pass over the transitions. For hyperplanes 1 ... k, the
+	 * modes are before_1, ..., before_k, and then afterMode (which keeps its
+	 * name), where before_i has the i-th pseudo-invariant. The result is the
+	 * same as splitting afterMode once per hyperplane, in order:
+	 * 
+	 * - every before mode gets a copy of each outgoing transition of afterMode
+	 * 
+	 * - each incoming transition gets a copy to before_i, with the guards of
+	 * hyperplanes 1 ... i-1 added
+	 * 
+	 * - before_j has a transition to each later mode in the chain, with the
+	 * guards of the hyperplanes in between, so that a state can move past
+	 * several hyperplanes at once
+	 * 
+	 * @param afterMode
+	 *            the mode to split
+	 * @param order
+	 *            the indices of the hyperplanes in the params, in trajectory
+	 *            order
+	 */
+	private void createPseudoInvariants(AutomatonMode afterMode, List<Integer> order)
+	{
+		ArrayList<AutomatonTransition> incoming = new ArrayList<AutomatonTransition>();
+		ArrayList<AutomatonTransition> outgoing = new ArrayList<AutomatonTransition>();
 
-		// incoming transitions to afterMode should have an extra condition (the
-		// pi guard)
 		for (AutomatonTransition at : ha.transitions)
 		{
-			if (at.to == afterMode)
-				at.guard = Expression.and(at.guard, piGuard);
+			if (at.from == afterMode && at.to == afterMode)
+				throw new AutomatonExportException(
+						"Can't clone automaton mode with self-loop since meaning is unclear.");
+			else if (at.from == afterMode)
+				outgoing.add(at);
+			else if (at.to == afterMode)
+				incoming.add(at);
 		}
 
-		// beforeMode should have an extra invariant (the pseudo-invariant)
-		beforeMode.invariant = Expression.and(beforeMode.invariant, piInv);
+		int k = order.size();
+		AutomatonMode[] chain = new AutomatonMode[k + 1];
+		Expression[] piGuards = new Expression[k];
+		chain[k] = afterMode;
 
-		// there should be a transition between the two modes
-		AutomatonTransition at = ha.createTransition(beforeMode, afterMode);
-		at.guard = piGuard;
+		for (int i = 0; i < k; ++i)
+		{
+			HyperPoint point = points.get(order.get(i));
+			HyperPoint dir = dirs.get(order.get(i));
+			String beforeName = makeModeName(afterMode);
+			this.lastModeName = beforeName;
+			Hyst.log("Creating PI mode " + beforeName + " from point " + point
+					+ " and direction " + dir);
+
+			Expression piInv = createInvariantExpression(ha.variables, point, dir);
+			piGuards[i] = createGuardExpression(ha.variables, point, dir);
+
+			// before modes have an extra invariant (the pseudo-invariant)
+			chain[i] = afterMode.copy(ha, beforeName);
+			chain[i].invariant = Expression.and(chain[i].invariant, piInv);
+
+			Hyst.log("Created PI mode " + beforeName + " with invariant: "
+					+ piInv.toDefaultString());
+		}
 
-		Hyst.log("Created PI mode " + beforeName + " with invariant: " + piInv.toDefaultString());
+		for (AutomatonTransition at : outgoing)
+		{
+			for (int i = 0; i < k; ++i)
+				at.copy(chain[i], at.to);
+		}
+
+		// the original incoming transitions end up at afterMode, past every
+		// hyperplane
+		for (AutomatonTransition at : incoming)
+		{
+			for (int i = 0; i < k; ++i)
+			{
+				at.copy(at.from, chain[i]);
+				at.guard = Expression.and(at.guard, piGuards[i].copy());
+			}
+		}
+
+		for (int j = 0; j < k; ++j)
+		{
+			Expression guard = piGuards[j];
+
+			for (int i = j + 1; i <= k; ++i)
+			{
+				AutomatonTransition at = ha.createTransition(chain[j], chain[i]);
+				at.guard = guard;
+
+				if (i < k)
+					guard = Expression.and(guard.copy(), piGuards[i].copy());
+			}
+		}
 	}
 
 	/**
@@ -3,6 +3,8 @@
  */
 package com.verivital.hyst.printers;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,6 +26,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.util.PreconditionsFlag;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
@@ -105,7 +108,7 @@ public class PySimPrinter extends ToolPrinter
 		return "'''\n" + text + "\n'''";
 	}
 
-	private static void appendModes(StringBuilder rv, BaseComponent ha)
+	private static void appendModes(PrintWriter rv, BaseComponent ha)
 	{
 		for (AutomatonMode am : ha.modes.values())
 		{
@@ -211,7 +214,7 @@ public class PySimPrinter extends ToolPrinter
 		return rv.toString();
 	}
 
-	private static void appendJumps(StringBuilder rv, BaseComponent ha)
+	private static void appendJumps(PrintWriter rv, BaseComponent ha)
 	{
 		/*
 		 * t = ha.new_transition(one, two) t.guard = lambda(x): x[0] >= 2
@@ -239,7 +242,9 @@ public class PySimPrinter extends ToolPrinter
 	{
 		printLine("import hybridpy.pysim.simulate as sim");
 
-		printLine(automatonToString(config));
+		// stream the (possibly large) automaton definition directly to the output
+		writeAutomaton(config, getOutputWriter());
+		printNewline();
 
 		printLine("def simulate(init_states, max_time=" + getTimeParam() + "):");
 		increaseIndentation();
@@ -279,6 +284,59 @@ public class PySimPrinter extends ToolPrinter
 	 * @return
 	 */
 	public static String automatonToString(Configuration config)
+	{
+		StringWriter sw = new StringWriter();
+
+		writeAutomaton(config, new PrintWriter(sw));
+
+		return sw.toString();
+	}
+
+	/**
+	 * Defines the given hybrid automaton in a python process, if it's not
+	 * already defined there, and gets a handle to it. This avoids re-sending
+	 * and re-parsing the automaton when a pass simulates the same automaton
+	 * many times.
+	 * 
+	 * @param pb
+	 *            the python bridge
+	 * @param config
+	 *            the (flat) configuration
+	 * @return a python expression which evaluates to the HybridAutomaton
+	 *         object, to use in place of "define_ha()"
+	 */
+	public static String defineAutomaton(PythonBridge pb, Configuration config)
+	{
+		return defineAutomaton(pb, automatonToString(config));
+	}
+
+	/**
+	 * Defines an already-printed hybrid automaton in a python process, if it's
+	 * not already defined there, and gets a handle to it. Callers which
+	 * simulate the same (unchanged) automaton many times should print it once
+	 * with automatonToString() and pass the same string here each time.
+	 * 
+	 * @param pb
+	 *            the python bridge
+	 * @param source
+	 *            the automaton, from automatonToString()
+	 * @return a python expression which evaluates to the HybridAutomaton
+	 *         object, to use in place of "define_ha()"
+	 */
+	public static String defineAutomaton(PythonBridge pb, String source)
+	{
+		return pb.defineModel(source, "define_ha()");
+	}
+
+	/**
+	 * Writes the given hybrid automaton in python-parsable form
+	 * 
+	 * @param config
+	 *            the (flat) configuration
+	 * @param rv
+	 *            where to write the output
+	 */
+	public static void writeAutomaton(Configuration config, PrintWriter rv)
 	{
 		ExpressionPrinter savedPrinter = Expression.expressionPrinter;
 
@@ -286,8 +344,6 @@ public class PySimPrinter extends ToolPrinter
 		pySimExpressionPrinter.ha = (BaseComponent) config.root;
 		sympyPyinter.ha = (BaseComponent) config.root;
 
-		StringBuilder rv = new StringBuilder();
-
 		if (!(config.root instanceof BaseComponent))
 			throw new AutomatonExportException("PySim expected flat automaton");
 
@@ -319,26 +375,24 @@ public class PySimPrinter extends ToolPrinter
 
 		// restore expressionPrinter
 		Expression.expressionPrinter = savedPrinter;
-
-		return rv.toString();
 	}
 
-	private static void appendNewline(StringBuilder rv)
+	private static void appendNewline(PrintWriter rv)
 	{
 		rv.append("\n");
 	}
 
-	private static void appendLine(StringBuilder rv, String string)
+	private static void appendLine(PrintWriter rv, String string)
 	{
 		rv.append(string + "\n");
 	}
 
-	private static void appendIndentedLine(StringBuilder rv, String string)
+	private static void appendIndentedLine(PrintWriter rv, String string)
 	{
 		rv.append("    " + string + "\n");
 	}
 
-	private static void appendInit(StringBuilder rv, Configuration config)
+	private static void appendInit(PrintWriter rv, Configuration config)
 	{
 		/*
 		 * # Variable ordering: [x, t, tglobal] rv = []
@@ -379,7 +433,7 @@ public class PySimPrinter extends ToolPrinter
 		appendIndentedLine(rv, "return rv");
 	}
 
-	private static void appendHyperRectangleFromInitExpression(StringBuilder rv, Expression exp,
+	private static void appendHyperRectangleFromInitExpression(PrintWriter rv, Expression exp,
 			BaseComponent ha)
 	{
 		// r = HyperRectangle([(4.5, 5.5), (0.0, 0.0), (0.0, 0.0)])
@@ -441,7 +495,7 @@ public class PySimPrinter extends ToolPrinter
 		printLine("return result");
 	}
 
-	private static void appendSymbols(List<String> vars, StringBuilder text)
+	private static void appendSymbols(List<String> vars, PrintWriter text)
 	{
 		StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,351 @@
+package com.verivital.hyst.printers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kohsuke.args4j.Option;
+
+import com.verivital.hyst.geometry.BoxSampler;
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.PointSet;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.simulation.CompiledExpression;
+import com.verivital.hyst.simulation.HybridSimulator;
+import com.verivital.hyst.simulation.HybridSimulator.TimedPoint;
+import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.PreconditionsFlag;
+import com.verivital.hyst.util.RangeExtractor;
+
+/**
+ * Monte Carlo falsification, run directly on the intermediate representation
+ * rather than exporting to another tool. Initial states are sampled from the
+ * initial set of the configuration, simulated concurrently in the JVM with
+ * HybridSimulator, and each simulation stops at the first state (localized in
+ * time like a guard) where the forbidden condition of its current mode is true.
+ * The output is a JSON report with the first counterexample (by sample index)
+ * and coverage statistics.
+ *
+ * By default, simulation stops after the first batch of samples which contains
+ * a counterexample; with -all, every sample is simulated so that the
+ * statistics cover the whole sample set.
+ */
+public class SimulationPrinter extends ToolPrinter
+{
+	@Option(name = "-time", usage = "simulation time", metaVar = "VAL")
+	String time = "auto";
+
+	@Option(name = "-step", usage = "maximum simulation time step (default: time / 100)", metaVar = "VAL")
+	double step = -1;
+
+	@Option(name = "-samples", usage = "number of initial states to simulate", metaVar = "NUM")
+	int samples = 1000;
+
+	@Option(name = "-sampling", usage = "how initial states are chosen, one of {rand, sobol, halton, lhs}", metaVar = "TYPE")
+	String sampling = "rand";
+
+	@Option(name = "-seed", usage = "random seed (for rand and lhs sampling)", metaVar = "NUM")
+	long seed = 0;
+
+	@Option(name = "-all", usage = "simulate every sample, rather than stopping after the first "
+			+ "counterexample is found")
+	boolean all = false;
+
+	@Option(name = "-max_jumps", usage = "maximum number of discrete transitions in each simulation", metaVar = "NUM")
+	int maxJumps = HybridSimulator.DEFAULT_MAX_JUMPS;
+
+	// samples are simulated in batches of this size, so a counterexample can
+	// end the search early
+	private static final int BATCH_SIZE = 256;
+
+	// for non-box initial sets, at most this many candidates per sample are
+	// drawn from the bounding box
+	private static final int MAX_REJECTION_FACTOR = 1024;
+
+	private static final String COMMENT_CHAR = "//";
+
+	public SimulationPrinter()
+	{
+		preconditions.skip(PreconditionsFlag.NO_URGENT); // urgent modes can
+															// be simulated
+	}
+
+	@Override
+	protected String getCommentPrefix()
+	{
+		return COMMENT_CHAR;
+	}
+
+	@Override
+	protected void printAutomaton()
+	{
+		BaseComponent ha = (BaseComponent) config.root;
+		double simTime = AutomatonUtil.parseSimulationTime(time, config);
+		double maxStep = step > 0 ? step : simTime / 100;
+
+		if (samples <= 0)
+			throw new AutomatonExportException("-samples must be positive: " + samples);
+
+		HybridSimulator sim = new HybridSimulator(ha);
+		sim.setMaxJumps(maxJumps);
+
+		ArrayList<SymbolicStatePoint> starts = sampleInitialStates(ha);
+		final HashMap<String, CompiledExpression> forbidden = new HashMap<String, CompiledExpression>();
+
+		for (Entry<String, Expression> e : config.forbidden.entrySet())
+			forbidden.put(e.getKey(), CompiledExpression.compile(e.getValue(), ha.variables));
+
+		final ConcurrentHashMap<String, Boolean> visited = new ConcurrentHashMap<String, Boolean>();
+
+		HybridSimulator.StopCondition isForbidden = new HybridSimulator.StopCondition()
+		{
+			@Override
+			public double value(String modeName, double[] state)
+			{
+				visited.putIfAbsent(modeName, Boolean.TRUE);
+				CompiledExpression f = forbidden.get(modeName);
+
+				return f == null ? -1 : positiveIffTrue(f, state);
+			}
+		};
+
+		int simulated = 0;
+		int violations = 0;
+		int firstIndex = -1;
+		TimedPoint first = null;
+
+		while (simulated < starts.size() && (all || first == null))
+		{
+			int end = Math.min(starts.size(), simulated + BATCH_SIZE);
+			List<SymbolicStatePoint> batch = starts.subList(simulated, end);
+			ArrayList<TimedPoint> results = sim.simulateAllUntilTimed(batch, simTime, maxStep,
+					isForbidden);
+
+			for (int i = 0; i < results.size(); ++i)
+			{
+				TimedPoint tp = results.get(i);
+
+				if (tp != null)
+				{
+					++violations;
+
+					if (first == null)
+					{
+						first = tp;
+						firstIndex = simulated + i;
+					}
+				}
+			}
+
+			simulated = end;
+		}
+
+		Hyst.log("Simulated " + simulated + " of " + starts.size() + " samples; found "
+				+ violations + " counterexample(s)");
+
+		TreeMap<String, Boolean> sortedVisited = new TreeMap<String, Boolean>(visited);
+
+		printLine("{", false);
+		printLine("  \"variables\": " + jsonStringList(ha.variables) + ",", false);
+		printLine("  \"time\": " + jsonNumber(simTime) + ",", false);
+		printLine("  \"sampling\": " + jsonString(sampling) + ",", false);
+		printLine("  \"samples\": " + starts.size() + ",", false);
+		printLine("  \"simulated\": " + simulated + ",", false);
+		printLine("  \"violations\": " + violations + ",", false);
+		printLine("  \"falsified\": " + (first != null) + ",", false);
+
+		if (first != null)
+		{
+			SymbolicStatePoint init = starts.get(firstIndex);
+
+			printLine("  \"counterexample\": {", false);
+			printLine("    \"sample\": " + firstIndex + ",", false);
+			printLine("    \"init_mode\": " + jsonString(init.modeName) + ",", false);
+			printLine("    \"init_state\": " + jsonPoint(init.hp) + ",", false);
+			printLine("    \"time\": " + jsonNumber(first.time) + ",", false);
+			printLine("    \"mode\": " + jsonString(first.point.modeName) + ",", false);
+			printLine("    \"state\": " + jsonPoint(first.point.hp), false);
+			printLine("  },", false);
+		}
+
+		printLine("  \"modes_total\": " + ha.modes.size() + ",", false);
+		printLine("  \"modes_visited\": " + jsonStringList(sortedVisited.keySet()), false);
+		printLine("}", false);
+	}
+
+	/**
+	 * Convert a condition to a stop condition value: positive if it's true,
+	 * and otherwise its (nonpositive) slack
+	 */
+	private static double positiveIffTrue(CompiledExpression e, double[] state)
+	{
+		double rv = e.slack(state);
+
+		if (e.isTrue(state))
+			rv = Math.max(rv, Double.MIN_VALUE);
+		else
+			rv = Math.min(rv, 0);
+
+		return rv;
+	}
+
+	/**
+	 * Choose the initial states, dividing the samples evenly between the
+	 * initial modes. Each mode's initial set is sampled within its bounding box,
+	 * rejecting points which don't satisfy the initial condition.
+	 *
+	 * @param ha
+	 *            the automaton
+	 * @return the initial states, in sample order
+	 */
+	private ArrayList<SymbolicStatePoint> sampleInitialStates(BaseComponent ha)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(samples);
+		int numModes = config.init.size();
+		int modeIndex = 0;
+		Random rand = new Random(seed);
+
+		for (Entry<String, Expression> e : config.init.entrySet())
+		{
+			String modeName = e.getKey();
+			int count = samples / numModes + (modeIndex++ < samples % numModes ? 1 : 0);
+			HyperRectangle box = getBoundingBox(ha, modeName, e.getValue());
+			CompiledExpression cond = CompiledExpression.compile(e.getValue(), ha.variables);
+			int start = rv.size();
+
+			// if too many candidates are rejected, retry with twice as many
+			for (int candidates = count; rv.size() - start < count; candidates *= 2)
+			{
+				if (candidates > (long) count * MAX_REJECTION_FACTOR)
+					throw new AutomatonExportException("Could not sample " + count
+							+ " initial states in mode " + modeName + " from " + box
+							+ "; is the initial set empty or very thin?");
+
+				rv.subList(start, rv.size()).clear();
+				PointSet points = samplePoints(box, candidates, rand);
+
+				for (int i = 0; i < points.size() && rv.size() - start < count; ++i)
+				{
+					HyperPoint hp = points.getPoint(i);
+
+					if (cond.isTrue(hp.dims))
+						rv.add(new SymbolicStatePoint(modeName, hp));
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	private PointSet samplePoints(HyperRectangle box, int count, Random rand)
+	{
+		PointSet rv;
+
+		if (sampling.equals("rand"))
+			rv = BoxSampler.uniform(box, count, rand);
+		else if (sampling.equals("sobol"))
+			rv = BoxSampler.sobol(box, count);
+		else if (sampling.equals("halton"))
+			rv = BoxSampler.halton(box, count);
+		else if (sampling.equals("lhs"))
+			rv = BoxSampler.latinHypercube(box, count, rand);
+		else
+			throw new AutomatonExportException("Unknown -sampling type: " + sampling);
+
+		return rv;
+	}
+
+	/**
+	 * Get the bounding box of an initial set, which must be bounded in every
+	 * variable
+	 */
+	private static HyperRectangle getBoundingBox(BaseComponent ha, String modeName,
+			Expression init)
+	{
+		TreeMap<String, Interval> ranges = new TreeMap<String, Interval>();
+		RangeExtractor.getWeakVariableRanges(init, ranges);
+		HyperRectangle rv = new HyperRectangle(ha.variables.size());
+
+		for (int d = 0; d < ha.variables.size(); ++d)
+		{
+			String var = ha.variables.get(d);
+			Interval i = ranges.get(var);
+
+			if (i == null || Double.isInfinite(i.min) || Double.isInfinite(i.max))
+				throw new AutomatonExportException("Initial states in mode " + modeName
+						+ " must be bounded in variable " + var + ": " + init.toDefaultString());
+
+			rv.dims[d] = i;
+		}
+
+		return rv;
+	}
+
+	private static String jsonString(String s)
+	{
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String jsonNumber(double d)
+	{
+		return Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d);
+	}
+
+	private static String jsonStringList(Iterable<String> list)
+	{
+		StringBuilder rv = new StringBuilder("[");
+
+		for (String s : list)
+		{
+			if (rv.length() > 1)
+				rv.append(", ");
+
+			rv.append(jsonString(s));
+		}
+
+		return rv.append("]").toString();
+	}
+
+	private static String jsonPoint(HyperPoint hp)
+	{
+		StringBuilder rv = new StringBuilder("[");
+
+		for (int d = 0; d < hp.dims.length; ++d)
+		{
+			if (d > 0)
+				rv.append(", ");
+
+			rv.append(jsonNumber(hp.dims[d]));
+		}
+
+		return rv.append("]").toString();
+	}
+
+	@Override
+	public String getToolName()
+	{
+		return "Simulation (Monte Carlo falsification)";
+	}
+
+	@Override
+	public String getCommandLineFlag()
+	{
+		return "simulate";
+	}
+
+	@Override
+	public String getExtension()
+	{
+		return ".json";
+	}
+}
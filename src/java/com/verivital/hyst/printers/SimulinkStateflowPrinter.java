@@ -21,6 +21,7 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AffineDynamics;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
@@ -30,6 +31,7 @@ import com.verivital.hyst.matlab.MatlabBridge;
 import com.verivital.hyst.util.Classification;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.SparseMatrix;
 
 import matlabcontrol.MatlabConnectionException;
 import matlabcontrol.MatlabInvocationException;
@@ -281,14 +283,14 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		String rv = "";
 		// Classification cls = new Classification();
-		double[][] linearMatrix = cls.linearMatrix;
+		SparseMatrix linearMatrix = cls.linearMatrix;
 		// Integer size = ha.variables.size();
 		Integer size = getAMatrixSize(m);
 		for (int i = 0; i < size; i++)
 		{
 			for (int j = 0; j < size; j++)
 			{
-				rv = rv + Double.toString(linearMatrix[j][i]) + " ";
+				rv = rv + Double.toString(linearMatrix.get(j, i)) + " ";
 			}
 			rv = rv + ";";
 		}
@@ -296,6 +298,80 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 		return rv;
 	}
 
+	/**
+	 * Get the dynamic matrix A in sparse form, with the same entries and
+	 * orientation as convertFlowToAMatrix(), but built from the mode's cached
+	 * affine dynamics so the cost scales with the number of nonzeros
+	 * 
+	 * @return the sparse A matrix of the set of variables X
+	 */
+	public SparseMatrix getSparseAMatrix(AutomatonMode m)
+	{
+		int size = getAMatrixSize(m);
+
+		return getAffineDynamics(m).getSparseA().block(size, 0, size).transpose();
+	}
+
+	/**
+	 * Get the transpose of the input matrix B in sparse form, with one row for
+	 * each constant that has a nonzero coefficient (the same rows as
+	 * convertInputToBMatrix())
+	 * 
+	 * @return the sparse B' matrix
+	 */
+	public SparseMatrix getSparseBTransposeMatrix(AutomatonMode m)
+	{
+		AffineDynamics ad = getAffineDynamics(m);
+		int size = getAMatrixSize(m);
+		int numVars = ad.getNumVariableColumns();
+		int numConsts = ad.getColumnNames().size() - numVars;
+		SparseMatrix bt = ad.getSparseA().block(size, numVars, numConsts).transpose();
+
+		// drop the constants which are never used
+		int numUsed = 0;
+
+		for (int r = 0; r < bt.getNumRows(); ++r)
+		{
+			if (bt.getRowEnd(r) > bt.getRowStart(r))
+				++numUsed;
+		}
+
+		int[] rowStart = new int[numUsed + 1];
+		int[] cols = new int[bt.getNumNonzeros()];
+		double[] vals = new double[bt.getNumNonzeros()];
+		int row = 0;
+		int k = 0;
+
+		for (int r = 0; r < bt.getNumRows(); ++r)
+		{
+			if (bt.getRowEnd(r) == bt.getRowStart(r))
+				continue;
+
+			rowStart[row++] = k;
+
+			for (int i = bt.getRowStart(r); i < bt.getRowEnd(r); ++i)
+			{
+				cols[k] = bt.getColumnAt(i);
+				vals[k++] = bt.getValueAt(i);
+			}
+		}
+
+		rowStart[numUsed] = k;
+
+		return new SparseMatrix(numUsed, size, rowStart, cols, vals);
+	}
+
+	private AffineDynamics getAffineDynamics(AutomatonMode m)
+	{
+		AffineDynamics rv = m.getAffineDynamics();
+
+		if (rv == null)
+			throw new AutomatonExportException(
+					"Mode '" + m.name + "' does not have linear dynamics");
+
+		return rv;
+	}
+
 	/**
 	 * 
 	 * /**
@@ -306,7 +382,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		String rv = "";
 		// Classification cls = new Classification();
-		double[][] linearMatrix = cls.linearMatrix;
+		SparseMatrix linearMatrix = cls.linearMatrix;
 		Integer rowLength = getAMatrixSize(m);
 		boolean allzero = true;
 		String tmp = "";
@@ -317,8 +393,8 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 			{
 				for (int i = 0; i < rowLength; i++)
 				{
-					tmp = tmp + Double.toString(linearMatrix[i][j]) + " ";
-					if (linearMatrix[i][j] != 0)
+					tmp = tmp + Double.toString(linearMatrix.get(i, j)) + " ";
+					if (linearMatrix.get(i, j) != 0)
 						allzero = false;
 				}
 				if (!allzero)
@@ -545,7 +621,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		String rv = "";
 		LinkedHashMap<String, Integer> varID = cls.varID;
-		double[][] linearMatrix = cls.linearMatrix;
+		SparseMatrix linearMatrix = cls.linearMatrix;
 		boolean allzero = true;
 		for (Expression ex : config.init.values())
 		{
@@ -554,7 +630,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 			{
 				for (int i = 0; i < getAMatrixSize(m); i++)
 				{
-					if (linearMatrix[i][varID.get(s)] != 0)
+					if (linearMatrix.get(i, varID.get(s)) != 0)
 						allzero = false;
 				}
 				if (!allzero)
@@ -3,12 +3,15 @@
  */
 package com.verivital.hyst.printers;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.text.DecimalFormat;
 
 import org.kohsuke.args4j.CmdLineException;
@@ -26,6 +29,10 @@ import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 /**
  * A generic tool printer class. Printers for individual tools will override
  * this abstract class. The model is printed by using printConfiguration().
+ * 
+ * All output goes through a single buffered Writer (see getOutputWriter()),
+ * whatever the output type, so large models are streamed to the destination
+ * using bounded memory rather than being assembled in a string first.
  */
 public abstract class ToolPrinter
 {
@@ -75,10 +82,14 @@ public abstract class ToolPrinter
 	}
 
 	protected OutputType outputType = OutputType.STDOUT;
-	private PrintStream outputStream; // used if printType = STDOUT or FILE
+	private PrintWriter outputWriter; // the sink for all output types
+	private String newline = "\n";
 	private HystFrame outputFrame; // used if printType = GUI
 	public StringBuffer outputString; // used if printType = STRING
 
+	public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 64 * 1024;
+	private int outputBufferSize = DEFAULT_OUTPUT_BUFFER_SIZE;
+
 	// static
 	private static DecimalFormat df = new DecimalFormat("0.#");
 
@@ -105,6 +116,21 @@ public abstract class ToolPrinter
 		outputString = new StringBuffer();
 	}
 
+	/**
+	 * Set the size of the output buffer, in characters. Output is written to
+	 * the destination (file, stdout or GUI) each time the buffer fills.
+	 * 
+	 * @param size
+	 *            the buffer size
+	 */
+	public void setOutputBufferSize(int size)
+	{
+		if (size <= 0)
+			throw new AutomatonExportException("Output buffer size must be positive: " + size);
+
+		outputBufferSize = size;
+	}
+
 	/**
 	 * Prints the networked automaton out to the given file
 	 * 
@@ -115,8 +141,6 @@ public abstract class ToolPrinter
 	{
 		this.originalFilename = originalFilename;
 
-		boolean shouldCloseStream = false;
-
 		setBaseName(originalFilename);
 
 		String[] args = AutomatonUtil.extractArgs(argument);
@@ -136,25 +160,17 @@ public abstract class ToolPrinter
 		try
 		{
 			outputString = null;
-			outputStream = null;
-
-			if (outputType == OutputType.STDOUT)
-			{
-				outputStream = System.out;
-			}
-			else if (outputType == OutputType.FILE)
-			{
-				shouldCloseStream = true;
-				outputStream = new PrintStream(
-						new BufferedOutputStream(new FileOutputStream(outputFilename)));
-			}
-			else if (outputType == OutputType.STRING)
-				outputString = new StringBuffer();
+			outputWriter = openOutputWriter();
 
 			this.config = c;
 
 			preconditions.check(c, getToolName());
 			printAutomaton();
+
+			// checkError() also flushes the output
+			if (outputWriter.checkError())
+				throw new AutomatonExportException("Error while writing " + getToolName()
+						+ " output" + (outputFilename == null ? "" : " to " + outputFilename));
 		}
 		catch (PreconditionsFailedException e)
 		{
@@ -171,8 +187,131 @@ public abstract class ToolPrinter
 		}
 		finally
 		{
-			if (shouldCloseStream && outputStream != null)
-				outputStream.close();
+			if (outputWriter != null)
+			{
+				// don't close stdout
+				if (outputType == OutputType.FILE)
+					outputWriter.close();
+				else
+					outputWriter.flush();
+			}
+		}
+	}
+
+	/**
+	 * Create the output sink for the current output type
+	 * 
+	 * @return the writer
+	 * @throws FileNotFoundException
+	 *             if the output file can't be created
+	 */
+	private PrintWriter openOutputWriter() throws FileNotFoundException
+	{
+		Writer w;
+		newline = "\n";
+
+		if (outputType == OutputType.STDOUT)
+		{
+			w = new BufferedWriter(new OutputStreamWriter(System.out), outputBufferSize);
+			newline = System.getProperty("line.separator");
+		}
+		else if (outputType == OutputType.FILE)
+		{
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFilename)),
+					outputBufferSize);
+			newline = System.getProperty("line.separator");
+		}
+		else if (outputType == OutputType.GUI)
+			w = new BufferedWriter(new GuiWriter(outputFrame), outputBufferSize);
+		else if (outputType == OutputType.STRING)
+		{
+			// already in memory, no need to buffer
+			StringWriter sw = new StringWriter();
+			outputString = sw.getBuffer();
+			w = sw;
+		}
+		else
+			w = new NullWriter();
+
+		return new PrintWriter(w);
+	}
+
+	/**
+	 * Get the writer that all output goes to. Printers which produce large
+	 * blocks of text should write them here directly, rather than building a
+	 * String to pass to printLine(). No indentation is added.
+	 * 
+	 * @return the output writer (only valid during printAutomaton())
+	 */
+	protected PrintWriter getOutputWriter()
+	{
+		return outputWriter;
+	}
+
+	/**
+	 * Writes complete lines to the GUI output area, which adds its own
+	 * newlines
+	 */
+	private static class GuiWriter extends Writer
+	{
+		private final HystFrame frame;
+		private final StringBuilder line = new StringBuilder();
+
+		public GuiWriter(HystFrame frame)
+		{
+			this.frame = frame;
+		}
+
+		@Override
+		public void write(char[] buf, int offset, int len)
+		{
+			for (int i = offset; i < offset + len; ++i)
+			{
+				if (buf[i] == '\n')
+				{
+					frame.addOutput(line.toString());
+					line.setLength(0);
+				}
+				else
+					line.append(buf[i]);
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			if (line.length() > 0)
+			{
+				frame.addOutput(line.toString());
+				line.setLength(0);
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Discards all output (for OutputType.NONE)
+	 */
+	private static class NullWriter extends Writer
+	{
+		@Override
+		public void write(char[] buf, int offset, int len)
+		{
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
 		}
 	}
 
@@ -195,12 +334,7 @@ public abstract class ToolPrinter
 	 */
 	protected void printNewline()
 	{
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println();
-		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput("\n");
-		else if (outputType == OutputType.STRING)
-			outputString.append("\n");
+		outputWriter.write(newline);
 	}
 
 	/**
@@ -242,12 +376,12 @@ public abstract class ToolPrinter
 	{
 		String s = createCommentText(comment);
 
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
-		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(s);
-		else if (outputType == OutputType.STRING)
-			outputString.append(s);
+		outputWriter.write(s);
+
+		// for streams, the comment was followed by an extra newline
+		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE
+				|| outputType == OutputType.GUI)
+			outputWriter.write(newline);
 	}
 
 	/**
@@ -291,12 +425,8 @@ public abstract class ToolPrinter
 
 		s += line;
 
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.println(s);
-		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(s);
-		else if (outputType == OutputType.STRING)
-			outputString.append(s + "\n");
+		outputWriter.write(s);
+		outputWriter.write(newline);
 
 		if (indent && line.equals("{"))
 			increaseIndentation();
@@ -315,12 +445,7 @@ public abstract class ToolPrinter
 		else
 			newS = s;
 
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.print(newS);
-		else if (outputType == OutputType.GUI)
-			outputFrame.addOutput(newS);
-		else if (outputType == OutputType.STRING)
-			outputString.append(newS);
+		outputWriter.write(newS);
 	}
 
 	/**
@@ -368,8 +493,8 @@ public abstract class ToolPrinter
 
 	public void flush()
 	{
-		if (outputType == OutputType.STDOUT || outputType == OutputType.FILE)
-			outputStream.flush();
+		if (outputWriter != null)
+			outputWriter.flush();
 	}
 
 	public String getParamHelp()
@@ -9,10 +9,13 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.util.FileOperations;
+import com.verivital.hyst.util.StringOperations;
 
 /**
  * This class is java <-> python interface using stdin / stdout and python
@@ -28,7 +31,9 @@ import com.verivital.hyst.util.FileOperations;
  * 
  * You can reduce overhead by passing all of your data to python at once (or as
  * much as is possible), and then having python do an extended computation (even
- * in parallel) and only then printing back the result.
+ * in parallel) and only then printing back the result. Large, repeated
+ * definitions (like a hybrid automaton) can be sent once with defineModel(),
+ * and then referenced by the returned handle.
  * 
  * @author Stanley Bak (May 2015)
  *
@@ -49,6 +54,18 @@ public class PythonBridge
 	private BufferedReader stderr = null;
 	private Writer stdin = null;
 
+	// hashes of the models currently defined in the python process (see
+	// defineModel()); if there are too many, they are all cleared
+	private static final int MAX_DEFINED_MODELS = 16;
+	private static final String MODELS_DICT = "_hyst_models";
+	private final Set<String> definedModels = new HashSet<String>();
+
+	// the hash of the last model source passed to defineModel(), so that
+	// passing the same string again doesn't rehash it
+	private String lastModelSource = null;
+	private String lastModelConstructor = null;
+	private String lastModelHash = null;
+
 	private enum Status
 	{
 		FALSE, TRUE, UNKNOWN
@@ -269,6 +286,7 @@ public class PythonBridge
 			stdout = null;
 			stdin = null;
 			stderr = null;
+			definedModels.clear();
 		}
 	}
 
@@ -676,4 +694,59 @@ public class PythonBridge
 
 		return result;
 	}
+
+	/**
+	 * Define a model in the python process, if it isn't already defined, and
+	 * get a handle to it. The source code is sent (and executed) only the
+	 * first time it's used in the python process; the model is identified by
+	 * a hash of the source and the constructor, so if either one changes, the
+	 * model is defined again.
+	 * 
+	 * @param source
+	 *            the python code which declares the model's constructor (for
+	 *            example, the output of PySimPrinter.automatonToString())
+	 * @param constructor
+	 *            the python expression which creates the model, like
+	 *            "define_ha()"
+	 * @return a python expression which evaluates to the defined model
+	 */
+	public String defineModel(String source, String constructor)
+	{
+		if (source != lastModelSource || !constructor.equals(lastModelConstructor))
+		{
+			lastModelHash = StringOperations.sha256(source + "\n" + constructor);
+			lastModelSource = source;
+			lastModelConstructor = constructor;
+		}
+
+		String hash = lastModelHash;
+		String rv = MODELS_DICT + "['" + hash + "']";
+
+		if (!definedModels.contains(hash))
+		{
+			if (definedModels.size() >= MAX_DEFINED_MODELS)
+				definedModels.clear();
+
+			if (definedModels.isEmpty())
+				send(MODELS_DICT + " = {}");
+
+			// in interactive mode, a blank line is needed to end a trailing
+			// block (like a def) before the assignment
+			StringBuilder s = new StringBuilder(source);
+
+			if (!source.endsWith("\n"))
+				s.append("\n");
+
+			if (!source.endsWith("\n\n"))
+				s.append("\n");
+
+			s.append(rv + " = " + constructor);
+			send(s.toString());
+
+			definedModels.add(hash);
+			logDebug("Defined model with handle " + rv);
+		}
+
+		return rv;
+	}
 }
@@ -324,6 +324,84 @@ public class PythonUtil
 		return e;
 	}
 
+	/**
+	 * Simplify several expressions using python, chopping values to zero
+	 * smaller than some tolerance. This is the same as calling
+	 * pythonSimplifyExpressionChop() on each expression, but all the
+	 * expressions are sent in a single python call. Like
+	 * pythonSimplifyExpression(), only operations with linear and nonlinear
+	 * operators are sent to python; other expressions (constants, luts,
+	 * boolean operations, etc.) are only chopped.
+	 *
+	 * @param exps
+	 *            the expressions to simplify
+	 * @param tol
+	 *            the tolerance for chopping, some small value like 1e-8
+	 * @return the simplified expressions, in the same order
+	 */
+	public static List<Expression> pythonSimplifyExpressionsChop(List<Expression> exps,
+			double tol)
+	{
+		if (!PythonBridge.hasPython())
+			throw new AutomatonExportException(
+					"pythonSimplifyExpressionsChop called, but python was not enabled");
+
+		List<Expression> rv = new ArrayList<Expression>(exps.size());
+		ArrayList<Integer> pythonIndices = new ArrayList<Integer>();
+
+		for (Expression e : exps)
+		{
+			if (e instanceof Operation && AutomatonUtil.expressionContainsOnlyAllowedOps(e,
+					AutomatonUtil.OPS_LINEAR, AutomatonUtil.OPS_NONLINEAR))
+				pythonIndices.add(rv.size());
+
+			rv.add(chop(e, tol));
+		}
+
+		if (pythonIndices.size() == 0)
+			return rv;
+
+		PythonBridge pb = PythonBridge.getInstance();
+		StringBuilder s = new StringBuilder();
+		HashSet<String> allVariables = new HashSet<String>();
+
+		for (int i : pythonIndices)
+			allVariables.addAll(AutomatonUtil.getVariablesInExpression(exps.get(i)));
+
+		appendSymbolsDeclaration(s, allVariables);
+		s.append("from sympy import S;");
+
+		// simplify, then chop, then simplify (like pythonSimplifyExpressionChop)
+		s.append("_simp = lambda e: sympy.simplify(sympy.factor(e));");
+		s.append("_chop = lambda e: e.xreplace(dict((n, 0) for n in e.atoms(sympy.Number) "
+				+ "if abs(n) <= " + tol + "));");
+		s.append("print('|'.join([str(_simp(_chop(_simp(S(e))))) for e in [");
+
+		for (int i : pythonIndices)
+		{
+			s.append(pySympyPrinter.print(exps.get(i)));
+			s.append(",");
+		}
+
+		s.append("]]))");
+
+		String result = pb.send(s.toString());
+		String[] parts = result.trim().split("\\|");
+
+		if (parts.length != pythonIndices.size())
+			throw new AutomatonExportException("Expected " + pythonIndices.size()
+					+ " simplified expressions from python, got " + parts.length + ": " + result);
+
+		for (int i = 0; i < parts.length; ++i)
+		{
+			String part = parts[i].trim().replace("**", "^");
+
+			rv.set(pythonIndices.get(i), FormulaParser.parseValue(part));
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Chop an expression (set values close to zero to zero)
 	 * 
@@ -0,0 +1,340 @@
+package com.verivital.hyst.simulation;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * An expression compiled to a tree of nodes which can be evaluated quickly on
+ * a state vector, without the substitute-and-simplify approach of
+ * AutomatonUtil.evaluateExpression(). Variables are resolved to indices when
+ * the expression is compiled.
+ * 
+ * Boolean operations (comparisons, and, or, not) evaluate to 1 for true and 0
+ * for false. For root finding on conditions, slack() gives a continuous
+ * measure of how far a condition is from changing its value. Compiled
+ * expressions are immutable, so a single instance can be
+ * evaluated from many threads at once.
+ */
+public abstract class CompiledExpression
+{
+	private static final EnumSet<Operator> UNARY_OPS = EnumSet.of(Operator.NEGATIVE,
+			Operator.LOGICAL_NOT, Operator.SIN, Operator.COS, Operator.TAN, Operator.EXP,
+			Operator.SQRT, Operator.LN);
+
+	private static final EnumSet<Operator> BINARY_OPS = EnumSet.of(Operator.ADD,
+			Operator.SUBTRACT, Operator.MULTIPLY, Operator.DIVIDE, Operator.POW, Operator.AND,
+			Operator.OR, Operator.EQUAL, Operator.NOTEQUAL, Operator.LESS, Operator.GREATER,
+			Operator.LESSEQUAL, Operator.GREATEREQUAL);
+
+	/**
+	 * Evaluate the expression
+	 * 
+	 * @param state
+	 *            the values of the variables, in the order passed to compile()
+	 * @return the value
+	 */
+	public abstract double evaluate(double[] state);
+
+	/**
+	 * Evaluate a condition
+	 * 
+	 * @param state
+	 *            the values of the variables, in the order passed to compile()
+	 * @return true iff the expression evaluates to nonzero
+	 */
+	public boolean isTrue(double[] state)
+	{
+		return evaluate(state) != 0;
+	}
+
+	/**
+	 * Get the slack of a condition: a value which is at least zero when the
+	 * condition is true and at most zero when it is false, and which (for
+	 * comparisons of continuous expressions) varies continuously with the
+	 * state. A comparison's slack is the difference of its sides, 'and' takes
+	 * the minimum, 'or' the maximum, and 'not' negates. Other expressions have
+	 * slack 1 when true and -1 when false.
+	 * 
+	 * @param state
+	 *            the values of the variables, in the order passed to compile()
+	 * @return the slack
+	 */
+	public double slack(double[] state)
+	{
+		return isTrue(state) ? 1 : -1;
+	}
+
+	/**
+	 * Compile an expression
+	 * 
+	 * @param e
+	 *            the expression (arithmetic or boolean)
+	 * @param variables
+	 *            the variable names, which determines the state vector ordering
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains unknown variables or unsupported
+	 *             operations
+	 */
+	public static CompiledExpression compile(Expression e, List<String> variables)
+	{
+		CompiledExpression rv = null;
+
+		if (e instanceof Constant)
+			rv = new ConstantNode(((Constant) e).getVal());
+		else if (e instanceof Variable)
+		{
+			String name = ((Variable) e).name;
+			int index = variables.indexOf(name);
+
+			if (index == -1)
+				throw new AutomatonExportException(
+						"Unknown variable '" + name + "' while compiling expression");
+
+			rv = new VariableNode(index);
+		}
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+
+			if (o.children.size() == 1 && UNARY_OPS.contains(o.op))
+				rv = new UnaryNode(o.op, compile(o.children.get(0), variables));
+			else if (o.children.size() == 2 && BINARY_OPS.contains(o.op))
+				rv = new BinaryNode(o.op, compile(o.getLeft(), variables),
+						compile(o.getRight(), variables));
+		}
+
+		if (rv == null)
+			throw new AutomatonExportException(
+					"Unsupported expression for compiled evaluation: " + e.toDefaultString());
+
+		return rv;
+	}
+
+	private static double bool(boolean b)
+	{
+		return b ? 1 : 0;
+	}
+
+	private static class ConstantNode extends CompiledExpression
+	{
+		private final double val;
+
+		ConstantNode(double val)
+		{
+			this.val = val;
+		}
+
+		@Override
+		public double evaluate(double[] state)
+		{
+			return val;
+		}
+	}
+
+	private static class VariableNode extends CompiledExpression
+	{
+		private final int index;
+
+		VariableNode(int index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public double evaluate(double[] state)
+		{
+			return state[index];
+		}
+	}
+
+	private static class UnaryNode extends CompiledExpression
+	{
+		private final Operator op;
+		private final CompiledExpression child;
+
+		UnaryNode(Operator op, CompiledExpression child)
+		{
+			this.op = op;
+			this.child = child;
+		}
+
+		@Override
+		public double evaluate(double[] state)
+		{
+			return evaluate(op, child.evaluate(state));
+		}
+
+		@Override
+		public double slack(double[] state)
+		{
+			double rv;
+
+			if (op == Operator.LOGICAL_NOT)
+				rv = -child.slack(state);
+			else
+				rv = super.slack(state);
+
+			return rv;
+		}
+
+		private static double evaluate(Operator op, double x)
+		{
+			double rv;
+
+			switch (op)
+			{
+			case NEGATIVE:
+				rv = -x;
+				break;
+			case LOGICAL_NOT:
+				rv = bool(x == 0);
+				break;
+			case SIN:
+				rv = Math.sin(x);
+				break;
+			case COS:
+				rv = Math.cos(x);
+				break;
+			case TAN:
+				rv = Math.tan(x);
+				break;
+			case EXP:
+				rv = Math.exp(x);
+				break;
+			case SQRT:
+				rv = Math.sqrt(x);
+				break;
+			case LN:
+				rv = Math.log(x);
+				break;
+			default:
+				throw new AutomatonExportException("Unsupported unary operator: " + op);
+			}
+
+			return rv;
+		}
+	}
+
+	private static class BinaryNode extends CompiledExpression
+	{
+		private final Operator op;
+		private final CompiledExpression left, right;
+
+		BinaryNode(Operator op, CompiledExpression left, CompiledExpression right)
+		{
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public double evaluate(double[] state)
+		{
+			double rv;
+
+			// short-circuit the logical operations
+			if (op == Operator.AND)
+				rv = bool(left.isTrue(state) && right.isTrue(state));
+			else if (op == Operator.OR)
+				rv = bool(left.isTrue(state) || right.isTrue(state));
+			else
+				rv = evaluate(op, left.evaluate(state), right.evaluate(state));
+
+			return rv;
+		}
+
+		@Override
+		public double slack(double[] state)
+		{
+			double rv;
+
+			switch (op)
+			{
+			case AND:
+				rv = Math.min(left.slack(state), right.slack(state));
+				break;
+			case OR:
+				rv = Math.max(left.slack(state), right.slack(state));
+				break;
+			case EQUAL:
+				rv = -Math.abs(left.evaluate(state) - right.evaluate(state));
+				break;
+			case NOTEQUAL:
+				rv = Math.abs(left.evaluate(state) - right.evaluate(state));
+				break;
+			case GREATER:
+			case GREATEREQUAL:
+				rv = left.evaluate(state) - right.evaluate(state);
+				break;
+			case LESS:
+			case LESSEQUAL:
+				rv = right.evaluate(state) - left.evaluate(state);
+				break;
+			default:
+				rv = super.slack(state);
+			}
+
+			return rv;
+		}
+
+		private static double evaluate(Operator op, double a, double b)
+		{
+			double rv;
+
+			switch (op)
+			{
+			case ADD:
+				rv = a + b;
+				break;
+			case SUBTRACT:
+				rv = a - b;
+				break;
+			case MULTIPLY:
+				rv = a * b;
+				break;
+			case DIVIDE:
+				rv = a / b;
+				break;
+			case POW:
+				rv = Math.pow(a, b);
+				break;
+			case AND:
+				rv = bool(a != 0 && b != 0);
+				break;
+			case OR:
+				rv = bool(a != 0 || b != 0);
+				break;
+			case EQUAL:
+				rv = bool(a == b);
+				break;
+			case NOTEQUAL:
+				rv = bool(a != b);
+				break;
+			case LESS:
+				rv = bool(a < b);
+				break;
+			case GREATER:
+				rv = bool(a > b);
+				break;
+			case LESSEQUAL:
+				rv = bool(a <= b);
+				break;
+			case GREATEREQUAL:
+				rv = bool(a >= b);
+				break;
+			default:
+				throw new AutomatonExportException("Unsupported binary operator: " + op);
+			}
+
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.verivital.hyst.simulation;
+
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.util.AutomatonUtil;
+
+/**
+ * The flow of a mode together with its Jacobian matrix, both differentiated
+ * symbolically and compiled once. The Jacobian can be evaluated exactly at a
+ * point, or estimated with secants across a box (as
+ * AutomatonUtil.estimateJacobian does) using the compiled flow. Partial
+ * derivatives which are identically zero are skipped during evaluation.
+ *
+ * Flows which can't be differentiated symbolically (like a power with a
+ * variable exponent) only need to be evaluated: their rows of the exact
+ * Jacobian use central differences with a small step instead. Instances are
+ * immutable and can be shared between threads.
+ */
+public class CompiledJacobian
+{
+	// relative step of the central differences for rows without derivatives
+	private static final double DIFFERENCE_STEP = 1e-6;
+
+	private final int numVars;
+	private final CompiledExpression[] flow;
+
+	// null entries are zero; a null row means the flow wasn't differentiable
+	private final CompiledExpression[][] partials;
+
+	/**
+	 * Differentiate and compile the given dynamics
+	 *
+	 * @param dynamics
+	 *            the flow for each variable (with no interval part)
+	 * @param variables
+	 *            the variables, which determines the row / column ordering
+	 */
+	public CompiledJacobian(Map<String, ExpressionInterval> dynamics, List<String> variables)
+	{
+		numVars = variables.size();
+		flow = new CompiledExpression[numVars];
+		partials = new CompiledExpression[numVars][];
+
+		for (int y = 0; y < numVars; ++y)
+		{
+			ExpressionInterval ei = dynamics.get(variables.get(y));
+
+			if (ei == null)
+				throw new AutomatonExportException(
+						"Flow for variable '" + variables.get(y) + "' was not defined.");
+
+			Expression der = ei.asExpression();
+			flow[y] = CompiledExpression.compile(der, variables);
+
+			try
+			{
+				CompiledExpression[] row = new CompiledExpression[numVars];
+
+				for (int x = 0; x < numVars; ++x)
+				{
+					Expression partial = AutomatonUtil.partialDerivativeOf(der, variables.get(x));
+
+					if (!(partial instanceof Constant) || ((Constant) partial).getVal() != 0)
+						row[x] = CompiledExpression.compile(partial, variables);
+				}
+
+				partials[y] = row;
+			}
+			catch (AutomatonExportException e)
+			{
+				Hyst.logDebug("Flow for '" + variables.get(y) + "' is not differentiable "
+						+ "symbolically, using sampled slopes: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	public int getNumVars()
+	{
+		return numVars;
+	}
+
+	/**
+	 * Evaluate the flow at a point
+	 *
+	 * @param point
+	 *            the state
+	 * @return the derivative of each variable
+	 */
+	public double[] evaluateFlow(double[] point)
+	{
+		double[] rv = new double[numVars];
+
+		for (int y = 0; y < numVars; ++y)
+			rv[y] = flow[y].evaluate(point);
+
+		return rv;
+	}
+
+	/**
+	 * Evaluate the Jacobian matrix at a point. This is exact, except for the
+	 * rows of flows which couldn't be differentiated symbolically, which use
+	 * central differences with a small step.
+	 *
+	 * @param point
+	 *            the state
+	 * @return the Jacobian, where entry [y][x] is the partial derivative of
+	 *         the flow of variable y with respect to variable x
+	 */
+	public double[][] evaluate(double[] point)
+	{
+		double[][] rv = new double[numVars][numVars];
+		double[] pt = point.clone();
+
+		for (int y = 0; y < numVars; ++y)
+		{
+			for (int x = 0; x < numVars; ++x)
+			{
+				if (partials[y] == null)
+					rv[y][x] = secant(y, x, pt, differenceStep(point[x]));
+				else if (partials[y][x] != null)
+					rv[y][x] = partials[y][x].evaluate(point);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Estimate the Jacobian matrix with central secants, sampling each variable
+	 * at center - offset and center + offset. This matches
+	 * AutomatonUtil.estimateJacobian when the offsets are half the box widths.
+	 * Entries whose partial derivative is identically zero are zero, and
+	 * variables with a zero offset use the partial derivative at the center
+	 * (the limit of the secant).
+	 *
+	 * @param center
+	 *            the center point
+	 * @param offsets
+	 *            the sample offset for each variable
+	 * @return the estimated Jacobian, where entry [y][x] is the secant slope of
+	 *         the flow of variable y with respect to variable x
+	 */
+	public double[][] estimate(double[] center, double[] offsets)
+	{
+		double[][] rv = new double[numVars][numVars];
+		double[] pt = center.clone();
+
+		for (int y = 0; y < numVars; ++y)
+		{
+			for (int x = 0; x < numVars; ++x)
+			{
+				double offset = offsets[x];
+
+				if (partials[y] == null)
+					rv[y][x] = secant(y, x, pt,
+							offset == 0 ? differenceStep(center[x]) : offset);
+				else if (partials[y][x] == null)
+					continue;
+				else if (offset == 0)
+					rv[y][x] = partials[y][x].evaluate(center);
+				else
+					rv[y][x] = secant(y, x, pt, offset);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the central secant slope of the flow of variable y in direction x
+	 *
+	 * @param y
+	 *            the flow's variable index
+	 * @param x
+	 *            the direction's variable index
+	 * @param pt
+	 *            the center point, which is modified temporarily
+	 * @param offset
+	 *            the (nonzero) sample offset
+	 * @return the slope
+	 */
+	private double secant(int y, int x, double[] pt, double offset)
+	{
+		double center = pt[x];
+
+		pt[x] = center - offset;
+		double leftVal = flow[y].evaluate(pt);
+		pt[x] = center + offset;
+		double rightVal = flow[y].evaluate(pt);
+		pt[x] = center;
+
+		return (rightVal - leftVal) / (2 * offset);
+	}
+
+	private static double differenceStep(double val)
+	{
+		return DIFFERENCE_STEP * Math.max(1, Math.abs(val));
+	}
+}
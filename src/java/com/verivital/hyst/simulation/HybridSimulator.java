@@ -0,0 +1,890 @@
+package com.verivital.hyst.simulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.base.ModeTraversal;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * A simulator for hybrid automata which runs in the JVM, so that many
+ * trajectories can be computed concurrently rather than in lock-step through a
+ * single python process. The semantics follow pysim: at each step, the first
+ * enabled outgoing transition is taken; otherwise, if the invariant is true,
+ * the continuous dynamics are advanced with a fourth-order Runge-Kutta step.
+ * Flows use the expression part of each ExpressionInterval (pysim also ignores
+ * the interval part).
+ *
+ * Discrete events (a guard becoming true or the invariant becoming false) are
+ * localized within each step, rather than only being checked at step
+ * boundaries: the step is interpolated with a cubic Hermite polynomial (using
+ * the derivatives at both ends), and the event time is found to within the
+ * event tolerance by the Illinois variant of regula falsi on the slack of the
+ * conditions (see CompiledExpression.slack()), falling back to bisection. This
+ * plays the role of pysim's find_event_bisection, but doesn't re-integrate the
+ * dynamics. Simulations can also stop at a caller-provided condition
+ * (simulateUntil), which is localized the same way.
+ *
+ * A simulation which reaches a state with a false invariant and no enabled
+ * transitions (or exceeds the maximum number of jumps) stops early, like pysim
+ * does when errors aren't reraised.
+ */
+public class HybridSimulator
+{
+	public static final int DEFAULT_MAX_JUMPS = 500;
+	private static final int MAX_EVENT_ITERATIONS = 200;
+	private static final int WRITE_BATCH_SIZE = 64; // trajectories in memory in writeTrajectories()
+
+	private final LinkedHashMap<String, CompiledMode> modes = new LinkedHashMap<String, CompiledMode>();
+	private final int numVars;
+	private int maxJumps = DEFAULT_MAX_JUMPS;
+	private double eventTolerance = 0; // if <= 0, chosen based on the simulation time
+
+	private static class CompiledMode
+	{
+		String name;
+		CompiledExpression[] der; // null if urgent
+		CompiledExpression inv;
+		ArrayList<CompiledTransition> transitions = new ArrayList<CompiledTransition>();
+	}
+
+	/**
+	 * A condition where a simulation should stop, for simulateUntil()
+	 */
+	public interface StopCondition
+	{
+		/**
+		 * Evaluate the condition. The value is used for root finding, so it
+		 * should vary continuously with the state within a mode.
+		 * 
+		 * @param modeName
+		 *            the current mode
+		 * @param state
+		 *            the current state
+		 * @return a value which is positive exactly when the simulation should
+		 *         stop
+		 */
+		public double value(String modeName, double[] state);
+	}
+
+	/**
+	 * A simulation state together with the time it was reached
+	 */
+	public static class TimedPoint
+	{
+		public final SymbolicStatePoint point;
+		public final double time;
+
+		public TimedPoint(SymbolicStatePoint point, double time)
+		{
+			this.point = point;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Receives the states of a simulation as they're computed. Consecutive
+	 * states in the same segment are connected by continuous flow in a single
+	 * mode.
+	 */
+	public interface TrajectorySink
+	{
+		/**
+		 * Add a state
+		 *
+		 * @param mode
+		 *            the mode
+		 * @param t
+		 *            the time
+		 * @param state
+		 *            the state, which isn't modified afterwards
+		 * @param newSegment
+		 *            true for the start state and after a discrete jump
+		 */
+		public void add(String mode, double t, double[] state, boolean newSegment);
+	}
+
+	/**
+	 * A trajectory recorded in memory, so it can be computed concurrently and
+	 * written to a trajectory file in order
+	 */
+	private static class Recording implements TrajectorySink
+	{
+		ArrayList<String> segmentModes = new ArrayList<String>();
+		ArrayList<Integer> segmentStarts = new ArrayList<Integer>();
+		ArrayList<Double> times = new ArrayList<Double>();
+		ArrayList<double[]> states = new ArrayList<double[]>();
+
+		@Override
+		public void add(String mode, double t, double[] state, boolean newSegment)
+		{
+			if (newSegment)
+			{
+				segmentModes.add(mode);
+				segmentStarts.add(times.size());
+			}
+
+			times.add(t);
+			states.add(state);
+		}
+
+		void writeTo(TrajectoryWriter out, int index) throws IOException
+		{
+			for (int s = 0; s < segmentModes.size(); ++s)
+			{
+				int end = s + 1 < segmentStarts.size() ? segmentStarts.get(s + 1) : times.size();
+				out.startSegment(index, segmentModes.get(s));
+
+				for (int i = segmentStarts.get(s); i < end; ++i)
+					out.addPoint(times.get(i), states.get(i));
+			}
+		}
+	}
+
+	private static class CompiledTransition
+	{
+		CompiledMode to;
+		CompiledExpression guard;
+		CompiledExpression[] reset; // null entries are identity assignments
+	}
+
+	/**
+	 * Compile the automaton for simulation
+	 *
+	 * @param ha
+	 *            the automaton, which should not be modified while this
+	 *            simulator is in use
+	 */
+	public HybridSimulator(BaseComponent ha)
+	{
+		List<String> vars = ha.variables;
+		numVars = vars.size();
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			CompiledMode cm = new CompiledMode();
+			cm.name = am.name;
+			cm.inv = CompiledExpression.compile(am.invariant, vars);
+
+			if (!am.urgent)
+			{
+				cm.der = new CompiledExpression[numVars];
+
+				for (int i = 0; i < numVars; ++i)
+				{
+					ExpressionInterval ei = am.flowDynamics.get(vars.get(i));
+
+					if (ei == null)
+						throw new AutomatonExportException("Flow for variable '" + vars.get(i)
+								+ "' in mode '" + am.name + "' was not defined.");
+
+					cm.der[i] = CompiledExpression.compile(ei.getExpression(), vars);
+				}
+			}
+
+			modes.put(am.name, cm);
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			CompiledTransition ct = new CompiledTransition();
+			ct.to = modes.get(at.to.name);
+			ct.guard = CompiledExpression.compile(at.guard, vars);
+			ct.reset = new CompiledExpression[numVars];
+
+			for (Entry<String, ExpressionInterval> e : at.reset.entrySet())
+			{
+				int index = vars.indexOf(e.getKey());
+
+				if (index == -1)
+					throw new AutomatonExportException(
+							"Reset of unknown variable '" + e.getKey() + "'");
+
+				ct.reset[index] = CompiledExpression.compile(e.getValue().getExpression(),
+						vars);
+			}
+
+			modes.get(at.from.name).transitions.add(ct);
+		}
+	}
+
+	public void setMaxJumps(int maxJumps)
+	{
+		if (maxJumps <= 0)
+			throw new AutomatonExportException(
+					"max jumps should be greater than zero: " + maxJumps);
+
+		this.maxJumps = maxJumps;
+	}
+
+	/**
+	 * Set the precision of event times (guards, invariants and stop
+	 * conditions). By default this is max(1e-10, time / 1e10), as in pysim.
+	 * 
+	 * @param tol
+	 *            the tolerance, or a nonpositive value for the default
+	 */
+	public void setEventTolerance(double tol)
+	{
+		this.eventTolerance = tol;
+	}
+
+	/**
+	 * Evaluate the derivative in a mode
+	 * 
+	 * @param modeName
+	 *            the mode
+	 * @param state
+	 *            the state
+	 * @return the derivative, or null if the mode is urgent
+	 */
+	public double[] getDerivative(String modeName, double[] state)
+	{
+		CompiledMode mode = modes.get(modeName);
+
+		if (mode == null)
+			throw new AutomatonExportException("Mode not found in automaton: " + modeName);
+
+		return mode.der == null ? null : derivative(mode, state);
+	}
+
+	/**
+	 * Simulate from a single point, returning the trajectory. The first point
+	 * is the start point, and every step or discrete jump adds another point.
+	 *
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @return the trajectory
+	 */
+	public ArrayList<SymbolicStatePoint> simulateTrajectory(SymbolicStatePoint start, double time,
+			double maxStep)
+	{
+		final ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+
+		simulate(start, time, maxStep, new TrajectorySink()
+		{
+			@Override
+			public void add(String mode, double t, double[] state, boolean newSegment)
+			{
+				rv.add(new SymbolicStatePoint(mode, new HyperPoint(state)));
+			}
+		}, null);
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from many points concurrently, writing the trajectories (with
+	 * times, and a segment for each mode visited) to a binary trajectory file.
+	 * Trajectories are simulated in batches, so at most one batch is in memory
+	 * at a time. Trajectory i starts from starts.get(i).
+	 *
+	 * @param starts
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @param out
+	 *            where to write the trajectories
+	 * @throws IOException
+	 *             on write errors
+	 */
+	public void writeTrajectories(List<SymbolicStatePoint> starts, final double time,
+			final double maxStep, TrajectoryWriter out) throws IOException
+	{
+		for (int batchStart = 0; batchStart < starts.size(); batchStart += WRITE_BATCH_SIZE)
+		{
+			int batchEnd = Math.min(starts.size(), batchStart + WRITE_BATCH_SIZE);
+			ArrayList<Callable<Recording>> tasks = new ArrayList<Callable<Recording>>();
+
+			for (final SymbolicStatePoint start : starts.subList(batchStart, batchEnd))
+			{
+				tasks.add(new Callable<Recording>()
+				{
+					@Override
+					public Recording call()
+					{
+						Recording r = new Recording();
+						simulate(start, time, maxStep, r, null);
+
+						return r;
+					}
+				});
+			}
+
+			ArrayList<Recording> recordings = runAll(tasks);
+
+			for (int i = 0; i < recordings.size(); ++i)
+				recordings.get(i).writeTo(out, batchStart + i);
+		}
+	}
+
+	/**
+	 * Simulate from many points concurrently, streaming each trajectory to its
+	 * own sink as it's computed, rather than storing it. Trajectory i starts
+	 * from starts.get(i) and is sent to sinks.get(i), from a worker thread.
+	 *
+	 * @param starts
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @param sinks
+	 *            where to send the states of each trajectory
+	 */
+	public void streamTrajectories(List<SymbolicStatePoint> starts, final double time,
+			final double maxStep, List<? extends TrajectorySink> sinks)
+	{
+		if (sinks.size() != starts.size())
+			throw new AutomatonExportException(
+					"expected one sink per start state, got " + sinks.size() + " sinks for "
+							+ starts.size() + " states");
+
+		ArrayList<Callable<TimedPoint>> tasks = new ArrayList<Callable<TimedPoint>>();
+
+		for (int i = 0; i < starts.size(); ++i)
+		{
+			final SymbolicStatePoint start = starts.get(i);
+			final TrajectorySink sink = sinks.get(i);
+
+			tasks.add(new Callable<TimedPoint>()
+			{
+				@Override
+				public TimedPoint call()
+				{
+					return simulate(start, time, maxStep, sink, null);
+				}
+			});
+		}
+
+		runAll(tasks);
+	}
+
+	/**
+	 * Simulate from a single point for a fixed time, returning the final state
+	 *
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @return the final state
+	 */
+	public SymbolicStatePoint simulateFor(SymbolicStatePoint start, double time, double maxStep)
+	{
+		return simulate(start, time, maxStep, null, null).point;
+	}
+
+	/**
+	 * Simulate from a single point until a condition becomes true
+	 * 
+	 * @param start
+	 *            the start state
+	 * @param maxTime
+	 *            the maximum simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @param stop
+	 *            the condition
+	 * @return the first state where the condition is true (up to the event
+	 *         tolerance), or null if it doesn't become true within maxTime
+	 */
+	public SymbolicStatePoint simulateUntil(SymbolicStatePoint start, double maxTime,
+			double maxStep, StopCondition stop)
+	{
+		TimedPoint tp = simulate(start, maxTime, maxStep, null, stop);
+
+		return tp == null ? null : tp.point;
+	}
+
+	/**
+	 * Simulate from many points concurrently, each until a condition becomes
+	 * true
+	 * 
+	 * @param starts
+	 *            the start states
+	 * @param maxTime
+	 *            the maximum simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @param stop
+	 *            the condition, which is evaluated from many threads at once
+	 * @return the states where the condition became true, in the same order as
+	 *         starts, with null entries for simulations where it didn't become
+	 *         true within maxTime
+	 */
+	public ArrayList<SymbolicStatePoint> simulateAllUntil(List<SymbolicStatePoint> starts,
+			final double maxTime, final double maxStep, final StopCondition stop)
+	{
+		ArrayList<Callable<SymbolicStatePoint>> tasks = new ArrayList<Callable<SymbolicStatePoint>>();
+
+		for (final SymbolicStatePoint start : starts)
+		{
+			tasks.add(new Callable<SymbolicStatePoint>()
+			{
+				@Override
+				public SymbolicStatePoint call()
+				{
+					return simulateUntil(start, maxTime, maxStep, stop);
+				}
+			});
+		}
+
+		return runAll(tasks);
+	}
+
+	/**
+	 * Simulate from many points concurrently, each until a condition becomes
+	 * true, also returning the time when it became true
+	 * 
+	 * @param starts
+	 *            the start states
+	 * @param maxTime
+	 *            the maximum simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @param stop
+	 *            the condition, which is evaluated from many threads at once
+	 * @return the states and times where the condition became true, in the
+	 *         same order as starts, with null entries for simulations where it
+	 *         didn't become true within maxTime
+	 */
+	public ArrayList<TimedPoint> simulateAllUntilTimed(List<SymbolicStatePoint> starts,
+			final double maxTime, final double maxStep, final StopCondition stop)
+	{
+		ArrayList<Callable<TimedPoint>> tasks = new ArrayList<Callable<TimedPoint>>();
+
+		for (final SymbolicStatePoint start : starts)
+		{
+			tasks.add(new Callable<TimedPoint>()
+			{
+				@Override
+				public TimedPoint call()
+				{
+					return simulate(start, maxTime, maxStep, null, stop);
+				}
+			});
+		}
+
+		return runAll(tasks);
+	}
+
+	/**
+	 * Simulate from many points concurrently, returning the trajectories
+	 *
+	 * @param starts
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @return the trajectories, in the same order as starts
+	 */
+	public ArrayList<ArrayList<SymbolicStatePoint>> simulateTrajectories(
+			List<SymbolicStatePoint> starts, final double time, final double maxStep)
+	{
+		ArrayList<Callable<ArrayList<SymbolicStatePoint>>> tasks = new ArrayList<Callable<ArrayList<SymbolicStatePoint>>>();
+
+		for (final SymbolicStatePoint start : starts)
+		{
+			tasks.add(new Callable<ArrayList<SymbolicStatePoint>>()
+			{
+				@Override
+				public ArrayList<SymbolicStatePoint> call()
+				{
+					return simulateTrajectory(start, time, maxStep);
+				}
+			});
+		}
+
+		return runAll(tasks);
+	}
+
+	/**
+	 * Simulate from many points concurrently for a fixed time, returning the
+	 * final states
+	 *
+	 * @param starts
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step
+	 * @return the final states, in the same order as starts
+	 */
+	public ArrayList<SymbolicStatePoint> simulateAll(List<SymbolicStatePoint> starts,
+			final double time, final double maxStep)
+	{
+		ArrayList<Callable<SymbolicStatePoint>> tasks = new ArrayList<Callable<SymbolicStatePoint>>();
+
+		for (final SymbolicStatePoint start : starts)
+		{
+			tasks.add(new Callable<SymbolicStatePoint>()
+			{
+				@Override
+				public SymbolicStatePoint call()
+				{
+					return simulateFor(start, time, maxStep);
+				}
+			});
+		}
+
+		return runAll(tasks);
+	}
+
+	/**
+	 * Run tasks on the shared pool, collecting the results in task order
+	 */
+	private static <T> ArrayList<T> runAll(List<Callable<T>> tasks)
+	{
+		ArrayList<T> rv = new ArrayList<T>(tasks.size());
+
+		if (tasks.size() == 1)
+		{
+			try
+			{
+				rv.add(tasks.get(0).call());
+			}
+			catch (AutomatonExportException e)
+			{
+				throw e;
+			}
+			catch (Exception e)
+			{
+				throw new AutomatonExportException("Error during simulation: " + e, e);
+			}
+		}
+		else
+		{
+			for (Future<T> f : ModeTraversal.getPool().invokeAll(tasks))
+			{
+				try
+				{
+					rv.add(f.get());
+				}
+				catch (InterruptedException e)
+				{
+					throw new AutomatonExportException("Simulation was interrupted", e);
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+
+					if (cause instanceof AutomatonExportException)
+						throw (AutomatonExportException) cause;
+
+					throw new AutomatonExportException("Error during simulation: " + cause, e);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run a simulation
+	 * 
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum step size
+	 * @param trajectory
+	 *            if nonnull, every state is added here
+	 * @param stop
+	 *            if nonnull, the simulation stops when this becomes true
+	 * @return the final state and time, or null if stop was given but didn't
+	 *         become true
+	 */
+	private TimedPoint simulate(SymbolicStatePoint start, double time, double maxStep,
+			TrajectorySink trajectory, StopCondition stop)
+	{
+		if (maxStep <= 0)
+			throw new AutomatonExportException("simulation step should be positive: " + maxStep);
+
+		if (start.hp.dims.length != numVars)
+			throw new AutomatonExportException("start point had " + start.hp.dims.length
+					+ " dimensions; expected " + numVars);
+
+		CompiledMode mode = modes.get(start.modeName);
+
+		if (mode == null)
+			throw new AutomatonExportException(
+					"Simulation start mode not found in automaton: " + start.modeName);
+
+		double tol = eventTolerance > 0 ? eventTolerance : Math.max(1e-10, time / 1e10);
+		double[] state = start.hp.dims.clone();
+		double t = 0;
+		int jumpsLeft = maxJumps;
+		boolean stopped = stop != null && stop.value(mode.name, state) > 0;
+
+		if (trajectory != null)
+			trajectory.add(mode.name, t, state, true);
+
+		while (t < time && !stopped)
+		{
+			CompiledTransition active = null;
+
+			for (CompiledTransition ct : mode.transitions)
+			{
+				if (ct.guard.isTrue(state))
+				{
+					active = ct;
+					break;
+				}
+			}
+
+			if (active != null)
+			{
+				if (--jumpsLeft < 0)
+				{
+					Hyst.log("Warning: Max jumps (" + maxJumps + ") reached in simulation");
+					break;
+				}
+
+				state = reset(active, state);
+				mode = active.to;
+			}
+			else if (mode.der == null)
+			{
+				Hyst.log("Warning: no enabled transitions in urgent mode " + mode.name
+						+ " at state " + new HyperPoint(state));
+				break;
+			}
+			else if (!mode.inv.isTrue(state))
+			{
+				Hyst.log("Warning: Invariant became false in mode " + mode.name + " at state "
+						+ new HyperPoint(state));
+				break;
+			}
+			else
+			{
+				double h = Math.min(maxStep, time - t);
+				double[] der = derivative(mode, state);
+				double[] next = rk4Step(mode, state, der, h);
+
+				if (isEvent(mode, next, stop))
+				{
+					// truncate the step at the first event
+					double[] nextDer = derivative(mode, next);
+					double eventTime = findEventTime(mode, stop, state, der, next, nextDer, h,
+							tol);
+
+					if (eventTime < h)
+					{
+						next = interpolate(state, der, next, nextDer, h, eventTime);
+						h = eventTime;
+					}
+				}
+
+				t = (h == time - t) ? time : t + h;
+				state = next;
+			}
+
+			if (trajectory != null)
+				trajectory.add(mode.name, t, state, active != null);
+
+			stopped = stop != null && stop.value(mode.name, state) > 0;
+		}
+
+		TimedPoint rv = null;
+
+		if (stop == null || stopped)
+			rv = new TimedPoint(new SymbolicStatePoint(mode.name, new HyperPoint(state)), t);
+
+		return rv;
+	}
+
+	/**
+	 * Check if a discrete event occurs in a state: an outgoing transition is
+	 * enabled, the invariant is false, or the stop condition is true
+	 */
+	private static boolean isEvent(CompiledMode mode, double[] state, StopCondition stop)
+	{
+		boolean rv = !mode.inv.isTrue(state) || (stop != null && stop.value(mode.name, state) > 0);
+
+		for (int i = 0; i < mode.transitions.size() && !rv; ++i)
+			rv = mode.transitions.get(i).guard.isTrue(state);
+
+		return rv;
+	}
+
+	/**
+	 * Get the slack of the event condition in a state: this is at least zero
+	 * when isEvent() is true, and at most zero when it's false
+	 */
+	private static double eventSlack(CompiledMode mode, double[] state, StopCondition stop)
+	{
+		double rv = -mode.inv.slack(state);
+
+		if (stop != null)
+			rv = Math.max(rv, stop.value(mode.name, state));
+
+		for (CompiledTransition ct : mode.transitions)
+			rv = Math.max(rv, ct.guard.slack(state));
+
+		return rv;
+	}
+
+	/**
+	 * Find the first time within a step where an event occurs, given that one
+	 * doesn't occur at the start of the step and does occur at the end. This
+	 * uses the Illinois method on the event slack over the interpolated step,
+	 * with bisection when the slack doesn't give a usable secant (for example,
+	 * for conditions without a continuous slack).
+	 * 
+	 * @return the (offset) time, within tol after the event, where the event
+	 *         condition is true
+	 */
+	private double findEventTime(CompiledMode mode, StopCondition stop, double[] state,
+			double[] der, double[] next, double[] nextDer, double h, double tol)
+	{
+		double lo = 0, hi = h;
+		double slackLo = eventSlack(mode, state, stop);
+		double slackHi = eventSlack(mode, next, stop);
+		int side = 0; // which side was updated last: -1 = lo, 1 = hi
+
+		for (int iter = 0; hi - lo > tol && iter < MAX_EVENT_ITERATIONS; ++iter)
+		{
+			double mid = (lo + hi) / 2;
+			double t = mid;
+
+			if (slackLo < 0 && slackHi > 0)
+			{
+				double secant = lo + (hi - lo) * slackLo / (slackLo - slackHi);
+
+				if (secant > lo && secant < hi)
+					t = secant;
+			}
+
+			double[] p = interpolate(state, der, next, nextDer, h, t);
+			double slack = eventSlack(mode, p, stop);
+
+			if (isEvent(mode, p, stop))
+			{
+				hi = t;
+				slackHi = Math.max(0, slack);
+
+				// Illinois modification: if the same end is kept twice, halve
+				// its slack so the secant doesn't stall on one side
+				if (side == 1)
+					slackLo /= 2;
+
+				side = 1;
+			}
+			else
+			{
+				lo = t;
+				slackLo = Math.min(0, slack);
+
+				if (side == -1)
+					slackHi /= 2;
+
+				side = -1;
+			}
+		}
+
+		return hi;
+	}
+
+	/**
+	 * Evaluate the cubic Hermite interpolant of a step
+	 * 
+	 * @param state
+	 *            the state at the start of the step
+	 * @param der
+	 *            the derivative at the start of the step
+	 * @param next
+	 *            the state at the end of the step
+	 * @param nextDer
+	 *            the derivative at the end of the step
+	 * @param h
+	 *            the step size
+	 * @param t
+	 *            the offset into the step, in [0, h]
+	 * @return the interpolated state
+	 */
+	private static double[] interpolate(double[] state, double[] der, double[] next,
+			double[] nextDer, double h, double t)
+	{
+		double s = t / h;
+		double s2 = s * s;
+		double s3 = s2 * s;
+		double h00 = 2 * s3 - 3 * s2 + 1;
+		double h10 = s3 - 2 * s2 + s;
+		double h01 = -2 * s3 + 3 * s2;
+		double h11 = s3 - s2;
+
+		double[] rv = new double[state.length];
+
+		for (int i = 0; i < state.length; ++i)
+			rv[i] = h00 * state[i] + h10 * h * der[i] + h01 * next[i] + h11 * h * nextDer[i];
+
+		return rv;
+	}
+
+	private double[] reset(CompiledTransition ct, double[] state)
+	{
+		double[] rv = new double[numVars];
+
+		for (int i = 0; i < numVars; ++i)
+			rv[i] = ct.reset[i] == null ? state[i] : ct.reset[i].evaluate(state);
+
+		return rv;
+	}
+
+	private double[] derivative(CompiledMode mode, double[] state)
+	{
+		double[] rv = new double[numVars];
+
+		for (int i = 0; i < numVars; ++i)
+			rv[i] = mode.der[i].evaluate(state);
+
+		return rv;
+	}
+
+	private double[] rk4Step(CompiledMode mode, double[] state, double[] k1, double h)
+	{
+		double[] k2 = derivative(mode, offset(state, k1, h / 2));
+		double[] k3 = derivative(mode, offset(state, k2, h / 2));
+		double[] k4 = derivative(mode, offset(state, k3, h));
+
+		double[] rv = new double[numVars];
+
+		for (int i = 0; i < numVars; ++i)
+			rv[i] = state[i] + h / 6 * (k1[i] + 2 * k2[i] + 2 * k3[i] + k4[i]);
+
+		return rv;
+	}
+
+	private static double[] offset(double[] state, double[] der, double h)
+	{
+		double[] rv = new double[state.length];
+
+		for (int i = 0; i < state.length; ++i)
+			rv[i] = state[i] + h * der[i];
+
+		return rv;
+	}
+}
@@ -0,0 +1,358 @@
+package com.verivital.hyst.simulation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Reads a binary trajectory file (see TrajectoryWriter for the format). The
+ * file is memory-mapped, and opening it only reads the segment headers; the
+ * times and states are read from the mapping when they're accessed, so long
+ * trajectories can be iterated over without materializing them as
+ * SymbolicStatePoint lists.
+ */
+public class TrajectoryReader implements Closeable
+{
+	private final RandomAccessFile file;
+	private final ByteBuffer buf;
+	private final List<String> variables;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private int numTrajectories = 0;
+
+	/**
+	 * A part of a trajectory in a single mode
+	 */
+	public class Segment
+	{
+		public final int trajectory;
+		public final String mode;
+		private final int size;
+		private final int timesOffset; // byte offset of the times column
+
+		private Segment(int trajectory, String mode, int size, int timesOffset)
+		{
+			this.trajectory = trajectory;
+			this.mode = mode;
+			this.size = size;
+			this.timesOffset = timesOffset;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		public double getTime(int i)
+		{
+			return buf.getDouble(timesOffset + 8 * i);
+		}
+
+		/**
+		 * Get the value of a variable at a point
+		 *
+		 * @param i
+		 *            the index of the point
+		 * @param var
+		 *            the index of the variable
+		 * @return the value
+		 */
+		public double get(int i, int var)
+		{
+			return buf.getDouble(timesOffset + 8 * (size * (var + 1) + i));
+		}
+
+		/**
+		 * Get a (read-only) view of the values of one variable, backed by the
+		 * file mapping
+		 *
+		 * @param var
+		 *            the index of the variable
+		 * @return the column
+		 */
+		public DoubleBuffer getColumn(int var)
+		{
+			return column(timesOffset + 8 * size * (var + 1));
+		}
+
+		/**
+		 * Get a (read-only) view of the times, backed by the file mapping
+		 */
+		public DoubleBuffer getTimes()
+		{
+			return column(timesOffset);
+		}
+
+		private DoubleBuffer column(int offset)
+		{
+			ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			b.position(offset);
+			b.limit(offset + 8 * size);
+
+			return b.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		}
+
+		/**
+		 * Get a point as a (newly-allocated) SymbolicStatePoint
+		 *
+		 * @param i
+		 *            the index of the point
+		 * @return the point
+		 */
+		public SymbolicStatePoint getPoint(int i)
+		{
+			HyperPoint hp = new HyperPoint(variables.size());
+
+			for (int v = 0; v < hp.dims.length; ++v)
+				hp.dims[v] = get(i, v);
+
+			return new SymbolicStatePoint(mode, hp);
+		}
+	}
+
+	/**
+	 * Open a trajectory file
+	 *
+	 * @param f
+	 *            the file
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public TrajectoryReader(File f) throws IOException
+	{
+		file = new RandomAccessFile(f, "r");
+
+		try
+		{
+			long length = file.length();
+
+			if (length > Integer.MAX_VALUE)
+				throw new AutomatonExportException(
+						"Trajectory file is too large to map (over 2GB): " + f);
+
+			buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			variables = readHeader();
+			readSegmentHeaders();
+		}
+		catch (BufferUnderflowException e)
+		{
+			file.close();
+			throw new AutomatonExportException("Trajectory file was truncated: " + f, e);
+		}
+		catch (RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	private List<String> readHeader()
+	{
+		byte[] magic = new byte[TrajectoryWriter.MAGIC.length];
+		buf.get(magic);
+
+		if (!Arrays.equals(magic, TrajectoryWriter.MAGIC))
+			throw new AutomatonExportException("Not a trajectory file (bad header)");
+
+		int numVars = buf.getInt();
+		ArrayList<String> rv = new ArrayList<String>(numVars);
+
+		for (int v = 0; v < numVars; ++v)
+			rv.add(readString());
+
+		skipPadding();
+
+		return Collections.unmodifiableList(rv);
+	}
+
+	private void readSegmentHeaders()
+	{
+		int numVars = variables.size();
+
+		while (buf.hasRemaining())
+		{
+			int trajectory = buf.getInt();
+			int size = buf.getInt();
+			String mode = readString();
+			skipPadding();
+
+			long dataBytes = 8L * size * (numVars + 1);
+
+			if (trajectory < 0 || size < 0 || dataBytes > buf.remaining())
+				throw new AutomatonExportException("Corrupt or truncated trajectory file");
+
+			segments.add(new Segment(trajectory, mode, size, buf.position()));
+			numTrajectories = Math.max(numTrajectories, trajectory + 1);
+			buf.position(buf.position() + (int) dataBytes);
+		}
+	}
+
+	private String readString()
+	{
+		int len = buf.getInt();
+
+		if (len < 0 || len > buf.remaining())
+			throw new AutomatonExportException("Corrupt or truncated trajectory file");
+
+		byte[] bytes = new byte[len];
+		buf.get(bytes);
+
+		return new String(bytes, TrajectoryWriter.UTF8);
+	}
+
+	private void skipPadding()
+	{
+		int rem = buf.position() % 8;
+
+		if (rem != 0)
+			buf.position(buf.position() + 8 - rem);
+	}
+
+	public List<String> getVariables()
+	{
+		return variables;
+	}
+
+	/**
+	 * Get the number of trajectories (one more than the largest trajectory
+	 * index)
+	 */
+	public int getNumTrajectories()
+	{
+		return numTrajectories;
+	}
+
+	/**
+	 * Get the segments, in file order
+	 */
+	public List<Segment> getSegments()
+	{
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * Iterate over the points of one trajectory, across all its segments. The
+	 * points are read from the file as they are iterated.
+	 *
+	 * @param index
+	 *            the index of the trajectory
+	 * @return the points
+	 */
+	public Iterable<SymbolicStatePoint> getTrajectory(final int index)
+	{
+		return new Iterable<SymbolicStatePoint>()
+		{
+			@Override
+			public Iterator<SymbolicStatePoint> iterator()
+			{
+				return new PointIterator(index);
+			}
+		};
+	}
+
+	/**
+	 * Read every trajectory into memory
+	 *
+	 * @return the trajectories, by index
+	 */
+	public ArrayList<ArrayList<SymbolicStatePoint>> readAll()
+	{
+		ArrayList<ArrayList<SymbolicStatePoint>> rv = new ArrayList<ArrayList<SymbolicStatePoint>>(
+				numTrajectories);
+
+		for (int i = 0; i < numTrajectories; ++i)
+			rv.add(new ArrayList<SymbolicStatePoint>());
+
+		for (Segment s : segments)
+		{
+			ArrayList<SymbolicStatePoint> traj = rv.get(s.trajectory);
+
+			for (int i = 0; i < s.size; ++i)
+				traj.add(s.getPoint(i));
+		}
+
+		return rv;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	/**
+	 * Iterates over the points of one trajectory
+	 */
+	private class PointIterator implements Iterator<SymbolicStatePoint>
+	{
+		private final int trajectory;
+		private int segIndex = -1;
+		private int pointIndex = 0;
+
+		PointIterator(int trajectory)
+		{
+			this.trajectory = trajectory;
+			nextSegment();
+		}
+
+		/**
+		 * Advance to the next nonempty segment of the trajectory
+		 */
+		private void nextSegment()
+		{
+			pointIndex = 0;
+
+			for (++segIndex; segIndex < segments.size(); ++segIndex)
+			{
+				Segment s = segments.get(segIndex);
+
+				if (s.trajectory == trajectory && s.size > 0)
+					break;
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return segIndex < segments.size();
+		}
+
+		@Override
+		public SymbolicStatePoint next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			Segment s = segments.get(segIndex);
+			SymbolicStatePoint rv = s.getPoint(pointIndex++);
+
+			if (pointIndex == s.size)
+				nextSegment();
+
+			return rv;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("trajectory files are read-only");
+		}
+	}
+}
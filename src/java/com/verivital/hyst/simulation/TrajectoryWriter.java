@@ -0,0 +1,260 @@
+package com.verivital.hyst.simulation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Writes trajectories in the binary trajectory format, which is also written
+ * and read by hybridpy.pysim.trajectory_file. All values are little-endian:
+ *
+ * <pre>
+ * header:    8 bytes magic "HYSTTRJ1", int32 number of variables n,
+ *            n x (int32 length, UTF-8 bytes) variable names,
+ *            zero padding to a multiple of 8 bytes
+ * segments:  (repeated until the end of the file)
+ *            int32 trajectory index, int32 number of points m,
+ *            int32 length, UTF-8 bytes of the mode name,
+ *            zero padding to a multiple of 8 bytes (from the file start),
+ *            m doubles of times,
+ *            n columns of m doubles, one per variable, in header order
+ * </pre>
+ *
+ * A segment is a part of one trajectory in a single mode (a discrete jump
+ * starts a new segment, even if it's a self-loop). Since the columns are
+ * aligned, a reader can memory-map the file and view them directly as double
+ * arrays (see TrajectoryReader).
+ *
+ * Points are added with startSegment() and addPoint(); a segment is written
+ * when the next one is started or the writer is closed.
+ */
+public class TrajectoryWriter implements Closeable
+{
+	public static final byte[] MAGIC = "HYSTTRJ1".getBytes(Charset.forName("US-ASCII"));
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final OutputStream out;
+	private final int numVars;
+	private long position = 0;
+
+	// the current segment (mode is null if there isn't one)
+	private int trajectory;
+	private String mode = null;
+	private int size = 0;
+	private double[] times = new double[INITIAL_CAPACITY];
+	private double[][] columns;
+
+	/**
+	 * Create a trajectory file
+	 *
+	 * @param f
+	 *            the file to write
+	 * @param variables
+	 *            the variable names, which determines the ordering of states
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public TrajectoryWriter(File f, List<String> variables) throws IOException
+	{
+		this(new FileOutputStream(f), variables);
+	}
+
+	/**
+	 * Write trajectories to a stream
+	 *
+	 * @param out
+	 *            the stream, which is closed with the writer
+	 * @param variables
+	 *            the variable names, which determines the ordering of states
+	 * @throws IOException
+	 *             if the header can't be written
+	 */
+	public TrajectoryWriter(OutputStream out, List<String> variables) throws IOException
+	{
+		this.out = new BufferedOutputStream(out);
+		numVars = variables.size();
+		columns = new double[numVars][INITIAL_CAPACITY];
+
+		write(MAGIC);
+		writeInt(numVars);
+
+		for (String var : variables)
+			writeString(var);
+
+		pad();
+	}
+
+	/**
+	 * Write a list of states to a file, as single-point trajectories at time
+	 * zero (trajectory i is the i-th state). This is how start states are
+	 * passed to python simulations, rather than as printed text.
+	 * 
+	 * @param f
+	 *            the file to write
+	 * @param variables
+	 *            the variable names, which determines the ordering of states
+	 * @param states
+	 *            the states to write
+	 * @throws IOException
+	 *             if the file can't be written
+	 */
+	public static void writeStates(File f, List<String> variables,
+			List<SymbolicStatePoint> states) throws IOException
+	{
+		TrajectoryWriter w = new TrajectoryWriter(f, variables);
+
+		try
+		{
+			for (int i = 0; i < states.size(); ++i)
+			{
+				SymbolicStatePoint s = states.get(i);
+
+				w.startSegment(i, s.modeName);
+				w.addPoint(0, s.hp.dims);
+			}
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+	/**
+	 * Start a new segment (writing the previous one)
+	 *
+	 * @param trajectory
+	 *            the index of the trajectory
+	 * @param mode
+	 *            the mode of the segment
+	 * @throws IOException
+	 *             on write errors
+	 */
+	public void startSegment(int trajectory, String mode) throws IOException
+	{
+		endSegment();
+
+		this.trajectory = trajectory;
+		this.mode = mode;
+	}
+
+	/**
+	 * Add a point to the current segment
+	 *
+	 * @param time
+	 *            the time of the point
+	 * @param state
+	 *            the state, with one value per variable
+	 */
+	public void addPoint(double time, double[] state)
+	{
+		if (mode == null)
+			throw new AutomatonExportException(
+					"startSegment() must be called before addPoint()");
+
+		if (state.length != numVars)
+			throw new AutomatonExportException(
+					"expected a state with " + numVars + " values, got " + state.length);
+
+		if (size == times.length)
+		{
+			times = Arrays.copyOf(times, 2 * size);
+
+			for (int v = 0; v < numVars; ++v)
+				columns[v] = Arrays.copyOf(columns[v], 2 * size);
+		}
+
+		times[size] = time;
+
+		for (int v = 0; v < numVars; ++v)
+			columns[v][size] = state[v];
+
+		++size;
+	}
+
+	private void endSegment() throws IOException
+	{
+		if (mode != null)
+		{
+			writeInt(trajectory);
+			writeInt(size);
+			writeString(mode);
+			pad();
+
+			writeDoubles(times, size);
+
+			for (int v = 0; v < numVars; ++v)
+				writeDoubles(columns[v], size);
+
+			mode = null;
+			size = 0;
+		}
+	}
+
+	/**
+	 * Write the last segment and close the underlying stream
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			endSegment();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException
+	{
+		out.write(bytes);
+		position += bytes.length;
+	}
+
+	private void writeInt(int i) throws IOException
+	{
+		write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(i).array());
+	}
+
+	private void writeString(String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(UTF8);
+
+		writeInt(bytes.length);
+		write(bytes);
+	}
+
+	private void writeDoubles(double[] vals, int count) throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.allocate(8 * count).order(ByteOrder.LITTLE_ENDIAN);
+		bb.asDoubleBuffer().put(vals, 0, count);
+
+		write(bb.array());
+	}
+
+	/**
+	 * Pad with zeros to a multiple of 8 bytes, so the following doubles are
+	 * aligned
+	 */
+	private void pad() throws IOException
+	{
+		int rem = (int) (position % 8);
+
+		if (rem != 0)
+			write(new byte[8 - rem]);
+	}
+}
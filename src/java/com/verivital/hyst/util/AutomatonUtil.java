@@ -16,6 +16,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
@@ -802,6 +803,102 @@ public abstract class AutomatonUtil
 		return rv;
 	}
 
+	/**
+	 * Get the initial set of states as a HyperRectangle.
+	 * 
+	 * @param config
+	 *            the configuration, which should have a single, box-shaped
+	 *            initial state set
+	 * @return the initial set of states
+	 * @throws AutomatonExportException
+	 *             if the initial set of states is not a box
+	 */
+	public static HyperRectangle getInitialBox(Configuration config)
+	{
+		ArrayList<String> variables = config.root.variables;
+
+		int numDims = variables.size();
+		HyperRectangle rv = new HyperRectangle(numDims);
+
+		// start in the middle of the initial state set
+		TreeMap<String, Interval> ranges = new TreeMap<String, Interval>();
+
+		if (config.init.size() != 1)
+			throw new AutomatonExportException("Expected single initial mode");
+
+		try
+		{
+			RangeExtractor.getVariableRanges(config.init.values().iterator().next(), ranges);
+		}
+		catch (EmptyRangeException e)
+		{
+			throw new AutomatonExportException(
+					"Could not determine ranges for inital values (not rectangluar initial states).",
+					e);
+		}
+		catch (ConstantMismatchException e)
+		{
+			throw new AutomatonExportException("Constant mismatch in initial values.", e);
+		}
+		catch (UnsupportedConditionException e)
+		{
+			throw new AutomatonExportException("Initial values were not a box", e);
+		}
+
+		int numVars = variables.size();
+
+		for (int i = 0; i < numVars; ++i)
+		{
+			String var = variables.get(i);
+
+			Interval dimRange = ranges.get(var);
+
+			if (dimRange == null)
+				throw new AutomatonExportException(
+						"Range for '" + var + "' was not set (not rectangluar initial states).");
+			else
+				rv.dims[i] = dimRange;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Parse a simulation time parameter, where "auto" means the time horizon
+	 * of the configuration
+	 * 
+	 * @param time
+	 *            the time parameter, either "auto" or a number
+	 * @param config
+	 *            the configuration
+	 * @return the (positive) simulation time
+	 * @throws AutomatonExportException
+	 *             if the time cannot be parsed or is not positive
+	 */
+	public static double parseSimulationTime(String time, Configuration config)
+	{
+		double rv;
+
+		if (time.equals("auto"))
+			rv = config.settings.spaceExConfig.timeHorizon;
+		else
+		{
+			try
+			{
+				rv = Double.parseDouble(time);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new AutomatonExportException("Error parsing -time value: " + time, e);
+			}
+		}
+
+		if (rv <= 0)
+			throw new AutomatonExportException("simulation time must be positive: " + rv);
+
+		return rv;
+	}
+
 	/**
 	 * Get the center point of a collection of interval bounds
 	 * 
@@ -1314,6 +1411,203 @@ public abstract class AutomatonUtil
 		return rv;
 	}
 
+	/**
+	 * Return an expression for the partial derivative of the given expression
+	 * with respect to a single variable. All other variables are treated as
+	 * constants. Terms which are trivially zero or one are simplified away, so
+	 * the result stays small enough to evaluate quickly (for example, with
+	 * CompiledExpression).
+	 * 
+	 * @param e
+	 *            the expression to differentiate
+	 * @param var
+	 *            the variable to take the derivative with respect to
+	 * @return the partial derivative of e with respect to var
+	 * @throws AutomatonExportException
+	 *             if e contains an operation which can't be differentiated
+	 */
+	public static Expression partialDerivativeOf(Expression e, String var)
+	{
+		Expression rv = null;
+
+		if (e instanceof Variable)
+			rv = new Constant(((Variable) e).name.equals(var) ? 1 : 0);
+		else if (e instanceof Constant)
+			rv = new Constant(0);
+		else if (e instanceof Operation)
+		{
+			Operation o = e.asOperation();
+
+			if (o.children.size() == 1)
+			{
+				Expression child = o.children.get(0);
+				Expression childDer = partialDerivativeOf(child, var);
+
+				if (isConstant(childDer, 0))
+					rv = new Constant(0);
+				else if (o.op == Operator.NEGATIVE)
+					rv = derNegate(childDer);
+				else if (o.op == Operator.SIN)
+					rv = derMultiply(new Operation(Operator.COS, child.copy()), childDer);
+				else if (o.op == Operator.COS)
+					rv = derMultiply(derNegate(new Operation(Operator.SIN, child.copy())),
+							childDer);
+				else if (o.op == Operator.TAN)
+				{
+					// tan(a)' = a' / cos(a)^2
+					Expression cos = new Operation(Operator.COS, child.copy());
+
+					rv = derDivide(childDer, new Operation(Operator.POW, cos, new Constant(2)));
+				}
+				else if (o.op == Operator.EXP)
+					rv = derMultiply(e.copy(), childDer);
+				else if (o.op == Operator.SQRT)
+					rv = derDivide(childDer, new Operation(Operator.MULTIPLY, new Constant(2),
+							e.copy()));
+				else if (o.op == Operator.LN)
+					rv = derDivide(childDer, child.copy());
+			}
+			else if (o.op == Operator.ADD || o.op == Operator.SUBTRACT)
+			{
+				for (int i = 0; i < o.children.size(); ++i)
+				{
+					Expression childDer = partialDerivativeOf(o.children.get(i), var);
+
+					if (rv == null)
+						rv = childDer;
+					else if (o.op == Operator.ADD)
+						rv = derAdd(rv, childDer);
+					else
+						rv = derAdd(rv, derNegate(childDer));
+				}
+			}
+			else if (o.children.size() == 2)
+			{
+				Expression left = o.getLeft();
+				Expression right = o.getRight();
+				Expression leftDer = partialDerivativeOf(left, var);
+				Expression rightDer = partialDerivativeOf(right, var);
+
+				if (o.op == Operator.MULTIPLY)
+				{
+					// product rule: (ab)' = a'b + ab'
+					rv = derAdd(derMultiply(leftDer, right.copy()),
+							derMultiply(left.copy(), rightDer));
+				}
+				else if (o.op == Operator.DIVIDE)
+				{
+					// quotient rule: (a/b)' = a'/b - ab'/b^2
+					Expression b2 = new Operation(Operator.POW, right.copy(), new Constant(2));
+
+					rv = derAdd(derDivide(leftDer, right.copy()),
+							derNegate(derDivide(derMultiply(left.copy(), rightDer), b2)));
+				}
+				else if (o.op == Operator.POW && isConstant(rightDer, 0))
+				{
+					// power rule: (a^b)' = b * a^(b-1) * a', for constant b
+					Expression power;
+
+					if (right instanceof Constant)
+					{
+						double exp = ((Constant) right).getVal();
+
+						if (exp == 1)
+							power = new Constant(1);
+						else if (exp == 2)
+							power = left.copy();
+						else
+							power = new Operation(Operator.POW, left.copy(),
+									new Constant(exp - 1));
+					}
+					else
+						power = new Operation(Operator.POW, left.copy(),
+								new Operation(Operator.SUBTRACT, right.copy(), new Constant(1)));
+
+					rv = derMultiply(derMultiply(right.copy(), power), leftDer);
+				}
+				else if (o.op == Operator.POW)
+				{
+					// general case: (a^b)' = a^b * (b' * ln(a) + b * a' / a)
+					Expression lnA = new Operation(Operator.LN, left.copy());
+
+					rv = derMultiply(e.copy(), derAdd(derMultiply(rightDer, lnA),
+							derDivide(derMultiply(right.copy(), leftDer), left.copy())));
+				}
+			}
+		}
+
+		if (rv == null)
+			throw new AutomatonExportException(
+					"Unsupported expression in partialDerivativeOf: " + e.toDefaultString());
+
+		return rv;
+	}
+
+	private static boolean isConstant(Expression e, double val)
+	{
+		return e instanceof Constant && ((Constant) e).getVal() == val;
+	}
+
+	private static Expression derAdd(Expression a, Expression b)
+	{
+		Expression rv;
+
+		if (a instanceof Constant && b instanceof Constant)
+			rv = new Constant(((Constant) a).getVal() + ((Constant) b).getVal());
+		else if (isConstant(a, 0))
+			rv = b;
+		else if (isConstant(b, 0))
+			rv = a;
+		else
+			rv = new Operation(Operator.ADD, a, b);
+
+		return rv;
+	}
+
+	private static Expression derNegate(Expression a)
+	{
+		Expression rv;
+
+		if (a instanceof Constant)
+			rv = new Constant(-((Constant) a).getVal());
+		else
+			rv = new Operation(Operator.NEGATIVE, a);
+
+		return rv;
+	}
+
+	private static Expression derMultiply(Expression a, Expression b)
+	{
+		Expression rv;
+
+		if (a instanceof Constant && b instanceof Constant)
+			rv = new Constant(((Constant) a).getVal() * ((Constant) b).getVal());
+		else if (isConstant(a, 0) || isConstant(b, 0))
+			rv = new Constant(0);
+		else if (isConstant(a, 1))
+			rv = b;
+		else if (isConstant(b, 1))
+			rv = a;
+		else
+			rv = new Operation(Operator.MULTIPLY, a, b);
+
+		return rv;
+	}
+
+	private static Expression derDivide(Expression a, Expression b)
+	{
+		Expression rv;
+
+		if (isConstant(a, 0))
+			rv = new Constant(0);
+		else if (isConstant(b, 1))
+			rv = a;
+		else
+			rv = new Operation(Operator.DIVIDE, a, b);
+
+		return rv;
+	}
+
 	/**
 	 * Get the gradient vector within a mode. This uses the 'average' dynamics
 	 * if there's nondeterminism.
@@ -3,9 +3,11 @@
  */
 package com.verivital.hyst.util;
 
-import static com.verivital.hyst.util.AutomatonUtil.simplifyExpression;
-
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
 import com.verivital.hyst.grammar.formula.Constant;
@@ -14,6 +16,7 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonValidationException;
+import com.verivital.hyst.ir.base.AffineDynamics;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
@@ -78,7 +81,7 @@ public class Classification
 	}
 
 	public static LinkedHashMap<String, Integer> varID;
-	public static double[][] linearMatrix;
+	public static SparseMatrix linearMatrix;
 	public static BaseComponent ha;
 
 	/**
@@ -175,6 +178,19 @@ public class Classification
 		return rv;
 	}
 
+	/**
+	 * Check if a mode has affine dynamics, using the mode's cached affine
+	 * representation rather than walking the flow expressions
+	 * 
+	 * @param am
+	 *            the mode
+	 * @return true iff every flow is affine in the variables and constants
+	 */
+	public static boolean isLinearDynamics(AutomatonMode am)
+	{
+		return am.getAffineDynamics() != null;
+	}
+
 	public static boolean isLinearDynamics(LinkedHashMap<String, ExpressionInterval> flowDynamics)
 	{
 		boolean rv = true;
@@ -309,106 +325,74 @@ public class Classification
 	}
 
 	/**
-	 * set general A matrix for each mode
+	 * set general A matrix for each mode, with a row for each derivative and a
+	 * column for each varID. This is the mode's cached sparse affine dynamics,
+	 * so the flow expressions are only traversed if they changed, and no dense
+	 * matrix is allocated.
 	 */
 	public void setLinearMatrix(AutomatonMode m)
 	{
-		if (!isLinearDynamics(m.flowDynamics))
-		{
+		AffineDynamics ad = m.getAffineDynamics();
+
+		if (ad == null)
 			throw new AutomatonValidationException("this is not a linear automaton");
-		}
+		else if (isSameOrder(ad.getColumnNames(), varID.keySet()))
+			linearMatrix = ad.getSparseA();
 		else
-		{
-			int size = varID.size();
-			int i = 0;
-			linearMatrix = new double[ha.variables.size()][size];
-			for (ExpressionInterval ei : m.flowDynamics.values())
-			{
-				Expression e = simplifyExpression(ei.getExpression());
-				findCoefficient(i, e);
-				i++;
-			}
-		}
+			linearMatrix = remapColumns(ad.getSparseA(), ad.getColumnNames());
+	}
+
+	private static boolean isSameOrder(List<String> columns, Collection<String> ids)
+	{
+		boolean rv = columns.size() == ids.size();
+		Iterator<String> it = ids.iterator();
+
+		for (int c = 0; rv && c < columns.size(); ++c)
+			rv = columns.get(c).equals(it.next());
+
+		return rv;
 	}
 
 	/**
-	 * find coefficients for all variables and constants of the linear
-	 * expressions
+	 * Convert a matrix with named columns to one whose columns are the varIDs
+	 * (columns without an id are dropped)
 	 */
-	private void findCoefficient(int i, Expression e)
+	private static SparseMatrix remapColumns(SparseMatrix a, List<String> columns)
 	{
+		int[] rowStart = new int[a.getNumRows() + 1];
+		int[] cols = new int[a.getNumNonzeros()];
+		double[] vals = new double[a.getNumNonzeros()];
+		int k = 0;
 
-		if (e instanceof Variable)
-		{
-			if (e.getParent() != null)
-			{
-				if (e.getParent().op == Operator.SUBTRACT)
-				{
-					linearMatrix[i][varID.get(e.toDefaultString())] = -1;
-				}
-			}
-			else
-			{
-				linearMatrix[i][varID.get(e.toDefaultString())] = 1;
-			}
-		}
-		else if (e instanceof Operation)
+		for (int i = 0; i < a.getNumRows(); ++i)
 		{
-			Operation o = (Operation) e;
+			rowStart[i] = k;
 
-			if (o.op == Operator.NEGATIVE)
-			{
-				Expression child = o.children.get(0);
-				linearMatrix[i][varID.get(child.toDefaultString())] = -1;
-			}
-			if (o.op == Operator.MULTIPLY)
+			for (int index = a.getRowStart(i); index < a.getRowEnd(i); ++index)
 			{
-				Expression l = o.getLeft();
-				Expression r = o.getRight();
-				if (r instanceof Variable && l instanceof Constant)
-				{
-					linearMatrix[i][varID.get(r.toDefaultString())] = ((Constant) l).getVal();
-					if (o.getParent() != null)
-					{
-						if (o.getParent().op == Operator.SUBTRACT
-								&& o.getParent().getRight().equals(o))
-						{
-							linearMatrix[i][varID.get(r.toDefaultString())] = -linearMatrix[i][varID
-									.get(r.toDefaultString())];
-						}
-					}
-				}
-				else if (l instanceof Variable && r instanceof Constant)
-				{
-					linearMatrix[i][varID.get(l.toDefaultString())] = ((Constant) r).getVal();
-					if (o.getParent() != null)
-					{
-						if (o.getParent().op == Operator.SUBTRACT
-								&& o.getParent().getRight().equals(o))
-						{
-							linearMatrix[i][varID.get(l.toDefaultString())] = -linearMatrix[i][varID
-									.get(l.toDefaultString())];
-						}
-					}
-				}
-			}
-			else if (o.op == Operator.ADD || o.op == Operator.SUBTRACT)
-			{
-				if (o.getRight() instanceof Variable)
-				{
-					linearMatrix[i][varID.get(o.getRight().toDefaultString())] = 1;
-				}
-				if (o.getLeft() instanceof Variable)
-				{
-					linearMatrix[i][varID.get(o.getLeft().toDefaultString())] = 1;
-				}
-				if (o.getRight() instanceof Operation || o.getLeft() instanceof Operation)
+				Integer id = varID.get(columns.get(a.getColumnAt(index)));
+
+				if (id == null)
+					continue;
+
+				// insertion sort, since the ids may be in a different order
+				int pos = k++;
+
+				for (; pos > rowStart[i] && cols[pos - 1] > id; --pos)
 				{
-					findCoefficient(i, o.getRight());
-					findCoefficient(i, o.getLeft());
+					cols[pos] = cols[pos - 1];
+					vals[pos] = vals[pos - 1];
 				}
+
+				cols[pos] = id;
+				vals[pos] = a.getValueAt(index);
 			}
 		}
+
+		rowStart[a.getNumRows()] = k;
+
+		return new SparseMatrix(a.getNumRows(), varID.size(), rowStart, Arrays.copyOf(cols, k),
+				Arrays.copyOf(vals, k));
 	}
 
 }
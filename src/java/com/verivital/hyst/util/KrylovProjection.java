@@ -0,0 +1,181 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.verivital.hyst.geometry.Interval;
+
+/**
+ * Krylov-subspace (block Arnoldi) model order reduction for linear systems x'
+ * = Ax + Bu. The orthonormal basis V spans {B, AB, A^2B, ...}, which matches
+ * the leading Markov parameters of the system. The reduced system is z' =
+ * (V^T A V) z + (V^T B) u, with x ~= V z.
+ *
+ * Only sparse matrix-vector products with A are used, so this works for
+ * models with hundreds of variables.
+ */
+public class KrylovProjection
+{
+	public static final double DEFLATION_TOL = 1e-10;
+
+	/**
+	 * Compute an orthonormal Krylov basis with block Arnoldi iteration. The
+	 * start vectors are processed first (in order), and then A times each
+	 * accepted basis vector, breadth first. Candidates which are (numerically)
+	 * linearly dependent on the current basis are dropped, so the returned
+	 * basis can be smaller than maxOrder if an invariant subspace is found.
+	 *
+	 * @param a
+	 *            the square system matrix
+	 * @param startVectors
+	 *            the starting block (for example the columns of B)
+	 * @param maxOrder
+	 *            the maximum number of basis vectors
+	 * @return the basis vectors, as rows (basis[i] has a.getNumRows() entries)
+	 */
+	public static double[][] arnoldi(SparseMatrix a, List<double[]> startVectors, int maxOrder)
+	{
+		int n = a.getNumRows();
+		ArrayList<double[]> basis = new ArrayList<double[]>();
+		LinkedList<double[]> candidates = new LinkedList<double[]>();
+
+		for (double[] v : startVectors)
+			candidates.add(v.clone());
+
+		while (basis.size() < maxOrder && !candidates.isEmpty())
+		{
+			double[] w = candidates.removeFirst();
+			double originalNorm = norm(w);
+
+			if (originalNorm == 0)
+				continue;
+
+			// modified Gram-Schmidt, done twice for numerical stability
+			for (int pass = 0; pass < 2; ++pass)
+			{
+				for (double[] v : basis)
+					addScaled(w, v, -dot(v, w));
+			}
+
+			double norm = norm(w);
+
+			if (norm <= DEFLATION_TOL * originalNorm)
+				continue;
+
+			for (int i = 0; i < n; ++i)
+				w[i] /= norm;
+
+			basis.add(w);
+
+			double[] next = new double[n];
+			a.multiply(w, next);
+			candidates.add(next);
+		}
+
+		return basis.toArray(new double[basis.size()][]);
+	}
+
+	/**
+	 * Compute the reduced matrix V^T A V, where the basis vectors are the rows
+	 * of V^T
+	 *
+	 * @param a
+	 *            the square system matrix
+	 * @param basis
+	 *            the orthonormal basis vectors
+	 * @return the dense reduced matrix, indexed [row][col]
+	 */
+	public static double[][] projectMatrix(SparseMatrix a, double[][] basis)
+	{
+		int r = basis.length;
+		double[][] rv = new double[r][r];
+		double[] av = new double[a.getNumRows()];
+
+		for (int col = 0; col < r; ++col)
+		{
+			a.multiply(basis[col], av);
+
+			for (int row = 0; row < r; ++row)
+				rv[row][col] = dot(basis[row], av);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Project a vector onto the basis, computing V^T x
+	 *
+	 * @param basis
+	 *            the orthonormal basis vectors
+	 * @param x
+	 *            the full-order vector
+	 * @return the reduced-order vector
+	 */
+	public static double[] projectVector(double[][] basis, double[] x)
+	{
+		double[] rv = new double[basis.length];
+
+		for (int i = 0; i < basis.length; ++i)
+			rv[i] = dot(basis[i], x);
+
+		return rv;
+	}
+
+	/**
+	 * Project a box onto the basis, computing the tightest box containing {V^T
+	 * x : x in box}. This is done with interval arithmetic, as V^T c +/- |V^T|
+	 * r for the box's center c and radius r, so the result covers the whole
+	 * box rather than just its center.
+	 *
+	 * @param basis
+	 *            the orthonormal basis vectors
+	 * @param box
+	 *            the full-order box
+	 * @return the reduced-order box
+	 */
+	public static Interval[] projectBox(double[][] basis, Interval[] box)
+	{
+		Interval[] rv = new Interval[basis.length];
+
+		for (int i = 0; i < basis.length; ++i)
+		{
+			double center = 0;
+			double radius = 0;
+
+			for (int s = 0; s < box.length; ++s)
+			{
+				center += basis[i][s] * box[s].middle();
+				radius += Math.abs(basis[i][s]) * box[s].width() / 2;
+			}
+
+			rv[i] = new Interval(center - radius, center + radius);
+		}
+
+		return rv;
+	}
+
+	public static double dot(double[] a, double[] b)
+	{
+		double rv = 0;
+
+		for (int i = 0; i < a.length; ++i)
+			rv += a[i] * b[i];
+
+		return rv;
+	}
+
+	public static double norm(double[] a)
+	{
+		return Math.sqrt(dot(a, a));
+	}
+
+	/**
+	 * Compute a += factor * b, in place
+	 */
+	private static void addScaled(double[] a, double[] b, double factor)
+	{
+		for (int i = 0; i < a.length; ++i)
+			a[i] += factor * b[i];
+	}
+}
@@ -0,0 +1,325 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+
+/**
+ * A multivariate polynomial with double coefficients, in expanded form. This is
+ * used to expand and chop expressions (like LUT interpolations) in Java,
+ * rather than doing a round trip to python / sympy.
+ *
+ * Each monomial is a sorted map of variable name -> exponent (the empty map is
+ * the constant term). Instances are immutable.
+ */
+public class Polynomial
+{
+	// the largest integer exponent expanded by fromExpression()
+	public static final int MAX_EXPONENT = 16;
+
+	private final HashMap<TreeMap<String, Integer>, Double> terms;
+
+	private Polynomial(HashMap<TreeMap<String, Integer>, Double> terms)
+	{
+		this.terms = terms;
+	}
+
+	public static Polynomial constant(double val)
+	{
+		HashMap<TreeMap<String, Integer>, Double> terms = new HashMap<TreeMap<String, Integer>, Double>();
+
+		if (val != 0)
+			terms.put(new TreeMap<String, Integer>(), val);
+
+		return new Polynomial(terms);
+	}
+
+	public static Polynomial variable(String name)
+	{
+		HashMap<TreeMap<String, Integer>, Double> terms = new HashMap<TreeMap<String, Integer>, Double>();
+		TreeMap<String, Integer> monomial = new TreeMap<String, Integer>();
+		monomial.put(name, 1);
+		terms.put(monomial, 1.0);
+
+		return new Polynomial(terms);
+	}
+
+	/**
+	 * Convert an expression to an expanded polynomial
+	 *
+	 * @param e
+	 *            the expression
+	 * @return the polynomial, or null if the expression is not a polynomial
+	 *         (for example, it has division by a variable, or a sin)
+	 */
+	public static Polynomial fromExpression(Expression e)
+	{
+		Polynomial rv = null;
+
+		if (e instanceof Constant)
+			rv = constant(((Constant) e).getVal());
+		else if (e instanceof Variable)
+			rv = variable(((Variable) e).name);
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+
+			if (o.op == Operator.NEGATIVE && o.children.size() == 1)
+			{
+				Polynomial child = fromExpression(o.children.get(0));
+
+				if (child != null)
+					rv = child.scale(-1);
+			}
+			else if (o.children.size() == 2)
+			{
+				Polynomial left = fromExpression(o.getLeft());
+				Polynomial right = left == null ? null : fromExpression(o.getRight());
+
+				if (right != null)
+				{
+					switch (o.op)
+					{
+					case ADD:
+						rv = left.add(right, 1);
+						break;
+					case SUBTRACT:
+						rv = left.add(right, -1);
+						break;
+					case MULTIPLY:
+						rv = left.multiply(right);
+						break;
+					case DIVIDE:
+						if (right.isConstant() && right.getConstant() != 0)
+							rv = left.scale(1.0 / right.getConstant());
+						break;
+					case POW:
+						if (right.isConstant())
+						{
+							double exp = right.getConstant();
+
+							if (exp >= 0 && exp <= MAX_EXPONENT && exp == Math.floor(exp))
+								rv = left.pow((int) exp);
+						}
+						break;
+					default:
+						break;
+					}
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Is this a constant (no variables)?
+	 */
+	public boolean isConstant()
+	{
+		return terms.isEmpty() || (terms.size() == 1
+				&& terms.keySet().iterator().next().isEmpty());
+	}
+
+	/**
+	 * Get the constant term
+	 */
+	public double getConstant()
+	{
+		Double rv = terms.get(new TreeMap<String, Integer>());
+
+		return rv == null ? 0 : rv;
+	}
+
+	/**
+	 * Get the number of nonzero terms
+	 */
+	public int getNumTerms()
+	{
+		return terms.size();
+	}
+
+	/**
+	 * Compute this + factor * other
+	 */
+	public Polynomial add(Polynomial other, double factor)
+	{
+		HashMap<TreeMap<String, Integer>, Double> rv = new HashMap<TreeMap<String, Integer>, Double>(
+				terms);
+
+		for (Entry<TreeMap<String, Integer>, Double> e : other.terms.entrySet())
+			addTerm(rv, e.getKey(), factor * e.getValue());
+
+		return new Polynomial(rv);
+	}
+
+	public Polynomial scale(double factor)
+	{
+		HashMap<TreeMap<String, Integer>, Double> rv = new HashMap<TreeMap<String, Integer>, Double>();
+
+		if (factor != 0)
+		{
+			for (Entry<TreeMap<String, Integer>, Double> e : terms.entrySet())
+				rv.put(e.getKey(), factor * e.getValue());
+		}
+
+		return new Polynomial(rv);
+	}
+
+	public Polynomial multiply(Polynomial other)
+	{
+		HashMap<TreeMap<String, Integer>, Double> rv = new HashMap<TreeMap<String, Integer>, Double>();
+
+		for (Entry<TreeMap<String, Integer>, Double> a : terms.entrySet())
+		{
+			for (Entry<TreeMap<String, Integer>, Double> b : other.terms.entrySet())
+			{
+				TreeMap<String, Integer> monomial = new TreeMap<String, Integer>(a.getKey());
+
+				for (Entry<String, Integer> v : b.getKey().entrySet())
+				{
+					Integer exp = monomial.get(v.getKey());
+					monomial.put(v.getKey(), (exp == null ? 0 : exp) + v.getValue());
+				}
+
+				addTerm(rv, monomial, a.getValue() * b.getValue());
+			}
+		}
+
+		return new Polynomial(rv);
+	}
+
+	public Polynomial pow(int exp)
+	{
+		Polynomial rv = constant(1);
+
+		for (int i = 0; i < exp; ++i)
+			rv = rv.multiply(this);
+
+		return rv;
+	}
+
+	/**
+	 * Remove terms with coefficients with magnitude at most tol
+	 *
+	 * @param tol
+	 *            the tolerance, like 1e-8
+	 * @return the chopped polynomial
+	 */
+	public Polynomial chop(double tol)
+	{
+		HashMap<TreeMap<String, Integer>, Double> rv = new HashMap<TreeMap<String, Integer>, Double>();
+
+		for (Entry<TreeMap<String, Integer>, Double> e : terms.entrySet())
+		{
+			if (Math.abs(e.getValue()) > tol)
+				rv.put(e.getKey(), e.getValue());
+		}
+
+		return new Polynomial(rv);
+	}
+
+	private static void addTerm(Map<TreeMap<String, Integer>, Double> terms,
+			TreeMap<String, Integer> monomial, double coefficient)
+	{
+		Double prev = terms.get(monomial);
+		double val = (prev == null ? 0 : prev) + coefficient;
+
+		if (val == 0)
+			terms.remove(monomial);
+		else
+			terms.put(monomial, val);
+	}
+
+	/**
+	 * Convert to an expression. Terms are ordered by degree and then by name,
+	 * so the output is deterministic.
+	 *
+	 * @return the expression, like 1 + 0.5 * x - 2 * x * y^2
+	 */
+	public Expression toExpression()
+	{
+		ArrayList<TreeMap<String, Integer>> monomials = new ArrayList<TreeMap<String, Integer>>(
+				terms.keySet());
+
+		Collections.sort(monomials, new Comparator<TreeMap<String, Integer>>()
+		{
+			@Override
+			public int compare(TreeMap<String, Integer> a, TreeMap<String, Integer> b)
+			{
+				int rv = Integer.compare(degree(a), degree(b));
+
+				if (rv == 0)
+					rv = a.toString().compareTo(b.toString());
+
+				return rv;
+			}
+		});
+
+		Expression rv = null;
+
+		for (TreeMap<String, Integer> monomial : monomials)
+		{
+			double coefficient = terms.get(monomial);
+			Expression product = null;
+
+			for (Entry<String, Integer> v : monomial.entrySet())
+			{
+				Expression factor = new Variable(v.getKey());
+
+				if (v.getValue() != 1)
+					factor = new Operation(Operator.POW, factor, new Constant(v.getValue()));
+
+				product = product == null ? factor
+						: new Operation(Operator.MULTIPLY, product, factor);
+			}
+
+			boolean negate = rv != null && coefficient < 0;
+			double magnitude = negate ? -coefficient : coefficient;
+			Expression term;
+
+			if (product == null)
+				term = new Constant(magnitude);
+			else if (magnitude == 1)
+				term = product;
+			else
+				term = new Operation(Operator.MULTIPLY, new Constant(magnitude), product);
+
+			if (rv == null)
+				rv = term;
+			else
+				rv = new Operation(negate ? Operator.SUBTRACT : Operator.ADD, rv, term);
+		}
+
+		if (rv == null)
+			rv = new Constant(0);
+
+		return rv;
+	}
+
+	private static int degree(Map<String, Integer> monomial)
+	{
+		int rv = 0;
+
+		for (int e : monomial.values())
+			rv += e;
+
+		return rv;
+	}
+
+	@Override
+	public String toString()
+	{
+		return toExpression().toDefaultString();
+	}
+}
@@ -0,0 +1,336 @@
+package com.verivital.hyst.util;
+
+import java.util.Arrays;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * An immutable sparse matrix in compressed sparse row (CSR) format. Memory use
+ * and the cost of multiplication scale with the number of nonzero entries,
+ * rather than rows * columns, which matters for models with hundreds of
+ * variables.
+ *
+ * Entry k (for rowStart[r] <= k < rowStart[r+1]) is at row r, column
+ * cols[k], with value vals[k]. Columns within a row are strictly increasing.
+ */
+public class SparseMatrix
+{
+	private final int numRows;
+	private final int numCols;
+	private final int[] rowStart; // length numRows + 1
+	private final int[] cols; // length nnz
+	private final double[] vals; // length nnz
+
+	/**
+	 * Create a matrix directly from CSR arrays (not copied). Columns within
+	 * each row must be strictly increasing, and values should be nonzero.
+	 *
+	 * @param numRows
+	 *            the number of rows
+	 * @param numCols
+	 *            the number of columns
+	 * @param rowStart
+	 *            the start index of each row, plus the total number of nonzeros
+	 * @param cols
+	 *            the column of each nonzero
+	 * @param vals
+	 *            the value of each nonzero
+	 */
+	public SparseMatrix(int numRows, int numCols, int[] rowStart, int[] cols, double[] vals)
+	{
+		if (rowStart.length != numRows + 1)
+			throw new AutomatonExportException(
+					"SparseMatrix rowStart length should be numRows + 1 = " + (numRows + 1)
+							+ ", got " + rowStart.length);
+
+		if (cols.length != vals.length || rowStart[numRows] != cols.length)
+			throw new AutomatonExportException(
+					"SparseMatrix cols / vals length mismatch with rowStart");
+
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowStart = rowStart;
+		this.cols = cols;
+		this.vals = vals;
+	}
+
+	/**
+	 * Create a sparse matrix from a dense one, dropping zero entries
+	 *
+	 * @param dense
+	 *            the dense matrix, indexed [row][col]
+	 * @param numCols
+	 *            the number of columns (needed if there are zero rows)
+	 * @return the sparse matrix
+	 */
+	public static SparseMatrix fromDense(double[][] dense, int numCols)
+	{
+		int nnz = 0;
+
+		for (double[] row : dense)
+		{
+			for (double d : row)
+			{
+				if (d != 0)
+					++nnz;
+			}
+		}
+
+		int[] rowStart = new int[dense.length + 1];
+		int[] cols = new int[nnz];
+		double[] vals = new double[nnz];
+		int k = 0;
+
+		for (int r = 0; r < dense.length; ++r)
+		{
+			rowStart[r] = k;
+
+			for (int c = 0; c < dense[r].length; ++c)
+			{
+				double d = dense[r][c];
+
+				if (d != 0)
+				{
+					cols[k] = c;
+					vals[k++] = d;
+				}
+			}
+		}
+
+		rowStart[dense.length] = k;
+
+		return new SparseMatrix(dense.length, numCols, rowStart, cols, vals);
+	}
+
+	public int getNumRows()
+	{
+		return numRows;
+	}
+
+	public int getNumCols()
+	{
+		return numCols;
+	}
+
+	public int getNumNonzeros()
+	{
+		return vals.length;
+	}
+
+	/**
+	 * Get the index of the first nonzero in a row (for use with getColumnAt()
+	 * and getValueAt())
+	 */
+	public int getRowStart(int row)
+	{
+		return rowStart[row];
+	}
+
+	/**
+	 * Get one past the index of the last nonzero in a row
+	 */
+	public int getRowEnd(int row)
+	{
+		return rowStart[row + 1];
+	}
+
+	public int getColumnAt(int index)
+	{
+		return cols[index];
+	}
+
+	public double getValueAt(int index)
+	{
+		return vals[index];
+	}
+
+	/**
+	 * Get a single entry. This is a binary search within the row.
+	 *
+	 * @param row
+	 *            the row
+	 * @param col
+	 *            the column
+	 * @return the value at the entry, or zero
+	 */
+	public double get(int row, int col)
+	{
+		int index = Arrays.binarySearch(cols, rowStart[row], rowStart[row + 1], col);
+
+		return index >= 0 ? vals[index] : 0;
+	}
+
+	/**
+	 * Compute out = M * x
+	 *
+	 * @param x
+	 *            a vector with getNumCols() entries
+	 * @param out
+	 *            where to store the result, with getNumRows() entries
+	 */
+	public void multiply(double[] x, double[] out)
+	{
+		for (int r = 0; r < numRows; ++r)
+		{
+			double sum = 0;
+
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+				sum += vals[k] * x[cols[k]];
+
+			out[r] = sum;
+		}
+	}
+
+	/**
+	 * Compute out = M^T * x
+	 *
+	 * @param x
+	 *            a vector with getNumRows() entries
+	 * @param out
+	 *            where to store the result, with getNumCols() entries
+	 */
+	public void multiplyTranspose(double[] x, double[] out)
+	{
+		Arrays.fill(out, 0);
+
+		for (int r = 0; r < numRows; ++r)
+		{
+			double xr = x[r];
+
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+				out[cols[k]] += vals[k] * xr;
+		}
+	}
+
+	/**
+	 * Get the transpose of this matrix, in time linear in the number of
+	 * nonzeros
+	 *
+	 * @return the transposed matrix
+	 */
+	public SparseMatrix transpose()
+	{
+		int nnz = vals.length;
+		int[] tRowStart = new int[numCols + 1];
+		int[] tCols = new int[nnz];
+		double[] tVals = new double[nnz];
+
+		// count entries per column
+		for (int k = 0; k < nnz; ++k)
+			++tRowStart[cols[k] + 1];
+
+		for (int c = 0; c < numCols; ++c)
+			tRowStart[c + 1] += tRowStart[c];
+
+		int[] next = Arrays.copyOf(tRowStart, numCols);
+
+		for (int r = 0; r < numRows; ++r)
+		{
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+			{
+				int dest = next[cols[k]]++;
+				tCols[dest] = r;
+				tVals[dest] = vals[k];
+			}
+		}
+
+		return new SparseMatrix(numCols, numRows, tRowStart, tCols, tVals);
+	}
+
+	/**
+	 * Extract the block of rows [0, rows) and columns [firstCol, firstCol +
+	 * numCols)
+	 *
+	 * @param rows
+	 *            the number of leading rows to keep
+	 * @param firstCol
+	 *            the first column to keep
+	 * @param numCols
+	 *            the number of columns to keep
+	 * @return the submatrix
+	 */
+	public SparseMatrix block(int rows, int firstCol, int numCols)
+	{
+		int lastCol = firstCol + numCols;
+		int nnz = 0;
+
+		for (int k = 0; k < rowStart[rows]; ++k)
+		{
+			if (cols[k] >= firstCol && cols[k] < lastCol)
+				++nnz;
+		}
+
+		int[] bRowStart = new int[rows + 1];
+		int[] bCols = new int[nnz];
+		double[] bVals = new double[nnz];
+		int index = 0;
+
+		for (int r = 0; r < rows; ++r)
+		{
+			bRowStart[r] = index;
+
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+			{
+				if (cols[k] >= firstCol && cols[k] < lastCol)
+				{
+					bCols[index] = cols[k] - firstCol;
+					bVals[index++] = vals[k];
+				}
+			}
+		}
+
+		bRowStart[rows] = index;
+
+		return new SparseMatrix(rows, numCols, bRowStart, bCols, bVals);
+	}
+
+	/**
+	 * Convert to a dense matrix. This allocates rows * columns entries.
+	 *
+	 * @return the dense matrix, indexed [row][col]
+	 */
+	public double[][] toDense()
+	{
+		double[][] rv = new double[numRows][numCols];
+
+		for (int r = 0; r < numRows; ++r)
+		{
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+				rv[r][cols[k]] = vals[k];
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get a matlab expression which constructs this matrix, using sparse(i, j,
+	 * v, m, n), so the size of the string is proportional to the number of
+	 * nonzeros
+	 *
+	 * @return the matlab code
+	 */
+	public String toMatlabString()
+	{
+		StringBuilder i = new StringBuilder();
+		StringBuilder j = new StringBuilder();
+		StringBuilder v = new StringBuilder();
+
+		for (int r = 0; r < numRows; ++r)
+		{
+			for (int k = rowStart[r]; k < rowStart[r + 1]; ++k)
+			{
+				i.append(r + 1).append(' ');
+				j.append(cols[k] + 1).append(' ');
+				v.append(Double.toString(vals[k])).append(' ');
+			}
+		}
+
+		return "sparse([" + i + "], [" + j + "], [" + v + "], " + numRows + ", " + numCols + ")";
+	}
+
+	@Override
+	public String toString()
+	{
+		return "[SparseMatrix " + numRows + "x" + numCols + ", " + vals.length + " nonzeros]";
+	}
+}
@@ -1,10 +1,14 @@
 package com.verivital.hyst.util;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.printers.ToolPrinter;
 
@@ -103,4 +107,34 @@ public class StringOperations
 
 		return sb.toString();
 	}
+
+	/**
+	 * Get the SHA-256 hash of a string, for use as a key or a handle
+	 * 
+	 * @param s
+	 *            the string, which is hashed as UTF-8
+	 * @return the hash, as lowercase hex digits
+	 */
+	public static String sha256(String s)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+			for (byte b : md.digest(s.getBytes("UTF-8")))
+				rv.append(String.format("%02x", b));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("SHA-256 is not available", e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new AutomatonExportException("UTF-8 is not available", e);
+		}
+
+		return rv.toString();
+	}
 }
@@ -6,6 +6,9 @@ Stanley Bak (Feb 2016)
 from hybridpy.pysim.simulate import simulate_one_time
 from hybridpy.pysim.simulate import simulate_one
 from hybridpy.pysim.simulate import simulate_multi
+from hybridpy.pysim.simulate import ModeSim
+from hybridpy.pysim.trajectory_file import write_trajectories
+from hybridpy.pysim.trajectory_file import read_trajectories
 
 def simulate_with_times(q, all_times, max_jumps=500, solver='vode'):
     '''
@@ -154,26 +157,12 @@ def simulate_multi_trajectory_time(ha, mode_names, points, time, min_steps=100,
     trajectory is a semi-colon separated list of mode_name,point_dim_0,point_dim_1, ... , point_dim_m
     '''
 
-    assert len(mode_names) == len(points)
-
-    max_step = float(time) / float(min_steps)
-    
-    q_list = []
-
-    for i in xrange(len(mode_names)):
-        mode = mode_names[i]
-        point = points[i]
-
-        q_list.append((ha.modes[mode], point))
-
-    res_list = simulate_multi(q_list, time, max_jumps=max_jumps, max_step=max_step, solver_name=solver)
-
     rv_list = []
 
-    for res in res_list:
+    for traces in _simulate_multi_traces(ha, mode_names, points, time, min_steps, max_jumps, solver):
         traj = []
         
-        for mode_sim in res['traces']:
+        for mode_sim in traces:
             mode = mode_sim.mode_name
             points = mode_sim.points
         
@@ -186,3 +175,88 @@ def simulate_multi_trajectory_time(ha, mode_names, points, time, min_steps=100,
         rv_list.append(';'.join(traj))
 
     return '|'.join(rv_list)
+
+def simulate_multi_trajectory_file(ha, mode_names, points, time, filename, variables, min_steps=100, 
+                                   max_jumps=500, solver='vode'):
+    '''like simulate_multi_trajectory_time, but writes the trajectories to a binary trajectory file
+    (see hybridpy.pysim.trajectory_file) rather than returning them as a string, which avoids printing
+    and parsing long trajectories. variables is the list of variable names.
+    returns the number of trajectories written
+    '''
+
+    trajectories = _simulate_multi_traces(ha, mode_names, points, time, min_steps, max_jumps, solver)
+    write_trajectories(filename, variables, trajectories)
+
+    return len(trajectories)
+
+def read_states(filename):
+    '''read a list of states from a binary trajectory file, where each state is a single-point trajectory
+    (see TrajectoryWriter.writeStates in Hyst). This is how start states are passed in from Java, rather
+    than as printed lists.
+    returns a tuple (variables, mode_names, points)
+    '''
+
+    variables, trajectories = read_trajectories(filename)
+    mode_names = []
+    points = []
+
+    for index, traces in enumerate(trajectories):
+        if len(traces) != 1 or len(traces[0].points) != 1:
+            raise RuntimeError('State {} in {} was not a single point'.format(index, filename))
+
+        mode_names.append(traces[0].mode_name)
+        points.append(traces[0].points[0])
+
+    return variables, mode_names, points
+
+def simulate_set_time_file(ha, in_filename, time, out_filename, min_steps=100, max_jumps=500, solver='vode'):
+    '''like simulate_set_time, but the start states are read from a binary trajectory file (see read_states),
+    and the final states are written to out_filename in the same way, one single-point trajectory per state.
+    A simulation which produced no points gets an empty trajectory.
+    returns the number of states written
+    '''
+
+    variables, mode_names, points = read_states(in_filename)
+    final_states = []
+
+    for traces in _simulate_multi_traces(ha, mode_names, points, time, min_steps, max_jumps, solver):
+        if not traces or not traces[-1].points:
+            final_states.append([])
+        else:
+            last = traces[-1]
+            final_states.append([ModeSim(last.mode_name, [last.points[-1]], [last.times[-1]])])
+
+    write_trajectories(out_filename, variables, final_states)
+
+    return len(final_states)
+
+def simulate_multi_trajectory_files(ha, in_filename, time, out_filename, min_steps=100, max_jumps=500,
+                                    solver='vode'):
+    '''like simulate_multi_trajectory_file, but the start states (and variable names) are read from a binary
+    trajectory file (see read_states)
+    returns the number of trajectories written
+    '''
+
+    variables, mode_names, points = read_states(in_filename)
+
+    return simulate_multi_trajectory_file(ha, mode_names, points, time, out_filename, variables,
+                                          min_steps=min_steps, max_jumps=max_jumps, solver=solver)
+
+def _simulate_multi_traces(ha, mode_names, points, time, min_steps, max_jumps, solver):
+    '''simulates from a list of modes/points, returning a list of traces (lists of ModeSim objects)'''
+
+    assert len(mode_names) == len(points)
+
+    max_step = float(time) / float(min_steps)
+    
+    q_list = []
+
+    for i in xrange(len(mode_names)):
+        mode = mode_names[i]
+        point = points[i]
+
+        q_list.append((ha.modes[mode], point))
+
+    res_list = simulate_multi(q_list, time, max_jumps=max_jumps, max_step=max_step, solver_name=solver)
+
+    return [res['traces'] for res in res_list]
@@ -1,7 +1,12 @@
 '''Unit tests for the pysim utils in pythonbridge'''
 
+import os
+import tempfile
 import unittest
 import pysim_utils as util
+from hybridpy.pysim.simulate import ModeSim
+from hybridpy.pysim.trajectory_file import write_trajectories
+from hybridpy.pysim.trajectory_file import read_trajectories
 from hybridpy.pysim.hybrid_automaton import HybridAutomaton
 from hybridpy.pysim.hybrid_automaton import HyperRectangle
 
@@ -64,6 +69,73 @@ class TestPySimUtils(unittest.TestCase):
         self.assertAlmostEqual(float(x3), -1.0, places=3)
         self.assertAlmostEqual(float(y3), -2.0, places=3)
 
+    def test_simulate_set_time_file(self):
+        'test for simulating a set of states for a fixed time, passing the states in binary files'
+
+        ha = define_ha()
+        in_fd, in_filename = tempfile.mkstemp('.bin')
+        out_fd, out_filename = tempfile.mkstemp('.bin')
+        os.close(in_fd)
+        os.close(out_fd)
+
+        try:
+            states = [[ModeSim('on', [[1, 1.5]], [0])], [ModeSim('off', [[1, 2]], [0])]]
+            write_trajectories(in_filename, ['x', 'y'], states)
+
+            variables, mode_names, points = util.read_states(in_filename)
+            self.assertEqual(variables, ['x', 'y'])
+            self.assertEqual(mode_names, ['on', 'off'])
+
+            count = util.simulate_set_time_file(ha, in_filename, 2, out_filename)
+            self.assertEqual(count, 2)
+
+            variables, trajectories = read_trajectories(out_filename)
+            self.assertEqual(variables, ['x', 'y'])
+            self.assertEqual(len(trajectories), 2)
+
+            on, off = trajectories[0][0], trajectories[1][0]
+            self.assertEqual(on.mode_name, 'on')
+            self.assertAlmostEqual(on.times[0], 2.0, places=3)
+            self.assertAlmostEqual(on.points[0][0], 3.0, places=3)
+            self.assertAlmostEqual(on.points[0][1], 9.5, places=3)
+
+            self.assertEqual(off.mode_name, 'off')
+            self.assertAlmostEqual(off.points[0][0], -1.0, places=3)
+            self.assertAlmostEqual(off.points[0][1], -2.0, places=3)
+        finally:
+            os.remove(in_filename)
+            os.remove(out_filename)
+
+    def test_simulate_set_time_file_empty(self):
+        'test that a simulation which produced no points gets an empty trajectory'
+
+        ha = define_ha()
+        in_fd, in_filename = tempfile.mkstemp('.bin')
+        out_fd, out_filename = tempfile.mkstemp('.bin')
+        os.close(in_fd)
+        os.close(out_fd)
+
+        states = [[ModeSim('on', [[0, 0]], [0])], [ModeSim('on', [[1, 1]], [0])]]
+        sim_traces = [[ModeSim('on', [[2, 4]], [2])], []]
+        saved_sim = util._simulate_multi_traces
+        util._simulate_multi_traces = lambda *args: sim_traces
+
+        try:
+            write_trajectories(in_filename, ['x', 'y'], states)
+
+            count = util.simulate_set_time_file(ha, in_filename, 2, out_filename, min_steps=10)
+            self.assertEqual(count, 2)
+
+            _, trajectories = read_trajectories(out_filename)
+
+            # the empty trajectory at the end has no segments in the file
+            self.assertEqual(len(trajectories), 1)
+            self.assertEqual(trajectories[0][0].points[0], [2.0, 4.0])
+        finally:
+            util._simulate_multi_traces = saved_sim
+            os.remove(in_filename)
+            os.remove(out_filename)
+
     def test_sim_traj_time(self):
         'test for simulating points and getting back trajectories'
 